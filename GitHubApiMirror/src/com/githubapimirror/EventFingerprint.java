@@ -0,0 +1,236 @@
+/*
+ * Copyright 2021 Jonathan West
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.githubapimirror;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Date;
+
+import org.kohsuke.github.GHEvent;
+
+import com.githubapimirror.shared.Owner;
+
+/**
+ * A 128-bit fingerprint of an event seen by EventScan: the first 128 bits of
+ * the SHA-256 hash of the event's type, owner, repository, issue number,
+ * creation time and actor. These are the same bits as the first 32 characters
+ * of the hex hash stored by earlier versions, so their stored hashes remain
+ * valid (see fromHex(...)).
+ *
+ * create(...) feeds the fields to the digest directly, rather than building the
+ * hashed string and hex encoding the result, as it is called for every event of
+ * every scan. Fingerprints are held as a pair of longs by EventFingerprintSet;
+ * this class is only used to pass one around.
+ */
+public final class EventFingerprint {
+
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	private static final ThreadLocal<FingerprintDigest> digests = ThreadLocal.withInitial(FingerprintDigest::new);
+
+	private final long high;
+
+	private final long low;
+
+	public EventFingerprint(long high, long low) {
+		this.high = high;
+		this.low = low;
+	}
+
+	/**
+	 * The event is either a GHEvent, or the event type of an issue event (as a
+	 * string).
+	 */
+	public static EventFingerprint create(Object event, Owner owner, String repoName, Integer issue, Date createdAt,
+			String actorLogin) {
+
+		FingerprintDigest digest = digests.get();
+		digest.reset(); // In case a previous call failed part way through
+
+		if (event instanceof GHEvent) {
+			digest.append(((GHEvent) event).ordinal());
+		} else {
+			digest.append((String) event);
+		}
+		digest.appendSeparator();
+		digest.append(owner.getOrgNameOrNull());
+		digest.appendSeparator();
+		digest.append(owner.getUserNameOrNull());
+		digest.appendSeparator();
+		digest.append(repoName);
+		digest.appendSeparator();
+		if (issue != null) {
+			digest.append(issue.intValue());
+		} else {
+			digest.append((String) null);
+		}
+		digest.appendSeparator();
+		digest.append(createdAt.getTime());
+		digest.appendSeparator();
+		digest.append(actorLogin);
+
+		return digest.finish();
+	}
+
+	/**
+	 * Parse a fingerprint from its hex form, or from a longer hex hash (such as the
+	 * SHA-256 hashes stored by earlier versions); returns null if the string is not
+	 * hex, or is too short.
+	 */
+	public static EventFingerprint fromHex(String hex) {
+		if (hex.length() < 32) {
+			return null;
+		}
+
+		long high = 0;
+		long low = 0;
+		for (int x = 0; x < 32; x++) {
+			int digit = Character.digit(hex.charAt(x), 16);
+			if (digit < 0) {
+				return null;
+			}
+			if (x < 16) {
+				high = (high << 4) | digit;
+			} else {
+				low = (low << 4) | digit;
+			}
+		}
+
+		return new EventFingerprint(high, low);
+	}
+
+	public long getHigh() {
+		return high;
+	}
+
+	public long getLow() {
+		return low;
+	}
+
+	/** Returns the fingerprint as 32 hex characters, as it is stored in the database. */
+	@Override
+	public String toString() {
+		char[] result = new char[32];
+		for (int x = 0; x < 16; x++) {
+			result[x] = HEX_DIGITS[(int) (high >>> (60 - x * 4)) & 0xf];
+			result[x + 16] = HEX_DIGITS[(int) (low >>> (60 - x * 4)) & 0xf];
+		}
+		return new String(result);
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof EventFingerprint)) {
+			return false;
+		}
+		EventFingerprint other = (EventFingerprint) o;
+		return high == other.high && low == other.low;
+	}
+
+	@Override
+	public int hashCode() {
+		return Long.hashCode(high);
+	}
+
+	/**
+	 * A reusable SHA-256 digest, and a buffer into which the fields are encoded
+	 * (as the UTF-8 bytes of their string form); not thread safe.
+	 */
+	private static class FingerprintDigest {
+
+		private static final byte[] NULL_BYTES = "null".getBytes(StandardCharsets.UTF_8);
+
+		private final MessageDigest digest;
+
+		private final byte[] buffer = new byte[256];
+
+		FingerprintDigest() {
+			try {
+				digest = MessageDigest.getInstance("SHA-256");
+			} catch (NoSuchAlgorithmException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		void reset() {
+			digest.reset();
+		}
+
+		void appendSeparator() {
+			digest.update((byte) '-');
+		}
+
+		void append(String str) {
+			if (str == null) {
+				digest.update(NULL_BYTES);
+				return;
+			}
+
+			// Copy ASCII characters to the buffer, a buffer-full at a time
+			int length = 0;
+			for (int x = 0; x < str.length(); x++) {
+				char c = str.charAt(x);
+				if (c >= 0x80) {
+					// Not ASCII, so let the string encode what remains
+					digest.update(buffer, 0, length);
+					digest.update(str.substring(x).getBytes(StandardCharsets.UTF_8));
+					return;
+				}
+				if (length == buffer.length) {
+					digest.update(buffer, 0, length);
+					length = 0;
+				}
+				buffer[length++] = (byte) c;
+			}
+			digest.update(buffer, 0, length);
+		}
+
+		void append(long value) {
+			if (value == Long.MIN_VALUE) {
+				append(Long.toString(value));
+				return;
+			}
+
+			if (value < 0) {
+				digest.update((byte) '-');
+				value = -value;
+			}
+
+			int position = 20; // The length of the longest decimal long
+			do {
+				buffer[--position] = (byte) ('0' + (value % 10));
+				value /= 10;
+			} while (value != 0);
+
+			digest.update(buffer, position, 20 - position);
+		}
+
+		EventFingerprint finish() {
+			byte[] hash = digest.digest(); // Also resets the digest
+
+			long high = 0;
+			long low = 0;
+			for (int x = 0; x < 8; x++) {
+				high = (high << 8) | (hash[x] & 0xff);
+				low = (low << 8) | (hash[x + 8] & 0xff);
+			}
+
+			return new EventFingerprint(high, low);
+		}
+	}
+}
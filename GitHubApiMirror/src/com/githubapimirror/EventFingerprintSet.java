@@ -0,0 +1,227 @@
+/*
+ * Copyright 2021 Jonathan West
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.githubapimirror;
+
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * A set of 128-bit event fingerprints, each with the time of its event, stored
+ * as triples of longs in a single open-addressing (linear probing) table,
+ * rather than as one object per fingerprint: about 24 / MAX_LOAD bytes per
+ * fingerprint, compared to well over 100 for a HashSet of hex strings.
+ * Fingerprints are only removed by removeEventsBefore(...), which rebuilds the
+ * table.
+ *
+ * An empty slot is all zero bits, so the (astronomically unlikely) all-zero
+ * fingerprint is stored as if its low bits were 1. The table is doubled when
+ * it is more than MAX_LOAD full.
+ *
+ * This class is thread safe. Writes are serialized by a StampedLock; reads
+ * are optimistic (lock-free), and only acquire the read lock if a write
+ * happened during the read.
+ */
+public class EventFingerprintSet {
+
+	private static final int INITIAL_CAPACITY = 1024;
+
+	private static final double MAX_LOAD = 0.6d;
+
+	private final StampedLock lock = new StampedLock();
+
+	/** The number of longs per slot: the fingerprint (high, low), then the event time */
+	private static final int SLOT_LENGTH = 3;
+
+	/** Slot x begins at table[3x]; the number of slots is a power of 2 */
+	private volatile long[] table = new long[INITIAL_CAPACITY * SLOT_LENGTH];
+
+	private int size_synch_lock = 0;
+
+	public boolean contains(EventFingerprint fingerprint) {
+		return contains(fingerprint.getHigh(), fingerprint.getLow());
+	}
+
+	public boolean contains(long high, long low) {
+		if (high == 0 && low == 0) {
+			low = 1;
+		}
+
+		long stamp = lock.tryOptimisticRead();
+		if (stamp != 0) {
+			boolean result = find(table, high, low) >= 0;
+			if (lock.validate(stamp)) {
+				return result;
+			}
+		}
+
+		stamp = lock.readLock();
+		try {
+			return find(table, high, low) >= 0;
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Returns true if added, or false if already present (in which case the later
+	 * of the two event times is kept).
+	 */
+	public boolean add(EventFingerprint fingerprint, long eventTime) {
+		return add(fingerprint.getHigh(), fingerprint.getLow(), eventTime);
+	}
+
+	public boolean add(long high, long low, long eventTime) {
+		if (high == 0 && low == 0) {
+			low = 1;
+		}
+
+		long stamp = lock.writeLock();
+		try {
+			long[] current = table;
+
+			int slot = find(current, high, low);
+			if (slot >= 0) {
+				int timeIndex = slot * SLOT_LENGTH + 2;
+				current[timeIndex] = Math.max(current[timeIndex], eventTime);
+				return false;
+			}
+
+			if (size_synch_lock + 1 > slots(current) * MAX_LOAD) {
+				current = resize(current, slots(current) * 2, Long.MIN_VALUE);
+				table = current;
+				slot = find(current, high, low);
+			}
+
+			// find(...) returns -(the empty slot at which the search ended) - 1
+			slot = -slot - 1;
+			current[slot * SLOT_LENGTH] = high;
+			current[slot * SLOT_LENGTH + 1] = low;
+			current[slot * SLOT_LENGTH + 2] = eventTime;
+			size_synch_lock++;
+
+			return true;
+
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Remove the fingerprints with an event time before the given time, shrinking
+	 * the table if it is then mostly empty; returns the number removed.
+	 */
+	public int removeEventsBefore(long eventTime) {
+		long stamp = lock.writeLock();
+		try {
+			long[] current = table;
+
+			int remaining = 0;
+			for (int x = 0; x < current.length; x += SLOT_LENGTH) {
+				if ((current[x] != 0 || current[x + 1] != 0) && current[x + 2] >= eventTime) {
+					remaining++;
+				}
+			}
+
+			int removed = size_synch_lock - remaining;
+			if (removed == 0) {
+				return 0;
+			}
+
+			int slots = INITIAL_CAPACITY;
+			while (remaining > slots * MAX_LOAD) {
+				slots *= 2;
+			}
+
+			table = resize(current, slots, eventTime);
+			size_synch_lock = remaining;
+
+			return removed;
+
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	public void clear() {
+		long stamp = lock.writeLock();
+		try {
+			table = new long[INITIAL_CAPACITY * SLOT_LENGTH];
+			size_synch_lock = 0;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	public int size() {
+		long stamp = lock.readLock();
+		try {
+			return size_synch_lock;
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/** The size of the table, in bytes. */
+	public long getTableSizeInBytes() {
+		return table.length * 8l;
+	}
+
+	/**
+	 * Returns the slot of the fingerprint if present, otherwise -(the empty slot at
+	 * which the search ended) - 1. The search is bounded by the number of slots, as
+	 * an optimistic reader may see a table that is being written.
+	 */
+	private static int find(long[] table, long high, long low) {
+		int slots = slots(table);
+		int mask = slots - 1;
+
+		int slot = (int) ((high * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+
+		for (int x = 0; x < slots; x++) {
+			long slotHigh = table[slot * SLOT_LENGTH];
+			long slotLow = table[slot * SLOT_LENGTH + 1];
+
+			if (slotHigh == high && slotLow == low) {
+				return slot;
+			}
+			if (slotHigh == 0 && slotLow == 0) {
+				return -slot - 1;
+			}
+
+			slot = (slot + 1) & mask;
+		}
+
+		return Integer.MIN_VALUE; // Only possible for an optimistic reader
+	}
+
+	private static int slots(long[] table) {
+		return table.length / SLOT_LENGTH;
+	}
+
+	/** Copy the fingerprints with an event time of at least minEventTime to a new table. */
+	private static long[] resize(long[] old, int slots, long minEventTime) {
+		long[] result = new long[slots * SLOT_LENGTH];
+
+		for (int x = 0; x < old.length; x += SLOT_LENGTH) {
+			if ((old[x] != 0 || old[x + 1] != 0) && old[x + 2] >= minEventTime) {
+				int slot = -find(result, old[x], old[x + 1]) - 1;
+				System.arraycopy(old, x, result, slot * SLOT_LENGTH, SLOT_LENGTH);
+			}
+		}
+
+		return result;
+	}
+}
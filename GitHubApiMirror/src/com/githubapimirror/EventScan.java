@@ -23,10 +23,11 @@
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.regex.Pattern;
 
-import org.apache.commons.codec.digest.DigestUtils;
 import org.eclipse.egit.github.core.IssueEvent;
 import org.eclipse.egit.github.core.client.GitHubClient;
 import org.eclipse.egit.github.core.client.NoSuchPageException;
@@ -51,6 +52,8 @@
 import com.githubapimirror.ServerInstance.NextEventScanInNanos;
 import com.githubapimirror.WorkQueue.IssueContainer;
 import com.githubapimirror.WorkQueue.OwnerContainer;
+import com.githubapimirror.WorkQueue.Priority;
+import com.githubapimirror.db.ProcessedEvent;
 import com.githubapimirror.shared.Owner;
 import com.githubapimirror.shared.Owner.Type;
 
@@ -264,11 +267,11 @@ private static ProcessIteratorReturnValue combine(ProcessIteratorReturnValue one
 			return one;
 		}
 
-		HashSet<String> eventHashes = new HashSet<>(one.getNewEventHashes());
+		Map<EventFingerprint, Long> events = new LinkedHashMap<>(one.getNewEvents());
 
-		eventHashes.addAll(two.getNewEventHashes());
+		two.getNewEvents().forEach((hash, eventTime) -> events.merge(hash, eventTime, Math::max));
 
-		ProcessIteratorReturnValue result = new ProcessIteratorReturnValue(new ArrayList<String>(eventHashes),
+		ProcessIteratorReturnValue result = new ProcessIteratorReturnValue(events,
 				one.isFullScanRequired() || two.isFullScanRequired());
 
 		return result;
@@ -298,7 +301,6 @@ private static ProcessIteratorReturnValue processIssueEventListOld(PageIterator<
 			Collection<IssueEvent> eventList = it.next();
 
 			heartbeatRunner.informWorkUnitCompleted();
-			workQueue.waitIfNeeded(1);
 
 			// We use the EGit client here, because the Kohsuke GitHub client has not yet
 			// shipped the event API.
@@ -360,7 +362,7 @@ private static ProcessIteratorReturnValue processIssueEventListOld(PageIterator<
 				// scan list.
 				{
 
-					String hash = createEventHash(ie.getEvent(), owner, repoName, issue.getNumber(), createdAt,
+					EventFingerprint hash = createEventHash(ie.getEvent(), owner, repoName, issue.getNumber(), createdAt,
 							actorLogin);
 
 					boolean eventProcessed = data.isEventProcessed(hash);
@@ -372,21 +374,13 @@ private static ProcessIteratorReturnValue processIssueEventListOld(PageIterator<
 						GHRepository ghRepo = repoCache.getRepository(owner.getType() == Type.ORG, owner.getName(),
 								repoName);
 
-						// Keep track of whether it came from the cache, as this means we need to do a
-						// request wait below.
-						boolean fromCache = true;
 						GHIssue ghIssue = repoCache.getIssue(ghRepo, issue.getNumber(), true);
 						if (ghIssue == null) {
 							ghIssue = repoCache.getIssue(ghRepo, issue.getNumber(), false);
-							fromCache = false;
 						}
 
 						eventMatchesInARowFromEsd = 0;
-						toScan.add(new RepoEventScanEntry(ghIssue, ghRepo, hash));
-
-						if (!fromCache) {
-							workQueue.waitIfNeeded(1);
-						}
+						toScan.add(new RepoEventScanEntry(ghIssue, ghRepo, hash, createdAt.getTime()));
 
 					}
 
@@ -413,14 +407,14 @@ private static ProcessIteratorReturnValue processIssueEventListOld(PageIterator<
 
 		} // end event-loop while
 
-		List<String> newEventHashes = new ArrayList<>();
+		Map<EventFingerprint, Long /* event time */> newEvents = new LinkedHashMap<>();
 
 		List<IssueContainer> itemsToQueue = new ArrayList<>();
 
 		for (RepoEventScanEntry e : toScan) {
 
 			// Add _all_ the event hashes we saw....
-			newEventHashes.add(e.getHash());
+			newEvents.put(e.getHash(), e.getEventTime());
 
 			// ... but prevent duplicate issues from being processed after this block.
 			{
@@ -432,7 +426,6 @@ private static ProcessIteratorReturnValue processIssueEventListOld(PageIterator<
 			}
 
 			heartbeatRunner.informWorkUnitCompleted();
-			workQueue.waitIfNeeded(1);
 
 			GHRepository repo = e.getRepository();
 			GHIssue issue = e.getIssue();
@@ -442,7 +435,7 @@ private static ProcessIteratorReturnValue processIssueEventListOld(PageIterator<
 
 		if (!fullScanRequired) {
 			itemsToQueue.forEach(e -> {
-				workQueue.addIssue(e.getIssue(), e.getRepo().get(), e.getOwner());
+				workQueue.addIssue(e.getIssue(), e.getRepo().get(), e.getOwner(), Priority.EVENT);
 
 			});
 		} else {
@@ -453,11 +446,11 @@ private static ProcessIteratorReturnValue processIssueEventListOld(PageIterator<
 
 		}
 
-		newEventHashes.forEach(e -> {
-			data.addEventIfNotPresent(e);
+		newEvents.forEach((hash, eventTime) -> {
+			data.addEventIfNotPresent(hash, eventTime);
 		});
 
-		return new ProcessIteratorReturnValue(newEventHashes, fullScanRequired);
+		return new ProcessIteratorReturnValue(newEvents, fullScanRequired);
 
 	}
 
@@ -482,7 +475,6 @@ private static ProcessIteratorReturnValue processIssueEventList(PagedIterable<GH
 		event_loop: for(PagedIterator<GHIssueEvent> it = repoIssueEvents.iterator(); it.hasNext();) {
 			GHIssueEvent ie = it.next();
 			heartbeatRunner.informWorkUnitCompleted();
-			workQueue.waitIfNeeded(1);
 
 			GHIssue issue = ie.getIssue();
 
@@ -540,7 +532,7 @@ private static ProcessIteratorReturnValue processIssueEventList(PagedIterable<GH
 			// scan list.
 			{
 
-				String hash = createEventHash(ie.getEvent(), owner, repoName, issue.getNumber(), createdAt,
+				EventFingerprint hash = createEventHash(ie.getEvent(), owner, repoName, issue.getNumber(), createdAt,
 						actorLogin);
 
 				boolean eventProcessed = data.isEventProcessed(hash);
@@ -552,21 +544,13 @@ private static ProcessIteratorReturnValue processIssueEventList(PagedIterable<GH
 					GHRepository ghRepo = repoCache.getRepository(owner.getType() == Type.ORG, owner.getName(),
 							repoName);
 
-					// Keep track of whether it came from the cache, as, if not, this means we need to do a
-					// request wait below.
-					boolean fromCache = true;
 					GHIssue ghIssue = repoCache.getIssue(ghRepo, issue.getNumber(), true);
 					if (ghIssue == null) {
 						ghIssue = repoCache.getIssue(ghRepo, issue.getNumber(), false);
-						fromCache = false;
 					}
 
 					eventMatchesInARowFromEsd = 0;
-					toScan.add(new RepoEventScanEntry(ghIssue, ghRepo, hash));
-
-					if (!fromCache) {
-						workQueue.waitIfNeeded(1);
-					}
+					toScan.add(new RepoEventScanEntry(ghIssue, ghRepo, hash, createdAt.getTime()));
 
 				}
 
@@ -591,14 +575,14 @@ private static ProcessIteratorReturnValue processIssueEventList(PagedIterable<GH
 		}
 
 		
-		List<String> newEventHashes = new ArrayList<>();
+		Map<EventFingerprint, Long /* event time */> newEvents = new LinkedHashMap<>();
 
 		List<IssueContainer> itemsToQueue = new ArrayList<>();
 
 		for (RepoEventScanEntry e : toScan) {
 
 			// Add _all_ the event hashes we saw....
-			newEventHashes.add(e.getHash());
+			newEvents.put(e.getHash(), e.getEventTime());
 
 			// ... but prevent duplicate issues from being processed after this block.
 			{
@@ -610,7 +594,6 @@ private static ProcessIteratorReturnValue processIssueEventList(PagedIterable<GH
 			}
 
 			heartbeatRunner.informWorkUnitCompleted();
-			workQueue.waitIfNeeded(1);
 
 			GHRepository repo = e.getRepository();
 			GHIssue issue = e.getIssue();
@@ -620,7 +603,7 @@ private static ProcessIteratorReturnValue processIssueEventList(PagedIterable<GH
 
 		if (!fullScanRequired) {
 			itemsToQueue.forEach(e -> {
-				workQueue.addIssue(e.getIssue(), e.getRepo().get(), e.getOwner());
+				workQueue.addIssue(e.getIssue(), e.getRepo().get(), e.getOwner(), Priority.EVENT);
 			});
 		} else {
 			// A full scan of all the repos is required, so there is no need to queue
@@ -630,11 +613,11 @@ private static ProcessIteratorReturnValue processIssueEventList(PagedIterable<GH
 
 		}
 
-		newEventHashes.forEach(e -> {
-			data.addEventIfNotPresent(e);
+		newEvents.forEach((hash, eventTime) -> {
+			data.addEventIfNotPresent(hash, eventTime);
 		});
 
-		return new ProcessIteratorReturnValue(newEventHashes, fullScanRequired);
+		return new ProcessIteratorReturnValue(newEvents, fullScanRequired);
 
 	}
 
@@ -662,14 +645,8 @@ private static ProcessIteratorReturnValue processRepoEventIterator(PagedIterator
 
 		boolean fullScanRequired = true;
 
-		int count = 0;
 		event_loop: for (; it.hasNext();) {
 
-			count++;
-			if (count % 20 == 0) {
-				workQueue.waitIfNeeded(1); // I'm guessing 1 request per 20 events?
-			}
-
 			GHEventInfo g = it.next();
 
 			GHEvent eventType = g.getType();
@@ -753,7 +730,7 @@ private static ProcessIteratorReturnValue processRepoEventIterator(PagedIterator
 
 				if (!issue.isPullRequest()) {
 
-					String hash = createEventHash(eventType, owner, repoName, issue.getNumber(), createdAt, actorLogin);
+					EventFingerprint hash = createEventHash(eventType, owner, repoName, issue.getNumber(), createdAt, actorLogin);
 
 					boolean eventProcessed = data.isEventProcessed(hash);
 
@@ -761,7 +738,7 @@ private static ProcessIteratorReturnValue processRepoEventIterator(PagedIterator
 						eventMatchesInARowFromEsd++;
 					} else {
 						eventMatchesInARowFromEsd = 0;
-						toScan.add(new RepoEventScanEntry(issue, ghRepo, hash));
+						toScan.add(new RepoEventScanEntry(issue, ghRepo, hash, createdAt.getTime()));
 					}
 
 					log.logDebug("Received repo event: [" + eventType.name() + "] " + g.getActorLogin() + " " + repoName
@@ -777,7 +754,7 @@ private static ProcessIteratorReturnValue processRepoEventIterator(PagedIterator
 				GHIssue issue = eventDetails.getIssue();
 
 				if (!issue.isPullRequest()) {
-					String hash = createEventHash(eventType, owner, repoName, issue.getNumber(), createdAt, actorLogin);
+					EventFingerprint hash = createEventHash(eventType, owner, repoName, issue.getNumber(), createdAt, actorLogin);
 
 					boolean eventProcessed = data.isEventProcessed(hash);
 
@@ -785,7 +762,7 @@ private static ProcessIteratorReturnValue processRepoEventIterator(PagedIterator
 						eventMatchesInARowFromEsd++;
 					} else {
 						eventMatchesInARowFromEsd = 0;
-						toScan.add(new RepoEventScanEntry(issue, ghRepo, hash));
+						toScan.add(new RepoEventScanEntry(issue, ghRepo, hash, createdAt.getTime()));
 					}
 
 					log.logDebug("Received repo event: [" + eventType.name() + "] " + g.getActorLogin() + " " + repoName
@@ -823,16 +800,14 @@ private static ProcessIteratorReturnValue processRepoEventIterator(PagedIterator
 
 		} // end event_loop
 
-		workQueue.waitIfNeeded((int) (count / 20));
-
-		List<String> newEventHashes = new ArrayList<>();
+		Map<EventFingerprint, Long /* event time */> newEvents = new LinkedHashMap<>();
 
 		List<IssueContainer> itemsToQueue = new ArrayList<>();
 
 		for (RepoEventScanEntry e : toScan) {
 
 			// Add _all_ the event hashes we saw....
-			newEventHashes.add(e.getHash());
+			newEvents.put(e.getHash(), e.getEventTime());
 
 			// ... but prevent duplicate issues from being processed after this block.
 			{
@@ -846,8 +821,6 @@ private static ProcessIteratorReturnValue processRepoEventIterator(PagedIterator
 			// The rest of this block adds the issue to the work queue, and attempts to
 			// detect a move.
 
-			workQueue.waitIfNeeded(1);
-
 			GHRepository repo = e.getRepository();
 			GHIssue issue = repoCache.getIssue(repo, e.getIssue().getNumber(), false);
 
@@ -889,7 +862,7 @@ private static ProcessIteratorReturnValue processRepoEventIterator(PagedIterator
 
 		if (!fullScanRequired) {
 			itemsToQueue.forEach(e -> {
-				workQueue.addIssue(e.getIssue(), e.getRepo().get(), e.getOwner());
+				workQueue.addIssue(e.getIssue(), e.getRepo().get(), e.getOwner(), Priority.EVENT);
 
 			});
 		} else {
@@ -900,33 +873,18 @@ private static ProcessIteratorReturnValue processRepoEventIterator(PagedIterator
 
 		}
 
-		newEventHashes.forEach(e -> {
-			data.addEventIfNotPresent(e);
+		newEvents.forEach((hash, eventTime) -> {
+			data.addEventIfNotPresent(hash, eventTime);
 		});
 
-		return new ProcessIteratorReturnValue(newEventHashes, fullScanRequired);
+		return new ProcessIteratorReturnValue(newEvents, fullScanRequired);
 
 	}
 
-	private static String createEventHash(Object event, Owner owner, String repoName, Integer issue, Date createdAt,
-			String actorLogin) {
-
-		StringBuilder sb = new StringBuilder();
-		sb.append(event instanceof GHEvent ? ((GHEvent) event).ordinal() : (String) event);
-		sb.append("-");
-		sb.append(owner.getOrgNameOrNull());
-		sb.append("-");
-		sb.append(owner.getUserNameOrNull());
-		sb.append("-");
-		sb.append(repoName);
-		sb.append("-");
-		sb.append(issue);
-		sb.append("-");
-		sb.append(createdAt.getTime());
-		sb.append("-");
-		sb.append(actorLogin);
-
-		return DigestUtils.sha256Hex(sb.toString());
+	private static EventFingerprint createEventHash(Object event, Owner owner, String repoName, Integer issue,
+			Date createdAt, String actorLogin) {
+
+		return EventFingerprint.create(event, owner, repoName, issue, createdAt, actorLogin);
 	}
 
 	private static List<GHRepository> getRandomizedRepositories(GHPerson p) {
@@ -946,8 +904,8 @@ private static List<GHRepository> getRandomizedRepositories(GHPerson p) {
 	/** Container class for return values of event scan */
 	static class ProcessIteratorReturnValue {
 
-		/** SHA256 hash from createEventHash(...) */
-		private final List<String> newEventHashes;
+		/** Fingerprints from createEventHash(...), and the time of each event */
+		private final Map<EventFingerprint, Long> newEvents;
 
 		/**
 		 * Whether the event scan logic believes that a full scan of the org/user is
@@ -955,13 +913,13 @@ static class ProcessIteratorReturnValue {
 		 */
 		private final boolean fullScanRequired;
 
-		public ProcessIteratorReturnValue(List<String> newEventHashes, boolean fullScanRequired) {
-			this.newEventHashes = newEventHashes;
+		public ProcessIteratorReturnValue(Map<EventFingerprint, Long> newEvents, boolean fullScanRequired) {
+			this.newEvents = newEvents;
 			this.fullScanRequired = fullScanRequired;
 		}
 
-		public List<String> getNewEventHashes() {
-			return newEventHashes;
+		public Map<EventFingerprint, Long> getNewEvents() {
+			return newEvents;
 		}
 
 		public boolean isFullScanRequired() {
@@ -974,18 +932,24 @@ public boolean isFullScanRequired() {
 	static class RepoEventScanEntry {
 		private final GHIssue issue;
 		private final GHRepository repository;
-		private final String hash;
+		private final EventFingerprint hash;
+		private final long eventTime;
 
-		public RepoEventScanEntry(GHIssue issue, GHRepository repository, String hash) {
+		public RepoEventScanEntry(GHIssue issue, GHRepository repository, EventFingerprint hash, long eventTime) {
 			this.issue = issue;
 			this.repository = repository;
 			this.hash = hash;
+			this.eventTime = eventTime;
 		}
 
-		public String getHash() {
+		public EventFingerprint getHash() {
 			return hash;
 		}
 
+		public long getEventTime() {
+			return eventTime;
+		}
+
 		public GHIssue getIssue() {
 			return issue;
 		}
@@ -1002,54 +966,72 @@ public String calculateKey() {
 
 	/**
 	 * This class maintains an in-memory list of the repository events that have
-	 * occurred since the last full scan.
+	 * been processed within the retention window (events created within the last
+	 * 'retentionInMsecs', or since the start of the last full scan); older events
+	 * are removed by expireEvents(...).
 	 * 
 	 * A single instance of this class will exist per server instance. This class is
 	 * thread safe.
 	 */
 	public static class EventScanData {
 
-		private final Object lock = new Object();
-
 		/**
-		 * Whether or not the event has been processed; presence as a key means it has.
+		 * Whether or not the event has been processed; presence in the set means it
+		 * has. This is checked for every event of every scan, so the set holds
+		 * primitive fingerprints, rather than hash strings.
 		 */
-		private final HashSet<String /* hash of event contents */> processedEvents_synch_lock = new HashSet<>();
+		private final EventFingerprintSet processedEvents = new EventFingerprintSet();
+
+		private final long retentionInMsecs;
 
 		/**
 		 * This is initially seeded with the processed events list from the database.
 		 */
-		public EventScanData(List<String> seedContents) {
+		public EventScanData(List<ProcessedEvent> seedContents, long retentionInMsecs) {
 
-			seedContents.forEach(eventHash -> {
-				processedEvents_synch_lock.add(eventHash);
+			this.retentionInMsecs = retentionInMsecs;
+
+			seedContents.forEach(event -> {
+				EventFingerprint fingerprint = EventFingerprint.fromHex(event.getHash());
+				if (fingerprint != null) {
+					processedEvents.add(fingerprint, event.getEventTime());
+				}
 			});
 
 		}
 
 		/** Return true if added, false otherwise */
-		public boolean addEventIfNotPresent(String eventHash) {
-			synchronized (lock) {
-				if (isEventProcessed(eventHash)) {
-					return false;
-				}
+		public boolean addEventIfNotPresent(EventFingerprint eventHash, long eventTime) {
+			return processedEvents.add(eventHash, eventTime);
+		}
 
-				processedEvents_synch_lock.add(eventHash);
-				return true;
+		public void clear() {
+			processedEvents.clear();
+		}
 
-			}
+		public boolean isEventProcessed(EventFingerprint eventHash) {
+			return processedEvents.contains(eventHash);
 		}
 
-		public void clear() {
-			synchronized (lock) {
-				processedEvents_synch_lock.clear();
+		/**
+		 * Remove the events created before the retention window. Events created since
+		 * the start of the last full scan are kept even if they are older than that,
+		 * as the event scan checks every event back to the start of the last full scan.
+		 * Returns the time before which events were removed.
+		 */
+		public long expireEvents(long lastFullScanStart) {
+			long expireBefore = Math.min(getRetentionWindowStart(), lastFullScanStart);
+
+			int removed = processedEvents.removeEventsBefore(expireBefore);
+			if (removed > 0) {
+				log.logInfo("Expired " + removed + " processed event(s) created before " + new Date(expireBefore));
 			}
+
+			return expireBefore;
 		}
 
-		public boolean isEventProcessed(String eventHash) {
-			synchronized (lock) {
-				return processedEvents_synch_lock.contains(eventHash);
-			}
+		private long getRetentionWindowStart() {
+			return System.currentTimeMillis() - retentionInMsecs;
 		}
 	}
 
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2021 Jonathan West
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+*/
+
+
+package com.githubapimirror;
+
+import java.util.Calendar;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Decides when the background scheduler thread of ServerInstance starts a full
+ * scan. The daily scan (during the 3 AM hour) is only started once per day;
+ * a scan that is required (for example, to initialize the database), or that
+ * was requested (by an admin, or by the event scan), is started as soon as no
+ * other full scan is in progress. A request made while a scan is in progress
+ * is kept until that scan completes, as the scan may already have processed
+ * the resources that changed.
+ *
+ * Only requestFullScan() may be called from other threads.
+ */
+public class FullScanScheduler {
+
+	private static final int DAILY_SCAN_HOUR = 3;
+
+	/** The days (year * 1000 + day of year) on which a full scan has started */
+	private final Set<Long> daysScanned = new HashSet<>();
+
+	private final AtomicBoolean fullScanRequested = new AtomicBoolean(false);
+
+	public void requestFullScan() {
+		fullScanRequested.set(true);
+	}
+
+	/** Whether it is the time of day that the daily scan runs. */
+	public boolean isDailyScanHour(Calendar now) {
+		return now.get(Calendar.HOUR_OF_DAY) == DAILY_SCAN_HOUR;
+	}
+
+	/**
+	 * Record that a full scan started at the given time (for example, a scan that
+	 * is resumed from a checkpoint), so that it counts as the daily scan of that
+	 * day.
+	 */
+	public void fullScanStarted(Calendar time) {
+		daysScanned.add(toDay(time));
+	}
+
+	/**
+	 * Returns true if a full scan should be started now, in which case it is
+	 * recorded as started, and any request is consumed.
+	 */
+	public boolean shouldStartFullScan(Calendar now, boolean fullScanInProgress, boolean fullScanRequired) {
+		if (fullScanInProgress) {
+			return false;
+		}
+
+		boolean dailyScanDue = isDailyScanHour(now) && !daysScanned.contains(toDay(now));
+
+		if (!dailyScanDue && !fullScanRequired && !fullScanRequested.getAndSet(false)) {
+			return false;
+		}
+
+		// A request made before now is satisfied by this scan
+		fullScanRequested.set(false);
+
+		fullScanStarted(now);
+		return true;
+	}
+
+	private static long toDay(Calendar time) {
+		return time.get(Calendar.YEAR) * 1000l + time.get(Calendar.DAY_OF_YEAR);
+	}
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2021 Jonathan West
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+*/
+
+package com.githubapimirror;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import com.githubapimirror.shared.json.IssueChangeJson;
+import com.githubapimirror.shared.json.IssueCommentJson;
+import com.githubapimirror.shared.json.IssueJson;
+
+/**
+ * Computes the fields of an issue that were changed between the version of the
+ * issue in the database and the version that replaces it, for inclusion in the
+ * issue's resource change event.
+ */
+public class IssueDiff {
+
+	private IssueDiff() {
+	}
+
+	/**
+	 * Returns the changes from the old version to the new version; if there is no
+	 * old version, the issue is reported as created, with all of its labels and
+	 * assignees reported as added. The comments of a created issue are not
+	 * included (there may be many), as the consumer can request the issue itself.
+	 */
+	public static IssueChangeJson diff(IssueJson oldVersion, IssueJson newVersion) {
+
+		IssueChangeJson result = new IssueChangeJson();
+
+		boolean created = oldVersion == null;
+		if (created) {
+			result.setCreated(true);
+			oldVersion = new IssueJson();
+		}
+
+		if (oldVersion.isClosed() != newVersion.isClosed()) {
+			result.setClosed(newVersion.isClosed());
+		}
+
+		if (!Objects.equals(oldVersion.getTitle(), newVersion.getTitle())) {
+			result.setTitle(newVersion.getTitle());
+		}
+
+		result.setBodyChanged(!Objects.equals(oldVersion.getBody(), newVersion.getBody()));
+
+		result.setLabelsAdded(difference(newVersion.getLabels(), oldVersion.getLabels()));
+		result.setLabelsRemoved(difference(oldVersion.getLabels(), newVersion.getLabels()));
+
+		result.setAssigneesAdded(difference(newVersion.getAssignees(), oldVersion.getAssignees()));
+		result.setAssigneesRemoved(difference(oldVersion.getAssignees(), newVersion.getAssignees()));
+
+		if (created) {
+			return result;
+		}
+
+		// Comments are identified by author and creation time
+		Map<String, IssueCommentJson> oldComments = new HashMap<>();
+		nullToEmpty(oldVersion.getComments()).forEach(e -> oldComments.put(commentKey(e), e));
+
+		List<IssueCommentJson> newComments = new ArrayList<>();
+		for (IssueCommentJson comment : nullToEmpty(newVersion.getComments())) {
+			IssueCommentJson old = oldComments.get(commentKey(comment));
+			if (old == null || !Objects.equals(old.getUpdatedAt(), comment.getUpdatedAt())
+					|| !Objects.equals(old.getBody(), comment.getBody())) {
+				newComments.add(comment);
+			}
+		}
+		result.setNewComments(newComments);
+
+		return result;
+	}
+
+	/** Returns the elements of 'one' that are not in 'two', in the order of 'one' */
+	private static List<String> difference(List<String> one, List<String> two) {
+		List<String> result = new ArrayList<>(nullToEmpty(one));
+		result.removeAll(nullToEmpty(two));
+		return result;
+	}
+
+	private static String commentKey(IssueCommentJson comment) {
+		return comment.getUserLogin() + " "
+				+ (comment.getCreatedAt() != null ? comment.getCreatedAt().getTime() : "");
+	}
+
+	private static <T> List<T> nullToEmpty(List<T> list) {
+		return list != null ? list : Collections.emptyList();
+	}
+}
@@ -0,0 +1,360 @@
+/*
+ * Copyright 2021 Jonathan West
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.githubapimirror;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.egit.github.core.client.GitHubClient;
+import org.kohsuke.github.GHRateLimit;
+import org.kohsuke.github.GitHub;
+import org.kohsuke.github.HttpConnector;
+
+import com.githubapimirror.shared.GHApiUtil;
+
+/**
+ * A token bucket that limits the rate of requests to the GitHub API, shared by
+ * all of the GitHub clients of a server instance (and thus by WorkerThread and
+ * EventScan). Every request acquires a token before it is sent (see
+ * GovernedHttpConnector and GovernedEgitClient), and the bucket is refilled
+ * from the X-RateLimit-* headers of the responses.
+ *
+ * Tokens are added at the rate that would spend the requests remaining in the
+ * current rate limit window evenly by the time it resets; unused tokens
+ * accumulate (up to a fraction of the limit) while idle, so that work may then
+ * be processed in a burst. As tokens are never acquired beyond the requests
+ * remaining, the limit is approached, but not exceeded. Requests that were made
+ * without a token (for example, by another client with the same credentials)
+ * are charged when the headers report them.
+ *
+ * If the server does not report a rate limit (for example, GHE without rate
+ * limiting), the configured number of requests per hour is used instead.
+ */
+public class RateLimitGovernor {
+
+	/**
+	 * The fraction of the limit that may accumulate while idle, and then be used
+	 * in a burst.
+	 */
+	private static final double BURST_FRACTION = 0.1;
+
+	/**
+	 * GitHub reports the reset time in seconds, so reset times this close are
+	 * considered the same window.
+	 */
+	private static final long RESET_TIME_TOLERANCE_IN_MSECS = 1000;
+
+	/**
+	 * The limit (and remaining requests) that github-api reports for a server that
+	 * does not report a rate limit.
+	 */
+	private static final long UNKNOWN_RATE_LIMIT = 1000000;
+
+	private final Object lock = new Object();
+
+	/** The length of a window that was not reported by the server */
+	private final long windowInMsecs;
+
+	private final long minimumTimeBetweenRequestsInNanos;
+
+	private long limit_synch_lock;
+
+	/**
+	 * The requests remaining in the current window: as last reported by the
+	 * server, less the tokens acquired since.
+	 */
+	private long remaining_synch_lock;
+
+	private long resetTimeInMsecs_synch_lock;
+
+	/** False if the current window was assumed, rather than reported by the server */
+	private boolean windowReported_synch_lock = false;
+
+	/** May be negative, if requests were made without acquiring a token. */
+	private double tokens_synch_lock;
+
+	private long lastRefillInNanos_synch_lock;
+
+	private long nextRequestInNanos_synch_lock;
+
+	private static final GHLog log = GHLog.getInstance();
+
+	public RateLimitGovernor(int requestsPerHour, long pauseBetweenRequestsInMsecs) {
+		this(requestsPerHour, TimeUnit.MILLISECONDS.convert(1, TimeUnit.HOURS), pauseBetweenRequestsInMsecs);
+	}
+
+	public RateLimitGovernor(long limit, long windowInMsecs, long pauseBetweenRequestsInMsecs) {
+		if (limit <= 0 || windowInMsecs <= 0 || pauseBetweenRequestsInMsecs < 0) {
+			throw new IllegalArgumentException("Invalid rate limit: " + limit + " per " + windowInMsecs + " msecs, "
+					+ pauseBetweenRequestsInMsecs + " msecs between requests");
+		}
+
+		this.windowInMsecs = windowInMsecs;
+		this.minimumTimeBetweenRequestsInNanos = TimeUnit.NANOSECONDS.convert(pauseBetweenRequestsInMsecs,
+				TimeUnit.MILLISECONDS);
+
+		this.limit_synch_lock = limit;
+		this.remaining_synch_lock = limit;
+		this.resetTimeInMsecs_synch_lock = System.currentTimeMillis() + windowInMsecs;
+		this.tokens_synch_lock = burstSize();
+		this.lastRefillInNanos_synch_lock = System.nanoTime();
+		this.nextRequestInNanos_synch_lock = lastRefillInNanos_synch_lock;
+	}
+
+	/** Block until a request may be made, then charge it. */
+	public void acquire() {
+		synchronized (lock) {
+			long waitInNanos;
+			while ((waitInNanos = refillAndCalculateWait()) > 0) {
+				timedWait(waitInNanos);
+			}
+
+			tokens_synch_lock--;
+			remaining_synch_lock--;
+			nextRequestInNanos_synch_lock = System.nanoTime() + minimumTimeBetweenRequestsInNanos;
+		}
+	}
+
+	/** Block until a request may be made, without charging it. */
+	public void awaitAvailable() {
+		synchronized (lock) {
+			long waitInNanos;
+			while ((waitInNanos = refillAndCalculateWait()) > 0) {
+				timedWait(waitInNanos);
+			}
+		}
+	}
+
+	/**
+	 * Update the bucket from the X-RateLimit-Limit, X-RateLimit-Remaining and
+	 * X-RateLimit-Reset headers of a response. A rate limit that is unknown (see
+	 * UNKNOWN_RATE_LIMIT) or invalid is ignored, so that the configured rate is
+	 * kept.
+	 */
+	public void observe(long limit, long remaining, long resetTimeInMsecs) {
+		if (limit <= 0 || remaining < 0 || remaining > limit || resetTimeInMsecs <= 0 || limit == UNKNOWN_RATE_LIMIT
+				|| remaining == UNKNOWN_RATE_LIMIT) {
+			return;
+		}
+
+		synchronized (lock) {
+			refill();
+
+			if (!windowReported_synch_lock
+					|| resetTimeInMsecs > resetTimeInMsecs_synch_lock + RESET_TIME_TOLERANCE_IN_MSECS) {
+				// A new window
+				limit_synch_lock = limit;
+				remaining_synch_lock = remaining;
+				resetTimeInMsecs_synch_lock = resetTimeInMsecs;
+				windowReported_synch_lock = true;
+
+			} else if (resetTimeInMsecs < resetTimeInMsecs_synch_lock - RESET_TIME_TOLERANCE_IN_MSECS) {
+				// A response from the previous window, received after the current one
+				return;
+
+			} else if (remaining < remaining_synch_lock) {
+				// Requests were made that did not acquire a token, so charge them now. (If
+				// 'remaining' is higher, the response predates requests that did.)
+				tokens_synch_lock -= remaining_synch_lock - remaining;
+				remaining_synch_lock = remaining;
+			}
+
+			tokens_synch_lock = Math.min(tokens_synch_lock, Math.min(burstSize(), remaining_synch_lock));
+
+			lock.notifyAll();
+		}
+	}
+
+	/** The limit of the current window, as last reported by the server, or as configured. */
+	public long getLimit() {
+		synchronized (lock) {
+			refill();
+			return limit_synch_lock;
+		}
+	}
+
+	/** The requests remaining in the current window, less the tokens acquired since it was reported. */
+	public long getRemaining() {
+		synchronized (lock) {
+			refill();
+			return remaining_synch_lock;
+		}
+	}
+
+	/** The tokens currently in the bucket; negative if requests were made without one. */
+	public double getAvailableTokens() {
+		synchronized (lock) {
+			refill();
+			return tokens_synch_lock;
+		}
+	}
+
+	/**
+	 * Returns how long to wait before a request may be made, after adding the
+	 * tokens earned since the last refill. Must be called while holding 'lock'.
+	 */
+	private long refillAndCalculateWait() {
+		refill();
+
+		long waitInNanos = nextRequestInNanos_synch_lock - System.nanoTime();
+
+		if (remaining_synch_lock < 1) {
+			// Wait for the window to reset
+			long untilResetInMsecs = resetTimeInMsecs_synch_lock - System.currentTimeMillis() + 1;
+			waitInNanos = Math.max(waitInNanos, TimeUnit.NANOSECONDS.convert(untilResetInMsecs, TimeUnit.MILLISECONDS));
+
+		} else if (tokens_synch_lock < 1) {
+			waitInNanos = Math.max(waitInNanos, (long) Math.ceil((1 - tokens_synch_lock) / tokensPerNano()));
+		}
+
+		return waitInNanos;
+	}
+
+	/** Must be called while holding 'lock'. */
+	private void refill() {
+		long nowInNanos = System.nanoTime();
+
+		if (System.currentTimeMillis() >= resetTimeInMsecs_synch_lock) {
+			// The window has reset, but no response has yet reported the new window
+			remaining_synch_lock = limit_synch_lock;
+			resetTimeInMsecs_synch_lock = System.currentTimeMillis() + windowInMsecs;
+			windowReported_synch_lock = false;
+
+			// The new window starts with a full burst, as the constructor does (even if
+			// requests were made without a token in the previous window)
+			tokens_synch_lock = Math.min(burstSize(), remaining_synch_lock);
+			lastRefillInNanos_synch_lock = nowInNanos;
+
+			log.logDebug("Rate limit window reset, " + limit_synch_lock + " requests remaining");
+		}
+
+		double earned = tokensPerNano() * (nowInNanos - lastRefillInNanos_synch_lock);
+		tokens_synch_lock = Math.min(tokens_synch_lock + earned, Math.min(burstSize(), remaining_synch_lock));
+
+		lastRefillInNanos_synch_lock = nowInNanos;
+	}
+
+	/**
+	 * The rate at which the remaining requests (less those already in the bucket)
+	 * are spent evenly by the reset time; as the reset time approaches, this
+	 * releases whatever remains (up to the burst size), so that none is left
+	 * unused. Must be called while holding 'lock'.
+	 */
+	private double tokensPerNano() {
+		long timeLeftInMsecs = Math.max(resetTimeInMsecs_synch_lock - System.currentTimeMillis(), 1);
+
+		double unearned = remaining_synch_lock - Math.max(tokens_synch_lock, 0);
+
+		return Math.max(unearned, 0) / TimeUnit.NANOSECONDS.convert(timeLeftInMsecs, TimeUnit.MILLISECONDS);
+	}
+
+	/** Must be called while holding 'lock'. */
+	private double burstSize() {
+		return Math.max(1, limit_synch_lock * BURST_FRACTION);
+	}
+
+	/** Must be called while holding 'lock'. */
+	private void timedWait(long waitInNanos) {
+		try {
+			TimeUnit.NANOSECONDS.timedWait(lock, waitInNanos);
+		} catch (InterruptedException e) {
+			GHApiUtil.throwAsUnchecked(e);
+		}
+	}
+
+	/**
+	 * An HttpConnector for the github-api client that acquires a token before
+	 * each request, and observes the rate limit headers of the previous responses
+	 * (see GitHub.lastRateLimit()).
+	 */
+	public static class GovernedHttpConnector implements HttpConnector {
+
+		private final RateLimitGovernor governor;
+
+		/** Set once the client is built */
+		private volatile GitHub github;
+
+		public GovernedHttpConnector(RateLimitGovernor governor) {
+			this.governor = governor;
+		}
+
+		public void setGitHub(GitHub github) {
+			this.github = github;
+		}
+
+		@Override
+		public HttpURLConnection connect(URL url) throws IOException {
+
+			GitHub client = github;
+			if (client != null) {
+				GHRateLimit rateLimit = client.lastRateLimit();
+				if (rateLimit != null && rateLimit.getResetDate() != null) {
+					governor.observe(rateLimit.limit, rateLimit.remaining, rateLimit.getResetDate().getTime());
+				}
+			}
+
+			governor.acquire();
+
+			return HttpConnector.DEFAULT.connect(url);
+		}
+	}
+
+	/**
+	 * An egit GitHubClient that acquires a token before each request, and observes
+	 * the rate limit headers of each response.
+	 */
+	public static class GovernedEgitClient extends GitHubClient {
+
+		private final RateLimitGovernor governor;
+
+		public GovernedEgitClient(RateLimitGovernor governor) {
+			super();
+			this.governor = governor;
+		}
+
+		public GovernedEgitClient(String hostname, RateLimitGovernor governor) {
+			super(hostname);
+			this.governor = governor;
+		}
+
+		@Override
+		protected HttpURLConnection createConnection(String uri, String method) throws IOException {
+			governor.acquire();
+			return super.createConnection(uri, method);
+		}
+
+		@Override
+		protected GitHubClient updateRateLimits(HttpURLConnection request) {
+			GitHubClient result = super.updateRateLimits(request);
+
+			String reset = request.getHeaderField("X-RateLimit-Reset");
+			if (reset != null) {
+				try {
+					governor.observe(getRequestLimit(), getRemainingRequests(),
+							TimeUnit.MILLISECONDS.convert(Long.parseLong(reset.trim()), TimeUnit.SECONDS));
+				} catch (NumberFormatException e) {
+					log.logError("Unable to parse rate limit reset time: " + reset);
+				}
+			}
+
+			return result;
+		}
+	}
+
+}
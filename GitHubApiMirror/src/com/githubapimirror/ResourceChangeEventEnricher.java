@@ -0,0 +1,106 @@
+/*
+ * Copyright 2021 Jonathan West
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.githubapimirror;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.githubapimirror.db.Database;
+import com.githubapimirror.shared.GHApiUtil;
+import com.githubapimirror.shared.Owner;
+import com.githubapimirror.shared.json.IssueJson;
+import com.githubapimirror.shared.json.ResourceChangeEventJson;
+import com.githubapimirror.shared.json.ResourceChangeEventJson.Enrichment;
+
+/**
+ * Prepares resource change events for clients that request enriched events:
+ * the DIFF enrichment serializes the changed fields of each issue (which are
+ * stored with the event), and the ISSUE enrichment also attaches the current
+ * version of each issue, read in bulk per repository, so that the client need
+ * not request each issue separately. Used by the REST API, and by the
+ * WebhookDispatcher.
+ */
+public class ResourceChangeEventEnricher {
+
+	private static final ObjectMapper om = new ObjectMapper();
+
+	private ResourceChangeEventEnricher() {
+	}
+
+	/**
+	 * Returns the events, with the current version of each issue attached if
+	 * requested; the given events are not modified, as they may be shared (for
+	 * example, by InMemoryCacheDb).
+	 */
+	public static List<ResourceChangeEventJson> enrich(List<ResourceChangeEventJson> events, Enrichment enrichment,
+			Database db) {
+
+		if (enrichment != Enrichment.ISSUE || events.isEmpty()) {
+			return events;
+		}
+
+		// owner/repo -> (issue number -> issue)
+		Map<String, Map<Integer, IssueJson>> issues = new HashMap<>();
+
+		Map<String, List<ResourceChangeEventJson>> eventsByRepo = events.stream().collect(
+				Collectors.groupingBy(e -> e.getOwner() + "/" + e.getRepo(), LinkedHashMap::new, Collectors.toList()));
+
+		eventsByRepo.forEach((key, repoEvents) -> {
+			ResourceChangeEventJson first = repoEvents.get(0);
+
+			// Issue keys depend only on the owner name, so the owner type is not needed
+			List<Integer> issueNumbers = repoEvents.stream().map(e -> e.getIssueNumber()).distinct()
+					.collect(Collectors.toList());
+
+			Map<Integer, IssueJson> repoIssues = new HashMap<>();
+			db.getIssues(Owner.org(first.getOwner()), first.getRepo(), issueNumbers)
+					.forEach(e -> repoIssues.put(e.getNumber(), e));
+			issues.put(key, repoIssues);
+		});
+
+		List<ResourceChangeEventJson> result = new ArrayList<>();
+		for (ResourceChangeEventJson event : events) {
+			ResourceChangeEventJson copy = event.copy();
+			copy.setIssue(issues.get(event.getOwner() + "/" + event.getRepo()).get(event.getIssueNumber()));
+			result.add(copy);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Serialize the value (events, or a page of events), including the enriched
+	 * fields of the events only if requested.
+	 */
+	public static String toJson(Object value, Enrichment enrichment) {
+		Class<?> view = enrichment != Enrichment.NONE ? ResourceChangeEventJson.Views.Enriched.class
+				: ResourceChangeEventJson.Views.Basic.class;
+		try {
+			return om.writerWithView(view).writeValueAsString(value);
+		} catch (JsonProcessingException e) {
+			GHApiUtil.throwAsUnchecked(e);
+			return null;
+		}
+	}
+
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2021 Jonathan West
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.githubapimirror;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.egit.github.core.client.RequestException;
+import org.kohsuke.github.AbuseLimitHandler;
+import org.kohsuke.github.GHFileNotFoundException;
+import org.kohsuke.github.HttpException;
+import org.kohsuke.github.RateLimitHandler;
+
+/**
+ * Decides whether, and when, a work item that failed should be retried (see
+ * WorkQueue.markAsProcessed(...)).
+ *
+ * A failure is permanent if GitHub reports that the resource does not exist (or
+ * no longer exists, for example, after a transfer): 404, 410 and 451. Other
+ * failures are transient, and are retried after an exponential backoff (with
+ * jitter), or after the time requested by GitHub (see RetryAfterException),
+ * whichever is later, up to MAX_ATTEMPTS.
+ */
+public class RetryPolicy {
+
+	/** Attempts (including the first) before a work item is dead-lettered */
+	public static final int MAX_ATTEMPTS = 6;
+
+	private static final long INITIAL_BACKOFF_IN_MSECS = TimeUnit.MILLISECONDS.convert(30, TimeUnit.SECONDS);
+
+	private static final long MAX_BACKOFF_IN_MSECS = TimeUnit.MILLISECONDS.convert(1, TimeUnit.HOURS);
+
+	/** Used if a Retry-After header is missing, or cannot be parsed */
+	private static final long DEFAULT_RETRY_AFTER_IN_MSECS = TimeUnit.MILLISECONDS.convert(60, TimeUnit.SECONDS);
+
+	private RetryPolicy() {
+	}
+
+	/** Whether retrying the failure (or any of its causes) cannot succeed. */
+	public static boolean isPermanent(Throwable failure) {
+		for (Throwable t = failure; t != null; t = t.getCause()) {
+			if (t instanceof GHFileNotFoundException) {
+				// Thrown by github-api for a 404; other FileNotFoundExceptions (for example,
+				// from the database) may not be permanent
+				return true;
+			}
+
+			int status = -1;
+			if (t instanceof HttpException) {
+				status = ((HttpException) t).getResponseCode();
+			} else if (t instanceof RequestException) {
+				status = ((RequestException) t).getStatus();
+			}
+
+			if (status == 404 || status == 410 || status == 451) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/** The time requested by GitHub before a retry, if any. */
+	public static Optional<Long> getRetryAfterInMsecs(Throwable failure) {
+		for (Throwable t = failure; t != null; t = t.getCause()) {
+			if (t instanceof RetryAfterException) {
+				return Optional.of(((RetryAfterException) t).getRetryAfterInMsecs());
+			}
+		}
+		return Optional.empty();
+	}
+
+	/**
+	 * The time to wait before the given attempt (2 being the first retry): the
+	 * exponential backoff, with jitter, or the time requested by GitHub, whichever
+	 * is later.
+	 */
+	public static long getRetryDelayInMsecs(int attempt, Throwable failure) {
+		long backoff = INITIAL_BACKOFF_IN_MSECS << Math.min(Math.max(attempt - 2, 0), 20);
+		backoff = Math.min(backoff, MAX_BACKOFF_IN_MSECS);
+
+		// Between half and all of the backoff, so that items that failed together are not
+		// all retried together
+		backoff = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+
+		return Math.max(backoff, getRetryAfterInMsecs(failure).orElse(0L));
+	}
+
+	/**
+	 * Thrown (by the handlers below) when GitHub rejects a request due to a limit,
+	 * with the time after which GitHub has asked that the request be retried.
+	 */
+	public static class RetryAfterException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		private final long retryAfterInMsecs;
+
+		public RetryAfterException(String message, long retryAfterInMsecs, Throwable cause) {
+			super(message + ", retry after " + retryAfterInMsecs + " msecs", cause);
+			this.retryAfterInMsecs = retryAfterInMsecs;
+		}
+
+		public long getRetryAfterInMsecs() {
+			return retryAfterInMsecs;
+		}
+	}
+
+	/**
+	 * Fails the request when the abuse limit is reached (like
+	 * AbuseLimitHandler.FAIL), with the time from the Retry-After header.
+	 */
+	public static class RetryAfterAbuseLimitHandler extends AbuseLimitHandler {
+
+		@Override
+		public void onError(IOException e, HttpURLConnection uc) throws IOException {
+			long retryAfterInMsecs = DEFAULT_RETRY_AFTER_IN_MSECS;
+
+			String retryAfter = uc.getHeaderField("Retry-After");
+			if (retryAfter != null) {
+				try {
+					retryAfterInMsecs = TimeUnit.MILLISECONDS.convert(Long.parseLong(retryAfter.trim()),
+							TimeUnit.SECONDS);
+				} catch (NumberFormatException nfe) {
+					/* ignore, and use the default */
+				}
+			}
+
+			throw new RetryAfterException("Abuse limit reached", retryAfterInMsecs, e);
+		}
+	}
+
+	/**
+	 * Fails the request when the API rate limit is reached (like
+	 * RateLimitHandler.FAIL), with the time until the X-RateLimit-Reset header.
+	 */
+	public static class ResetTimeRateLimitHandler extends RateLimitHandler {
+
+		@Override
+		public void onError(IOException e, HttpURLConnection uc) throws IOException {
+			long retryAfterInMsecs = DEFAULT_RETRY_AFTER_IN_MSECS;
+
+			String reset = uc.getHeaderField("X-RateLimit-Reset");
+			if (reset != null) {
+				try {
+					long resetTimeInMsecs = TimeUnit.MILLISECONDS.convert(Long.parseLong(reset.trim()),
+							TimeUnit.SECONDS);
+					retryAfterInMsecs = Math.max(resetTimeInMsecs - System.currentTimeMillis(), 0);
+				} catch (NumberFormatException nfe) {
+					/* ignore, and use the default */
+				}
+			}
+
+			throw new RetryAfterException("API rate limit reached", retryAfterInMsecs, e);
+		}
+	}
+}
@@ -23,35 +23,44 @@
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collections;
-import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
 
 import org.eclipse.egit.github.core.client.GitHubClient;
-import org.kohsuke.github.AbuseLimitHandler;
 import org.kohsuke.github.GHOrganization;
-import org.kohsuke.github.GHRateLimit;
 import org.kohsuke.github.GHRepository;
 import org.kohsuke.github.GHUser;
 import org.kohsuke.github.GitHub;
 import org.kohsuke.github.GitHubBuilder;
-import org.kohsuke.github.RateLimitHandler;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.githubapimirror.EventScan.EventScanData;
 import com.githubapimirror.EventScan.ProcessIteratorReturnValue;
+import com.githubapimirror.RateLimitGovernor.GovernedEgitClient;
+import com.githubapimirror.RateLimitGovernor.GovernedHttpConnector;
+import com.githubapimirror.RetryPolicy.ResetTimeRateLimitHandler;
+import com.githubapimirror.RetryPolicy.RetryAfterAbuseLimitHandler;
 import com.githubapimirror.WorkQueue.OwnerContainer;
+import com.githubapimirror.WorkQueue.Priority;
 import com.githubapimirror.WorkQueue.RepositoryContainer;
 import com.githubapimirror.db.Database;
 import com.githubapimirror.db.InMemoryCacheDb;
 import com.githubapimirror.db.PersistJsonDb;
+import com.githubapimirror.db.PersistJsonDbMigration;
+import com.githubapimirror.db.ProcessedEvent;
+import com.githubapimirror.db.ResourceCodec;
+import com.githubapimirror.db.SegmentStoreDb;
 import com.githubapimirror.shared.GHApiUtil;
+import com.githubapimirror.shared.JsonUtil;
 import com.githubapimirror.shared.NewFileLogger;
 import com.githubapimirror.shared.Owner;
+import com.githubapimirror.shared.json.DeadLetterJson;
+import com.githubapimirror.shared.json.WorkQueueCheckpointJson;
+import com.githubapimirror.shared.json.WorkQueueStatisticsJson;
 
 /**
  * An instance of this class will mirror GitHub resources using the given
@@ -75,27 +84,20 @@ public class ServerInstance {
 
 	private final GHLog log = GHLog.getInstance();
 
-	/**
-	 * Whether or not the GitHub service returns a valid rate limit value: returns
-	 * false if GHE, true otherwise.
-	 */
-	private final boolean supportsRateLimit;
-
 	private final GitHub githubClientInstance;
 
-	private long rateLimitResetTime_synch_rateLimitLock = 0;
-
-	private Integer lastRateLimitSeen_synch_rateLimitLock = null;
-
-	private final Object rateLimitLock = new Object();
-
 	private final NewFileLogger fileLogger;
 
+	/** Null if there are no webhook subscribers */
+	private final WebhookDispatcher webhookDispatcher;
+
 	private ServerInstance(String username, String password, String serverName, List<String> ownerNames,
 			/*
 			 * List<String> orgNames, List<String> userRepos,
 			 */ List<RepoConstructorEntry> individualRepos, long pauseBetweenRequestsInMsecs, File dbDir,
-			long timeBetweenEventScansInSeconds, GhmFilter filter, int numRequestsPerHour, File fileLogPath) {
+			long timeBetweenEventScansInSeconds, GhmFilter filter, int numRequestsPerHour, File fileLogPath,
+			DbType dbType, boolean writeBehindCache, long cacheSizeInBytes, ResourceCodec.Format storageFormat,
+			List<WebhookDispatcher.Subscriber> webhookSubscribers, long processedEventRetentionInMsecs) {
 
 		if (filter == null) {
 			filter = new PermissiveFilter();
@@ -119,12 +121,14 @@ private ServerInstance(String username, String password, String serverName, List
 		List<GHUser> userRepoObjects = new ArrayList<>();
 
 		ghOwners = new ArrayList<>();
-		boolean weSupportRateLimit = false;
 		NextEventScanInNanos nextEventScanSettings = new NextEventScanInNanos(timeBetweenEventScansInSeconds);
 
 		GitHubClient egitGitHubClient = null;
 		GitHub githubClient = null;
 
+		// Shared by all requests of both clients
+		RateLimitGovernor governor = new RateLimitGovernor(numRequestsPerHour, pauseBetweenRequestsInMsecs);
+
 		// If we have hit the API rate limit, keep trying to get the org/user until we
 		// succeed.
 		boolean success = false;
@@ -138,23 +142,27 @@ private ServerInstance(String username, String password, String serverName, List
 
 					if (serverName.toLowerCase().endsWith("github.com")) {
 						builder = builder.withPassword(username, password);
-						egitGitHubClient = new GitHubClient();
+						egitGitHubClient = new GovernedEgitClient(governor);
 					} else {
 						builder = builder.withEndpoint("https://" + serverName + "/api/v3").withPassword(username,
 								password);
-						egitGitHubClient = new GitHubClient(serverName);
+						egitGitHubClient = new GovernedEgitClient(serverName, governor);
 					}
 
-					githubClient = builder.withRateLimitHandler(RateLimitHandler.FAIL)
-							.withAbuseLimitHandler(AbuseLimitHandler.FAIL).build();
+					GovernedHttpConnector connector = new GovernedHttpConnector(governor);
+
+					githubClient = builder.withConnector(connector)
+							.withRateLimitHandler(new ResetTimeRateLimitHandler())
+							.withAbuseLimitHandler(new RetryAfterAbuseLimitHandler()).build();
+
+					connector.setGitHub(githubClient);
 
 					egitGitHubClient.setCredentials(username, password);
 
 					if (githubClient.getRateLimit().remaining == 1000000) {
 						// The Java GitHub we use returns 1000000 if Rate Limit is not enabled
-						weSupportRateLimit = false;
-					} else {
-						weSupportRateLimit = true;
+						log.logInfo("GitHub server does not report a rate limit, so limiting to " + numRequestsPerHour
+								+ " requests per hour.");
 					}
 				}
 
@@ -289,23 +297,31 @@ private ServerInstance(String username, String password, String serverName, List
 		this.githubClientInstance = githubClient;
 		this.egitClient = egitGitHubClient;
 
-		db = new InMemoryCacheDb(new PersistJsonDb(dbDir));
+		InMemoryCacheDb cacheDb = new InMemoryCacheDb(createDatabase(dbType, dbDir, storageFormat), writeBehindCache,
+				cacheSizeInBytes);
+		db = cacheDb;
 
 		db.uninitializeDatabaseOnContentsMismatch(
 				orgObjects.stream().map(org -> org.getLogin()).collect(Collectors.toList()),
 				userRepoObjects.stream().map(user -> user.getLogin()).collect(Collectors.toList()),
 				individualRepoNames);
 
-		queue = new WorkQueue(this, db, numRequestsPerHour, pauseBetweenRequestsInMsecs);
+		if (!webhookSubscribers.isEmpty()) {
+			webhookDispatcher = new WebhookDispatcher(db, webhookSubscribers);
+			cacheDb.addResourceChangeEventListener(webhookDispatcher::onEventsPersisted);
+		} else {
+			webhookDispatcher = null;
+		}
 
-		this.supportsRateLimit = weSupportRateLimit;
+		queue = new WorkQueue(this, db, governor);
 
 		for (int x = 0; x < 5; x++) {
 			WorkerThread wt = new WorkerThread(queue, filter);
 			wt.start();
 		}
 
-		backgroundSchedulerThread = new BackgroundSchedulerThread(nextEventScanSettings);
+		backgroundSchedulerThread = new BackgroundSchedulerThread(nextEventScanSettings,
+				processedEventRetentionInMsecs);
 		backgroundSchedulerThread.start();
 
 //		try {
@@ -548,6 +564,40 @@ public GitHubClient getEgitClient() {
 		return egitClient;
 	}
 
+	private static Database createDatabase(DbType dbType, File dbDir, ResourceCodec.Format storageFormat) {
+
+		if (dbType == null || dbType == DbType.PERSIST_JSON) {
+			return new PersistJsonDb(dbDir, storageFormat);
+		}
+
+		// On first use of the segment store, migrate the contents of any existing
+		// PersistJsonDb database in the same directory. The segments directory only
+		// exists once a migration has completed.
+		if (!new File(dbDir, "segments").exists() && PersistJsonDbMigration.containsPersistJsonDb(dbDir)) {
+			PersistJsonDbMigration.migrateToSegmentStore(dbDir, storageFormat);
+		}
+
+		// As with PersistJsonDb, a non-empty database is considered initialized.
+		return new SegmentStoreDb(dbDir, storageFormat);
+	}
+
+	/**
+	 * Called when the application is stopping, to ensure that all database writes
+	 * (including those held by the write-behind cache) are persisted.
+	 */
+	public void shutdown() {
+		if (webhookDispatcher != null) {
+			webhookDispatcher.close();
+		}
+		try {
+			backgroundSchedulerThread.writeCheckpoint(true);
+		} catch (Exception e) {
+			log.logError("Unable to checkpoint the work queue on shutdown.", e);
+		}
+		log.logInfo("Flushing database on shutdown.");
+		db.flush();
+	}
+
 	public Database getDb() {
 		return db;
 	}
@@ -560,104 +610,188 @@ public NewFileLogger getFileLogger() {
 		return fileLogger;
 	}
 
+	public void requestFullScan() {
+		backgroundSchedulerThread.requestFullScan();
+	}
+
+	public WorkQueueStatisticsJson getWorkQueueStatistics() {
+		return queue.getStatistics();
+	}
+
+	public List<DeadLetterJson> getDeadLetters() {
+		return queue.getDeadLetters();
+	}
+
+	public int requeueDeadLetters() {
+		return queue.requeueDeadLetters();
+	}
+
 	/**
-	 * Returns a Long[requests remaining, time remaining] if the GitHub service
-	 * supports returning the # of requests remaining in quota, otherwise returns an
-	 * empty optional (for example, this does not work with GHE)
+	 * A single background thread is running at all times, for a single server
+	 * instance. This thread is responsible for retrieving an updated copy of the
+	 * most recent resources every X seconds, and also doing a full resource scan
+	 * every day.
 	 */
-	public Optional<Long[]> getRemainingRequestsPerSecond() {
+	private class BackgroundSchedulerThread extends Thread {
 
-		if (!this.supportsRateLimit) {
-			return Optional.empty();
-		}
+		/** How often the work queue is checkpointed (if it has changed) */
+		private static final long CHECKPOINT_INTERVAL_IN_MSECS = 60 * 1000;
 
-		GHRateLimit rateLimit;
+		/** Read by writeCheckpoint(...), which may also be called on shutdown */
+		private volatile boolean fullScanInProgress = false;
 
-		while (true) {
-			try {
-				rateLimit = this.githubClientInstance.lastRateLimit();
+		private final EventScanData data;
 
-				if (rateLimit == null) {
-					log.logInfo("Do a (potentially) full get rate limit request in ServerInstance.");
-					rateLimit = this.githubClientInstance.getRateLimit();
-				}
-				break;
-			} catch (Exception e) {
-				e.printStackTrace();
-				log.logError("Unable to retrieve rate limit, sleeping 1 second, then trying again.");
-				GHApiUtil.sleep(1000);
-			}
+		private final FullScanScheduler fullScanScheduler = new FullScanScheduler();
 
-		}
+		private final NextEventScanInNanos nextEventScanSettings;
 
-		long resetDate;
+		/** How often processed events older than the retention window are expired */
+		private final long expireProcessedEventsIntervalInMsecs;
 
-		synchronized (rateLimitLock) {
+		private long nextProcessedEventExpiry = 0;
 
-			// If reset time has elapsed, or if we detect the limit increase (implying a
-			// reset).
-			if (System.currentTimeMillis() > rateLimitResetTime_synch_rateLimitLock
-					|| (lastRateLimitSeen_synch_rateLimitLock != null
-							&& lastRateLimitSeen_synch_rateLimitLock < rateLimit.remaining)) {
-				this.rateLimitResetTime_synch_rateLimitLock = rateLimit.getResetDate().getTime();
+		private final Object checkpointLock = new Object();
 
-				log.logInfo("Updating rate limit reset time, now: "
-						+ new Date(this.rateLimitResetTime_synch_rateLimitLock));
-			}
+		private String lastCheckpoint_synch_checkpointLock = null;
 
-			lastRateLimitSeen_synch_rateLimitLock = rateLimit.remaining;
+		private long nextCheckpoint_synch_checkpointLock = 0;
+
+		/**
+		 * Events processed by the event scan, which are persisted once the work queued
+		 * for them is in a checkpoint (see writeCheckpoint(...)).
+		 */
+		private final List<ProcessedEvent> pendingProcessedEvents_synch_checkpointLock = new ArrayList<>();
+
+		public BackgroundSchedulerThread(NextEventScanInNanos nextEventScanSettings,
+				long processedEventRetentionInMsecs) {
+			setName(BackgroundSchedulerThread.class.getName());
+			setDaemon(true);
 
-			resetDate = this.rateLimitResetTime_synch_rateLimitLock;
+			this.nextEventScanSettings = nextEventScanSettings;
+			this.expireProcessedEventsIntervalInMsecs = Math.min(processedEventRetentionInMsecs / 4,
+					TimeUnit.MILLISECONDS.convert(1, TimeUnit.HOURS));
+			data = new EventScanData(db.getProcessedEvents(), processedEventRetentionInMsecs);
 		}
 
-		long remainingTimeInSecs = (resetDate - System.currentTimeMillis()) / 1000;
+		/**
+		 * Remove processed events that are older than the retention window (and than
+		 * the start of the last full scan), from memory and from the database, if the
+		 * expiry interval has elapsed.
+		 */
+		private void expireProcessedEventsIfNeeded(Long lastFullScanStart) {
+			long now = System.currentTimeMillis();
+			if (now < nextProcessedEventExpiry) {
+				return;
+			}
+			nextProcessedEventExpiry = now + expireProcessedEventsIntervalInMsecs;
 
-		return Optional.of(new Long[] { (long) rateLimit.remaining, remainingTimeInSecs, (long) rateLimit.limit });
+			long expireBefore = data.expireEvents(lastFullScanStart != null ? lastFullScanStart : Long.MAX_VALUE);
+			db.expireProcessedEvents(expireBefore);
+		}
 
-	}
+		/**
+		 * Persist the work that is pending in the work queue, and the start time of
+		 * the full scan in progress (if any), so that they can be resumed after a
+		 * restart (see resumeFromCheckpoint(...)), then the events processed since the
+		 * last checkpoint. Unless 'force' is true, this is only done once per
+		 * checkpoint interval; in either case, the checkpoint is only written if it
+		 * has changed.
+		 */
+		void writeCheckpoint(boolean force) {
+			synchronized (checkpointLock) {
+				long now = System.currentTimeMillis();
+				if (!force && now < nextCheckpoint_synch_checkpointLock) {
+					return;
+				}
+				nextCheckpoint_synch_checkpointLock = now + CHECKPOINT_INTERVAL_IN_MSECS;
 
-	public void requestFullScan() {
-		backgroundSchedulerThread.requestFullScan();
-	}
+				WorkQueueCheckpointJson checkpoint = queue.createCheckpoint();
+				if (fullScanInProgress) {
+					checkpoint.setFullScanStart(db.getLong(Database.LAST_FULL_SCAN_START).orElse(null));
+				}
 
-	/**
-	 * A single background thread is running at all times, for a single server
-	 * instance. This thread is responsible for retrieving an updated copy of the
-	 * most recent resources every X seconds, and also doing a full resource scan
-	 * every day.
-	 */
-	private class BackgroundSchedulerThread extends Thread {
+				String value = JsonUtil.toString(checkpoint);
+				if (!value.equals(lastCheckpoint_synch_checkpointLock)) {
+					db.persistString(Database.WORK_QUEUE_CHECKPOINT, value);
+					lastCheckpoint_synch_checkpointLock = value;
+				}
 
-		private boolean fullScanInProgress = false;
+				// The work queued for these events is now in the checkpoint, so the events
+				// will not be lost on a crash.
+				if (!pendingProcessedEvents_synch_checkpointLock.isEmpty()) {
+					db.addProcessedEvents(new ArrayList<>(pendingProcessedEvents_synch_checkpointLock));
+					pendingProcessedEvents_synch_checkpointLock.clear();
+				}
+			}
+		}
 
-		private final EventScanData data;
+		/**
+		 * Persist the processed events with the next checkpoint; until then, they are
+		 * only in memory (in EventScanData), so they are processed again after a
+		 * restart.
+		 */
+		private void addProcessedEvents(List<ProcessedEvent> events) {
+			synchronized (checkpointLock) {
+				pendingProcessedEvents_synch_checkpointLock.addAll(events);
+			}
+		}
 
-		private final AtomicBoolean fullScanRequested_synch = new AtomicBoolean(false);
+		/**
+		 * Queue the work of the last checkpoint, and continue the full scan that was
+		 * in progress when it was written (if any), rather than starting over. Work for
+		 * owners and repositories that are no longer mirrored is skipped.
+		 */
+		private void resumeFromCheckpoint() {
 
-		private final NextEventScanInNanos nextEventScanSettings;
+			String value = db.getString(Database.WORK_QUEUE_CHECKPOINT).orElse(null);
+			if (value == null) {
+				return;
+			}
 
-		public BackgroundSchedulerThread(NextEventScanInNanos nextEventScanSettings) {
-			setName(BackgroundSchedulerThread.class.getName());
-			setDaemon(true);
+			if (!db.isDatabaseInitialized()) {
+				// The full scan that initializes the database will process everything anyways
+				log.logInfo("Ignoring work queue checkpoint, as the database is not initialized.");
+				return;
+			}
 
-			this.nextEventScanSettings = nextEventScanSettings;
-			data = new EventScanData(db.getProcessedEvents());
+			WorkQueueCheckpointJson checkpoint;
+			try {
+				checkpoint = new ObjectMapper().readValue(value, WorkQueueCheckpointJson.class);
+			} catch (IOException e) {
+				log.logError("Unable to read work queue checkpoint, ignoring it.", e);
+				return;
+			}
+
+			int resumed = queue.resumeFromCheckpoint(checkpoint, ghOwners, new GHRepoCache(githubClientInstance));
+
+			Long fullScanStart = checkpoint.getFullScanStart();
+			if (fullScanStart != null) {
+				this.fullScanInProgress = true;
+
+				// The resumed scan is the daily scan of the day on which it started
+				Calendar c = Calendar.getInstance();
+				c.setTimeInMillis(fullScanStart);
+				fullScanScheduler.fullScanStarted(c);
+			}
+
+			log.logInfo("Resumed " + resumed + " of " + checkpoint.getEntries().size()
+					+ " work queue checkpoint entries"
+					+ (fullScanStart != null ? ", continuing the full scan started at " + fullScanStart : "") + ".");
 		}
 
 		/**
 		 * This method is run every 60 seconds, but event scan is actually
 		 * 'timeBetweenEventScanInNanos'
 		 */
-		private void innerRun(Map<Long /* year * 1000 + day_of_year */, Boolean> hasDailyScanRunToday)
-				throws IOException {
+		private void innerRun() throws IOException {
 
 			Calendar c = Calendar.getInstance();
-			int hour = c.get(Calendar.HOUR_OF_DAY);
-			int dayOfYear = c.get(Calendar.DAY_OF_YEAR);
-			int year = c.get(Calendar.YEAR);
 
 			Long lastFullScanStart = db.getLong(Database.LAST_FULL_SCAN_START).orElse(null);
 
+			expireProcessedEventsIfNeeded(lastFullScanStart);
+
 			if (queue.availableWork() == 0 && queue.activeResources() == 0 && this.fullScanInProgress) {
 				// A full scan is considered completed if it starts, and then the available work
 				// dropped to 0.
@@ -666,13 +800,24 @@ private void innerRun(Map<Long /* year * 1000 + day_of_year */, Boolean> hasDail
 
 				log.logInfo("Full scan was detected as complete.");
 
+				writeCheckpoint(true);
+
 			}
 
-			boolean fullScanRequired = (hour == 3 || !getDb().isDatabaseInitialized() || lastFullScanStart == null);
+			boolean fullScanRequired = (!getDb().isDatabaseInitialized() || lastFullScanStart == null);
+
+			// A scheduled full scan is bulk work; one required by the event scan, or requested
+			// by an admin, is queued ahead of it.
+			final Priority fullScanPriority = (fullScanScheduler.isDailyScanHour(c) || fullScanRequired)
+					? Priority.FULL_SCAN
+					: Priority.INCREMENTAL;
 
-			if (!fullScanRequired && queue.availableWork() + queue.activeResources() <= 10) {
+			// The event scan runs on its own schedule (see NextEventScanInNanos), including
+			// while a full scan is in progress: the issues it finds are queued as EVENT work,
+			// which is polled ahead of the full scan backlog.
+			if (!fullScanRequired) {
 
-				if (!this.fullScanInProgress && lastFullScanStart != null) {
+				if (lastFullScanStart != null) {
 
 					long finalLastFullScan = lastFullScanStart;
 
@@ -704,66 +849,65 @@ private void innerRun(Map<Long /* year * 1000 + day_of_year */, Boolean> hasDail
 						}
 
 						// Event scan can detect that a full scan is required
-						if (retVal.isFullScanRequired() && !fullScanRequired) {
-							log.logInfo("Setting 'runFullScan' to true based on event scan");
-							fullScanRequired = true;
+						if (retVal.isFullScanRequired()) {
+							// If a full scan is in progress, it may have already processed the
+							// repositories, so the requested scan runs once it completes.
+							log.logInfo("Requesting a full scan based on event scan");
+							requestFullScan();
 						}
 
 						// For events that we processed during the scan, persist them to the DB
-						List<String> newEventHashes = retVal.getNewEventHashes();
-						db.addProcessedEvents(newEventHashes);
+						List<ProcessedEvent> newEvents = new ArrayList<>();
+						retVal.getNewEvents().forEach(
+								(hash, eventTime) -> newEvents.add(new ProcessedEvent(hash.toString(), eventTime)));
+						addProcessedEvents(newEvents);
 					}
 
 				}
 			}
 
-			synchronized (fullScanRequested_synch) {
-				if (!fullScanRequired && !fullScanInProgress && fullScanRequested_synch.get()) {
-					fullScanRequired = true;
-					fullScanRequested_synch.set(false);
-				}
-			}
-
-			// Start a full scan if one is needed, and one hasn't already run today
-			if (fullScanRequired && !fullScanInProgress) {
+			// Start a full scan if one is required or requested, or the daily scan hasn't
+			// already run today
+			if (fullScanScheduler.shouldStartFullScan(c, fullScanInProgress, fullScanRequired)) {
 
 				if (!getDb().isDatabaseInitialized()) {
 					getDb().initializeDatabase();
 				}
 
-				long value = year * 1000 + dayOfYear;
-				if (!hasDailyScanRunToday.containsKey(value)) {
-					hasDailyScanRunToday.put(value, true);
-
-					log.logInfo("Beginning full scan.");
+				log.logInfo("Beginning full scan.");
 
-					this.fullScanInProgress = true;
+				this.fullScanInProgress = true;
 
-					db.persistLong(Database.LAST_FULL_SCAN_START, System.currentTimeMillis());
-					db.clearProcessedEvents();
-					data.clear();
+				// Processed events are not cleared here: they are expired once they are older
+				// than the retention window (see expireProcessedEventsIfNeeded(...)).
+				db.persistLong(Database.LAST_FULL_SCAN_START, System.currentTimeMillis());
 
-					ghOwners.forEach(e -> {
-						queue.addOwner(e);
-					});
-
-				}
+				ghOwners.forEach(e -> {
+					queue.addOwner(e, fullScanPriority);
+				});
 
+				writeCheckpoint(true);
 			}
+
+			writeCheckpoint(false);
 		}
 
 		@Override
 		public void run() {
 
-			// Whether the daily scan has run today
-			Map<Long /* (year * 1000) + day_of_year */, Boolean /* not used */> hasDailyScanRunToday = new HashMap<>();
+			try {
+				resumeFromCheckpoint();
+			} catch (Exception e) {
+				// Log and ignore
+				log.logError("Unable to resume from work queue checkpoint.", e);
+			}
 
 			while (true) {
 
 				log.logDebug("Background thread wake up.");
 
 				try {
-					innerRun(hasDailyScanRunToday);
+					innerRun();
 				} catch (Exception e) {
 					// Log and ignore
 					log.logError("Exception occured in " + this.getClass().getSimpleName() + ",", e);
@@ -776,13 +920,19 @@ public void run() {
 		}
 
 		public void requestFullScan() {
-			synchronized (fullScanRequested_synch) {
-				fullScanRequested_synch.set(true);
-			}
+			fullScanScheduler.requestFullScan();
 		}
 
 	}
 
+	/** The on-disk format used to persist the mirrored GitHub resources. */
+	public static enum DbType {
+		/** One JSON file per resource (PersistJsonDb) */
+		PERSIST_JSON,
+		/** Append-only segment files with an in-memory index (SegmentStoreDb) */
+		SEGMENT_STORE
+	}
+
 	/**
 	 * Call ServerInstance.builder() to get an instance of this class; this class is
 	 * used to construct an instance of ServerInstance using a fluent builder API.
@@ -804,10 +954,22 @@ public static class ServerInstanceBuilder {
 
 		private long timeBetweenEventScansInSeconds = TimeUnit.SECONDS.convert(10, TimeUnit.MINUTES);
 
-		private long pauseBetweenRequestsInMsecs = 500;
+		private long pauseBetweenRequestsInMsecs = 100;
 
 		private int numRequestsPerHour = 5000;
 
+		private DbType dbType = DbType.PERSIST_JSON;
+
+		private boolean writeBehindCache = false;
+
+		private long cacheSizeInBytes = InMemoryCacheDb.DEFAULT_CACHE_SIZE_IN_BYTES;
+
+		private ResourceCodec.Format storageFormat = ResourceCodec.Format.JSON;
+
+		private List<WebhookDispatcher.Subscriber> webhookSubscribers = new ArrayList<>();
+
+		private long processedEventRetentionInHours = 48;
+
 		/** default to minimum */
 
 		private ServerInstanceBuilder() {
@@ -915,10 +1077,51 @@ public ServerInstanceBuilder fileLoggingPath(File fileLoggingPath) {
 			return this;
 		}
 
+		public ServerInstanceBuilder dbType(DbType dbType) {
+			this.dbType = dbType;
+			return this;
+		}
+
+		public ServerInstanceBuilder writeBehindCache(boolean writeBehindCache) {
+			this.writeBehindCache = writeBehindCache;
+			return this;
+		}
+
+		public ServerInstanceBuilder cacheSizeInBytes(long cacheSizeInBytes) {
+			this.cacheSizeInBytes = cacheSizeInBytes;
+			return this;
+		}
+
+		public ServerInstanceBuilder storageFormat(ResourceCodec.Format storageFormat) {
+			this.storageFormat = storageFormat;
+			return this;
+		}
+
+		/** POST the change events to the subscriber's URL; see WebhookDispatcher. */
+		public ServerInstanceBuilder webhookSubscriber(WebhookDispatcher.Subscriber subscriber) {
+			this.webhookSubscribers.add(subscriber);
+			return this;
+		}
+
+		/**
+		 * How long the hashes of processed events are kept. The hashes of events
+		 * created since the start of the last full scan are kept regardless, as the
+		 * event scan checks those events.
+		 */
+		public ServerInstanceBuilder processedEventRetentionInHours(long processedEventRetentionInHours) {
+			if (processedEventRetentionInHours <= 0) {
+				throw new IllegalArgumentException(
+						"Invalid processed event retention: " + processedEventRetentionInHours);
+			}
+			this.processedEventRetentionInHours = processedEventRetentionInHours;
+			return this;
+		}
+
 		public ServerInstance build() {
 			return new ServerInstance(username, password, serverName, owners, individualRepos,
 					pauseBetweenRequestsInMsecs, dbDir, timeBetweenEventScansInSeconds, filter, numRequestsPerHour,
-					fileLoggingPath);
+					fileLoggingPath, dbType, writeBehindCache, cacheSizeInBytes, storageFormat, webhookSubscribers,
+					TimeUnit.MILLISECONDS.convert(processedEventRetentionInHours, TimeUnit.HOURS));
 		}
 
 	}
@@ -0,0 +1,435 @@
+/*
+ * Copyright 2021 Jonathan West
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.githubapimirror;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.githubapimirror.db.Database;
+import com.githubapimirror.shared.ResourceChangeEventFilter;
+import com.githubapimirror.shared.json.ResourceChangeEventJson;
+import com.githubapimirror.shared.json.ResourceChangeEventJson.Enrichment;
+import com.githubapimirror.shared.json.ResourceChangeEventPageJson;
+
+/**
+ * Delivers resource change events to webhook subscribers: each subscriber's
+ * matching events are POSTed to its URL as a JSON array, in sequence number
+ * order, in batches of up to 'batchSize' events (a batch is sent when it is
+ * full, or 'maxBatchDelayInMsecs' after its first event was read).
+ *
+ * Each subscriber has its own bounded queue and delivery thread, so a slow or
+ * unavailable subscriber never delays the threads that persist events, nor
+ * the other subscribers. The queue is only a fast path: if it overflows (or
+ * events arrive out of order) the thread reads the missed events from the
+ * database, after the sequence number of the last event it delivered.
+ *
+ * A failed delivery is retried (with an increasing delay) until it succeeds,
+ * and the sequence number of the last delivered event is then persisted, so
+ * that delivery resumes after it on restart. Events may thus be delivered more
+ * than once (if the server stops after a delivery, but before its sequence
+ * number is persisted), but are never skipped while they remain in the
+ * database; subscribers can use the sequence number to ignore duplicates.
+ */
+public class WebhookDispatcher {
+
+	private static final String KEY_OFFSET_PREFIX = "webhook-offset-";
+
+	private static final int QUEUE_CAPACITY = 10000;
+
+	/** How often an idle delivery thread checks whether it was closed */
+	private static final long IDLE_POLL_INTERVAL_IN_MSECS = 1000;
+
+	private static final long MIN_RETRY_DELAY_IN_MSECS = 1000;
+
+	private static final long MAX_RETRY_DELAY_IN_MSECS = 5 * 60 * 1000;
+
+	private static final int CONNECT_TIMEOUT_IN_MSECS = 30 * 1000;
+
+	private static final int READ_TIMEOUT_IN_MSECS = 60 * 1000;
+
+	private static final GHLog log = GHLog.getInstance();
+
+	private final Database db;
+
+	private final List<SubscriberThread> threads = new ArrayList<>();
+
+	private volatile boolean closed = false;
+
+	/**
+	 * The caller must pass the events persisted by the database to
+	 * onEventsPersisted(...); delivery threads are started immediately.
+	 */
+	public WebhookDispatcher(Database db, List<Subscriber> subscribers) {
+		this.db = db;
+
+		Set<String> names = new HashSet<>();
+		for (Subscriber subscriber : subscribers) {
+			if (!names.add(subscriber.getName())) {
+				throw new IllegalArgumentException("Duplicate webhook subscriber name: " + subscriber.getName());
+			}
+			threads.add(new SubscriberThread(subscriber));
+		}
+
+		threads.forEach(e -> e.start());
+	}
+
+	/**
+	 * Called after resource change events are persisted; never blocks, as the
+	 * caller is usually a WorkerThread.
+	 */
+	public void onEventsPersisted(List<ResourceChangeEventJson> events) {
+		for (SubscriberThread thread : threads) {
+			for (ResourceChangeEventJson event : events) {
+				if (!thread.queue.offer(event)) {
+					thread.overflowed = true;
+					break;
+				}
+			}
+		}
+	}
+
+	/** Stop delivery; an undelivered batch is sent again on restart. */
+	public void close() {
+		closed = true;
+		threads.forEach(e -> e.interrupt());
+	}
+
+	/** The configuration of a webhook subscriber. */
+	public static class Subscriber {
+
+		public static final int DEFAULT_BATCH_SIZE = 100;
+
+		public static final long DEFAULT_MAX_BATCH_DELAY_IN_MSECS = 1000;
+
+		private final String name;
+		private final URL url;
+		private final String authorization;
+		private final ResourceChangeEventFilter filter;
+		private final Enrichment enrichment;
+		private final int batchSize;
+		private final long maxBatchDelayInMsecs;
+
+		/**
+		 * The name identifies the subscriber's delivery position in the database, so
+		 * it must not change between restarts; the authorization (optional) is sent
+		 * as the value of the Authorization header.
+		 */
+		public Subscriber(String name, String url, String authorization, ResourceChangeEventFilter filter,
+				Enrichment enrichment, int batchSize, long maxBatchDelayInMsecs) {
+
+			if (name == null || !name.matches("[A-Za-z0-9_\\-]+")) {
+				throw new IllegalArgumentException(
+						"Webhook subscriber name must contain only letters, digits, '_' and '-': " + name);
+			}
+			if (batchSize <= 0 || maxBatchDelayInMsecs < 0) {
+				throw new IllegalArgumentException("Invalid batch size or delay for webhook subscriber: " + name);
+			}
+
+			try {
+				this.url = new URL(url);
+			} catch (MalformedURLException e) {
+				throw new IllegalArgumentException("Invalid URL for webhook subscriber " + name + ": " + url, e);
+			}
+
+			this.name = name;
+			this.authorization = authorization;
+			this.filter = filter != null ? filter : ResourceChangeEventFilter.ALL;
+			this.enrichment = enrichment != null ? enrichment : Enrichment.NONE;
+			this.batchSize = batchSize;
+			this.maxBatchDelayInMsecs = maxBatchDelayInMsecs;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public URL getUrl() {
+			return url;
+		}
+
+		public Optional<String> getAuthorization() {
+			return Optional.ofNullable(authorization);
+		}
+
+		public ResourceChangeEventFilter getFilter() {
+			return filter;
+		}
+
+		public Enrichment getEnrichment() {
+			return enrichment;
+		}
+
+		public int getBatchSize() {
+			return batchSize;
+		}
+
+		public long getMaxBatchDelayInMsecs() {
+			return maxBatchDelayInMsecs;
+		}
+	}
+
+	/** Reads, batches and delivers the events of a single subscriber. */
+	private class SubscriberThread extends Thread {
+
+		private final Subscriber subscriber;
+
+		private final String offsetKey;
+
+		private final ArrayBlockingQueue<ResourceChangeEventJson> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+
+		/** Set when an event could not be queued */
+		private volatile boolean overflowed = false;
+
+		/** The sequence number of the last event read, from either the queue or the database */
+		private long cursor;
+
+		/** The sequence number of the last event delivered, as persisted in the database */
+		private long persistedCursor;
+
+		private boolean cursorInitialized = false;
+
+		/** Whether the next events must be read from the database, rather than the queue */
+		private boolean catchingUp = true;
+
+		public SubscriberThread(Subscriber subscriber) {
+			this.subscriber = subscriber;
+			this.offsetKey = KEY_OFFSET_PREFIX + subscriber.getName();
+			setName(SubscriberThread.class.getName());
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+
+			long retryDelay = MIN_RETRY_DELAY_IN_MSECS;
+
+			while (!closed) {
+				try {
+					if (!cursorInitialized) {
+						initializeCursor();
+					}
+
+					List<ResourceChangeEventJson> batch = catchingUp ? readFromDatabase() : readFromQueue();
+
+					if (!batch.isEmpty() && !deliver(batch)) {
+						return; // Closed
+					}
+
+					if (cursor != persistedCursor) {
+						db.persistLong(offsetKey, cursor);
+						persistedCursor = cursor;
+					}
+
+					retryDelay = MIN_RETRY_DELAY_IN_MSECS;
+
+				} catch (InterruptedException e) {
+					return; // Closed
+
+				} catch (Exception e) {
+					if (closed) {
+						return;
+					}
+					log.logError("Exception occured in " + this.getClass().getSimpleName() + " for webhook "
+							+ subscriber.getName() + ",", e);
+
+					// Resume after the last delivered event
+					cursor = persistedCursor;
+					catchingUp = true;
+
+					try {
+						Thread.sleep(retryDelay);
+					} catch (InterruptedException e1) {
+						return;
+					}
+					retryDelay = Math.min(retryDelay * 2, MAX_RETRY_DELAY_IN_MSECS);
+				}
+			}
+		}
+
+		/**
+		 * Resume after the last delivered event; a new subscriber starts after the
+		 * last event in the database, rather than receiving its full history.
+		 */
+		private void initializeCursor() {
+			Optional<Long> offset = db.getLong(offsetKey);
+			if (offset.isPresent()) {
+				cursor = offset.get();
+			} else {
+				cursor = db.getLastResourceChangeEventSequence();
+				db.persistLong(offsetKey, cursor);
+			}
+			persistedCursor = cursor;
+			cursorInitialized = true;
+		}
+
+		private List<ResourceChangeEventJson> readFromDatabase() {
+
+			// Events persisted after this point are either in the queue, or will be read
+			// below
+			overflowed = false;
+			queue.clear();
+
+			ResourceChangeEventPageJson page = db.getResourceChangeEventsAfter(cursor, subscriber.getBatchSize(),
+					subscriber.getFilter());
+
+			cursor = Math.max(cursor, page.getLastSequence());
+
+			// A partial page ends at the last persisted event, so any later events are
+			// in the queue
+			catchingUp = page.getEvents().size() >= subscriber.getBatchSize();
+
+			return page.getEvents();
+		}
+
+		/**
+		 * Returns the next batch of matching events from the queue, or an empty list
+		 * if the thread is idle. Switches to reading from the database if the queue
+		 * has overflowed, or an event is missing from it.
+		 */
+		private List<ResourceChangeEventJson> readFromQueue() throws InterruptedException {
+
+			List<ResourceChangeEventJson> batch = new ArrayList<>();
+			long deadline = Long.MAX_VALUE;
+
+			while (batch.size() < subscriber.getBatchSize() && !overflowed && !closed) {
+
+				long timeout = batch.isEmpty() ? IDLE_POLL_INTERVAL_IN_MSECS : deadline - System.currentTimeMillis();
+				if (timeout <= 0) {
+					break;
+				}
+
+				ResourceChangeEventJson event = queue.poll(timeout, TimeUnit.MILLISECONDS);
+				if (event == null) {
+					break;
+				}
+
+				if (event.getSequence() <= cursor) {
+					continue; // Already read from the database
+				}
+
+				if (event.getSequence() != cursor + 1) {
+					// Events persisted by concurrent threads may be queued out of order; the
+					// database has them in order.
+					catchingUp = true;
+					break;
+				}
+
+				cursor = event.getSequence();
+
+				if (subscriber.getFilter().matches(event)) {
+					if (batch.isEmpty()) {
+						deadline = event.getTime() + subscriber.getMaxBatchDelayInMsecs();
+					}
+					batch.add(event);
+				}
+			}
+
+			if (overflowed) {
+				catchingUp = true;
+			}
+
+			return batch;
+		}
+
+		/** Returns true once the batch is delivered, or false if closed first. */
+		private boolean deliver(List<ResourceChangeEventJson> batch) {
+
+			long retryDelay = MIN_RETRY_DELAY_IN_MSECS;
+
+			while (!closed) {
+				String error;
+				try {
+					List<ResourceChangeEventJson> events = ResourceChangeEventEnricher.enrich(batch,
+							subscriber.getEnrichment(), db);
+
+					byte[] body = ResourceChangeEventEnricher.toJson(events, subscriber.getEnrichment())
+							.getBytes(StandardCharsets.UTF_8);
+
+					int status = post(body);
+					if (status >= 200 && status < 300) {
+						return true;
+					}
+					error = "HTTP status " + status;
+
+				} catch (IOException e) {
+					error = e.toString();
+				}
+
+				log.logError("Unable to deliver " + batch.size() + " events to webhook " + subscriber.getName()
+						+ " (" + error + "), retrying in " + retryDelay + " msecs.");
+
+				try {
+					Thread.sleep(retryDelay);
+				} catch (InterruptedException e) {
+					return false;
+				}
+				retryDelay = Math.min(retryDelay * 2, MAX_RETRY_DELAY_IN_MSECS);
+			}
+
+			return false;
+		}
+
+		private int post(byte[] body) throws IOException {
+			HttpURLConnection connection = (HttpURLConnection) subscriber.getUrl().openConnection();
+			try {
+				connection.setRequestMethod("POST");
+				connection.setConnectTimeout(CONNECT_TIMEOUT_IN_MSECS);
+				connection.setReadTimeout(READ_TIMEOUT_IN_MSECS);
+				connection.setDoOutput(true);
+				connection.setFixedLengthStreamingMode(body.length);
+				connection.setRequestProperty("Content-Type", "application/json");
+				subscriber.getAuthorization().ifPresent(e -> connection.setRequestProperty("Authorization", e));
+
+				try (OutputStream os = connection.getOutputStream()) {
+					os.write(body);
+				}
+
+				int status = connection.getResponseCode();
+
+				// Read the response, so that the connection may be reused
+				InputStream is = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+				if (is != null) {
+					try {
+						byte[] buffer = new byte[4096];
+						while (is.read(buffer) != -1) {
+						}
+					} finally {
+						is.close();
+					}
+				}
+
+				return status;
+
+			} catch (IOException e) {
+				connection.disconnect();
+				throw e;
+			}
+		}
+	}
+}
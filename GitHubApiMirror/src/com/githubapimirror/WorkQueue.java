@@ -16,14 +16,22 @@
 
 package com.githubapimirror;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collections;
+import java.util.Date;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.PriorityQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 import org.kohsuke.github.GHIssue;
 import org.kohsuke.github.GHOrganization;
@@ -33,6 +41,11 @@
 import com.githubapimirror.db.Database;
 import com.githubapimirror.shared.GHApiUtil;
 import com.githubapimirror.shared.Owner;
+import com.githubapimirror.shared.json.DeadLetterJson;
+import com.githubapimirror.shared.json.WorkQueueCheckpointEntryJson;
+import com.githubapimirror.shared.json.WorkQueueCheckpointJson;
+import com.githubapimirror.shared.json.WorkQueuePriorityStatisticsJson;
+import com.githubapimirror.shared.json.WorkQueueStatisticsJson;
 
 /**
  * Maintains a list of all of the orgs/repositories/issues/users that are
@@ -41,18 +54,74 @@
  * The WorkerThread thread may call an instance of this class, in order to: add
  * additional work, query if work is available, and poll for new work by type.
  * 
+ * Work is queued with a priority class (see Priority), and each class has its
+ * own queue: a LinkedHashMap (in insertion order) keyed by the key of the
+ * resource (see keyOf(...)), so that adding and polling are constant time, and
+ * a resource is only queued once (adding it with a higher priority moves it to
+ * the higher class). A resource that is added while it is being processed (is
+ * active) is held until it is marked as processed, then queued again, so that
+ * the same resource is never processed by two threads at once, and changes
+ * made during processing are not missed.
+ * 
+ * Work that fails is retried after a delay (see RetryPolicy), during which it
+ * is held in 'retries'; work that fails permanently, or too many times, is
+ * moved to the dead letters, where it remains until it succeeds (for example,
+ * when it is next queued by a full scan), or is requeued by an admin.
+ * 
+ * Threads waiting for work wait on 'lock', and are notified when work is added
+ * (or, if a retry is pending, until its time).
+ * 
  * This class is thread safe.
  */
 public class WorkQueue {
 
 	private final Object lock = new Object();
 
-	private final List<OwnerContainer> ownersToProcess_synch_lock = new ArrayList<>();
-	private final List<RepositoryContainer> repositoriesToProcess_synch_lock = new ArrayList<>();
-	private final List<IssueContainer> issuesToProcess_synch_lock = new ArrayList<>();
-	private final List<GHUser> usersToProcess_synch_lock = new ArrayList<>();
+	private static final long DEFAULT_AGING_INTERVAL_IN_MSECS = 5 * 1000;
 
-	private final HashSet<Object /* one of the above classes */> activeResources_synch_lock = new HashSet<>();
+	/**
+	 * A class that has had work waiting this long, without being polled, is
+	 * polled as if it were one class higher (and so on, for each interval).
+	 */
+	private final long agingIntervalInNanos;
+
+	/** The queued work of each priority class, in the order in which it was added */
+	private final EnumMap<Priority, LinkedHashMap<String /* key */, WorkItem>> queues_synch_lock = new EnumMap<>(
+			Priority.class);
+
+	/** The priority class of each queued resource */
+	private final HashMap<String /* key */, Priority> queuedPriorities_synch_lock = new HashMap<>();
+
+	/**
+	 * When each class began waiting: when it was last polled, or when work was
+	 * added to it while it was empty.
+	 */
+	private final EnumMap<Priority, Long> agingStartInNanos_synch_lock = new EnumMap<>(Priority.class);
+
+	private final EnumMap<Priority, PriorityStatistics> statistics_synch_lock = new EnumMap<>(Priority.class);
+
+	/** The resources that have been polled, but not yet marked as processed */
+	private final HashMap<String /* key */, WorkItem> activeResources_synch_lock = new HashMap<>();
+
+	/** Work that was added while active; it is queued once it is processed */
+	private final HashMap<String /* key */, WorkItem> addedWhileActive_synch_lock = new HashMap<>();
+
+	private static final int MAX_DEAD_LETTERS = 1000;
+
+	/**
+	 * When resuming from a checkpoint, an owner with more repositories than this
+	 * has its repositories listed, rather than requested one at a time.
+	 */
+	private static final int MAX_REPOSITORIES_TO_RESUME_INDIVIDUALLY = 10;
+
+	/** The failures of each resource that has failed since it last succeeded */
+	private final HashMap<String /* key */, FailureRecord> failures_synch_lock = new HashMap<>();
+
+	/** Work waiting to be retried, ordered by retry time */
+	private final PriorityQueue<PendingRetry> retries_synch_lock = new PriorityQueue<>();
+
+	/** Work that will not be retried, oldest first */
+	private final LinkedHashMap<String /* key */, FailureRecord> deadLetters_synch_lock = new LinkedHashMap<>();
 
 	/**
 	 * Users are mostly immutable, so we only acquire them once. We use this to
@@ -64,70 +133,83 @@ public class WorkQueue {
 
 	private final ServerInstance serverInstance;
 
-	private final int numRequestsPerHour;
+	/** Limits the rate of the GitHub requests made while processing work */
+	private final RateLimitGovernor governor;
 
-	private long nextWorkAvailableInNanos_synch_lock = Long.MIN_VALUE;
+	private static final GHLog log = GHLog.getInstance();
 
-	private final long pauseBetweenRequestsInMsecs;
+	public WorkQueue(ServerInstance serverInstance, Database db, RateLimitGovernor governor) {
+		this(serverInstance, db, governor, DEFAULT_AGING_INTERVAL_IN_MSECS);
+	}
 
-	private static final GHLog log = GHLog.getInstance();
+	public WorkQueue(ServerInstance serverInstance, Database db, RateLimitGovernor governor,
+			long agingIntervalInMsecs) {
+		if (agingIntervalInMsecs <= 0) {
+			throw new IllegalArgumentException("Invalid aging interval: " + agingIntervalInMsecs);
+		}
 
-	public WorkQueue(ServerInstance serverInstance, Database db, int numRequestsPerHourParam,
-			long pauseBetweenRequestsInMsecs) {
 		this.db = db;
 		this.serverInstance = serverInstance;
+		this.governor = governor;
+		this.agingIntervalInNanos = TimeUnit.NANOSECONDS.convert(agingIntervalInMsecs, TimeUnit.MILLISECONDS);
 
-		this.numRequestsPerHour = numRequestsPerHourParam;
-		this.pauseBetweenRequestsInMsecs = pauseBetweenRequestsInMsecs;
+		for (Priority priority : Priority.values()) {
+			queues_synch_lock.put(priority, new LinkedHashMap<>());
+			agingStartInNanos_synch_lock.put(priority, System.nanoTime());
+			statistics_synch_lock.put(priority, new PriorityStatistics());
+		}
 
 	}
 
-	public void addOwner(OwnerContainer oc) {
-		log.logDebug("Adding owner to work queue: " + oc);
+	public void addOwner(OwnerContainer oc, Priority priority) {
+		log.logDebug("Adding owner to work queue: " + oc + " " + priority);
 
 		synchronized (lock) {
-			if (!ownersToProcess_synch_lock.contains(oc)) {
-				ownersToProcess_synch_lock.add(oc);
-				lock.notify();
-			}
+			add(oc, priority);
 		}
 	}
 
-	public void addRepository(Owner owner, GHRepository repository) {
-		log.logDebug("Adding repository to work queue: " + owner + " " + repository.getFullName());
+	public void addRepository(Owner owner, GHRepository repository, Priority priority) {
+		log.logDebug("Adding repository to work queue: " + owner + " " + repository.getFullName() + " " + priority);
 
 		RepositoryContainer rc = new RepositoryContainer(owner, repository);
 
 		synchronized (lock) {
-			if (!repositoriesToProcess_synch_lock.contains(rc)) {
-				repositoriesToProcess_synch_lock.add(rc);
-				lock.notify();
-			}
+			add(rc, priority);
 		}
 	}
 
-	public void addIssue(GHIssue issue, Owner owner) {
+	/**
+	 * Queue a repository, of which only the given issues are to be queued (see
+	 * createCheckpoint()).
+	 */
+	public void addResumedRepository(Owner owner, GHRepository repository, BitSet issuesToResume,
+			Priority priority) {
+		log.logDebug("Adding resumed repository to work queue: " + owner + " " + repository.getFullName() + " "
+				+ issuesToResume.cardinality() + " issue(s) " + priority);
 
-		IssueContainer container = new IssueContainer(issue, null, owner);
+		RepositoryContainer rc = new RepositoryContainer(owner, repository, issuesToResume);
 
 		synchronized (lock) {
+			add(rc, priority);
+		}
+	}
 
-			if (!issuesToProcess_synch_lock.contains(container)) {
-				issuesToProcess_synch_lock.add(container);
-				lock.notify();
-			}
+	public void addIssue(GHIssue issue, Owner owner, Priority priority) {
+
+		IssueContainer container = new IssueContainer(issue, null, owner);
+
+		synchronized (lock) {
+			add(container, priority);
 		}
 	}
 
-	public void addIssue(GHIssue issue, GHRepository repository, Owner owner) {
+	public void addIssue(GHIssue issue, GHRepository repository, Owner owner, Priority priority) {
 
 		IssueContainer container = new IssueContainer(issue, repository, owner);
 
 		synchronized (lock) {
-			if (!issuesToProcess_synch_lock.contains(container)) {
-				issuesToProcess_synch_lock.add(container);
-				lock.notify();
-			}
+			add(container, priority);
 		}
 	}
 
@@ -137,276 +219,462 @@ public void addUser(GHUser user) {
 		}
 
 		synchronized (lock) {
-			if (!usersToProcess_synch_lock.contains(user) && !acquiredUsers_synch_lock.containsKey(user.getLogin())) {
-				usersToProcess_synch_lock.add(user);
+			if (!acquiredUsers_synch_lock.containsKey(user.getLogin())) {
+				add(user, Priority.USER_REFRESH);
 				acquiredUsers_synch_lock.put(user.getLogin(), true);
-				lock.notify();
 			}
 		}
 	}
 
-	public void addUserRetry(GHUser user) {
+	/**
+	 * Queue the resource, unless it is already queued with the same or a higher
+	 * priority; if it is active, it is queued once it is marked as processed. Must
+	 * be called while holding 'lock'.
+	 */
+	private void add(Object resource, Priority priority) {
+		String key = keyOf(resource);
 
-		if (user == null || user.getLogin() == null) {
+		if (activeResources_synch_lock.containsKey(key)) {
+			WorkItem existing = addedWhileActive_synch_lock.get(key);
+			if (existing == null || priority.compareTo(existing.getPriority()) < 0) {
+				addedWhileActive_synch_lock.put(key, new WorkItem(resource, priority, key, System.nanoTime()));
+			}
 			return;
 		}
 
-		// Unlike addUser(), this method ignores whether the user is in acquiredUsers
-		synchronized (lock) {
-			if (!usersToProcess_synch_lock.contains(user)) {
-				usersToProcess_synch_lock.add(user);
-				acquiredUsers_synch_lock.put(user.getLogin(), true);
-				lock.notify();
+		long queuedAtInNanos = System.nanoTime();
+
+		Priority queuedPriority = queuedPriorities_synch_lock.get(key);
+		if (queuedPriority != null) {
+			if (priority.compareTo(queuedPriority) >= 0) {
+				return;
 			}
+
+			// Move it to the higher class; its wait time includes the time already waited
+			queuedAtInNanos = queues_synch_lock.get(queuedPriority).remove(key).getQueuedAtInNanos();
+		}
+
+		LinkedHashMap<String, WorkItem> queue = queues_synch_lock.get(priority);
+		if (queue.isEmpty()) {
+			agingStartInNanos_synch_lock.put(priority, System.nanoTime());
 		}
+
+		queue.put(key, new WorkItem(resource, priority, key, queuedAtInNanos));
+		queuedPriorities_synch_lock.put(key, priority);
+
+		lock.notifyAll();
 	}
 
 	public long availableWork() {
 		long workAvailable = 0;
 
 		synchronized (lock) {
-			workAvailable += ownersToProcess_synch_lock.size();
-			workAvailable += repositoriesToProcess_synch_lock.size();
-			workAvailable += issuesToProcess_synch_lock.size();
-			workAvailable += usersToProcess_synch_lock.size();
+			workAvailable += queuedPriorities_synch_lock.size();
 		}
 
 		return workAvailable;
 
 	}
 
+	/** The number of resources that have been polled, but not yet marked as processed. */
 	public int activeResources() {
 		synchronized (lock) {
-			return activeResources_synch_lock.hashCode();
+			return activeResources_synch_lock.size();
 		}
 	}
 
-	private boolean checkNextWorkAvailableTime() {
-		synchronized (lock) {
-			return nextWorkAvailableInNanos_synch_lock < System.nanoTime();
-		}
-	}
+	/**
+	 * Wait until there is work, and until a GitHub request may be made (so that
+	 * work is not polled while the request budget is exhausted).
+	 */
+	public void waitForAvailableWork() {
 
-	private static final boolean NEW_ALGORITHM = true;
+		// Outside of 'lock', as this may wait until the rate limit resets
+		governor.awaitAvailable();
 
-	public void waitIfNeeded(int estimateRequests) {
-		long waitUntilTimeInNanos = calculateAndUpdateNextWorkAvailableTime(estimateRequests);
+		synchronized (lock) {
+			while (true) {
+				long nextRetryInNanos = queueDueRetries();
 
-//		long waitTimeInSeconds = TimeUnit.SECONDS.convert(waitUntilTimeInNanos - System.nanoTime(),
-//				TimeUnit.NANOSECONDS);
-//
-//		if (waitTimeInSeconds > 10) {
-//			System.out.println("Waiting " + waitTimeInSeconds + " seconds. ");
-//		}
+				if (availableWork() > 0) {
+					return;
+				}
 
-		while (System.nanoTime() < waitUntilTimeInNanos) {
-			GHApiUtil.sleep(20);
+				try {
+					if (nextRetryInNanos != Long.MAX_VALUE) {
+						TimeUnit.NANOSECONDS.timedWait(lock, nextRetryInNanos - System.nanoTime() + 1);
+					} else {
+						// Notified by add(...)
+						lock.wait();
+					}
+				} catch (InterruptedException e) {
+					GHApiUtil.throwAsUnchecked(e);
+				}
+			}
 		}
+
 	}
 
-	private long calculateNextWorkAvailableTime(int estimatedRequests) {
-		Optional<Long[]> remainingRequestsPerSecond = serverInstance.getRemainingRequestsPerSecond();
+	/**
+	 * Queue the retries whose time has come, unless the resource has since
+	 * succeeded; returns the time of the next pending retry, or Long.MAX_VALUE if
+	 * none. Must be called while holding 'lock'.
+	 */
+	private long queueDueRetries() {
+		long now = System.nanoTime();
+
+		PendingRetry retry;
+		while ((retry = retries_synch_lock.peek()) != null && retry.retryAtInNanos - now <= 0) {
+			retries_synch_lock.poll();
 
-		long result;
+			if (failures_synch_lock.containsKey(retry.item.getKey())) {
+				add(retry.item.getResource(), retry.item.getPriority());
+			}
+		}
 
+		return retry != null ? retry.retryAtInNanos : Long.MAX_VALUE;
+	}
+
+	/**
+	 * Remove the next work item (see selectNextPriority()), and mark it as active.
+	 */
+	public Optional<WorkItem> poll() {
 		synchronized (lock) {
+			queueDueRetries();
 
-			// Dynamically adjust 'minimumElapsedTimeBetweenWorkInNanos' based on the
-			// current quota from the server, if the server supports it (for example, GHE
-			// doesn't support rate limiting, though server admins may use rate limiting
-			// middleware).
-			if (remainingRequestsPerSecond.isPresent()) {
+			Priority priority = selectNextPriority();
+			if (priority == null) {
+				return Optional.empty();
+			}
 
-				long requestsRemaining = remainingRequestsPerSecond.get()[0];
-				long secondsRemaining = remainingRequestsPerSecond.get()[1];
+			Iterator<WorkItem> it = queues_synch_lock.get(priority).values().iterator();
+			WorkItem result = it.next();
+			it.remove();
+			queuedPriorities_synch_lock.remove(result.getKey());
 
-				long totalLimit = remainingRequestsPerSecond.get()[2];
+			activeResources_synch_lock.put(result.getKey(), result);
 
-				if (secondsRemaining < 0) {
-					secondsRemaining = 0;
-				}
+			long now = System.nanoTime();
+			agingStartInNanos_synch_lock.put(priority, now);
+			statistics_synch_lock.get(priority).addWait(now - result.getQueuedAtInNanos());
 
-				requestsRemaining -= 250; // Subtract 250, so as to leave a buffer of ~5% of default GitHub queue
+			if (availableWork() == 0) {
+				lock.notifyAll(); // For waitForComplete(...)
+			}
 
-				if (requestsRemaining <= 0) {
-					requestsRemaining = 1;
-				}
+			return Optional.of(result);
+		}
+	}
 
-				log.logDebug("Remaining: " + requestsRemaining + " " + secondsRemaining + " -> "
-						+ ((secondsRemaining * 1000) / requestsRemaining));
+	/**
+	 * Returns the highest priority class with queued work, after promoting each
+	 * class by one level for each aging interval it has waited; on a tie,
+	 * the higher class is chosen. Must be called while holding 'lock'.
+	 */
+	private Priority selectNextPriority() {
+		long now = System.nanoTime();
 
-				if (NEW_ALGORITHM) {
-					// Target number of request/second, for the repo
-					double targetRps = (double) (totalLimit) / 3600d;
+		Priority result = null;
+		long resultLevel = Long.MAX_VALUE;
 
-					long timeToWaitInSeconds = secondsRemaining - (long) ((double) requestsRemaining / targetRps);
+		for (Priority priority : Priority.values()) {
+			if (queues_synch_lock.get(priority).isEmpty()) {
+				continue;
+			}
 
-					if (((secondsRemaining * 1000) / requestsRemaining) > 900) {
-						timeToWaitInSeconds = 12;
-					} else if (((secondsRemaining * 1000) / requestsRemaining) > 850) {
-						timeToWaitInSeconds = 8;
-					} else if (((secondsRemaining * 1000) / requestsRemaining) > 800) {
-						timeToWaitInSeconds = 4;
-					} else {
-						timeToWaitInSeconds = 0;
-					}
+			long level = priority.ordinal()
+					- (now - agingStartInNanos_synch_lock.get(priority)) / agingIntervalInNanos;
+			if (level < resultLevel) {
+				result = priority;
+				resultLevel = level;
+			}
+		}
 
-					log.logDebug(
-							"timeToWatchInSeconds in " + this.getClass().getSimpleName() + ": " + timeToWaitInSeconds);
+		return result;
+	}
 
-					long timeToWaitInNanos = TimeUnit.NANOSECONDS.convert(timeToWaitInSeconds, TimeUnit.SECONDS);
+	/**
+	 * Mark polled work as no longer active; if 'failure' is non-null, the work is
+	 * retried later, or dead-lettered (see RetryPolicy).
+	 */
+	public void markAsProcessed(WorkItem item, Exception failure) {
+		synchronized (lock) {
+			boolean match = activeResources_synch_lock.remove(item.getKey()) != null;
 
-					if (timeToWaitInSeconds == 0) {
+			if (!match) {
+				throw new RuntimeException("Could not find matching object in active resources: " + item);
+			}
 
-						// Set a maximum number of requests per second
-						timeToWaitInNanos = TimeUnit.NANOSECONDS
-								.convert(estimatedRequests * this.pauseBetweenRequestsInMsecs, TimeUnit.MILLISECONDS);
-					}
+			if (failure == null) {
+				failures_synch_lock.remove(item.getKey());
+				deadLetters_synch_lock.remove(item.getKey());
+			} else {
+				retryOrDeadLetter(item, failure);
+			}
+
+			WorkItem addedWhileActive = addedWhileActive_synch_lock.remove(item.getKey());
+			if (addedWhileActive != null) {
+				add(addedWhileActive.getResource(), addedWhileActive.getPriority());
+			}
 
-					result = System.nanoTime() + timeToWaitInNanos;
+		}
+	}
 
-				} else {
-					// Old algorithm
-					long minimumElapsedTimeBetweenWorkInNanos = TimeUnit.NANOSECONDS.convert(secondsRemaining,
-							TimeUnit.SECONDS) / requestsRemaining;
+	/** Must be called while holding 'lock'. */
+	private void retryOrDeadLetter(WorkItem item, Exception failure) {
 
-					result = System.nanoTime() + minimumElapsedTimeBetweenWorkInNanos;
-				}
+		FailureRecord record = failures_synch_lock.computeIfAbsent(item.getKey(), k -> new FailureRecord(item));
+		record.addFailure(item, failure);
 
-			} else {
-				long minimumElapsedTimeBetweenWorkInNanos = TimeUnit.NANOSECONDS.convert(1, TimeUnit.HOURS)
-						/ numRequestsPerHour;
+		if (record.permanent || record.attempts >= RetryPolicy.MAX_ATTEMPTS) {
+			failures_synch_lock.remove(item.getKey());
 
-				// We use 'estimatedRequests', which is a guess at the number of requests used
-				// by the last server API call.
-				result = System.nanoTime() + estimatedRequests * minimumElapsedTimeBetweenWorkInNanos;
+			deadLetters_synch_lock.remove(item.getKey()); // Move to the end
+			deadLetters_synch_lock.put(item.getKey(), record);
+			if (deadLetters_synch_lock.size() > MAX_DEAD_LETTERS) {
+				Iterator<String> it = deadLetters_synch_lock.keySet().iterator();
+				it.next();
+				it.remove();
 			}
 
+			log.logError("Work will not be retried, after " + record.attempts + " attempt(s)"
+					+ (record.permanent ? " (permanent failure)" : "") + ": " + item + " " + record.lastError);
+			return;
 		}
 
-		return result;
+		long delayInMsecs = RetryPolicy.getRetryDelayInMsecs(record.attempts + 1, failure);
+
+		retries_synch_lock.add(new PendingRetry(item,
+				System.nanoTime() + TimeUnit.NANOSECONDS.convert(delayInMsecs, TimeUnit.MILLISECONDS)));
+
+		log.logInfo("Retrying work in " + (delayInMsecs / 1000) + " seconds (attempt " + (record.attempts + 1) + "): "
+				+ item + " " + record.lastError);
+
+		lock.notifyAll(); // Waiting threads now wait until the retry time
 	}
 
-	private long calculateAndUpdateNextWorkAvailableTime(int estimatedRequests) {
+	/** Returns the work that will not be retried, oldest first. */
+	public List<DeadLetterJson> getDeadLetters() {
 		synchronized (lock) {
-			nextWorkAvailableInNanos_synch_lock = calculateNextWorkAvailableTime(estimatedRequests);
-			return nextWorkAvailableInNanos_synch_lock;
+			return deadLetters_synch_lock.values().stream().map(FailureRecord::toJson).collect(Collectors.toList());
 		}
 	}
 
-	public void waitForAvailableWork() {
+	/** Queue all of the dead letters again, clearing their failures; returns the number queued. */
+	public int requeueDeadLetters() {
 		synchronized (lock) {
-			while (true) {
+			int result = deadLetters_synch_lock.size();
 
-				if (!checkNextWorkAvailableTime()) {
-					try {
-						lock.wait(20);
-					} catch (InterruptedException e) {
-						GHApiUtil.throwAsUnchecked(e);
-					}
-				} else {
-					if (availableWork() > 0) {
-						return;
-					}
-					try {
-						lock.wait(20);
-					} catch (InterruptedException e) {
-						GHApiUtil.throwAsUnchecked(e);
-					}
-				}
+			deadLetters_synch_lock.values().forEach(record -> add(record.item.getResource(), record.item.getPriority()));
+			deadLetters_synch_lock.clear();
 
-			}
+			return result;
 		}
-
 	}
 
-	public Optional<OwnerContainer> pollOwner() {
+	/**
+	 * Returns the work that is queued, active, or waiting to be retried, by owner
+	 * and repository, so that it can be persisted, and queued again after a
+	 * restart. Users are not included, as they are queued again when they are next
+	 * referenced by an issue.
+	 */
+	public WorkQueueCheckpointJson createCheckpoint() {
+		List<WorkItem> items = new ArrayList<>();
+
 		synchronized (lock) {
-			if (!checkNextWorkAvailableTime()) {
-				return Optional.empty();
-			}
+			queues_synch_lock.values().forEach(queue -> items.addAll(queue.values()));
+			items.addAll(activeResources_synch_lock.values());
+			items.addAll(addedWhileActive_synch_lock.values());
+			retries_synch_lock.stream().filter(retry -> failures_synch_lock.containsKey(retry.item.getKey()))
+					.forEach(retry -> items.add(retry.item));
+		}
 
-			if (ownersToProcess_synch_lock.size() == 0) {
-				return Optional.empty();
+		LinkedHashMap<String /* owner type/owner/repo */, WorkQueueCheckpointEntryJson> entries = new LinkedHashMap<>();
+
+		// Repositories that are pending in full; their issues need not be listed
+		HashSet<String> fullRepositories = new HashSet<>();
+
+		for (WorkItem item : items) {
+			Object resource = item.getResource();
+
+			Owner owner;
+			String repoName = null;
+			List<Integer> issues = Collections.emptyList();
+
+			if (resource instanceof OwnerContainer) {
+				owner = ((OwnerContainer) resource).getOwner();
+
+			} else if (resource instanceof RepositoryContainer) {
+				RepositoryContainer rc = (RepositoryContainer) resource;
+				owner = rc.getOwner();
+				repoName = rc.getRepo().getName();
+				issues = rc.getIssuesToResume().map(bs -> bs.stream().boxed().collect(Collectors.toList()))
+						.orElse(null);
+
+			} else if (resource instanceof IssueContainer) {
+				IssueContainer ic = (IssueContainer) resource;
+				owner = ic.getOwner();
+				repoName = ic.getRepo().orElse(ic.getIssue().getRepository()).getName();
+				issues = Collections.singletonList(ic.getIssue().getNumber());
+
+			} else {
+				continue;
 			}
 
-			calculateAndUpdateNextWorkAvailableTime(5);
+			String key = owner.getType().name() + "/" + owner.getName() + "/" + repoName;
 
-			OwnerContainer result = ownersToProcess_synch_lock.remove(0);
-			activeResources_synch_lock.add(result);
-			return Optional.of(result);
-		}
-	}
+			WorkQueueCheckpointEntryJson entry = entries.get(key);
+			if (entry == null) {
+				entry = new WorkQueueCheckpointEntryJson();
+				entry.setOwner(owner.getName());
+				entry.setOwnerType(owner.getType().name());
+				entry.setRepo(repoName);
+				entry.setPriority(item.getPriority().name());
+				entries.put(key, entry);
 
-	public Optional<RepositoryContainer> pollRepository() {
-		synchronized (lock) {
-			if (!checkNextWorkAvailableTime()) {
-				return Optional.empty();
+			} else if (item.getPriority().compareTo(Priority.valueOf(entry.getPriority())) < 0) {
+				entry.setPriority(item.getPriority().name());
 			}
 
-			if (repositoriesToProcess_synch_lock.size() == 0) {
-				return Optional.empty();
+			if (repoName != null && issues == null) {
+				fullRepositories.add(key);
+			} else {
+				entry.getIssues().addAll(issues);
 			}
+		}
 
-			calculateAndUpdateNextWorkAvailableTime(20);
+		WorkQueueCheckpointJson result = new WorkQueueCheckpointJson();
 
-			RepositoryContainer result = repositoriesToProcess_synch_lock.remove(0);
-			activeResources_synch_lock.add(result);
-			return Optional.of(result);
-		}
+		entries.forEach((key, entry) -> {
+			if (fullRepositories.contains(key)) {
+				entry.getIssues().clear();
+			} else {
+				entry.setIssues(entry.getIssues().stream().distinct().sorted().collect(Collectors.toList()));
+			}
+			result.getEntries().add(entry);
+		});
 
+		return result;
 	}
 
-	public Optional<IssueContainer> pollIssue() {
-		synchronized (lock) {
-			if (!checkNextWorkAvailableTime()) {
-				return Optional.empty();
-			}
+	/**
+	 * Queue the work of a checkpoint (see createCheckpoint()), for the given
+	 * owners; work for owners and repositories that are no longer mirrored is
+	 * skipped. The repositories of an owner with many entries are resolved from a
+	 * single listing (see repoCache), rather than requested one at a time. Returns
+	 * the number of entries that were resumed.
+	 */
+	public int resumeFromCheckpoint(WorkQueueCheckpointJson checkpoint, List<OwnerContainer> owners,
+			GHRepoCache repoCache) {
 
-			if (issuesToProcess_synch_lock.size() == 0) {
-				return Optional.empty();
-			}
+		Map<Owner.Type, Map<String /* owner name */, Integer>> repositoriesPerOwner = new EnumMap<>(Owner.Type.class);
+		checkpoint.getEntries().stream().filter(entry -> entry.getRepo() != null)
+				.forEach(entry -> repositoriesPerOwner
+						.computeIfAbsent(Owner.Type.valueOf(entry.getOwnerType()), k -> new HashMap<>())
+						.merge(entry.getOwner(), 1, Integer::sum));
 
-			calculateAndUpdateNextWorkAvailableTime(3);
+		int resumed = 0;
+		for (WorkQueueCheckpointEntryJson entry : checkpoint.getEntries()) {
+			try {
+				boolean useRepoCache = repositoriesPerOwner.getOrDefault(Owner.Type.valueOf(entry.getOwnerType()),
+						Collections.emptyMap()).getOrDefault(entry.getOwner(), 0) > MAX_REPOSITORIES_TO_RESUME_INDIVIDUALLY;
 
-			IssueContainer result = issuesToProcess_synch_lock.remove(0);
-			activeResources_synch_lock.add(result);
-			return Optional.of(result);
+				if (resumeCheckpointEntry(entry, owners, useRepoCache ? repoCache : null)) {
+					resumed++;
+				}
+			} catch (Exception e) {
+				log.logError("Unable to resume work for " + entry.getOwner()
+						+ (entry.getRepo() != null ? "/" + entry.getRepo() : "") + ", skipping.", e);
+			}
 		}
+
+		return resumed;
 	}
 
-	public Optional<GHUser> pollUser() {
-		synchronized (lock) {
-			if (!checkNextWorkAvailableTime()) {
-				return Optional.empty();
+	/**
+	 * Returns false if the owner or repository of the entry is no longer mirrored.
+	 * If 'repoCache' is null, the repository is requested on its own.
+	 */
+	private boolean resumeCheckpointEntry(WorkQueueCheckpointEntryJson entry, List<OwnerContainer> owners,
+			GHRepoCache repoCache) throws IOException {
+
+		Owner owner = Owner.Type.valueOf(entry.getOwnerType()) == Owner.Type.ORG ? Owner.org(entry.getOwner())
+				: Owner.user(entry.getOwner());
+
+		Priority priority = Priority.valueOf(entry.getPriority());
+
+		for (OwnerContainer oc : owners) {
+			if (!oc.getOwner().equals(owner)) {
+				continue;
 			}
 
-			if (usersToProcess_synch_lock.size() == 0) {
-				return Optional.empty();
+			if (entry.getRepo() == null) {
+				addOwner(oc, priority);
+				return true;
 			}
 
-			calculateAndUpdateNextWorkAvailableTime(1);
+			GHRepository repo;
+			if (oc.getType() == OwnerContainer.Type.REPO_LIST) {
+				repo = oc.getIndividualRepos().stream().filter(e -> e.getName().equals(entry.getRepo())).findFirst()
+						.orElse(null);
+			} else if (repoCache != null) {
+				repo = repoCache.getRepository(oc.getType() == OwnerContainer.Type.ORG, owner.getName(),
+						entry.getRepo());
+			} else if (oc.getType() == OwnerContainer.Type.ORG) {
+				repo = oc.getOrg().getRepository(entry.getRepo());
+			} else {
+				repo = oc.getUser().getRepository(entry.getRepo());
+			}
 
-			GHUser result = usersToProcess_synch_lock.remove(0);
-			activeResources_synch_lock.add(result);
-			return Optional.of(result);
+			if (repo == null) {
+				continue;
+			}
+
+			if (entry.getIssues().isEmpty()) {
+				addRepository(owner, repo, priority);
+			} else {
+				BitSet issues = new BitSet();
+				entry.getIssues().forEach(issues::set);
+				addResumedRepository(owner, repo, issues, priority);
+			}
+			return true;
 		}
+
+		return false;
 	}
 
-	public void markAsProcessed(Object o) {
-		if (!(o instanceof GHUser || o instanceof IssueContainer || o instanceof RepositoryContainer
-				|| o instanceof OwnerContainer)) {
-			throw new RuntimeException("Invalid parameter");
-		}
+	/** Returns the number of queued resources, and their wait times, of each priority class. */
+	public WorkQueueStatisticsJson getStatistics() {
+		WorkQueueStatisticsJson result = new WorkQueueStatisticsJson();
 
 		synchronized (lock) {
-			boolean match = activeResources_synch_lock.remove(o);
-
-			if (!match) {
-				throw new RuntimeException("Could not find matching object in active resources: " + o);
+			long now = System.nanoTime();
+
+			result.setActiveResources(activeResources_synch_lock.size());
+			result.setPendingRetries(retries_synch_lock.size());
+			result.setDeadLetters(deadLetters_synch_lock.size());
+
+			for (Priority priority : Priority.values()) {
+				LinkedHashMap<String, WorkItem> queue = queues_synch_lock.get(priority);
+				PriorityStatistics stats = statistics_synch_lock.get(priority);
+
+				WorkQueuePriorityStatisticsJson json = new WorkQueuePriorityStatisticsJson();
+				json.setPriority(priority.name());
+				json.setQueued(queue.size());
+				json.setPolled(stats.polled);
+				json.setAverageWaitInMsecs(
+						stats.polled > 0 ? TimeUnit.MILLISECONDS.convert(stats.totalWaitInNanos / stats.polled,
+								TimeUnit.NANOSECONDS) : 0);
+				json.setMaxWaitInMsecs(TimeUnit.MILLISECONDS.convert(stats.maxWaitInNanos, TimeUnit.NANOSECONDS));
+				json.setOldestQueuedWaitInMsecs(queue.isEmpty() ? 0
+						: TimeUnit.MILLISECONDS.convert(now - queue.values().iterator().next().getQueuedAtInNanos(),
+								TimeUnit.NANOSECONDS));
+
+				result.getPriorities().add(json);
 			}
-
 		}
+
+		return result;
 	}
 
 	public void waitForComplete(long howLongToWaitForNoNewWorkInMsecs) {
@@ -414,32 +682,173 @@ public void waitForComplete(long howLongToWaitForNoNewWorkInMsecs) {
 		long howLongToWaitInNanos = TimeUnit.NANOSECONDS.convert(howLongToWaitForNoNewWorkInMsecs,
 				TimeUnit.MILLISECONDS);
 
-		long timeSinceLastWorkSeenInNanos = System.nanoTime();
+		synchronized (lock) {
 
-		while (true) {
-			long workAvailable = availableWork();
+			long timeSinceLastWorkSeenInNanos = System.nanoTime();
 
-			if (workAvailable > 0) {
-				timeSinceLastWorkSeenInNanos = System.nanoTime();
-			}
+			while (true) {
+				long workAvailable = availableWork();
 
-			if ((System.nanoTime() - timeSinceLastWorkSeenInNanos) > howLongToWaitInNanos) {
-				return;
-			}
+				if (workAvailable > 0) {
+					timeSinceLastWorkSeenInNanos = System.nanoTime();
+				}
+
+				long remainingInNanos = howLongToWaitInNanos - (System.nanoTime() - timeSinceLastWorkSeenInNanos);
+				if (remainingInNanos < 0) {
+					return;
+				}
+
+				// Notified when work is added, and when the last work is polled
+				try {
+					TimeUnit.NANOSECONDS.timedWait(lock, remainingInNanos + 1);
+				} catch (InterruptedException e) {
+					GHApiUtil.throwAsUnchecked(e);
+				}
 
-			try {
-				Thread.sleep(100);
-			} catch (InterruptedException e) {
-				GHApiUtil.throwAsUnchecked(e);
 			}
+		}
+	}
 
+	/**
+	 * The key of a queued resource: resources with the same key are the same
+	 * GitHub resource.
+	 */
+	private static String keyOf(Object resource) {
+		if (resource instanceof OwnerContainer) {
+			return "owner-" + ((OwnerContainer) resource).getKey();
+		} else if (resource instanceof RepositoryContainer) {
+			return "repo-" + ((RepositoryContainer) resource).getKey();
+		} else if (resource instanceof IssueContainer) {
+			return "issue-" + ((IssueContainer) resource).getKey();
+		} else if (resource instanceof GHUser) {
+			return "user-" + ((GHUser) resource).getLogin();
 		}
+		throw new IllegalArgumentException("Invalid resource: " + resource);
 	}
 
 	Database getDb() {
 		return db;
 	}
 
+	/**
+	 * The priority class of queued work, highest first. Work of a higher class is
+	 * polled before work of a lower class, except that classes are promoted while
+	 * they wait (see agingIntervalInNanos), so lower classes still make
+	 * progress.
+	 */
+	public static enum Priority {
+		/** Issues that the event scan found to have changed */
+		EVENT,
+		/** Full scans that were requested, or that the event scan found to be required */
+		INCREMENTAL,
+		/** The daily full scan, and the initial full scan of the database */
+		FULL_SCAN,
+		/** Users referenced by issues (these rarely change) */
+		USER_REFRESH
+	}
+
+	/**
+	 * A queued resource (an OwnerContainer, RepositoryContainer, IssueContainer or
+	 * GHUser), and its priority class.
+	 */
+	public static class WorkItem {
+		private final Object resource;
+		private final Priority priority;
+		private final String key;
+		private final long queuedAtInNanos;
+
+		private WorkItem(Object resource, Priority priority, String key, long queuedAtInNanos) {
+			this.resource = resource;
+			this.priority = priority;
+			this.key = key;
+			this.queuedAtInNanos = queuedAtInNanos;
+		}
+
+		public Object getResource() {
+			return resource;
+		}
+
+		public Priority getPriority() {
+			return priority;
+		}
+
+		private String getKey() {
+			return key;
+		}
+
+		private long getQueuedAtInNanos() {
+			return queuedAtInNanos;
+		}
+
+		@Override
+		public String toString() {
+			return key + " " + priority;
+		}
+	}
+
+	/** The failures of a resource since it last succeeded; guarded by 'lock'. */
+	private static class FailureRecord {
+		private WorkItem item;
+		private int attempts = 0;
+		private boolean permanent = false;
+		private String lastError;
+		private final long firstFailureTime = System.currentTimeMillis();
+		private long lastFailureTime;
+
+		FailureRecord(WorkItem item) {
+			this.item = item;
+		}
+
+		void addFailure(WorkItem failedItem, Exception failure) {
+			item = failedItem;
+			attempts++;
+			permanent = RetryPolicy.isPermanent(failure);
+			lastError = failure.getClass().getName() + ": " + failure.getMessage();
+			lastFailureTime = System.currentTimeMillis();
+		}
+
+		DeadLetterJson toJson() {
+			DeadLetterJson json = new DeadLetterJson();
+			json.setResource(item.getKey());
+			json.setPriority(item.getPriority().name());
+			json.setAttempts(attempts);
+			json.setPermanent(permanent);
+			json.setLastError(lastError);
+			json.setFirstFailure(new Date(firstFailureTime));
+			json.setLastFailure(new Date(lastFailureTime));
+			return json;
+		}
+	}
+
+	/** Work waiting to be retried, ordered by retry time. */
+	private static class PendingRetry implements Comparable<PendingRetry> {
+		private final WorkItem item;
+		private final long retryAtInNanos;
+
+		PendingRetry(WorkItem item, long retryAtInNanos) {
+			this.item = item;
+			this.retryAtInNanos = retryAtInNanos;
+		}
+
+		@Override
+		public int compareTo(PendingRetry o) {
+			return Long.compare(retryAtInNanos - o.retryAtInNanos, 0);
+		}
+	}
+
+	/** The wait times of the polled work of a priority class; guarded by 'lock'. */
+	private static class PriorityStatistics {
+		private long polled = 0;
+		private long totalWaitInNanos = 0;
+		private long maxWaitInNanos = 0;
+
+		void addWait(long waitInNanos) {
+			polled++;
+			totalWaitInNanos += waitInNanos;
+			maxWaitInNanos = Math.max(maxWaitInNanos, waitInNanos);
+		}
+	}
+
 	ServerInstance getServerInstance() {
 		return serverInstance;
 	}
@@ -531,6 +940,10 @@ private String calculateKey() {
 			return sb.toString();
 		}
 
+		String getKey() {
+			return equalsKey;
+		}
+
 		@Override
 		public boolean equals(Object obj) {
 			if (!(obj instanceof OwnerContainer)) {
@@ -541,9 +954,14 @@ public boolean equals(Object obj) {
 			return other.equalsKey.equals(this.equalsKey);
 		}
 
+		@Override
+		public int hashCode() {
+			return equalsKey.hashCode();
+		}
+
 		@Override
 		public String toString() {
-			return calculateKey();
+			return equalsKey;
 		}
 
 	}
@@ -557,9 +975,20 @@ public static class RepositoryContainer {
 
 		private final GHRepository repo;
 
+		/** If non-null, only these issues of the repository are queued */
+		private final BitSet issuesToResume;
+
+		private final String key;
+
 		public RepositoryContainer(Owner owner, GHRepository repo) {
+			this(owner, repo, null);
+		}
+
+		public RepositoryContainer(Owner owner, GHRepository repo, BitSet issuesToResume) {
 			this.owner = owner;
 			this.repo = repo;
+			this.issuesToResume = issuesToResume;
+			this.key = calculateKey();
 		}
 
 		public Owner getOwner() {
@@ -570,6 +999,10 @@ public GHRepository getRepo() {
 			return repo;
 		}
 
+		public Optional<BitSet> getIssuesToResume() {
+			return Optional.ofNullable(issuesToResume);
+		}
+
 		private String calculateKey() {
 			StringBuilder sb = new StringBuilder();
 
@@ -581,9 +1014,18 @@ private String calculateKey() {
 			GHRepository localRepo = getRepo();
 			sb.append(localRepo.getName());
 
+			// Distinct from the same repository in full, so that neither replaces the other
+			if (issuesToResume != null) {
+				sb.append("-resume");
+			}
+
 			return sb.toString();
 		}
 
+		String getKey() {
+			return key;
+		}
+
 		@Override
 		public boolean equals(Object obj) {
 			if (!(obj instanceof RepositoryContainer)) {
@@ -591,13 +1033,18 @@ public boolean equals(Object obj) {
 			}
 			RepositoryContainer other = (RepositoryContainer) obj;
 
-			return other.calculateKey().equals(calculateKey());
+			return other.key.equals(key);
+
+		}
 
+		@Override
+		public int hashCode() {
+			return key.hashCode();
 		}
 
 		@Override
 		public String toString() {
-			return calculateKey();
+			return key;
 		}
 
 	}
@@ -612,6 +1059,8 @@ public static class IssueContainer {
 
 		private final Owner owner;
 
+		private final String key;
+
 		public IssueContainer(GHIssue issue, GHRepository repo, Owner owner) {
 			if (owner == null) {
 				throw new IllegalArgumentException();
@@ -620,6 +1069,7 @@ public IssueContainer(GHIssue issue, GHRepository repo, Owner owner) {
 			this.issue = issue;
 			this.repo = repo;
 			this.owner = owner;
+			this.key = calculateKey();
 		}
 
 		public GHIssue getIssue() {
@@ -658,6 +1108,10 @@ private String calculateKey() {
 			return sb.toString();
 		}
 
+		String getKey() {
+			return key;
+		}
+
 		@Override
 		public boolean equals(Object obj) {
 			if (!(obj instanceof IssueContainer)) {
@@ -665,18 +1119,18 @@ public boolean equals(Object obj) {
 			}
 			IssueContainer other = (IssueContainer) obj;
 
-			// Fast path
-			if (other.getIssue().getNumber() != this.getIssue().getNumber()) {
-				return false;
-			}
+			return other.key.equals(this.key);
 
-			return other.calculateKey().equals(this.calculateKey());
+		}
 
+		@Override
+		public int hashCode() {
+			return key.hashCode();
 		}
 
 		@Override
 		public String toString() {
-			return calculateKey();
+			return key;
 		}
 
 	}
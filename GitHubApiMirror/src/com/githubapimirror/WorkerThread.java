@@ -19,6 +19,7 @@
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Date;
 import java.util.List;
@@ -31,6 +32,7 @@
 import org.eclipse.egit.github.core.client.GitHubClient;
 import org.eclipse.egit.github.core.client.PageIterator;
 import org.eclipse.egit.github.core.service.IssueService;
+import org.kohsuke.github.GHFileNotFoundException;
 import org.kohsuke.github.GHIssue;
 import org.kohsuke.github.GHIssueComment;
 import org.kohsuke.github.GHIssueRename;
@@ -42,7 +44,9 @@
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.githubapimirror.WorkQueue.IssueContainer;
 import com.githubapimirror.WorkQueue.OwnerContainer;
+import com.githubapimirror.WorkQueue.Priority;
 import com.githubapimirror.WorkQueue.RepositoryContainer;
+import com.githubapimirror.WorkQueue.WorkItem;
 import com.githubapimirror.db.Database;
 import com.githubapimirror.shared.GHApiUtil;
 import com.githubapimirror.shared.JsonUtil;
@@ -83,6 +87,13 @@ public class WorkerThread extends Thread {
 
 	private static final boolean USE_OLD_EGIT_IMPL = false;
 
+	/**
+	 * A repository resumed from a checkpoint with at most this many pending issues
+	 * has them requested one at a time, rather than listing every issue of the
+	 * repository.
+	 */
+	private static final int MAX_ISSUES_TO_RESUME_INDIVIDUALLY = 50;
+
 	public WorkerThread(WorkQueue queue, GhmFilter filter) {
 		setName(WorkerThread.class.getName());
 		this.queue = queue;
@@ -105,69 +116,33 @@ public void run() {
 
 			log.logDebug("Retrieving available work");
 
-			OwnerContainer ownerContainer = queue.pollOwner().orElse(null);
-			if (ownerContainer != null) {
-				try {
-					timeOut.begin();
-					processOwner(ownerContainer, db);
-				} catch (Exception e) {
-					e.printStackTrace();
-					queue.addOwner(ownerContainer);
-				} finally {
-					timeOut.reset();
-					queue.markAsProcessed(ownerContainer);
-				}
+			WorkItem item = queue.poll().orElse(null);
+			if (item == null) {
 				continue;
 			}
 
-			RepositoryContainer repo = queue.pollRepository().orElse(null);
-
-			if (repo != null) {
-				try {
-					timeOut.begin();
-					processRepo(repo, db);
-				} catch (Exception e) {
-					printException(e);
-					queue.addRepository(repo.getOwner(), repo.getRepo());
-				} finally {
-					timeOut.reset();
-					queue.markAsProcessed(repo);
-
+			Object resource = item.getResource();
+
+			Exception failure = null;
+			try {
+				timeOut.begin();
+				if (resource instanceof OwnerContainer) {
+					processOwner((OwnerContainer) resource, item.getPriority(), db);
+				} else if (resource instanceof RepositoryContainer) {
+					processRepo((RepositoryContainer) resource, item.getPriority(), db);
+				} else if (resource instanceof IssueContainer) {
+					processIssue((IssueContainer) resource, db);
+				} else if (resource instanceof GHUser) {
+					processUser((GHUser) resource, db);
+				} else {
+					throw new RuntimeException("Unrecognized work item: " + item);
 				}
-
-				continue;
-			}
-
-			IssueContainer issue = queue.pollIssue().orElse(null);
-			if (issue != null) {
-				try {
-					timeOut.begin();
-					processIssue(issue, db);
-				} catch (Exception e) {
-					printException(e);
-					queue.addIssue(issue.getIssue(), issue.getRepo().orElse(null), issue.getOwner());
-				} finally {
-					timeOut.reset();
-					queue.markAsProcessed(issue);
-				}
-
-				continue;
-			}
-
-			GHUser user = queue.pollUser().orElse(null);
-			if (user != null) {
-				try {
-					timeOut.begin();
-					processUser(user, db);
-				} catch (Exception e) {
-					printException(e);
-					queue.addUserRetry(user);
-				} finally {
-					timeOut.reset();
-					queue.markAsProcessed(user);
-				}
-
-				continue;
+			} catch (Exception e) {
+				printException(e);
+				failure = e;
+			} finally {
+				timeOut.reset();
+				queue.markAsProcessed(item, failure);
 			}
 
 		}
@@ -186,7 +161,7 @@ public void setAcceptingNewWork(boolean acceptingNewWork) {
 		this.acceptingNewWork = acceptingNewWork;
 	}
 
-	private void processOwner(OwnerContainer ownerContainer, Database db) throws IOException {
+	private void processOwner(OwnerContainer ownerContainer, Priority priority, Database db) throws IOException {
 
 		Owner owner = ownerContainer.getOwner();
 
@@ -222,7 +197,7 @@ private void processOwner(OwnerContainer ownerContainer, Database db) throws IOE
 
 			repoNames.add(repoName);
 
-			queue.addRepository(owner, repo);
+			queue.addRepository(owner, repo, priority);
 		});
 
 		if (owner.getType() == Type.ORG) {
@@ -485,10 +460,9 @@ private void processIssue(IssueContainer issueContainer, Database db) throws IOE
 			}
 		});
 
-		// TODO: Compare old and new versions here, and report differences.
-
 		// Compare the old version of the database entry, and the current version; if
-		// different, create a change event and add it to the database.
+		// different, create a change event (with the changed fields) and add it to the
+		// database.
 		if (!JsonUtil.isEqualBySortedAlphanumerics(oldDbVersion, json, new ObjectMapper())) {
 
 			ResourceChangeEventJson rcej = new ResourceChangeEventJson();
@@ -497,6 +471,7 @@ private void processIssue(IssueContainer issueContainer, Database db) throws IOE
 			rcej.setTime(System.currentTimeMillis());
 			rcej.setUuid(UUID.randomUUID().toString());
 			rcej.setIssueNumber(issueNumber);
+			rcej.setChange(IssueDiff.diff(oldDbVersion, json));
 			db.persistResourceChangeEvents(Arrays.asList(rcej));
 
 			ObjectMapper om = new ObjectMapper();
@@ -509,7 +484,7 @@ private void processIssue(IssueContainer issueContainer, Database db) throws IOE
 		}
 	}
 
-	private void processRepo(RepositoryContainer repoContainer, Database db) {
+	private void processRepo(RepositoryContainer repoContainer, Priority priority, Database db) throws IOException {
 
 		GHRepository repo = repoContainer.getRepo();
 
@@ -526,6 +501,17 @@ private void processRepo(RepositoryContainer repoContainer, Database db) {
 		int smallestIssue = Integer.MAX_VALUE;
 		int largestIssue = -1;
 
+		// If resumed from a checkpoint, only the issues that were pending are queued
+		BitSet issuesToResume = repoContainer.getIssuesToResume().orElse(null);
+
+		if (issuesToResume != null && issuesToResume.cardinality() <= MAX_ISSUES_TO_RESUME_INDIVIDUALLY
+				&& db.getRepository(owner, repoName).isPresent()) {
+			// Requesting a few issues costs less than listing every issue of the
+			// repository; the repository itself was persisted when it was first processed.
+			processResumedIssues(repo, owner, issuesToResume, priority);
+			return;
+		}
+
 		for (GHIssue e : repo.listIssues(GHIssueState.ALL)) {
 
 			// Skip pull requests
@@ -546,7 +532,9 @@ private void processRepo(RepositoryContainer repoContainer, Database db) {
 				largestIssue = num;
 			}
 
-			queue.addIssue(e, owner);
+			if (issuesToResume == null || issuesToResume.get(num)) {
+				queue.addIssue(e, owner, priority);
+			}
 		}
 
 		RepositoryJson json = new RepositoryJson();
@@ -566,6 +554,32 @@ private void processRepo(RepositoryContainer repoContainer, Database db) {
 		db.persistRepository(json);
 	}
 
+	/** Queue the given issues of the repository, requesting each on its own. */
+	private void processResumedIssues(GHRepository repo, Owner owner, BitSet issuesToResume, Priority priority)
+			throws IOException {
+
+		for (int num = issuesToResume.nextSetBit(0); num >= 0; num = issuesToResume.nextSetBit(num + 1)) {
+
+			if (filter != null && !filter.processIssue(owner, repo.getName(), num)) {
+				continue;
+			}
+
+			GHIssue issue;
+			try {
+				issue = repo.getIssue(num);
+			} catch (GHFileNotFoundException e) {
+				log.logInfo("Skipping resumed issue that no longer exists: " + repo.getFullName() + "#" + num);
+				continue;
+			}
+
+			if (issue.isPullRequest()) {
+				continue;
+			}
+
+			queue.addIssue(issue, repo, owner, priority);
+		}
+	}
+
 	private static String sanitizeUserLogin(GHUser u) {
 		if (u == null) {
 			return "Ghost";
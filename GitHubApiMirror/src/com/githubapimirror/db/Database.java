@@ -16,14 +16,20 @@
 
 package com.githubapimirror.db;
 
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
+import java.util.SortedMap;
+import java.util.stream.Stream;
 
 import com.githubapimirror.shared.Owner;
+import com.githubapimirror.shared.ResourceChangeEventFilter;
 import com.githubapimirror.shared.json.IssueJson;
 import com.githubapimirror.shared.json.OrganizationJson;
 import com.githubapimirror.shared.json.RepositoryJson;
 import com.githubapimirror.shared.json.ResourceChangeEventJson;
+import com.githubapimirror.shared.json.ResourceChangeEventPageJson;
 import com.githubapimirror.shared.json.UserJson;
 import com.githubapimirror.shared.json.UserRepositoriesJson;
 
@@ -32,17 +38,55 @@
  * the underlying database technology to vary independently of the calling
  * class.
  * 
- * Implementing classes include InMemoryCacheDB and PersistJsonDb.
+ * Implementing classes include InMemoryCacheDB, PersistJsonDb and
+ * SegmentStoreDb.
  */
 public interface Database {
 
 	/** The time at which the last full scan started (not completed). */
 	public static final String LAST_FULL_SCAN_START = "lastFullScan";
 
+	/**
+	 * The work that was pending in the work queue, and whether a full scan was in
+	 * progress, as last checkpointed (see WorkQueueCheckpointJson).
+	 */
+	public static final String WORK_QUEUE_CHECKPOINT = "workQueueCheckpoint";
+
 	public Optional<IssueJson> getIssue(Owner owner, String repoName, long issueNumber);
 
 	public void persistIssue(Owner owner, IssueJson issue);
 
+	/**
+	 * Returns the numbers of the issues of the repository that are in the database
+	 * (pull requests are not stored, so there may be gaps). The returned BitSet is
+	 * owned by the caller.
+	 */
+	public BitSet getIssueNumbers(Owner owner, String repoName);
+
+	/**
+	 * Returns the issues of the repository with the given numbers, in ascending
+	 * issue number order; numbers that are not in the database are skipped.
+	 */
+	public List<IssueJson> getIssues(Owner owner, String repoName, Collection<Integer> issueNumbers);
+
+	/**
+	 * Returns all the issues of the repository, in ascending issue number order.
+	 * Issues are read as the stream is consumed.
+	 */
+	public Stream<IssueJson> scanIssues(Owner owner, String repoName);
+
+	/**
+	 * Returns the issue as JSON (UTF-8), as it is stored, without parsing it; this
+	 * allows the issue to be returned to a client without being re-serialized.
+	 */
+	public Optional<byte[]> getIssueAsJson(Owner owner, String repoName, long issueNumber);
+
+	/**
+	 * Returns a map of issue number to issue JSON (see getIssueAsJson) for the
+	 * issues with the given numbers that are in the database.
+	 */
+	public SortedMap<Integer, byte[]> getIssuesAsJson(Owner owner, String repoName, Collection<Integer> issueNumbers);
+
 	public Optional<OrganizationJson> getOrganization(String orgName);
 
 	public void persistOrganization(OrganizationJson org);
@@ -55,9 +99,16 @@ public interface Database {
 
 	public void persistUser(UserJson user);
 
-	public void addProcessedEvents(List<String> eventHashes);
+	public void addProcessedEvents(List<ProcessedEvent> events);
 
-	public List<String> getProcessedEvents();
+	/**
+	 * Returns each processed event hash once (with the latest time it was added
+	 * with), in the order in which they were first added.
+	 */
+	public List<ProcessedEvent> getProcessedEvents();
+
+	/** Remove the processed events with an event time before the given time. */
+	public void expireProcessedEvents(long beforeTime);
 
 	public void clearProcessedEvents();
 
@@ -89,4 +140,67 @@ public void uninitializeDatabaseOnContentsMismatch(List<String> orgs, List<Strin
 
 	public List<ResourceChangeEventJson> getRecentResourceChangeEvents(long timestampEqualOrGreater);
 
+	/**
+	 * Returns the result of getRecentResourceChangeEvents(...) as a JSON (UTF-8)
+	 * array, serialized with the basic view of the events (without the changed
+	 * fields of each issue).
+	 */
+	public byte[] getRecentResourceChangeEventsAsJson(long timestampEqualOrGreater);
+
+	/**
+	 * Returns the resource change events with a time >= the given timestamp that
+	 * match the filter, in ascending order of time. As with the filtered
+	 * getResourceChangeEventsAfter(...), where the filter selects owners or
+	 * repositories, the events are read using the per-repository index.
+	 */
+	public List<ResourceChangeEventJson> getRecentResourceChangeEvents(long timestampEqualOrGreater,
+			ResourceChangeEventFilter filter);
+
+	/**
+	 * Returns up to 'limit' resource change events with a sequence number greater
+	 * than the given sequence number, in ascending sequence number order.
+	 * persistResourceChangeEvents(...) assigns each event the next sequence
+	 * number, so a client may use the sequence number of the last event it
+	 * received as a cursor.
+	 */
+	public List<ResourceChangeEventJson> getResourceChangeEventsAfter(long sequence, int limit);
+
+	/**
+	 * Returns the sequence number of the last persisted resource change event (or
+	 * 0, if none), so that a new reader may start after the existing events
+	 * without reading them.
+	 */
+	public long getLastResourceChangeEventSequence();
+
+	/**
+	 * Returns the result of getResourceChangeEventsAfter(...) as a JSON (UTF-8)
+	 * array, serialized with the basic view of the events (without the changed
+	 * fields of each issue).
+	 */
+	public byte[] getResourceChangeEventsAfterAsJson(long sequence, int limit);
+
+	/**
+	 * Returns up to 'limit' of the resource change events after the given sequence
+	 * number that match the filter, in ascending sequence number order. Every
+	 * matching event up to the page's last sequence number has been returned, so
+	 * it may be passed as the cursor of the next request (even if no events
+	 * matched). Where the filter selects owners or repositories, the events are
+	 * read using a per-repository index, so the cost depends on the number of
+	 * matching events, rather than on all events.
+	 */
+	public ResourceChangeEventPageJson getResourceChangeEventsAfter(long sequence, int limit,
+			ResourceChangeEventFilter filter);
+
+	/**
+	 * Ensure that all previous writes have been written to persistent storage. This
+	 * is called on shutdown.
+	 */
+	public void flush();
+
+	/**
+	 * Write any pending writes to persistent storage, and release the resources
+	 * held by the database; the database may not be used afterwards.
+	 */
+	public void close();
+
 }
\ No newline at end of file
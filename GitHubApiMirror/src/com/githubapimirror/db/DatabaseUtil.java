@@ -16,8 +16,39 @@
 
 package com.githubapimirror.db;
 
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.githubapimirror.shared.GHApiUtil;
 import com.githubapimirror.shared.Owner;
 import com.githubapimirror.shared.Owner.Type;
+import com.githubapimirror.shared.ResourceChangeEventFilter;
+import com.githubapimirror.shared.json.IssueJson;
+import com.githubapimirror.shared.json.ResourceChangeEventJson;
+import com.githubapimirror.shared.json.ResourceChangeEventPageJson;
 
 /**
  * Utility functions that may be used by implementers of the Database interface.
@@ -25,10 +56,193 @@
 public class DatabaseUtil {
 
 	public static String generateIssueKey(Owner owner, String repoName, long issueNumber) {
-		String key = owner.getName() + "/" + repoName + "/" + issueNumber;
+		String key = generateIssueKeyPrefix(owner, repoName) + issueNumber;
 		return key;
 	}
 
+	/** The number of issues in each directory of a sharded issue layout */
+	public static final int ISSUES_PER_SHARD = 1000;
+
+	/** The number of issues read at a time by scanIssuesInBatches(...) */
+	private static final int SCAN_BATCH_SIZE = 100;
+
+	/** The number of events read at a time by scanResourceChangeEventsAfter(...) */
+	private static final int EVENT_SCAN_BATCH_SIZE = 1000;
+
+	/**
+	 * The number of threads that read issues for readIssuesInParallel(...); the
+	 * reads are mostly I/O, so they do not use the common fork/join pool (which is
+	 * sized for CPU-bound work, and shared with the rest of the JVM).
+	 */
+	private static final int ISSUE_READ_THREADS = 8;
+
+	/** The minimum number of issues read by each thread of readIssuesInParallel(...) */
+	private static final int MIN_ISSUE_READ_BATCH_SIZE = 16;
+
+	private static final ExecutorService issueReadExecutor = Executors.newFixedThreadPool(ISSUE_READ_THREADS,
+			new IssueReadThreadFactory());
+
+	private static final ObjectMapper om = new ObjectMapper();
+
+	/** Returns the value as JSON (UTF-8). */
+	public static byte[] toJson(Object value) {
+		try {
+			return om.writeValueAsBytes(value);
+		} catch (JsonProcessingException e) {
+			throw new RuntimeException(e); // Convert to unchecked
+		}
+	}
+
+	/** Returns the value as JSON (UTF-8), including only the fields of the given view. */
+	public static byte[] toJson(Object value, Class<?> view) {
+		try {
+			return om.writerWithView(view).writeValueAsBytes(value);
+		} catch (JsonProcessingException e) {
+			throw new RuntimeException(e); // Convert to unchecked
+		}
+	}
+
+	/**
+	 * Read the given issues in parallel, returning those that exist in ascending
+	 * issue number order. The getIssue function must be thread safe.
+	 */
+	public static List<IssueJson> getIssuesInParallel(Collection<Integer> issueNumbers,
+			IntFunction<Optional<IssueJson>> getIssue) {
+
+		return new ArrayList<>(readIssuesInParallel(issueNumbers, getIssue).values());
+	}
+
+	/**
+	 * Read the given issues in parallel (in any representation), returning a map
+	 * of issue number to issue for those that exist. The read function must be
+	 * thread safe.
+	 */
+	public static <T> SortedMap<Integer, T> readIssuesInParallel(Collection<Integer> issueNumbers,
+			IntFunction<Optional<T>> read) {
+
+		List<Integer> sorted = issueNumbers.stream().distinct().sorted().collect(Collectors.toList());
+
+		// One batch for each reader thread, and one for the calling thread
+		int batchSize = Math.max(MIN_ISSUE_READ_BATCH_SIZE,
+				(sorted.size() + ISSUE_READ_THREADS) / (ISSUE_READ_THREADS + 1));
+
+		List<Future<List<Optional<T>>>> futures = new ArrayList<>();
+		for (int start = batchSize; start < sorted.size(); start += batchSize) {
+			List<Integer> batch = sorted.subList(start, Math.min(start + batchSize, sorted.size()));
+			futures.add(issueReadExecutor.submit(() -> readIssues(batch, read)));
+		}
+
+		// The results are in the same order as the issue numbers
+		List<Optional<T>> values = readIssues(sorted.subList(0, Math.min(batchSize, sorted.size())), read);
+		for (Future<List<Optional<T>>> future : futures) {
+			try {
+				values.addAll(future.get());
+			} catch (ExecutionException e) {
+				GHApiUtil.throwAsUnchecked(e.getCause());
+			} catch (InterruptedException e) {
+				GHApiUtil.throwAsUnchecked(e);
+			}
+		}
+
+		SortedMap<Integer, T> result = new TreeMap<>();
+		for (int x = 0; x < sorted.size(); x++) {
+			Integer issueNumber = sorted.get(x);
+			values.get(x).ifPresent(e -> result.put(issueNumber, e));
+		}
+
+		return result;
+	}
+
+	private static <T> List<Optional<T>> readIssues(List<Integer> issueNumbers, IntFunction<Optional<T>> read) {
+		List<Optional<T>> result = new ArrayList<>();
+		issueNumbers.forEach(e -> result.add(read.apply(e)));
+		return result;
+	}
+
+	/**
+	 * Returns a stream of the given issues, in ascending issue number order, which
+	 * reads the issues in batches (using getIssues) as the stream is consumed.
+	 */
+	public static Stream<IssueJson> scanIssuesInBatches(BitSet issueNumbers,
+			Function<List<Integer>, List<IssueJson>> getIssues) {
+
+		List<List<Integer>> batches = new ArrayList<>();
+		List<Integer> currBatch = new ArrayList<>();
+		for (int x = issueNumbers.nextSetBit(0); x >= 0; x = issueNumbers.nextSetBit(x + 1)) {
+			currBatch.add(x);
+			if (currBatch.size() >= SCAN_BATCH_SIZE) {
+				batches.add(currBatch);
+				currBatch = new ArrayList<>();
+			}
+		}
+		if (currBatch.size() > 0) {
+			batches.add(currBatch);
+		}
+
+		return batches.stream().flatMap(e -> getIssues.apply(e).stream());
+	}
+
+	/**
+	 * Returns up to 'limit' of the events after the sequence number that match the
+	 * filter, by reading all of the events after it in batches (using
+	 * getEventsAfter, for example, getResourceChangeEventsAfter(sequence, limit));
+	 * for databases (or filters) without an index.
+	 */
+	public static ResourceChangeEventPageJson scanResourceChangeEventsAfter(long sequence, int limit,
+			ResourceChangeEventFilter filter, BiFunction<Long, Integer, List<ResourceChangeEventJson>> getEventsAfter) {
+
+		List<ResourceChangeEventJson> matches = new ArrayList<>();
+
+		long cursor = sequence;
+
+		outer: while (true) {
+			List<ResourceChangeEventJson> events = getEventsAfter.apply(cursor, EVENT_SCAN_BATCH_SIZE);
+
+			for (ResourceChangeEventJson event : events) {
+				cursor = event.getSequence();
+				if (filter.matches(event)) {
+					matches.add(event);
+					if (matches.size() >= limit) {
+						break outer;
+					}
+				}
+			}
+
+			if (events.size() < EVENT_SCAN_BATCH_SIZE) {
+				break;
+			}
+		}
+
+		return createResourceChangeEventPage(matches, cursor);
+	}
+
+	public static ResourceChangeEventPageJson createResourceChangeEventPage(List<ResourceChangeEventJson> events,
+			long lastSequence) {
+		ResourceChangeEventPageJson page = new ResourceChangeEventPageJson();
+		page.setEvents(events);
+		page.setLastSequence(lastSequence);
+		return page;
+	}
+
+	/** The common prefix of the issue keys of a repository. */
+	public static String generateIssueKeyPrefix(Owner owner, String repoName) {
+		return owner.getName() + "/" + repoName + "/";
+	}
+
+	/**
+	 * The key of an issue in a layout that groups the issues of a repository by
+	 * number, ISSUES_PER_SHARD at a time: '(owner)/(repo)/issues/(issue number /
+	 * ISSUES_PER_SHARD)/(issue number)'.
+	 */
+	public static String generateShardedIssueKey(Owner owner, String repoName, long issueNumber) {
+		return generateShardedIssueKeyPrefix(owner, repoName) + (issueNumber / ISSUES_PER_SHARD) + "/" + issueNumber;
+	}
+
+	/** The common prefix of the sharded issue keys of a repository. */
+	public static String generateShardedIssueKeyPrefix(Owner owner, String repoName) {
+		return generateIssueKeyPrefix(owner, repoName) + "issues/";
+	}
+
 	public static String generateOrgKey(String orgName) {
 		String key = orgName;
 		return key;
@@ -57,4 +271,70 @@ public static String generateUserRepositoriesKey(String userName) {
 		return key;
 	}
 
+	/**
+	 * Generate a hash of the orgs/user repos/individual repos that the database is
+	 * asked to mirror; this is used to detect when the configuration file no
+	 * longer matches the contents of the database.
+	 */
+	public static String generateContentsHash(List<String> orgs, List<String> userRepos,
+			List<String> individualRepos) {
+
+		if (orgs == null) {
+			orgs = new ArrayList<>();
+		}
+		if (userRepos == null) {
+			userRepos = new ArrayList<>();
+		}
+		if (individualRepos == null) {
+			individualRepos = new ArrayList<>();
+		}
+
+		orgs = new ArrayList<>(orgs);
+		userRepos = new ArrayList<>(userRepos);
+		individualRepos = new ArrayList<>(individualRepos);
+
+		// Convert to lowercase and sort
+		Arrays.asList(orgs, userRepos, individualRepos).stream().forEach(e -> {
+
+			List<String> newContents = e.stream().map(f -> f.toLowerCase()).sorted().collect(Collectors.toList());
+
+			e.clear();
+			e.addAll(newContents);
+
+		});
+
+		List<String> contents = new ArrayList<>();
+		contents.add("orgs:");
+		contents.addAll(orgs);
+		contents.add("user-repos:");
+		contents.addAll(userRepos);
+		contents.add("individual-repos:");
+		contents.addAll(individualRepos);
+
+		// Convert the array list to a hash
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+			byte[] bytes = digest.digest(contents.stream().reduce((a, b) -> a + " " + b).get().getBytes("UTF-8"));
+
+			return Base64.getEncoder().encodeToString(bytes);
+
+		} catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+			throw new RuntimeException(e); // Convert to unchecked
+		}
+	}
+
+	/** Creates the (daemon) threads of issueReadExecutor. */
+	private static class IssueReadThreadFactory implements ThreadFactory {
+
+		private final AtomicInteger threadNumber = new AtomicInteger(0);
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r);
+			thread.setName(IssueReadThreadFactory.class.getName() + "-" + threadNumber.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
 }
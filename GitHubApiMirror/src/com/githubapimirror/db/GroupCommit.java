@@ -0,0 +1,127 @@
+/*
+ * Copyright 2021 Jonathan West
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.githubapimirror.db;
+
+import java.io.IOException;
+
+import com.githubapimirror.shared.GHApiUtil;
+
+/**
+ * Allows concurrent writers to share a single fsync: each writer appends its
+ * data, calls nextSequence(), and then calls awaitDurable(...) with the
+ * returned sequence number.
+ *
+ * The first waiting thread becomes the 'leader' and performs the sync on behalf
+ * of every write that was issued before the sync began; any thread that arrives
+ * while a sync is in progress waits for it to complete, and if its write was not
+ * covered, the next leader's sync will include it (along with any other writes
+ * that arrived in the meantime).
+ */
+public class GroupCommit {
+
+	/** Flushes all previously written data to stable storage */
+	public static interface Syncer {
+		void sync() throws IOException;
+	}
+
+	private final Syncer syncer;
+
+	private final Object lock = new Object();
+
+	/** The sequence number of the most recently written data */
+	private long issued_synch_lock = 0;
+
+	/** All writes with a sequence number <= this value are durable */
+	private long durable_synch_lock = 0;
+
+	private boolean syncInProgress_synch_lock = false;
+
+	private long syncCount_synch_lock = 0;
+
+	public GroupCommit(Syncer syncer) {
+		this.syncer = syncer;
+	}
+
+	/**
+	 * Must be called after the data has been written (but not yet synced), and
+	 * before any other write may be issued that depends on it.
+	 */
+	public long nextSequence() {
+		synchronized (lock) {
+			return ++issued_synch_lock;
+		}
+	}
+
+	/** Block until the write with the given sequence number is durable. */
+	public void awaitDurable(long sequence) {
+
+		while (true) {
+
+			long target;
+
+			synchronized (lock) {
+				while (durable_synch_lock < sequence && syncInProgress_synch_lock) {
+					try {
+						lock.wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new RuntimeException("Interrupted while waiting for sync", e);
+					}
+				}
+
+				if (durable_synch_lock >= sequence) {
+					return;
+				}
+
+				// Become the leader: sync on behalf of every write issued so far
+				syncInProgress_synch_lock = true;
+				target = issued_synch_lock;
+			}
+
+			boolean success = false;
+			try {
+				syncer.sync();
+				success = true;
+			} catch (IOException e) {
+				GHApiUtil.throwAsUnchecked(e);
+			} finally {
+				synchronized (lock) {
+					syncInProgress_synch_lock = false;
+					if (success) {
+						durable_synch_lock = Math.max(durable_synch_lock, target);
+						syncCount_synch_lock++;
+					}
+					lock.notifyAll();
+				}
+			}
+		}
+	}
+
+	/** The number of syncs that have been performed; used for statistics. */
+	public long getSyncCount() {
+		synchronized (lock) {
+			return syncCount_synch_lock;
+		}
+	}
+
+	/** The number of writes that have been issued; used for statistics. */
+	public long getIssuedCount() {
+		synchronized (lock) {
+			return issued_synch_lock;
+		}
+	}
+}
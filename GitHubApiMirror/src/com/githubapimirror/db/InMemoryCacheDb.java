@@ -16,131 +16,463 @@
 
 package com.githubapimirror.db;
 
-import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
-
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.githubapimirror.GHLog;
+import com.githubapimirror.shared.GHApiUtil;
 import com.githubapimirror.shared.Owner;
+import com.githubapimirror.shared.ResourceChangeEventFilter;
+import com.githubapimirror.shared.json.CacheStatisticsJson;
 import com.githubapimirror.shared.json.IssueJson;
 import com.githubapimirror.shared.json.OrganizationJson;
 import com.githubapimirror.shared.json.RepositoryJson;
 import com.githubapimirror.shared.json.ResourceChangeEventJson;
+import com.githubapimirror.shared.json.ResourceChangeEventPageJson;
 import com.githubapimirror.shared.json.UserJson;
 import com.githubapimirror.shared.json.UserRepositoriesJson;
 
 /**
  * This class wraps an 'inner' database, and speeds up retrieval operations from
  * that database, by caching the result of persistent operations to that
- * database. The cache of the inner database is stored in memory, and is only
- * limited by the amount of JVM heap.
+ * database. The cache of the inner database is stored in memory, and is limited
+ * to an approximate size in bytes (see WeightedCache); keys that are not found
+ * in the inner database are cached as well.
+ * 
+ * In write-behind mode, persisted resources are not written to the inner
+ * database immediately. Instead, they are held in memory as 'dirty' entries
+ * (strongly referenced, so they are not lost to GC), where subsequent writes to
+ * the same resource replace the previous entry. The dirty entries are written
+ * to the inner database by a background thread, either periodically or when
+ * the number of dirty entries reaches a threshold, and by flush(). Reads always
+ * return the dirty entry, if one exists. Processed events, resource change
+ * events and the work queue checkpoint are always written through.
  * 
- * All objects in the cache are maintained via soft references, to ensure that
- * these objects are GC-ed when not otherwise used (preventing memory leaks).
+ * The most recently persisted resource change events are also held in a
+ * RecentEventRing, along with their JSON, so that requests for recent events
+ * (the common case: clients poll with the time of their previous request) are
+ * answered without reading from the inner database, or acquiring any locks.
+ * Requests for events after a sequence number are answered from the ring in
+ * the same way. Listeners may be registered to be notified of newly persisted
+ * events (for example, to complete waiting long-poll requests).
  */
 public class InMemoryCacheDb implements Database {
 
-	private static final boolean DEBUG = false;
+	/** The default maximum (approximate) size of the cache: 1/4 of the maximum heap */
+	public static final long DEFAULT_CACHE_SIZE_IN_BYTES = Runtime.getRuntime().maxMemory() / 4;
+
+	private static final long WRITE_BEHIND_INTERVAL_IN_MSECS = 2000;
+
+	/** Flush early when this many dirty entries are waiting */
+	private static final int WRITE_BEHIND_FLUSH_THRESHOLD = 500;
+
+	/** Writers will block on a flush if this many dirty entries are waiting */
+	private static final int WRITE_BEHIND_MAX_DIRTY_ENTRIES = 5000;
+
+	/** The number of recent resource change events held in memory */
+	private static final int RECENT_EVENTS_CAPACITY = 16 * 1024;
+
+	/** Prefix of the cache keys of issues as JSON, see getIssueAsJson(...) */
+	private static final String PREFIX_JSON = "json-";
+
+	private static final GHLog log = GHLog.getInstance();
+
+	private static final ObjectMapper om = new ObjectMapper();
 
 	private final Database inner;
 
-	private final Map<String, SoftReference<Object>> cache_synch = new HashMap<>();
+	private final boolean writeBehind;
+
+	/** Non-null if writeBehind is true */
+	private final WriteBehindThread writeBehindThread;
+
+	/** Cache key -> entry not yet written to the inner db. */
+	private final Map<String, DirtyEntry> dirty_synch_dirtyLock = new LinkedHashMap<>();
+
+	private final Object dirtyLock = new Object();
+
+	/** Ensures only one thread writes the dirty entries at a time */
+	private final Object flushLock = new Object();
 
-	private Long debug_cacheAttempts_synch_lock = 0l;
+	/** Cache key -> value, or Optional.empty() if the key was not found in the inner db */
+	private final WeightedCache<Optional<?>> cache;
 
-	private Long debug_cacheHits_synch_lock = 0l;
+	/**
+	 * Issue key prefix of a repository -> the issue numbers of the repository;
+	 * read from the inner db on first use, then updated on persist. Access to each
+	 * BitSet is synchronized on the BitSet.
+	 */
+	private final ConcurrentHashMap<String, BitSet> issueNumbers = new ConcurrentHashMap<>();
+
+	/**
+	 * Contains every resource change event persisted since the ring was created
+	 * (or cleared), up to its capacity.
+	 */
+	private final RecentEventRing recentEvents = new RecentEventRing(RECENT_EVENTS_CAPACITY,
+			System.currentTimeMillis());
+
+	/**
+	 * Ensures events are added to the ring in the order that the inner database
+	 * assigned their sequence numbers.
+	 */
+	private final Object eventsLock = new Object();
+
+	private final List<Consumer<List<ResourceChangeEventJson>>> eventListeners = new CopyOnWriteArrayList<>();
 
 	public InMemoryCacheDb(Database inner) {
+		this(inner, false, DEFAULT_CACHE_SIZE_IN_BYTES);
+	}
+
+	public InMemoryCacheDb(Database inner, boolean writeBehind, long cacheSizeInBytes) {
 		this.inner = inner;
+		this.writeBehind = writeBehind;
+		this.cache = new WeightedCache<>(cacheSizeInBytes, InMemoryCacheDb::estimateWeight);
+
+		if (writeBehind) {
+			writeBehindThread = new WriteBehindThread();
+			writeBehindThread.start();
+		} else {
+			writeBehindThread = null;
+		}
 	}
 
-	private Object getByKey(String key) {
-		SoftReference<Object> entry;
-		synchronized (cache_synch) {
-			entry = cache_synch.get(key);
+	private void putByKey(String key, Object value) {
+		cache.put(key, Optional.of(value));
+	}
 
-			if (DEBUG) {
-				debug_cacheAttempts_synch_lock++;
-				if (entry != null) {
-					debug_cacheHits_synch_lock++;
-				}
-				if (debug_cacheAttempts_synch_lock % 1000 == 0) {
-					System.out.println(
-							"cache %: " + ((100 * debug_cacheHits_synch_lock) / debug_cacheAttempts_synch_lock));
-				}
-			}
+	/** Returns the unwritten value of a resource, if one exists. */
+	private Object getDirty(String key) {
+		if (!writeBehind) {
+			return null;
+		}
 
+		synchronized (dirtyLock) {
+			DirtyEntry entry = dirty_synch_dirtyLock.get(key);
+			return entry != null ? entry.value : null;
 		}
-		if (entry == null) {
-			return null;
+	}
+
+	/**
+	 * Returns the dirty value if one exists, otherwise the cached value; on a cache
+	 * miss, the value is read from the inner database (only once, if there are
+	 * concurrent requests for the same key) and cached, even if it is not present.
+	 */
+	@SuppressWarnings("unchecked")
+	private <T> Optional<T> getLatest(String key, Supplier<Optional<T>> loader) {
+		Object dirty = getDirty(key);
+		if (dirty != null) {
+			return Optional.of((T) dirty);
 		}
 
-		return entry.get();
+		// A value that is persisted while the load is in progress replaces the loaded
+		// value (see WeightedCache.get(...)).
+		return (Optional<T>) cache.get(key, e -> loader.get());
+	}
 
+	public CacheStatisticsJson getCacheStatistics() {
+		return cache.getStatistics();
 	}
 
-	private void putByKeyOptional(String key, Optional<?> value) {
-		if (value.isPresent()) {
-			putByKey(key, value.get());
+	private static byte[] writeValueAsBytes(Object o) {
+		try {
+			return om.writeValueAsBytes(o);
+		} catch (JsonProcessingException e) {
+			throw new RuntimeException(e);
 		}
 	}
 
-	private void putByKey(String key, Object value) {
-		synchronized (cache_synch) {
-			cache_synch.put(key, new SoftReference<Object>(value));
+	/** An estimate of the heap used by a cached value, in bytes. */
+	private static int estimateWeight(Optional<?> value) {
+
+		final int OBJECT_OVERHEAD = 64;
+
+		Object o = value.orElse(null);
+		if (o == null) {
+			return OBJECT_OVERHEAD;
+		} else if (o instanceof byte[]) {
+			return OBJECT_OVERHEAD + ((byte[]) o).length;
+		} else if (o instanceof String) {
+			return OBJECT_OVERHEAD + 2 * ((String) o).length();
+		} else if (o instanceof IssueJson) {
+			IssueJson issue = (IssueJson) o;
+			long chars = length(issue.getTitle()) + length(issue.getBody()) + length(issue.getHtmlUrl());
+			chars += issue.getComments().stream().mapToLong(e -> length(e.getBody()) + 64).sum();
+			return (int) Math.min(Integer.MAX_VALUE,
+					OBJECT_OVERHEAD * (4 + issue.getIssueEvents().size() + issue.getComments().size()) + 2 * chars);
+		} else if (o instanceof OrganizationJson) {
+			return OBJECT_OVERHEAD * (2 + ((OrganizationJson) o).getRepositories().size());
+		} else if (o instanceof UserRepositoriesJson) {
+			return OBJECT_OVERHEAD * (2 + ((UserRepositoriesJson) o).getRepoNames().size());
+		} else {
+			// RepositoryJson, UserJson, Long
+			return OBJECT_OVERHEAD * 4;
 		}
 	}
 
-	@Override
-	public Optional<IssueJson> getIssue(Owner owner, String repoName, long issueNumber) {
-		String key = DatabaseUtil.generateIssueKey(owner, repoName, issueNumber);
+	private static long length(String str) {
+		return str != null ? str.length() : 0;
+	}
 
-		IssueJson cachedResult = (IssueJson) getByKey(key);
-		if (cachedResult != null) {
-			return Optional.of(cachedResult);
+	/**
+	 * Write the value to the cache, and either write it to the inner database now,
+	 * or (in write-behind mode) add it to the dirty entries.
+	 */
+	private void write(String key, Object value, Consumer<Database> writer) {
+
+		if (!writeBehind) {
+			writer.accept(inner);
+			putByKey(key, value);
+			return;
 		}
 
-		Optional<IssueJson> result = inner.getIssue(owner, repoName, issueNumber);
-		putByKeyOptional(key, result);
+		int dirtyEntries;
+		synchronized (dirtyLock) {
+			dirty_synch_dirtyLock.put(key, new DirtyEntry(value, writer));
+			putByKey(key, value);
 
-		return result;
+			dirtyEntries = dirty_synch_dirtyLock.size();
+			if (dirtyEntries >= WRITE_BEHIND_FLUSH_THRESHOLD) {
+				dirtyLock.notifyAll();
+			}
+		}
+
+		if (dirtyEntries >= WRITE_BEHIND_MAX_DIRTY_ENTRIES) {
+			// The inner database is not keeping up, so apply back pressure to the writer.
+			flushDirtyEntries();
+		}
+	}
+
+	/** Write all the current dirty entries to the inner database. */
+	private void flushDirtyEntries() {
+		if (!writeBehind) {
+			return;
+		}
+
+		synchronized (flushLock) {
+
+			List<Map.Entry<String, DirtyEntry>> toWrite;
+			synchronized (dirtyLock) {
+				toWrite = new ArrayList<>(dirty_synch_dirtyLock.entrySet());
+			}
+
+			if (toWrite.isEmpty()) {
+				return;
+			}
+
+			int failures = 0;
 
+			for (Map.Entry<String, DirtyEntry> e : toWrite) {
+
+				DirtyEntry entry = e.getValue();
+				try {
+					entry.writer.accept(inner);
+				} catch (Exception ex) {
+					// Leave the entry in the dirty list, so that it is retried on the next flush.
+					if (failures++ == 0) {
+						log.logError("Unable to write " + e.getKey() + " to database", ex);
+					}
+					continue;
+				}
+
+				synchronized (dirtyLock) {
+					// The entry is only removed if it was not replaced while we were writing it.
+					if (dirty_synch_dirtyLock.get(e.getKey()) == entry) {
+						dirty_synch_dirtyLock.remove(e.getKey());
+
+						// A read may have cached an older value from the inner database, in the
+						// meantime.
+						putByKey(e.getKey(), entry.value);
+					}
+				}
+			}
+
+			if (failures > 0) {
+				log.logError("Unable to write " + failures + " of " + toWrite.size() + " dirty entries.");
+			}
+		}
+	}
+
+	@Override
+	public Optional<IssueJson> getIssue(Owner owner, String repoName, long issueNumber) {
+		String key = DatabaseUtil.generateIssueKey(owner, repoName, issueNumber);
+
+		return getLatest(key, () -> inner.getIssue(owner, repoName, issueNumber));
 	}
 
 	@Override
 	public void persistIssue(Owner owner, IssueJson issue) {
 		String key = DatabaseUtil.generateIssueKey(owner, issue.getParentRepo(), issue.getNumber());
 
-		inner.persistIssue(owner, issue);
+		write(key, issue, db -> db.persistIssue(owner, issue));
+
+		// Replace (rather than invalidate) the JSON of the issue, so that a concurrent
+		// read of the previous JSON from the inner db cannot then be cached.
+		cache.put(PREFIX_JSON + key, Optional.of(writeValueAsBytes(issue)));
 
-		putByKey(key, issue);
+		// If the repository's issue numbers are currently being read, this waits for
+		// the read to complete.
+		issueNumbers.computeIfPresent(DatabaseUtil.generateIssueKeyPrefix(owner, issue.getParentRepo()), (k, v) -> {
+			synchronized (v) {
+				v.set(issue.getNumber());
+			}
+			return v;
+		});
 	}
 
 	@Override
-	public Optional<OrganizationJson> getOrganization(String orgName) {
-		String key = DatabaseUtil.generateOrgKey(orgName);
+	public BitSet getIssueNumbers(Owner owner, String repoName) {
+
+		String prefix = DatabaseUtil.generateIssueKeyPrefix(owner, repoName);
+
+		BitSet bits = issueNumbers.computeIfAbsent(prefix, e -> {
+			BitSet result = new BitSet();
+
+			// The dirty entries are read before the inner db: an issue that is written to
+			// the inner db in between will then be seen in one or the other.
+			if (writeBehind) {
+				synchronized (dirtyLock) {
+					dirty_synch_dirtyLock.forEach((key, entry) -> {
+						if (key.startsWith(prefix) && entry.value instanceof IssueJson) {
+							result.set(((IssueJson) entry.value).getNumber());
+						}
+					});
+				}
+			}
+
+			result.or(inner.getIssueNumbers(owner, repoName));
+
+			return result;
+		});
+
+		synchronized (bits) {
+			return (BitSet) bits.clone();
+		}
+	}
 
-		OrganizationJson cachedResult = (OrganizationJson) getByKey(key);
-		if (cachedResult != null) {
-			return Optional.of(cachedResult);
+	@Override
+	public List<IssueJson> getIssues(Owner owner, String repoName, Collection<Integer> issueNumbers) {
+
+		return new ArrayList<>(getIssueBatch(owner, repoName, issueNumbers, "", e -> e, misses -> {
+			SortedMap<Integer, IssueJson> result = new TreeMap<>();
+			inner.getIssues(owner, repoName, misses).forEach(e -> result.put(e.getNumber(), e));
+			return result;
+		}).values());
+	}
+
+	@Override
+	public Optional<byte[]> getIssueAsJson(Owner owner, String repoName, long issueNumber) {
+		String key = DatabaseUtil.generateIssueKey(owner, repoName, issueNumber);
+
+		Object dirty = getDirty(key);
+		if (dirty != null) {
+			return Optional.of(writeValueAsBytes(dirty));
 		}
 
-		Optional<OrganizationJson> result = inner.getOrganization(orgName);
+		return getLatest(PREFIX_JSON + key, () -> inner.getIssueAsJson(owner, repoName, issueNumber));
+	}
+
+	@Override
+	public SortedMap<Integer, byte[]> getIssuesAsJson(Owner owner, String repoName,
+			Collection<Integer> issueNumbers) {
 
-		putByKeyOptional(key, result);
+		return getIssueBatch(owner, repoName, issueNumbers, PREFIX_JSON, e -> writeValueAsBytes(e),
+				misses -> inner.getIssuesAsJson(owner, repoName, misses));
+	}
+
+	/**
+	 * Returns the issues with the given numbers, from the dirty entries, then the
+	 * cache (under a single acquisition of the dirty lock for the batch), then
+	 * (for the remainder) from a single batch read of the inner database.
+	 * 
+	 * @param cacheKeyPrefix prefix of the cache keys of the issue representation
+	 * @param fromDirty      converts a dirty issue into the representation
+	 * @param readInner      reads the representation of the given issues from the
+	 *                       inner db
+	 */
+	@SuppressWarnings("unchecked")
+	private <T> SortedMap<Integer, T> getIssueBatch(Owner owner, String repoName, Collection<Integer> issueNumbers,
+			String cacheKeyPrefix, Function<IssueJson, T> fromDirty,
+			Function<List<Integer>, SortedMap<Integer, T>> readInner) {
+
+		SortedMap<Integer, T> result = new TreeMap<>();
+
+		Map<Integer, IssueJson> dirtyIssues = new HashMap<>();
+
+		// Issues that are neither dirty nor cached
+		List<Integer> misses = new ArrayList<>();
+
+		synchronized (dirtyLock) {
+			for (int issueNumber : new TreeSet<>(issueNumbers)) {
+				String key = DatabaseUtil.generateIssueKey(owner, repoName, issueNumber);
+
+				DirtyEntry dirty = dirty_synch_dirtyLock.get(key);
+				if (dirty != null) {
+					dirtyIssues.put(issueNumber, (IssueJson) dirty.value);
+					continue;
+				}
+
+				Optional<?> cached = cache.getIfPresent(cacheKeyPrefix + key);
+				if (cached != null) {
+					cached.ifPresent(e -> result.put(issueNumber, (T) e));
+				} else {
+					misses.add(issueNumber);
+				}
+			}
+		}
+
+		dirtyIssues.forEach((issueNumber, issue) -> result.put(issueNumber, fromDirty.apply(issue)));
+
+		if (misses.size() > 0) {
+			result.putAll(readInner.apply(misses));
+
+			// Cache the misses, including those not found; a value persisted while they
+			// were being read is not replaced.
+			for (int issueNumber : misses) {
+				String key = DatabaseUtil.generateIssueKey(owner, repoName, issueNumber);
+				cache.putIfAbsent(cacheKeyPrefix + key, Optional.ofNullable(result.get(issueNumber)));
+			}
+		}
 
 		return result;
 	}
 
 	@Override
-	public void persistOrganization(OrganizationJson org) {
-		String key = DatabaseUtil.generateOrgKey(org.getName());
+	public Stream<IssueJson> scanIssues(Owner owner, String repoName) {
+		// A scan of a repository reads each issue once, which the cache will not admit
+		// at the expense of more frequently used entries.
+		return DatabaseUtil.scanIssuesInBatches(getIssueNumbers(owner, repoName),
+				e -> getIssues(owner, repoName, e));
+	}
+
+	@Override
+	public Optional<OrganizationJson> getOrganization(String orgName) {
+		String key = "org-" + DatabaseUtil.generateOrgKey(orgName);
 
-		inner.persistOrganization(org);
+		return getLatest(key, () -> inner.getOrganization(orgName));
+	}
 
-		putByKey(key, org);
+	@Override
+	public void persistOrganization(OrganizationJson org) {
+		String key = "org-" + DatabaseUtil.generateOrgKey(org.getName());
 
+		write(key, org, db -> db.persistOrganization(org));
 	}
 
 	@Override
@@ -148,15 +480,7 @@ public Optional<RepositoryJson> getRepository(Owner owner, String repoName) {
 
 		String key = DatabaseUtil.generateRepoKey(owner, repoName);
 
-		RepositoryJson cachedResult = (RepositoryJson) getByKey(key);
-		if (cachedResult != null) {
-			return Optional.of(cachedResult);
-		}
-
-		Optional<RepositoryJson> result = inner.getRepository(owner, repoName);
-		putByKeyOptional(key, result);
-
-		return result;
+		return getLatest(key, () -> inner.getRepository(owner, repoName));
 	}
 
 	@Override
@@ -168,74 +492,54 @@ public void persistRepository(RepositoryJson repo) {
 
 		String key = DatabaseUtil.generateRepoKey(owner, repo.getName());
 
-		inner.persistRepository(repo);
-
-		putByKey(key, repo);
+		write(key, repo, db -> db.persistRepository(repo));
 	}
 
 	@Override
 	public Optional<UserJson> getUser(String loginName) {
 		String key = DatabaseUtil.generateUserKey(loginName);
 
-		UserJson cachedResult = (UserJson) getByKey(key);
-		if (cachedResult != null) {
-			return Optional.of(cachedResult);
-		}
-
-		Optional<UserJson> result = inner.getUser(loginName);
-		putByKeyOptional(key, result);
-
-		return result;
+		return getLatest(key, () -> inner.getUser(loginName));
 	}
 
 	@Override
 	public void persistUser(UserJson user) {
 		String key = DatabaseUtil.generateUserKey(user.getLogin());
 
-		inner.persistUser(user);
-
-		putByKey(key, user);
-
+		write(key, user, db -> db.persistUser(user));
 	}
 
 	@Override
 	public Optional<UserRepositoriesJson> getUserRepositories(String userName) {
-		String key = DatabaseUtil.generateUserRepositoriesKey(userName);
-
-		UserRepositoriesJson cachedResult = (UserRepositoriesJson) getByKey(key);
-		if (cachedResult != null) {
-			return Optional.of(cachedResult);
-		}
-
-		Optional<UserRepositoriesJson> result = inner.getUserRepositories(userName);
+		String key = "userrepos-" + DatabaseUtil.generateUserRepositoriesKey(userName);
 
-		putByKeyOptional(key, result);
-
-		return result;
+		return getLatest(key, () -> inner.getUserRepositories(userName));
 	}
 
 	@Override
 	public void persistUserRepositories(UserRepositoriesJson r) {
-		String key = DatabaseUtil.generateUserRepositoriesKey(r.getUserName());
-
-		inner.persistUserRepositories(r);
-
-		putByKey(key, r);
+		String key = "userrepos-" + DatabaseUtil.generateUserRepositoriesKey(r.getUserName());
 
+		write(key, r, db -> db.persistUserRepositories(r));
 	}
 
 	@Override
-	public void addProcessedEvents(List<String> eventHashes) {
+	public void addProcessedEvents(List<ProcessedEvent> events) {
 
-		inner.addProcessedEvents(eventHashes);
+		inner.addProcessedEvents(events);
 
 	}
 
 	@Override
-	public List<String> getProcessedEvents() {
+	public List<ProcessedEvent> getProcessedEvents() {
 		return inner.getProcessedEvents();
 	}
 
+	@Override
+	public void expireProcessedEvents(long beforeTime) {
+		inner.expireProcessedEvents(beforeTime);
+	}
+
 	@Override
 	public void clearProcessedEvents() {
 		inner.clearProcessedEvents();
@@ -255,63 +559,232 @@ public void initializeDatabase() {
 	public void persistLong(String keyParam, long value) {
 		String key = "long-" + keyParam;
 
-		inner.persistLong(keyParam, value);
-		putByKey(key, value);
+		write(key, value, db -> db.persistLong(keyParam, value));
 	}
 
 	@Override
 	public Optional<Long> getLong(final String keyParam) {
 		String key = "long-" + keyParam;
 
-		Long cachedResult = (Long) getByKey(key);
-		if (cachedResult != null) {
-			return Optional.of(cachedResult);
-		}
-
-		Optional<Long> result = inner.getLong(keyParam);
-		putByKeyOptional(key, result);
-
-		return result;
+		return getLatest(key, () -> inner.getLong(keyParam));
 	}
 
 	@Override
 	public void uninitializeDatabaseOnContentsMismatch(List<String> orgs, List<String> userRepos,
 			List<String> individualRepos) {
 
+		flushDirtyEntries();
+
 		inner.uninitializeDatabaseOnContentsMismatch(orgs, userRepos, individualRepos);
+
+		// The inner database may have been emptied
+		cache.invalidateAll();
+		issueNumbers.clear();
+		recentEvents.clear(System.currentTimeMillis());
 	}
 
 	@Override
-	public void persistString(String key, String value) {
-		key = "string-" + key;
+	public void persistString(String keyParam, String value) {
+		String key = "string-" + keyParam;
+
+		if (keyParam.equals(Database.WORK_QUEUE_CHECKPOINT)) {
+			// Always written through, as it must be written before the processed events
+			// of the work that it contains (see ServerInstance)
+			inner.persistString(keyParam, value);
+			putByKey(key, value);
+			return;
+		}
 
-		inner.persistString(key, value);
-		putByKey(key, value);
+		write(key, value, db -> db.persistString(keyParam, value));
 	}
 
 	@Override
 	public Optional<String> getString(String keyParam) {
 		String key = "string-" + keyParam;
 
-		String cachedResult = (String) getByKey(key);
-		if (cachedResult != null) {
-			return Optional.of(cachedResult);
+		return getLatest(key, () -> inner.getString(keyParam));
+	}
+
+	@Override
+	public void persistResourceChangeEvents(List<ResourceChangeEventJson> newEvents) {
+		synchronized (eventsLock) {
+			try {
+				inner.persistResourceChangeEvents(newEvents);
+			} catch (RuntimeException e) {
+				// Some of the events may have been persisted, so the ring no longer contains
+				// every event since it was created.
+				recentEvents.clear(System.currentTimeMillis());
+				throw e;
+			}
+
+			// Only after the events are durable, so that a reader never sees an event
+			// that is lost on failure.
+			recentEvents.add(newEvents);
+		}
+
+		for (Consumer<List<ResourceChangeEventJson>> listener : eventListeners) {
+			try {
+				listener.accept(newEvents);
+			} catch (Exception e) {
+				// Log and ignore
+				log.logError("Exception occurred in resource change event listener", e);
+			}
+		}
+	}
+
+	/**
+	 * The listener is called, on the persisting thread, after each call to
+	 * persistResourceChangeEvents(...); it should return quickly, and must not
+	 * modify the events.
+	 */
+	public void addResourceChangeEventListener(Consumer<List<ResourceChangeEventJson>> listener) {
+		eventListeners.add(listener);
+	}
+
+	@Override
+	public List<ResourceChangeEventJson> getRecentResourceChangeEvents(long timestampEqualOrGreater) {
+		List<RecentEventRing.Entry> entries = recentEvents.get(timestampEqualOrGreater);
+		if (entries == null) {
+			return inner.getRecentResourceChangeEvents(timestampEqualOrGreater);
+		}
+
+		List<ResourceChangeEventJson> result = new ArrayList<>();
+		entries.forEach(e -> result.add(e.getEvent()));
+		return result;
+	}
+
+	@Override
+	public byte[] getRecentResourceChangeEventsAsJson(long timestampEqualOrGreater) {
+		List<RecentEventRing.Entry> entries = recentEvents.get(timestampEqualOrGreater);
+		if (entries == null) {
+			return inner.getRecentResourceChangeEventsAsJson(timestampEqualOrGreater);
 		}
 
-		Optional<String> result = inner.getString(keyParam);
-		putByKeyOptional(key, result);
+		return RecentEventRing.toJsonArray(entries);
+	}
+
+	@Override
+	public List<ResourceChangeEventJson> getResourceChangeEventsAfter(long sequence, int limit) {
+		List<RecentEventRing.Entry> entries = recentEvents.getAfter(sequence, limit);
+		if (entries == null) {
+			return inner.getResourceChangeEventsAfter(sequence, limit);
+		}
 
+		List<ResourceChangeEventJson> result = new ArrayList<>();
+		entries.forEach(e -> result.add(e.getEvent()));
 		return result;
 	}
 
 	@Override
-	public void persistResourceChangeEvents(List<ResourceChangeEventJson> newEvents) {
-		inner.persistResourceChangeEvents(newEvents);
+	public long getLastResourceChangeEventSequence() {
+		return inner.getLastResourceChangeEventSequence();
 	}
 
 	@Override
-	public List<ResourceChangeEventJson> getRecentResourceChangeEvents(long timestampEqualOrGreater) {
-		return inner.getRecentResourceChangeEvents(timestampEqualOrGreater);
+	public byte[] getResourceChangeEventsAfterAsJson(long sequence, int limit) {
+		List<RecentEventRing.Entry> entries = recentEvents.getAfter(sequence, limit);
+		if (entries == null) {
+			return inner.getResourceChangeEventsAfterAsJson(sequence, limit);
+		}
+
+		return RecentEventRing.toJsonArray(entries);
+	}
+
+	@Override
+	public List<ResourceChangeEventJson> getRecentResourceChangeEvents(long timestampEqualOrGreater,
+			ResourceChangeEventFilter filter) {
+		List<RecentEventRing.Entry> entries = recentEvents.get(timestampEqualOrGreater);
+		if (entries == null) {
+			return inner.getRecentResourceChangeEvents(timestampEqualOrGreater, filter);
+		}
+
+		List<ResourceChangeEventJson> result = new ArrayList<>();
+		entries.stream().map(e -> e.getEvent()).filter(e -> filter.matches(e)).forEach(result::add);
+		return result;
+	}
+
+	@Override
+	public ResourceChangeEventPageJson getResourceChangeEventsAfter(long sequence, int limit,
+			ResourceChangeEventFilter filter) {
+		ResourceChangeEventPageJson page = recentEvents.getAfter(sequence, limit, filter);
+		if (page == null) {
+			return inner.getResourceChangeEventsAfter(sequence, limit, filter);
+		}
+
+		return page;
+	}
+
+	@Override
+	public void flush() {
+		flushDirtyEntries();
+		inner.flush();
+	}
+
+	@Override
+	public void close() {
+		if (writeBehindThread != null) {
+			writeBehindThread.close();
+		}
+		flushDirtyEntries();
+		inner.close();
+	}
+
+	/** A resource that has been persisted, but not yet written to the inner db. */
+	private static class DirtyEntry {
+		private final Object value;
+		private final Consumer<Database> writer;
+
+		public DirtyEntry(Object value, Consumer<Database> writer) {
+			this.value = value;
+			this.writer = writer;
+		}
+	}
+
+	/**
+	 * Writes dirty entries to the inner database, periodically or when the number
+	 * of dirty entries reaches a threshold.
+	 */
+	private class WriteBehindThread extends Thread {
+
+		private volatile boolean closed = false;
+
+		public WriteBehindThread() {
+			setName(WriteBehindThread.class.getName());
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			while (!closed) {
+				try {
+					synchronized (dirtyLock) {
+						if (!closed && dirty_synch_dirtyLock.size() < WRITE_BEHIND_FLUSH_THRESHOLD) {
+							dirtyLock.wait(WRITE_BEHIND_INTERVAL_IN_MSECS);
+						}
+					}
+
+					flushDirtyEntries();
+
+				} catch (Exception e) {
+					// Log and ignore
+					log.logError("Exception occured in " + this.getClass().getSimpleName() + ",", e);
+					GHApiUtil.sleep(1000);
+				}
+			}
+		}
+
+		/** Stop the thread, waiting for any flush in progress to finish. */
+		void close() {
+			closed = true;
+			synchronized (dirtyLock) {
+				dirtyLock.notifyAll();
+			}
+			try {
+				join();
+			} catch (InterruptedException e) {
+				GHApiUtil.throwAsUnchecked(e);
+			}
+		}
 	}
 
 }
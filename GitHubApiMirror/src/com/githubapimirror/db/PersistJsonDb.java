@@ -17,35 +17,44 @@
 package com.githubapimirror.db;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Base64;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.githubapimirror.GHLog;
 import com.githubapimirror.shared.GHApiUtil;
 import com.githubapimirror.shared.Owner;
+import com.githubapimirror.shared.ResourceChangeEventFilter;
 import com.githubapimirror.shared.json.IssueJson;
 import com.githubapimirror.shared.json.OrganizationJson;
 import com.githubapimirror.shared.json.RepositoryJson;
 import com.githubapimirror.shared.json.ResourceChangeEventJson;
+import com.githubapimirror.shared.json.ResourceChangeEventPageJson;
 import com.githubapimirror.shared.json.UserJson;
 import com.githubapimirror.shared.json.UserRepositoriesJson;
 
@@ -54,17 +63,77 @@
  * distinguish resources types in the data hierarchy. The output directory is
  * specified in the constructor.
  * 
- * This class is thread safe.
+ * This class is thread safe. Files are written to a temporary file and then
+ * atomically renamed into place, so reads never see a partially written file
+ * and do not need to acquire a lock. Writers acquire one of a fixed set of
+ * locks, selected by the hash of the file path, so that writes to unrelated
+ * resources do not block each other.
+ * 
+ * Writes are first appended to a write-ahead log (in the 'wal/' directory),
+ * and are acknowledged once the log has been synced; concurrent writers share a
+ * single sync. Until they are checkpointed to their target file by a background
+ * thread, logged writes are served from memory. On startup, any writes that
+ * remain in the log are replayed.
+ * 
+ * Resource change events are appended to a ResourceChangeEventJournal (in the
+ * 'events/' directory), rather than the log; the journal also assigns their
+ * sequence numbers.
+ * 
+ * Resources are encoded with a ResourceCodec, in the format given in the
+ * constructor; the format is recorded in each file, so files written in an
+ * earlier format remain readable after it is changed. The DEFLATE format uses a
+ * dictionary trained from the issues in the database on startup (if there are
+ * enough), which is stored in 'metadata/dictionaries/'.
+ * 
+ * See PersistJsonDbLayout for the directory layout.
  */
 public class PersistJsonDb implements Database {
 
-	private final ReentrantReadWriteLock rwLock = new ReentrantReadWriteLock();
+	private static final int NUM_LOCK_STRIPES = 64;
+
+	private final Lock[] lockStripes = new Lock[NUM_LOCK_STRIPES];
+
+	private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+	static final String WAL_DIRECTORY = "wal";
+
+	private static final long CHECKPOINT_INTERVAL_IN_MSECS = 5 * 1000;
+
+	/** Checkpoint early if the log grows beyond this size */
+	private static final long CHECKPOINT_LOG_SIZE_IN_BYTES = 32 * 1024 * 1024;
+
+	private final WriteAheadLog wal;
+
+	/**
+	 * Writes that are in the log, but have not yet been checkpointed to their
+	 * target file: path (relative to the output directory) -> file contents.
+	 */
+	private final ConcurrentSkipListMap<String, byte[]> pendingWrites = new ConcurrentSkipListMap<>();
 
-	private final Lock readLock = rwLock.readLock();
-	private final Lock writeLock = rwLock.writeLock();
+	/** Ensures only one checkpoint runs at a time */
+	private final Object checkpointLock = new Object();
+
+	private final CheckpointThread checkpointThread;
 
 	private final File outputDirectory;
 
+	private final ResourceCodec codec;
+
+	/** Replaced when the database is uninitialized */
+	private volatile ResourceChangeEventJournal journal;
+
+	static final String PROCESSED_EVENTS_FILE = "event-hashes.bin";
+
+	private final ProcessedEventJournal processedEvents;
+
+	private static final long EVENT_RETENTION_IN_MSECS = TimeUnit.MILLISECONDS.convert(8, TimeUnit.DAYS);
+
+	/** The number of issues sampled to train a compression dictionary */
+	private static final int DICTIONARY_SAMPLE_SIZE = 1000;
+
+	/** A dictionary is not trained from fewer issues than this */
+	private static final int MIN_DICTIONARY_SAMPLE_SIZE = 100;
+
 	private final AtomicBoolean initialized = new AtomicBoolean();
 
 	private final static String KEY_GITHUB_CONTENTS_HASH = "GitHubContentsHash";
@@ -74,54 +143,273 @@ public class PersistJsonDb implements Database {
 	private static final GHLog log = GHLog.getInstance();
 
 	public PersistJsonDb(File outputDirectory) {
+		this(outputDirectory, ResourceCodec.Format.JSON);
+	}
+
+	public PersistJsonDb(File outputDirectory, ResourceCodec.Format format) {
 		this.outputDirectory = outputDirectory;
+		this.codec = new ResourceCodec(format);
 
-		initialized.set(outputDirectory.exists() && outputDirectory.listFiles().length > 0);
+		for (int x = 0; x < lockStripes.length; x++) {
+			lockStripes[x] = new ReentrantLock();
+		}
+
+		replayWriteAheadLog(outputDirectory);
+
+		initialized.set(containsData(outputDirectory));
+
+		processedEvents = new ProcessedEventJournal(getProcessedEventsFile(outputDirectory));
+		migrateProcessedEventsFile();
+		processedEvents.upgrade();
+
+		PersistJsonDbLayout.upgrade(outputDirectory);
+
+		loadDictionaries(outputDirectory, codec);
+		if (format == ResourceCodec.Format.DEFLATE && !codec.hasWriteDictionary()) {
+			trainDictionary();
+		}
+
+		wal = new WriteAheadLog(new File(outputDirectory, WAL_DIRECTORY));
+
+		journal = createJournal(0);
+
+		checkpointThread = new CheckpointThread();
+		checkpointThread.start();
 	}
 
-	@Override
-	public Optional<IssueJson> getIssue(Owner owner, String repoName, long issueNumber) {
+	/**
+	 * Apply any writes remaining in the write-ahead log of the given database
+	 * directory (for example, after a crash) to their target files, then delete
+	 * the log.
+	 */
+	public static void replayWriteAheadLog(File outputDirectory) {
 
-		String key = DatabaseUtil.generateIssueKey(owner, repoName, issueNumber);
+		File walDir = new File(outputDirectory, WAL_DIRECTORY);
 
-		File inputFile = new File(outputDirectory, key + ".json");
-		if (!inputFile.exists()) {
-			return Optional.empty();
+		List<File> logFiles = WriteAheadLog.listLogFiles(walDir);
+		if (logFiles.isEmpty()) {
+			return;
 		}
 
-		String contents = readFromFile(inputFile).orElse(null);
+		// Only the most recent write to each path needs to be applied.
+		Map<String, byte[]> latest = new LinkedHashMap<>();
+		for (File logFile : logFiles) {
+			WriteAheadLog.readEntries(logFile).forEach(e -> {
+				latest.put(e.getPath(), e.getContents());
+			});
+		}
 
-		IssueJson result = readValue(contents, IssueJson.class);
+		latest.forEach((path, contents) -> {
+			writeToFileAtomically(contents, new File(outputDirectory, path), true);
+		});
 
-		return Optional.ofNullable(result);
+		logFiles.forEach(e -> {
+			if (!e.delete()) {
+				throw new RuntimeException("Unable to delete: " + e.getPath());
+			}
+		});
+
+		log.logInfo("Replayed " + latest.size() + " write(s) from the write-ahead log.");
+	}
+
+	private ResourceChangeEventJournal createJournal(long lastSequence) {
+		return new ResourceChangeEventJournal(new File(outputDirectory, PersistJsonDbLayout.EVENTS_DIRECTORY),
+				EVENT_RETENTION_IN_MSECS, lastSequence);
+	}
+
+	private static File getDictionaryDirectory(File outputDirectory) {
+		return new File(outputDirectory, "metadata/dictionaries");
+	}
+
+	/**
+	 * Add the compression dictionaries of the given database directory to the
+	 * codec; the most recently written is used for writes.
+	 */
+	static void loadDictionaries(File outputDirectory, ResourceCodec codec) {
+		File[] files = getDictionaryDirectory(outputDirectory).listFiles();
+		if (files == null) {
+			return;
+		}
+
+		List<File> dictionaryFiles = Arrays.asList(files).stream().filter(e -> e.getName().endsWith(".dict"))
+				.sorted((a, b) -> Long.compare(a.lastModified(), b.lastModified())).collect(Collectors.toList());
+
+		for (int x = 0; x < dictionaryFiles.size(); x++) {
+			try {
+				codec.addDictionary(Files.readAllBytes(dictionaryFiles.get(x).toPath()), x == dictionaryFiles.size() - 1);
+			} catch (IOException e) {
+				throw new RuntimeException("Unable to read: " + dictionaryFiles.get(x).getPath(), e);
+			}
+		}
+	}
+
+	private void saveDictionary(byte[] dictionary) {
+		String name = String.format("%08x", ResourceCodec.getDictionaryId(dictionary)) + ".dict";
+
+		writeToFileAtomically(dictionary, new File(getDictionaryDirectory(outputDirectory), name), true);
+	}
+
+	/**
+	 * Train a compression dictionary from a sample of the issues in the database,
+	 * if it contains enough of them; otherwise, issues are compressed without a
+	 * dictionary until the next start.
+	 */
+	private void trainDictionary() {
+		List<byte[]> samples = new ArrayList<>();
+
+		sample: for (File ownerDir : listFiles(outputDirectory)) {
+			if (!PersistJsonDbLayout.isOwnerDirectory(ownerDir)) {
+				continue;
+			}
+			for (File repoDir : listFiles(ownerDir)) {
+				for (File shardDir : listFiles(new File(repoDir, "issues"))) {
+					for (File f : listFiles(shardDir)) {
+						if (samples.size() >= DICTIONARY_SAMPLE_SIZE) {
+							break sample;
+						}
+						if (f.getName().endsWith(".json")) {
+							readBytesFromFile(f).ifPresent(e -> samples.add(codec.toJson(e)));
+						}
+					}
+				}
+			}
+		}
+
+		if (samples.size() < MIN_DICTIONARY_SAMPLE_SIZE) {
+			log.logInfo("Not enough issues to train a compression dictionary: " + samples.size());
+			return;
+		}
+
+		byte[] dictionary = ResourceCodec.trainDictionary(samples, ResourceCodec.DEFAULT_DICTIONARY_SIZE_IN_BYTES);
+
+		saveDictionary(dictionary);
+		codec.addDictionary(dictionary, true);
+
+		log.logInfo("Trained a " + dictionary.length + " byte compression dictionary from " + samples.size()
+				+ " issues.");
+	}
+
+	private static List<File> listFiles(File directory) {
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return Collections.emptyList();
+		}
+		return Arrays.asList(files);
+	}
+
+	/**
+	 * Returns true if the directory contains anything other than the log and the
+	 * layout version; unlike listing the directory, this stops at the first entry
+	 * found.
+	 */
+	private static boolean containsData(File directory) {
+		try (DirectoryStream<Path> ds = Files.newDirectoryStream(directory.toPath())) {
+			for (Path p : ds) {
+				String name = p.getFileName().toString();
+				if (!name.equals(WAL_DIRECTORY) && !name.equals(PersistJsonDbLayout.LAYOUT_VERSION_FILE)) {
+					return true;
+				}
+			}
+			return false;
+
+		} catch (NoSuchFileException e) {
+			return false;
+		} catch (IOException e) {
+			throw new RuntimeException("Unable to read directory: " + directory, e);
+		}
+	}
+
+	private File getIssueFile(Owner owner, String repoName, long issueNumber) {
+		String key = DatabaseUtil.generateShardedIssueKey(owner, repoName, issueNumber);
+
+		return new File(outputDirectory, key + ".json");
+	}
+
+	@Override
+	public Optional<IssueJson> getIssue(Owner owner, String repoName, long issueNumber) {
+
+		File inputFile = getIssueFile(owner, repoName, issueNumber);
+
+		return readResource(inputFile, IssueJson.class);
 
 	}
 
 	@Override
 	public void persistIssue(Owner owner, IssueJson issue) {
 
-		String key = DatabaseUtil.generateIssueKey(owner, issue.getParentRepo(), issue.getNumber());
+		File outputFile = getIssueFile(owner, issue.getParentRepo(), issue.getNumber());
 
-		File outputFile = new File(outputDirectory, key + ".json");
+		writeToFile(codec.encode(issue), outputFile);
+
+	}
+
+	@Override
+	public BitSet getIssueNumbers(Owner owner, String repoName) {
+
+		String prefix = DatabaseUtil.generateShardedIssueKeyPrefix(owner, repoName);
+
+		BitSet result = new BitSet();
+
+		// Issues are stored as '(number).json' in the shard directories of the
+		// repository
+		File[] shards = new File(outputDirectory, prefix).listFiles();
+		if (shards != null) {
+			for (File shard : shards) {
+				File[] files = shard.listFiles();
+				if (files != null) {
+					for (File f : files) {
+						addIssueNumber(f.getName(), result);
+					}
+				}
+			}
+		}
+
+		// Include writes that have not yet been checkpointed to their file
+		for (String path : pendingWrites.subMap(prefix, true, prefix + Character.MAX_VALUE, false).keySet()) {
+			addIssueNumber(path.substring(path.lastIndexOf('/') + 1), result);
+		}
+
+		return result;
+	}
+
+	@Override
+	public Optional<byte[]> getIssueAsJson(Owner owner, String repoName, long issueNumber) {
+
+		return readBytesFromFile(getIssueFile(owner, repoName, issueNumber)).map(e -> codec.toJson(e));
+	}
+
+	@Override
+	public SortedMap<Integer, byte[]> getIssuesAsJson(Owner owner, String repoName,
+			Collection<Integer> issueNumbers) {
+		return DatabaseUtil.readIssuesInParallel(issueNumbers, e -> getIssueAsJson(owner, repoName, e));
+	}
 
-		String contents = writeValueAsString(issue);
-		writeToFile(contents, outputFile);
+	@Override
+	public List<IssueJson> getIssues(Owner owner, String repoName, Collection<Integer> issueNumbers) {
+		return DatabaseUtil.getIssuesInParallel(issueNumbers, e -> getIssue(owner, repoName, e));
+	}
+
+	@Override
+	public Stream<IssueJson> scanIssues(Owner owner, String repoName) {
+		return DatabaseUtil.scanIssuesInBatches(getIssueNumbers(owner, repoName),
+				e -> getIssues(owner, repoName, e));
+	}
 
+	private static void addIssueNumber(String fileName, BitSet result) {
+		if (fileName.endsWith(".json")) {
+			String issueNumber = fileName.substring(0, fileName.length() - ".json".length());
+			if (issueNumber.length() > 0 && issueNumber.chars().allMatch(Character::isDigit)) {
+				result.set(Integer.parseInt(issueNumber));
+			}
+		}
 	}
 
 	@Override
 	public Optional<OrganizationJson> getOrganization(String orgName) {
 		String key = DatabaseUtil.generateOrgKey(orgName);
 		File inputFile = new File(outputDirectory, key + "/" + orgName + ".json");
-		if (!inputFile.exists()) {
-			return Optional.empty();
-		}
 
-		String contents = readFromFile(inputFile).orElse(null);
-
-		OrganizationJson result = (OrganizationJson) readValue(contents, OrganizationJson.class);
-
-		return Optional.ofNullable(result);
+		return readResource(inputFile, OrganizationJson.class);
 	}
 
 	@Override
@@ -130,8 +418,7 @@ public void persistOrganization(OrganizationJson org) {
 		String key = DatabaseUtil.generateOrgKey(org.getName());
 		File outputFile = new File(outputDirectory, key + "/" + org.getName() + ".json");
 
-		String contents = writeValueAsString(org);
-		writeToFile(contents, outputFile);
+		writeToFile(codec.encode(org), outputFile);
 	}
 
 	@Override
@@ -140,15 +427,8 @@ public Optional<RepositoryJson> getRepository(Owner owner, String repoName) {
 		String key = DatabaseUtil.generateRepoKey(owner, repoName);
 
 		File inputFile = new File(outputDirectory, key + "/" + repoName + ".json");
-		if (!inputFile.exists()) {
-			return Optional.empty();
-		}
 
-		String contents = readFromFile(inputFile).orElse(null);
-
-		RepositoryJson result = (RepositoryJson) readValue(contents, RepositoryJson.class);
-
-		return Optional.ofNullable(result);
+		return readResource(inputFile, RepositoryJson.class);
 	}
 
 	@Override
@@ -162,8 +442,7 @@ public void persistRepository(RepositoryJson repo) {
 
 		File outputFile = new File(outputDirectory, key + "/" + repo.getName() + ".json");
 
-		String contents = writeValueAsString(repo);
-		writeToFile(contents, outputFile);
+		writeToFile(codec.encode(repo), outputFile);
 	}
 
 	@Override
@@ -171,15 +450,8 @@ public Optional<UserJson> getUser(String loginName) {
 		String key = DatabaseUtil.generateUserKey(loginName);
 
 		File inputFile = new File(outputDirectory, key + ".json");
-		if (!inputFile.exists()) {
-			return Optional.empty();
-		}
 
-		String contents = readFromFile(inputFile).orElse(null);
-
-		UserJson result = (UserJson) readValue(contents, UserJson.class);
-
-		return Optional.ofNullable(result);
+		return readResource(inputFile, UserJson.class);
 
 	}
 
@@ -190,8 +462,7 @@ public void persistUser(UserJson user) {
 
 		File outputFile = new File(outputDirectory, key + ".json");
 
-		String contents = writeValueAsString(user);
-		writeToFile(contents, outputFile);
+		writeToFile(codec.encode(user), outputFile);
 
 	}
 
@@ -199,15 +470,8 @@ public void persistUser(UserJson user) {
 	public Optional<UserRepositoriesJson> getUserRepositories(String userName) {
 		String key = DatabaseUtil.generateUserRepositoriesKey(userName);
 		File inputFile = new File(outputDirectory, key + "/" + userName + ".json");
-		if (!inputFile.exists()) {
-			return Optional.empty();
-		}
 
-		String contents = readFromFile(inputFile).orElse(null);
-
-		UserRepositoriesJson result = (UserRepositoriesJson) readValue(contents, UserRepositoriesJson.class);
-
-		return Optional.ofNullable(result);
+		return readResource(inputFile, UserRepositoriesJson.class);
 	}
 
 	@Override
@@ -215,176 +479,240 @@ public void persistUserRepositories(UserRepositoriesJson r) {
 		String key = DatabaseUtil.generateUserRepositoriesKey(r.getUserName());
 		File outputFile = new File(outputDirectory, key + "/" + r.getUserName() + ".json");
 
-		String contents = writeValueAsString(r);
-		writeToFile(contents, outputFile);
+		writeToFile(codec.encode(r), outputFile);
 
 	}
 
-	private <T> T readValue(String contents, Class<T> c) {
-		if (contents == null) {
-			return null;
-		}
+	/** Read a resource file, in any format */
+	private <T> Optional<T> readResource(File f, Class<T> c) {
+		return readBytesFromFile(f).map(e -> codec.decode(e, c));
+	}
 
-		ObjectMapper om = new ObjectMapper();
-		try {
-			return om.readValue(contents, c);
-		} catch (Exception e) {
-			GHApiUtil.throwAsUnchecked(e);
-			return null;
-		}
+	/** Returns the lock for the given file; all writes to a file hold its lock. */
+	private Lock getLock(File f) {
+		int hash = f.getPath().hashCode();
+		return lockStripes[(hash & Integer.MAX_VALUE) % lockStripes.length];
 	}
 
-	private String writeValueAsString(Object o) {
-		ObjectMapper om = new ObjectMapper();
-		String result = null;
-		try {
-			result = om.writeValueAsString(o);
-		} catch (JsonProcessingException e) {
-			GHApiUtil.throwAsUnchecked(e);
-		}
-		return result;
+	/** Returns the path of the file relative to the output directory, as used in the log. */
+	private String toRelativePath(File f) {
+		String result = outputDirectory.toPath().relativize(f.toPath()).toString();
+		return File.separatorChar == '/' ? result : result.replace(File.separatorChar, '/');
 	}
 
 	private Optional<String> readFromFile(File f) {
+		return readBytesFromFile(f).map(e -> new String(e, StandardCharsets.UTF_8));
+	}
+
+	private Optional<byte[]> readBytesFromFile(File f) {
+
+		byte[] pending = pendingWrites.get(toRelativePath(f));
+		if (pending != null) {
+			return Optional.of(pending);
+		}
+
+		// No lock is required here, as files are only ever replaced atomically.
 		try {
-			readLock.lock();
+			return Optional.of(Files.readAllBytes(f.toPath()));
 
-			if (!f.exists()) {
-				return Optional.empty();
-			}
+		} catch (NoSuchFileException e) {
+			return Optional.empty();
 
-			StringBuilder sb = new StringBuilder();
+		} catch (IOException e) {
+			System.err.println("Error from file: " + f.getPath());
+			GHApiUtil.throwAsUnchecked(e);
+			return Optional.empty();
+		}
+	}
 
-			try {
+	private void writeToFile(String contents, File f) {
+		writeToFile(contents.getBytes(StandardCharsets.UTF_8), f);
+	}
 
-				byte[] barr = new byte[1024 * 64];
-				int c;
+	private void writeToFile(byte[] contents, File f) {
 
-				FileInputStream fis = new FileInputStream(f);
-				while (-1 != (c = fis.read(barr))) {
+		String path = toRelativePath(f);
 
-					sb.append(new String(barr, 0, c));
-				}
-				fis.close();
+		long sequence;
 
-			} catch (IOException e) {
-				System.err.println("Error from file: " + f.getPath());
-				GHApiUtil.throwAsUnchecked(e);
-			}
+		Lock lock = getLock(f);
+		try {
+			lock.lock();
 
-			return Optional.of(sb.toString());
+			sequence = wal.append(path, contents);
 
-		} finally {
-			readLock.unlock();
-		}
-	}
+			// Only once it is in the log, so that a failed write is never read. The lock
+			// is held until then, so that a checkpoint sees it (see checkpoint()).
+			pendingWrites.put(path, contents);
 
-	private void writeToFile(List<String> contents, File f) {
-		StringBuilder sb = new StringBuilder();
-		for (String str : contents) {
-			sb.append(str);
-			sb.append("\n");
+		} finally {
+			lock.unlock();
 		}
 
-		writeToFile(sb.toString(), f);
+		// Wait outside the lock, so that other writers may join the same sync.
+		wal.awaitDurable(sequence);
 
 	}
 
-	private void writeToFile(String contents, File f) {
+	/**
+	 * Write the contents to a temporary file in the same directory, then rename it
+	 * over the target file. The temporary file name does not end in '.json' or
+	 * '.txt', so it is never mistaken for a resource.
+	 */
+	static void writeToFileAtomically(byte[] contents, File f, boolean sync) {
+
+		File parent = f.getParentFile();
+		if (!parent.exists() && !parent.mkdirs() && !parent.exists()) {
+			throw new RuntimeException("Unable to create directory: " + parent);
+		}
 
+		Path tempFile = null;
 		try {
-			writeLock.lock();
+			tempFile = Files.createTempFile(parent.toPath(), "." + f.getName() + ".", TEMP_FILE_SUFFIX);
 
-			f.getParentFile().mkdirs();
+			try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.WRITE)) {
+				ByteBuffer buffer = ByteBuffer.wrap(contents);
+				while (buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+				if (sync) {
+					channel.force(false);
+				}
+			}
 
-			FileWriter fw = null;
 			try {
-				fw = new FileWriter(f);
-				fw.write(contents);
-				fw.close();
-			} catch (IOException e) {
-				GHApiUtil.throwAsUnchecked(e);
-			} finally {
-				if (fw != null) {
-					try {
-						fw.close();
-					} catch (IOException e) {
-						/* ignore */ }
-				}
+				Files.move(tempFile, f.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tempFile, f.toPath(), StandardCopyOption.REPLACE_EXISTING);
 			}
 
+			tempFile = null;
+
+		} catch (IOException e) {
+			GHApiUtil.throwAsUnchecked(e);
 		} finally {
-			writeLock.unlock();
+			if (tempFile != null) {
+				try {
+					Files.deleteIfExists(tempFile);
+				} catch (IOException e) {
+					/* ignore */ }
+			}
 		}
-
 	}
 
-	@Override
-	public void addProcessedEvents(List<String> eventsToAdd) {
-		try {
-
-			HashSet<String> hs = new HashSet<>(eventsToAdd);
-
-			writeLock.lock();
+	/**
+	 * Write all pending (logged) writes to their target files, then delete the log
+	 * files that contained them.
+	 */
+	void checkpoint() {
+		synchronized (checkpointLock) {
+
+			List<File> oldLogFiles = wal.roll();
+
+			// A write holds its lock until it is in pendingWrites (see writeToFile), so
+			// once each lock has been acquired, any write that is in the older log files is
+			// in pendingWrites, and so is included in this snapshot.
+			for (Lock lock : lockStripes) {
+				lock.lock();
+				lock.unlock();
+			}
 
-			File metadataDir = new File(outputDirectory, "metadata");
-			metadataDir.mkdirs();
+			Map<String, byte[]> snapshot = new LinkedHashMap<>(pendingWrites);
 
-			File eventHashesFile = new File(metadataDir, "event-hashes.txt");
+			snapshot.forEach((path, contents) -> {
+				File f = new File(outputDirectory, path);
 
-			if (eventHashesFile.exists()) {
+				Lock lock = getLock(f);
+				try {
+					lock.lock();
+					// Skip if the path was since rewritten; the newer contents are in the current
+					// log, and will be written by the next checkpoint.
+					if (contents == pendingWrites.get(path)) {
+						writeToFileAtomically(contents, f, true);
+					}
+				} finally {
+					lock.unlock();
+				}
+			});
 
-				GHApiUtil.readFileIntoLines(eventHashesFile).stream().filter(e -> !hs.contains(e)).forEach(e -> {
-					hs.add(e);
-				});
-			}
+			// Sync the directories, so that the renames are durable before the log is
+			// deleted.
+			snapshot.keySet().stream().map(e -> new File(outputDirectory, e).getParentFile()).distinct()
+					.forEach(e -> syncDirectory(e));
 
-			writeToFile(new ArrayList<>(hs), eventHashesFile);
+			snapshot.forEach((path, contents) -> {
+				pendingWrites.remove(path, contents);
+			});
 
-		} finally {
-			writeLock.unlock();
+			oldLogFiles.forEach(e -> {
+				if (!e.delete()) {
+					log.logError("Unable to delete log file: " + e.getPath());
+				}
+			});
 		}
+	}
 
+	static void syncDirectory(File directory) {
+		// Not supported on all platforms, so this is best effort.
+		try (FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+			channel.force(true);
+		} catch (IOException e) {
+			/* ignore */
+		}
 	}
 
 	@Override
-	public List<String> getProcessedEvents() {
-		try {
-			readLock.lock();
-
-			File metadataDir = new File(outputDirectory, "metadata");
-			metadataDir.mkdirs();
-
-			File eventHashesFile = new File(metadataDir, "event-hashes.txt");
-
-			if (!eventHashesFile.exists()) {
-				return Collections.emptyList();
-			}
+	public void addProcessedEvents(List<ProcessedEvent> eventsToAdd) {
+		processedEvents.add(eventsToAdd);
+	}
 
-			return GHApiUtil.readFileIntoLines(eventHashesFile);
+	@Override
+	public List<ProcessedEvent> getProcessedEvents() {
+		return processedEvents.getAll();
+	}
 
-		} finally {
-			readLock.unlock();
-		}
+	@Override
+	public void expireProcessedEvents(long beforeTime) {
+		processedEvents.expire(beforeTime);
 	}
 
 	@Override
 	public void clearProcessedEvents() {
-		try {
-			writeLock.lock();
+		processedEvents.clear();
+	}
 
-			File metadataDir = new File(outputDirectory, "metadata");
-			metadataDir.mkdirs();
+	/**
+	 * Move the hashes of the text file written by earlier versions (in which every
+	 * addition rewrote the whole file) to the journal. They have no event time, so
+	 * are given the current time, and expire one retention window from now.
+	 */
+	private void migrateProcessedEventsFile() {
+		File legacyFile = getLegacyEventHashesFile(outputDirectory);
+		if (!legacyFile.exists()) {
+			return;
+		}
 
-			File eventHashesFile = new File(metadataDir, "event-hashes.txt");
+		long loadTime = System.currentTimeMillis();
 
-			List<String> contents = new ArrayList<>();
+		List<ProcessedEvent> hashes = GHApiUtil.readFileIntoLines(legacyFile).stream()
+				.filter(e -> !e.trim().isEmpty()).map(e -> new ProcessedEvent(e, loadTime))
+				.collect(Collectors.toList());
 
-			writeToFile(contents, eventHashesFile);
+		processedEvents.add(hashes);
 
-		} finally {
-			writeLock.unlock();
+		if (!legacyFile.delete()) {
+			throw new RuntimeException("Unable to delete: " + legacyFile.getPath());
 		}
+
+		log.logInfo("Moved " + hashes.size() + " processed event hash(es) to " + PROCESSED_EVENTS_FILE);
+	}
+
+	static File getProcessedEventsFile(File outputDirectory) {
+		return new File(new File(outputDirectory, "metadata"), PROCESSED_EVENTS_FILE);
+	}
+
+	static File getLegacyEventHashesFile(File outputDirectory) {
+		return new File(new File(outputDirectory, "metadata"), "event-hashes.txt");
 	}
 
 	@Override
@@ -408,51 +736,7 @@ public void uninitializeDatabaseOnContentsMismatch(List<String> orgs, List<Strin
 			return;
 		}
 
-		if (orgs == null) {
-			orgs = new ArrayList<>();
-		}
-		if (userRepos == null) {
-			userRepos = new ArrayList<>();
-		}
-		if (individualRepos == null) {
-			individualRepos = new ArrayList<>();
-		}
-		
-		orgs = new ArrayList<>(orgs);
-		userRepos= new ArrayList<>(userRepos);
-		individualRepos = new ArrayList<>(individualRepos);
-
-		// Convert to lowercase and sort
-		Arrays.asList(orgs, userRepos, individualRepos).stream().forEach(e -> {
-
-			List<String> newContents = e.stream().map(f -> f.toLowerCase()).sorted().collect(Collectors.toList());
-
-			e.clear();
-			e.addAll(newContents);
-
-		});
-
-		List<String> contents = new ArrayList<>();
-		contents.add("orgs:");
-		contents.addAll(orgs);
-		contents.add("user-repos:");
-		contents.addAll(userRepos);
-		contents.add("individual-repos:");
-		contents.addAll(individualRepos);
-
-		String encoded;
-
-		// Convert the array list to a hash
-		MessageDigest digest;
-		try {
-			digest = MessageDigest.getInstance("SHA-256");
-			byte[] bytes = digest.digest(contents.stream().reduce((a, b) -> a + " " + b).get().getBytes("UTF-8"));
-
-			encoded = Base64.getEncoder().encodeToString(bytes);
-
-		} catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
-			throw new RuntimeException(e); // Convert to unchecked
-		}
+		String encoded = DatabaseUtil.generateContentsHash(orgs, userRepos, individualRepos);
 
 		boolean uninitializeDatabase = false;
 
@@ -484,20 +768,38 @@ public void uninitializeDatabaseOnContentsMismatch(List<String> orgs, List<Strin
 
 			long time = System.currentTimeMillis();
 
-			for (File f : outputDirectory.listFiles()) {
-				if (f.getPath().equals(oldDir.getPath())) {
-					continue; // Don't move the old directory
-				}
+			// Ensure that the contents of the log are written to the files being moved
+			checkpoint();
 
-				try {
-					Files.move(f.toPath(), new File(oldDir, f.getName() + ".old." + time).toPath());
-				} catch (IOException e1) {
-					throw new RuntimeException("Unable to move: " + f.getPath(), e1);
+			// Block all writers while the database is moved
+			Arrays.asList(lockStripes).forEach(e -> e.lock());
+			// Sequence numbers continue in the new journal, so that clients' cursors remain valid
+			long lastSequence = journal.getLastSequence();
+			journal.close();
+			processedEvents.close(); // Reopened, in the new metadata directory, by the next append
+			try {
+				for (File f : outputDirectory.listFiles()) {
+					if (f.getPath().equals(oldDir.getPath()) || f.getName().equals(WAL_DIRECTORY)
+							|| f.getName().equals(PersistJsonDbLayout.LAYOUT_VERSION_FILE)) {
+						continue; // Don't move the old directory, the (open) log, or the layout version
+					}
+
+					try {
+						Files.move(f.toPath(), new File(oldDir, f.getName() + ".old." + time).toPath());
+					} catch (IOException e1) {
+						throw new RuntimeException("Unable to move: " + f.getPath(), e1);
+					}
 				}
+			} finally {
+				journal = createJournal(lastSequence);
+				Arrays.asList(lockStripes).forEach(e -> e.unlock());
 			}
 
 			log.logInfo("* Old database has been moved to " + oldDir.getPath());
 
+			// Values may still be compressed with the dictionaries that were moved
+			codec.getDictionaries().forEach(e -> saveDictionary(e));
+
 			persistString(KEY_GITHUB_CONTENTS_HASH, encoded);
 
 			initialized.set(false);
@@ -537,10 +839,6 @@ public void persistString(String key, String value) {
 	@Override
 	public Optional<String> getString(String key) {
 		File inputFile = new File(outputDirectory, "keys/" + key + ".txt");
-		if (!inputFile.exists()) {
-			return Optional.empty();
-		}
-
 		String contents = readFromFile(inputFile).orElse(null);
 
 		return Optional.ofNullable(contents);
@@ -549,138 +847,138 @@ public Optional<String> getString(String key) {
 	@Override
 	public void persistResourceChangeEvents(List<ResourceChangeEventJson> newEvents) {
 
-		if (newEvents.size() == 0) {
-			return;
-		}
-
-		File directory = new File(outputDirectory, "events");
-
 		newEvents.stream().filter(e -> e.getTime() <= 0).findAny().ifPresent(e -> {
 			throw new RuntimeException("One or more JSON files was missing a time.");
 		});
 
-		Long timeOfFirstEvent = newEvents.stream().map(e -> e.getTime()).sorted().findFirst().orElse(null);
+		journal.append(newEvents);
+	}
 
-		if (timeOfFirstEvent == null) {
-			throw new RuntimeException("Time of first event was null: " + newEvents);
-		}
+	@Override
+	public List<ResourceChangeEventJson> getRecentResourceChangeEvents(long timestampEqualOrGreater) {
 
-		try {
-			writeLock.lock();
+		List<ResourceChangeEventJson> result = journal.getEvents(timestampEqualOrGreater);
 
-			ObjectMapper om = new ObjectMapper();
+		// Sort ascending by timestamp
+		Collections.sort(result, (a, b) -> Long.compare(a.getTime(), b.getTime()));
 
-			if (!directory.exists() && !directory.mkdirs()) {
-				throw new RuntimeException("Unable to create directory: " + directory);
-			}
+		return result;
+	}
 
-			// Prevent collisions when different events occur together within the same
-			// millisecond.
-			long currTime = timeOfFirstEvent;
-			File file;
-			while (true) {
-
-				file = new File(directory, "issue-" + currTime + ".json");
-				if (file.exists()) {
-					currTime++;
-				} else {
-					break;
-				}
+	@Override
+	public byte[] getRecentResourceChangeEventsAsJson(long timestampEqualOrGreater) {
+		return DatabaseUtil.toJson(getRecentResourceChangeEvents(timestampEqualOrGreater),
+				ResourceChangeEventJson.Views.Basic.class);
+	}
 
-			}
+	@Override
+	public List<ResourceChangeEventJson> getRecentResourceChangeEvents(long timestampEqualOrGreater,
+			ResourceChangeEventFilter filter) {
 
-			try {
-				writeToFile(om.writeValueAsString(newEvents), file);
-			} catch (JsonProcessingException e) {
-				throw new RuntimeException(e);
-			}
+		List<ResourceChangeEventJson> result = journal.getEvents(timestampEqualOrGreater, filter);
 
-		} finally {
-			writeLock.unlock();
-		}
+		// Sort ascending by timestamp
+		Collections.sort(result, (a, b) -> Long.compare(a.getTime(), b.getTime()));
 
+		return result;
 	}
 
 	@Override
-	public List<ResourceChangeEventJson> getRecentResourceChangeEvents(long timestampEqualOrGreater) {
-		File directory = new File(outputDirectory, "events");
+	public List<ResourceChangeEventJson> getResourceChangeEventsAfter(long sequence, int limit) {
+		return journal.getEventsAfter(sequence, limit);
+	}
+
+	@Override
+	public long getLastResourceChangeEventSequence() {
+		return journal.getDurableSequence();
+	}
 
-		// Keep events in database for only 8 days
-		long expireTimestamp = System.currentTimeMillis() - TimeUnit.MILLISECONDS.convert(8, TimeUnit.DAYS);
+	@Override
+	public byte[] getResourceChangeEventsAfterAsJson(long sequence, int limit) {
+		return DatabaseUtil.toJson(getResourceChangeEventsAfter(sequence, limit),
+				ResourceChangeEventJson.Views.Basic.class);
+	}
 
-		List<File> filesToDelete = new ArrayList<>();
+	@Override
+	public ResourceChangeEventPageJson getResourceChangeEventsAfter(long sequence, int limit,
+			ResourceChangeEventFilter filter) {
+		return journal.getEventsAfter(sequence, limit, filter);
+	}
 
-		List<ResourceChangeEventJson> result = new ArrayList<>();
-		try {
-			readLock.lock();
+	@Override
+	public void flush() {
+		// Writes are already durable in the log; write them to their target files.
+		checkpoint();
+	}
 
-			ObjectMapper om = new ObjectMapper();
+	/**
+	 * Stop the checkpoint thread, write any pending writes of the write-ahead log to
+	 * their target files, and close the log and journals; the database may not be
+	 * used afterwards.
+	 */
+	@Override
+	public void close() {
+		checkpointThread.close();
 
-			if (!directory.exists()) {
-				return Collections.emptyList();
+		try {
+			if (!pendingWrites.isEmpty()) {
+				checkpoint();
 			}
+		} finally {
+			wal.close();
+			journal.close();
+			processedEvents.close();
+		}
+	}
 
-			List<File> files = Arrays.asList(directory.listFiles()).stream()
-					.filter(e -> e.getName().startsWith("issue-") && e.getName().endsWith(".json"))
-					.collect(Collectors.toList());
+	/** Periodically writes the contents of the write-ahead log to their target files. */
+	private class CheckpointThread extends Thread {
 
-			for (File f : files) {
-				String name = f.getName();
-				int index = name.indexOf("-");
-				int endIndex = name.indexOf(".json");
+		private volatile boolean closed = false;
 
-				long timestamp = Long.parseLong(name.substring(index + 1, endIndex));
+		public CheckpointThread() {
+			setName(CheckpointThread.class.getName());
+			setDaemon(true);
+		}
 
-				if (timestamp >= timestampEqualOrGreater) {
-					try {
+		/**
+		 * Stop the thread, and wait for any checkpoint in progress. The thread is not
+		 * interrupted, as that would close the channels it is using.
+		 */
+		void close() {
+			closed = true;
+			try {
+				join();
+			} catch (InterruptedException e) {
+				GHApiUtil.throwAsUnchecked(e);
+			}
+		}
 
-						// It is possible for the filename timestamp to be larger than the actual
-						// timestamp in the file, so we check that both are >= timestampEqualOrGreater.
+		@Override
+		public void run() {
+			long nextCheckpoint = System.currentTimeMillis() + CHECKPOINT_INTERVAL_IN_MSECS;
 
-						for (ResourceChangeEventJson rcej : om.readValue(readFromFile(f).get(),
-								ResourceChangeEventJson[].class)) {
+			while (!closed) {
+				GHApiUtil.sleep(100);
+				if (closed) {
+					return;
+				}
 
-							if (rcej.getTime() >= timestampEqualOrGreater) {
-								result.add(rcej);
-							}
+				try {
+					if (System.currentTimeMillis() >= nextCheckpoint
+							|| wal.getCurrentSize() >= CHECKPOINT_LOG_SIZE_IN_BYTES) {
 
+						if (!pendingWrites.isEmpty()) {
+							checkpoint();
 						}
-					} catch (IOException ex) {
-						throw new RuntimeException(ex);
+						nextCheckpoint = System.currentTimeMillis() + CHECKPOINT_INTERVAL_IN_MSECS;
 					}
+				} catch (Exception e) {
+					// Log and ignore
+					log.logError("Exception occured in " + this.getClass().getSimpleName() + ",", e);
 				}
-
-				if (timestamp < expireTimestamp) {
-					filesToDelete.add(f);
-				}
-
 			}
-
-		} finally {
-			readLock.unlock();
-		}
-
-		// Delete expired files.
-		try {
-			writeLock.lock();
-
-			filesToDelete.forEach(e -> {
-				if (e.exists() && !e.delete()) {
-					System.err.println("* Unable to delete: " + e.getPath());
-				}
-			});
-
-		} finally {
-			writeLock.unlock();
 		}
-
-		// Sort ascending by timestamp;
-		Collections.sort(result, (a, b) -> {
-			return (int) (a.getTime() - b.getTime());
-		});
-
-		return result;
-
 	}
 
 }
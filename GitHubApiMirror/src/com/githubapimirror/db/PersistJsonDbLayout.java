@@ -0,0 +1,306 @@
+/*
+ * Copyright 2021 Jonathan West
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.githubapimirror.db;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.githubapimirror.GHLog;
+import com.githubapimirror.shared.GHApiUtil;
+import com.githubapimirror.shared.json.ResourceChangeEventJson;
+
+/**
+ * The directory layout of a PersistJsonDb, and the upgrade of an older layout
+ * to the current one. The layout version is stored in a file in the database
+ * directory; a database without that file uses the original (version 1)
+ * layout.
+ *
+ * Version 1 stored all the issues of a repository in the repository directory
+ * ('(owner)/(repo)/(number).json'), and all event files in 'events/'. Version 2
+ * groups issues by number into directories of DatabaseUtil.ISSUES_PER_SHARD
+ * issues ('(owner)/(repo)/issues/(number / ISSUES_PER_SHARD)/(number).json'),
+ * and event files by the hour of their timestamp
+ * ('events/(timestamp / 1 hour)/issue-(timestamp).json'), so that no
+ * directory grows with the size of the repository or the event retention
+ * period. Version 3 replaces the event files with a ResourceChangeEventJournal
+ * in 'events/'.
+ */
+class PersistJsonDbLayout {
+
+	static final String LAYOUT_VERSION_FILE = "layout-version.txt";
+
+	static final int CURRENT_LAYOUT_VERSION = 3;
+
+	static final String EVENTS_DIRECTORY = "events";
+
+	private static final long EVENT_BUCKET_IN_MSECS = TimeUnit.MILLISECONDS.convert(1, TimeUnit.HOURS);
+
+	private static final ObjectMapper om = new ObjectMapper();
+
+	/** Top-level directories that are not owners */
+	private static final Set<String> NON_OWNER_DIRECTORIES = new HashSet<>(Arrays.asList("keys", "metadata",
+			EVENTS_DIRECTORY, "users", "old", PersistJsonDb.WAL_DIRECTORY, SegmentStoreDb.SEGMENTS_DIRECTORY));
+
+	private static final GHLog log = GHLog.getInstance();
+
+	private PersistJsonDbLayout() {
+	}
+
+	static boolean isOwnerDirectory(File f) {
+		return f.isDirectory() && !NON_OWNER_DIRECTORIES.contains(f.getName());
+	}
+
+	private static void writeLayoutVersion(File outputDirectory) {
+		File versionFile = new File(outputDirectory, LAYOUT_VERSION_FILE);
+		PersistJsonDb.writeToFileAtomically(Integer.toString(CURRENT_LAYOUT_VERSION).getBytes(StandardCharsets.UTF_8),
+				versionFile, true);
+	}
+
+	static int readLayoutVersion(File outputDirectory) {
+		File versionFile = new File(outputDirectory, LAYOUT_VERSION_FILE);
+		if (!versionFile.exists()) {
+			return 1;
+		}
+
+		try {
+			return Integer.parseInt(new String(Files.readAllBytes(versionFile.toPath()), StandardCharsets.UTF_8).trim());
+		} catch (IOException e) {
+			throw new RuntimeException("Unable to read: " + versionFile.getPath(), e);
+		}
+	}
+
+	/**
+	 * Move the files of an older layout to their location in the current layout.
+	 * The version file is only written once all files have been moved, so an
+	 * interrupted upgrade is resumed on the next start.
+	 */
+	static void upgrade(File outputDirectory) {
+
+		int version = readLayoutVersion(outputDirectory);
+		if (version > CURRENT_LAYOUT_VERSION) {
+			throw new RuntimeException("Database layout version " + version + " is not supported: " + outputDirectory);
+		}
+
+		if (version == CURRENT_LAYOUT_VERSION) {
+			return;
+		}
+
+		long startTime = System.currentTimeMillis();
+
+		File eventsDir = new File(outputDirectory, EVENTS_DIRECTORY);
+
+		int filesMoved = 0;
+
+		if (version < 2) {
+			for (File ownerDir : listFiles(outputDirectory)) {
+				if (!isOwnerDirectory(ownerDir)) {
+					continue;
+				}
+
+				for (File repoDir : listFiles(ownerDir)) {
+					if (repoDir.isDirectory()) {
+						filesMoved += upgradeRepository(repoDir);
+					}
+				}
+			}
+
+			filesMoved += upgradeEvents(eventsDir);
+		}
+
+		if (version < 3) {
+			filesMoved += upgradeEventsToJournal(eventsDir);
+		}
+
+		if (filesMoved > 0) {
+			log.logInfo("Upgraded database layout from version " + version + " to " + CURRENT_LAYOUT_VERSION + ", "
+					+ filesMoved + " file(s) moved in " + (System.currentTimeMillis() - startTime) + " msecs.");
+		}
+
+		writeLayoutVersion(outputDirectory);
+	}
+
+	private static int upgradeRepository(File repoDir) {
+
+		File issuesDir = new File(repoDir, "issues");
+
+		List<File> shardDirs = new ArrayList<>();
+
+		int filesMoved = 0;
+
+		for (File f : listFiles(repoDir)) {
+			String name = f.getName();
+
+			// The repository JSON is '(repo).json', which is skipped even if the repository
+			// name is a number.
+			if (!f.isFile() || !name.endsWith(".json") || name.equals(repoDir.getName() + ".json")) {
+				continue;
+			}
+
+			String issueNumber = name.substring(0, name.length() - ".json".length());
+			if (issueNumber.isEmpty() || !issueNumber.chars().allMatch(Character::isDigit)) {
+				continue;
+			}
+
+			File shardDir = new File(issuesDir, Long.toString(Long.parseLong(issueNumber) / DatabaseUtil.ISSUES_PER_SHARD));
+			if (!shardDirs.contains(shardDir)) {
+				shardDirs.add(shardDir);
+			}
+
+			move(f, new File(shardDir, name));
+			filesMoved++;
+		}
+
+		syncDirectories(repoDir, issuesDir, shardDirs);
+
+		return filesMoved;
+	}
+
+	private static int upgradeEvents(File eventsDir) {
+
+		List<File> bucketDirs = new ArrayList<>();
+
+		int filesMoved = 0;
+
+		for (File f : listFiles(eventsDir)) {
+			String name = f.getName();
+			if (!f.isFile() || !name.startsWith("issue-") || !name.endsWith(".json")) {
+				continue;
+			}
+
+			long timestamp = Long.parseLong(name.substring("issue-".length(), name.length() - ".json".length()));
+
+			File bucketDir = new File(eventsDir, Long.toString(timestamp / EVENT_BUCKET_IN_MSECS));
+			if (!bucketDirs.contains(bucketDir)) {
+				bucketDirs.add(bucketDir);
+			}
+
+			move(f, new File(bucketDir, name));
+			filesMoved++;
+		}
+
+		syncDirectories(eventsDir, eventsDir, bucketDirs);
+
+		return filesMoved;
+	}
+
+	/**
+	 * Append the events of the event files to the journal, then delete the files.
+	 * If the upgrade is interrupted after the append, it is repeated on the next
+	 * start, so events that are already in the journal are skipped.
+	 */
+	private static int upgradeEventsToJournal(File eventsDir) {
+
+		List<File> eventFiles = new ArrayList<>();
+		for (File bucketDir : listFiles(eventsDir)) {
+			for (File f : listFiles(bucketDir)) {
+				if (f.isFile() && f.getName().startsWith("issue-") && f.getName().endsWith(".json")) {
+					eventFiles.add(f);
+				}
+			}
+		}
+
+		if (eventFiles.isEmpty()) {
+			return 0;
+		}
+
+		List<ResourceChangeEventJson> events = new ArrayList<>();
+		for (File f : eventFiles) {
+			try {
+				events.addAll(Arrays.asList(om.readValue(f, ResourceChangeEventJson[].class)));
+			} catch (IOException e) {
+				log.logError("Unable to parse event file, skipping: " + f.getPath(), e);
+			}
+		}
+
+		ResourceChangeEventJournal journal = new ResourceChangeEventJournal(eventsDir, Long.MAX_VALUE);
+		try {
+			Set<String> existing = new HashSet<>();
+			journal.getEvents(0).forEach(e -> existing.add(getEventKey(e)));
+
+			events.sort((a, b) -> Long.compare(a.getTime(), b.getTime()));
+
+			journal.append(events.stream().filter(e -> !existing.contains(getEventKey(e))).collect(Collectors.toList()));
+
+		} finally {
+			journal.close();
+		}
+
+		eventFiles.forEach(e -> {
+			if (!e.delete()) {
+				throw new RuntimeException("Unable to delete: " + e.getPath());
+			}
+		});
+
+		// Remove the (now empty) bucket directories
+		listFiles(eventsDir).stream().filter(e -> e.isDirectory()).forEach(e -> e.delete());
+
+		PersistJsonDb.syncDirectory(eventsDir);
+
+		return eventFiles.size();
+	}
+
+	private static String getEventKey(ResourceChangeEventJson event) {
+		if (event.getUuid() != null) {
+			return event.getUuid();
+		}
+		return event.getOwner() + "/" + event.getRepo() + "/" + event.getIssueNumber() + "/" + event.getTime();
+	}
+
+	/** Ensure the moves are durable before the version file is written. */
+	private static void syncDirectories(File sourceDir, File parentDir, List<File> targetDirs) {
+		if (targetDirs.isEmpty()) {
+			return;
+		}
+
+		targetDirs.forEach(e -> PersistJsonDb.syncDirectory(e));
+		PersistJsonDb.syncDirectory(parentDir);
+		PersistJsonDb.syncDirectory(sourceDir);
+	}
+
+	private static void move(File source, File target) {
+		File parent = target.getParentFile();
+		if (!parent.exists() && !parent.mkdirs() && !parent.exists()) {
+			throw new RuntimeException("Unable to create directory: " + parent);
+		}
+
+		try {
+			Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			GHApiUtil.throwAsUnchecked(e);
+		}
+	}
+
+	private static List<File> listFiles(File directory) {
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return new ArrayList<>();
+		}
+		return Arrays.asList(files);
+	}
+
+}
@@ -0,0 +1,377 @@
+/*
+ * Copyright 2021 Jonathan West
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.githubapimirror.db;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.githubapimirror.GHLog;
+import com.githubapimirror.shared.GHApiUtil;
+import com.githubapimirror.shared.Owner;
+import com.githubapimirror.shared.json.IssueJson;
+import com.githubapimirror.shared.json.OrganizationJson;
+import com.githubapimirror.shared.json.RepositoryJson;
+import com.githubapimirror.shared.json.ResourceChangeEventJson;
+import com.githubapimirror.shared.json.UserJson;
+import com.githubapimirror.shared.json.UserRepositoriesJson;
+
+/**
+ * Copies the contents of an existing PersistJsonDb directory into a
+ * SegmentStoreDb, so that switching database types does not require a full
+ * rescan of GitHub. Resource change events keep their sequence numbers, so that
+ * the cursors of clients (and of webhooks) remain valid.
+ *
+ * Other than applying any writes remaining in its write-ahead log, the source
+ * directory is only read, never modified.
+ */
+public class PersistJsonDbMigration {
+
+	/** A SegmentStoreDb is migrated to here, then moved into place */
+	static final String STAGING_DIRECTORY = "segments-migration";
+
+	private static final GHLog log = GHLog.getInstance();
+
+	/** Reads resources in any format, with the dictionaries of the source directory */
+	private final ResourceCodec codec = new ResourceCodec(ResourceCodec.Format.JSON);
+
+	private final File sourceDirectory;
+
+	private final SegmentStoreDb target;
+
+	private long resourcesMigrated = 0;
+
+	public PersistJsonDbMigration(File sourceDirectory, SegmentStoreDb target) {
+		this.sourceDirectory = sourceDirectory;
+		this.target = target;
+
+		PersistJsonDb.loadDictionaries(sourceDirectory, codec);
+	}
+
+	/**
+	 * Migrate the PersistJsonDb contents of the directory to a new SegmentStoreDb
+	 * in the same directory. The store is written to a staging directory, which is
+	 * only moved into place once the migration is complete; a staging directory
+	 * left by an interrupted migration is deleted, and the migration is run again.
+	 */
+	public static void migrateToSegmentStore(File directory, ResourceCodec.Format format) {
+
+		File stagingDir = new File(directory, STAGING_DIRECTORY);
+		File segmentsDir = new File(directory, SegmentStoreDb.SEGMENTS_DIRECTORY);
+
+		try {
+			if (stagingDir.exists()) {
+				log.logInfo("Removing the contents of an incomplete migration: " + stagingDir.getPath());
+				deleteDirectory(stagingDir);
+			}
+
+			SegmentStoreDb staged = new SegmentStoreDb(stagingDir, format);
+			long migrated;
+			try {
+				migrated = new PersistJsonDbMigration(directory, staged).migrate();
+			} finally {
+				staged.close();
+			}
+
+			// As with PersistJsonDb, a non-empty database is considered initialized, so an
+			// empty migration is not kept.
+			if (migrated > 0) {
+				Files.move(new File(stagingDir, SegmentStoreDb.SEGMENTS_DIRECTORY).toPath(), segmentsDir.toPath(),
+						StandardCopyOption.ATOMIC_MOVE);
+			}
+
+			deleteDirectory(stagingDir);
+
+		} catch (IOException e) {
+			throw new RuntimeException("Unable to migrate database: " + directory.getPath(), e);
+		}
+	}
+
+	private static void deleteDirectory(File directory) throws IOException {
+		try (Stream<Path> paths = Files.walk(directory.toPath())) {
+			// Children are sorted after their parents, so delete in reverse
+			for (Path path : paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+				Files.delete(path);
+			}
+		}
+	}
+
+	/** Returns true if the directory contains data that may be migrated. */
+	public static boolean containsPersistJsonDb(File directory) {
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return false;
+		}
+
+		if (Arrays.asList(files).stream().anyMatch(e -> !isIgnoredDirectory(e.getName()))) {
+			return true;
+		}
+
+		// Writes that have not yet been checkpointed are only in the log
+		return WriteAheadLog.listLogFiles(new File(directory, PersistJsonDb.WAL_DIRECTORY)).stream()
+				.anyMatch(e -> e.length() > 0);
+	}
+
+	private static boolean isIgnoredDirectory(String name) {
+		return name.equals("old") || name.equals(SegmentStoreDb.SEGMENTS_DIRECTORY) || name.equals(STAGING_DIRECTORY)
+				|| name.equals(PersistJsonDb.WAL_DIRECTORY) || name.equals(PersistJsonDbLayout.LAYOUT_VERSION_FILE);
+	}
+
+	/** Returns the number of resources that were migrated. */
+	public long migrate() {
+
+		log.logInfo("Migrating database contents from " + sourceDirectory.getPath());
+
+		// Ensure that any writes that were not yet checkpointed are included
+		PersistJsonDb.replayWriteAheadLog(sourceDirectory);
+
+		File[] topLevel = sourceDirectory.listFiles();
+		if (topLevel == null) {
+			return 0;
+		}
+
+		for (File f : topLevel) {
+
+			String name = f.getName();
+
+			if (!f.isDirectory() || isIgnoredDirectory(name)) {
+				continue;
+			}
+
+			if (name.equals("keys")) {
+				migrateKeys(f, "");
+			} else if (name.equals("metadata")) {
+				migrateProcessedEvents(f);
+			} else if (name.equals("events")) {
+				migrateEvents(f);
+			} else if (name.equals("users")) {
+				migrateUsers(f);
+			} else {
+				migrateOwner(f);
+			}
+		}
+
+		log.logInfo("Migration complete, " + resourcesMigrated + " resource(s) migrated.");
+
+		return resourcesMigrated;
+	}
+
+	private void migrateKeys(File directory, String keyPrefix) {
+		for (File f : listFiles(directory)) {
+			if (f.isDirectory()) {
+				migrateKeys(f, keyPrefix + f.getName() + "/");
+			} else if (f.getName().endsWith(".txt")) {
+				String key = keyPrefix + f.getName().substring(0, f.getName().length() - ".txt".length());
+				target.persistString(key, readFile(f));
+				resourcesMigrated++;
+			}
+		}
+	}
+
+	private void migrateProcessedEvents(File metadataDir) {
+
+		// Earlier versions stored the hashes in a text file (without event times), so
+		// they are given the current time, as when they are loaded by PersistJsonDb
+		List<ProcessedEvent> hashes = new ArrayList<>();
+		File eventHashesFile = new File(metadataDir, "event-hashes.txt");
+		if (eventHashesFile.exists()) {
+			long loadTime = System.currentTimeMillis();
+			GHApiUtil.readFileIntoLines(eventHashesFile).stream().filter(e -> !e.trim().isEmpty())
+					.forEach(e -> hashes.add(new ProcessedEvent(e, loadTime)));
+		}
+
+		hashes.addAll(ProcessedEventJournal.readRecords(new File(metadataDir, PersistJsonDb.PROCESSED_EVENTS_FILE)));
+
+		if (hashes.isEmpty()) {
+			return;
+		}
+
+		List<ProcessedEvent> distinct = ProcessedEventJournal.distinct(hashes);
+
+		target.addProcessedEvents(distinct);
+		resourcesMigrated += distinct.size();
+	}
+
+	private void migrateEvents(File eventsDir) {
+		List<ResourceChangeEventJson> events = new ArrayList<>(ResourceChangeEventJournal.readEvents(eventsDir));
+
+		// Events of older layouts are in files, either in the events directory, or in
+		// its bucket directories (see PersistJsonDbLayout)
+		List<File> eventFiles = new ArrayList<>();
+		for (File f : listFiles(eventsDir)) {
+			if (f.isDirectory()) {
+				eventFiles.addAll(listFiles(f));
+			} else {
+				eventFiles.add(f);
+			}
+		}
+
+		for (File f : eventFiles) {
+			if (f.getName().startsWith("issue-") && f.getName().endsWith(".json")) {
+				ResourceChangeEventJson[] contents = readValue(f, ResourceChangeEventJson[].class);
+				if (contents != null) {
+					events.addAll(Arrays.asList(contents));
+				}
+			}
+		}
+
+		target.importResourceChangeEvents(events);
+		resourcesMigrated += events.size();
+	}
+
+	private void migrateUsers(File usersDir) {
+		for (File f : listFiles(usersDir)) {
+			if (f.isFile() && f.getName().endsWith(".json")) {
+				UserJson user = readValue(f, UserJson.class);
+				if (user != null) {
+					target.persistUser(user);
+					resourcesMigrated++;
+				}
+			}
+		}
+	}
+
+	/**
+	 * An owner directory contains the organization or user repositories JSON
+	 * ('(name)/(name).json'), and one directory per repository.
+	 */
+	private void migrateOwner(File ownerDir) {
+
+		String ownerName = ownerDir.getName();
+
+		// The type of the owner, if the owner JSON identifies it
+		Owner owner = null;
+
+		File ownerFile = new File(ownerDir, ownerName + ".json");
+		if (ownerFile.exists()) {
+			// Organizations and user repositories share the same path, so distinguish them
+			// by their contents.
+			JsonNode node = readValue(ownerFile, JsonNode.class);
+			if (node != null && node.has("repositories")) {
+				target.persistOrganization(readValue(ownerFile, OrganizationJson.class));
+				resourcesMigrated++;
+				owner = Owner.org(ownerName);
+			} else if (node != null && node.has("repoNames")) {
+				target.persistUserRepositories(readValue(ownerFile, UserRepositoriesJson.class));
+				resourcesMigrated++;
+				owner = Owner.user(ownerName);
+			}
+		}
+
+		for (File repoDir : listFiles(ownerDir)) {
+			if (repoDir.isDirectory()) {
+				migrateRepository(owner, repoDir);
+			}
+		}
+	}
+
+	/**
+	 * The owner of the repository is read from the repository JSON or, if it is
+	 * missing, from the owner JSON ('ownerOrNull'); otherwise, the repository is
+	 * skipped, as its owner type cannot be determined.
+	 */
+	private void migrateRepository(Owner ownerOrNull, File repoDir) {
+
+		String repoName = repoDir.getName();
+
+		Owner owner = null;
+
+		File repoFile = new File(repoDir, repoName + ".json");
+		if (repoFile.exists()) {
+			RepositoryJson repo = readValue(repoFile, RepositoryJson.class);
+			if (repo != null) {
+				target.persistRepository(repo);
+				resourcesMigrated++;
+
+				if (repo.getOrgName() != null) {
+					owner = Owner.org(repo.getOrgName());
+				} else if (repo.getOwnerUserName() != null) {
+					owner = Owner.user(repo.getOwnerUserName());
+				}
+			}
+		}
+
+		if (owner == null) {
+			owner = ownerOrNull;
+		}
+
+		if (owner == null) {
+			log.logError("Unable to determine the owner of repository, skipping: " + repoDir.getPath());
+			return;
+		}
+
+		// Issue files are either in the repository directory, or in its shard
+		// directories (see PersistJsonDbLayout)
+		List<File> issueFiles = new ArrayList<>(listFiles(repoDir));
+		listFiles(new File(repoDir, "issues")).forEach(e -> issueFiles.addAll(listFiles(e)));
+
+		for (File f : issueFiles) {
+			String name = f.getName();
+			if (!f.isFile() || !name.endsWith(".json") || f.equals(repoFile)) {
+				continue;
+			}
+
+			String issueNumber = name.substring(0, name.length() - ".json".length());
+			if (!issueNumber.matches("\\d+")) {
+				continue;
+			}
+
+			IssueJson issue = readValue(f, IssueJson.class);
+			if (issue != null) {
+				target.persistIssue(owner, issue);
+				resourcesMigrated++;
+			}
+		}
+	}
+
+	private static List<File> listFiles(File directory) {
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return new ArrayList<>();
+		}
+		return Arrays.asList(files);
+	}
+
+	private static String readFile(File f) {
+		try {
+			return new String(Files.readAllBytes(f.toPath()), StandardCharsets.UTF_8);
+		} catch (IOException e) {
+			throw new RuntimeException("Unable to read file: " + f.getPath(), e);
+		}
+	}
+
+	/** Returns null (and logs) if the file could not be parsed. */
+	private <T> T readValue(File f, Class<T> c) {
+		try {
+			return codec.decode(Files.readAllBytes(f.toPath()), c);
+		} catch (Exception e) {
+			log.logError("Unable to parse file, skipping: " + f.getPath(), e);
+			return null;
+		}
+	}
+
+}
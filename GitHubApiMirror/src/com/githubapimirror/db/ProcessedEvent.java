@@ -0,0 +1,68 @@
+/*
+ * Copyright 2021 Jonathan West
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.githubapimirror.db;
+
+/**
+ * The hash of an event processed by EventScan, and the time at which the event
+ * was created on GitHub; the time allows the hashes of old events to be expired
+ * (see Database.expireProcessedEvents(...)).
+ *
+ * Hashes persisted by earlier versions have no time, and are read with a time of
+ * 0.
+ */
+public final class ProcessedEvent {
+
+	private final String hash;
+
+	/** The event's 'created at' time, in msecs since epoch */
+	private final long eventTime;
+
+	public ProcessedEvent(String hash, long eventTime) {
+		if (hash == null) {
+			throw new IllegalArgumentException("Hash must not be null");
+		}
+		this.hash = hash;
+		this.eventTime = eventTime;
+	}
+
+	public String getHash() {
+		return hash;
+	}
+
+	public long getEventTime() {
+		return eventTime;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof ProcessedEvent)) {
+			return false;
+		}
+		ProcessedEvent other = (ProcessedEvent) o;
+		return hash.equals(other.hash) && eventTime == other.eventTime;
+	}
+
+	@Override
+	public int hashCode() {
+		return hash.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return hash + "@" + eventTime;
+	}
+}
@@ -0,0 +1,406 @@
+/*
+ * Copyright 2021 Jonathan West
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.githubapimirror.db;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.githubapimirror.shared.GHApiUtil;
+
+/**
+ * An append-only file of processed event hashes, used by PersistJsonDb in
+ * place of rewriting the whole list on every addition: adding hashes appends
+ * only the new records, and reading them is a single sequential read.
+ * SegmentStoreDb stores its hashes in the same record format.
+ *
+ * The file is an 8 byte header, followed by fixed-width records (see
+ * encode(...)). The same hash may be appended more than once; duplicates are
+ * removed when the file is read, and once they outnumber the distinct hashes
+ * the file is compacted (rewritten atomically with only the distinct hashes).
+ * Expiring old events likewise rewrites the file. A partial record at the end
+ * of the file (for example, from a crash mid-write) is ignored, and is
+ * truncated by the next append.
+ *
+ * Files written by earlier versions (header GHAMPEJ1) have no event times; they
+ * are read with the time at which they are loaded (so that they expire one
+ * retention window later, rather than immediately), and are rewritten in the
+ * current format by upgrade() or by the next append.
+ *
+ * The file is only created by the first append, so an unused journal does not
+ * add a file to an empty database directory.
+ *
+ * This class is thread safe.
+ */
+class ProcessedEventJournal {
+
+	private static final byte[] HEADER = "GHAMPEJ2".getBytes(StandardCharsets.US_ASCII);
+
+	private static final byte[] HEADER_V1 = "GHAMPEJ1".getBytes(StandardCharsets.US_ASCII);
+
+	/**
+	 * A type byte, the event time (8 bytes, big endian), then 32 bytes for the
+	 * hash: type 0 is a SHA-256 hash (a 64 character lowercase hex string, as
+	 * created by earlier versions of EventScan) stored as binary, and types 1-32
+	 * are any other string, as that number of UTF-8 bytes (zero padded).
+	 */
+	static final int RECORD_SIZE = 1 + 8 + 32;
+
+	/** The records of GHAMPEJ1 files had no event time */
+	private static final int RECORD_SIZE_V1 = 1 + 32;
+
+	/** Duplicates are only compacted once there are at least this many */
+	private static final int MIN_DUPLICATES_TO_COMPACT = 10000;
+
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	private final File file;
+
+	private final Object lock = new Object();
+
+	/** Null until the first append (and after close()) */
+	private FileChannel channel_synch_lock;
+
+	ProcessedEventJournal(File file) {
+		this.file = file;
+	}
+
+	/** Append the events; when this method returns, they are durable. */
+	void add(Collection<ProcessedEvent> events) {
+
+		byte[] records = encode(distinct(events));
+		if (records.length == 0) {
+			return;
+		}
+
+		synchronized (lock) {
+			try {
+				FileChannel channel = getChannel();
+
+				ByteBuffer buffer = ByteBuffer.wrap(records);
+				long position = channel.size();
+				while (buffer.hasRemaining()) {
+					position += channel.write(buffer, position);
+				}
+				channel.force(false);
+
+			} catch (IOException e) {
+				close();
+				GHApiUtil.throwAsUnchecked(e);
+			}
+		}
+	}
+
+	/**
+	 * Returns the distinct hashes, in the order in which they were first added;
+	 * compacts the file if it contains too many duplicates.
+	 */
+	List<ProcessedEvent> getAll() {
+		synchronized (lock) {
+			List<ProcessedEvent> records = readRecords(file);
+
+			List<ProcessedEvent> result = distinct(records);
+
+			int duplicates = records.size() - result.size();
+			if (duplicates >= MIN_DUPLICATES_TO_COMPACT && duplicates > result.size()) {
+				compact(result);
+			}
+
+			return result;
+		}
+	}
+
+	/** Remove the events with an event time before the given time. */
+	void expire(long beforeTime) {
+		synchronized (lock) {
+			List<ProcessedEvent> records = readRecords(file);
+
+			List<ProcessedEvent> result = new ArrayList<>();
+			distinct(records).stream().filter(e -> e.getEventTime() >= beforeTime).forEach(e -> result.add(e));
+
+			if (result.size() != records.size()) {
+				compact(result);
+			}
+		}
+	}
+
+	/**
+	 * Rewrite a file written by an earlier version in the current format, so that
+	 * the time at which its hashes were loaded is recorded.
+	 */
+	void upgrade() {
+		synchronized (lock) {
+			try {
+				if (file.exists() && isVersion1(file)) {
+					compact(distinct(readRecords(file)));
+				}
+			} catch (IOException e) {
+				GHApiUtil.throwAsUnchecked(e);
+			}
+		}
+	}
+
+	/** Remove all hashes. */
+	void clear() {
+		synchronized (lock) {
+			close();
+			if (file.exists() && !file.delete()) {
+				throw new RuntimeException("Unable to delete: " + file.getPath());
+			}
+		}
+	}
+
+	/**
+	 * Close the file, for example, before it is moved; it is reopened by the next
+	 * append.
+	 */
+	void close() {
+		synchronized (lock) {
+			if (channel_synch_lock != null) {
+				try {
+					channel_synch_lock.close();
+				} catch (IOException e) {
+					/* ignore */
+				}
+				channel_synch_lock = null;
+			}
+		}
+	}
+
+	private void compact(List<ProcessedEvent> events) {
+		close();
+
+		byte[] records = encode(events);
+		byte[] contents = Arrays.copyOf(HEADER, HEADER.length + records.length);
+		System.arraycopy(records, 0, contents, HEADER.length, records.length);
+
+		PersistJsonDb.writeToFileAtomically(contents, file, true);
+	}
+
+	private FileChannel getChannel() throws IOException {
+		synchronized (lock) {
+			if (channel_synch_lock != null) {
+				return channel_synch_lock;
+			}
+
+			File parent = file.getParentFile();
+			if (!parent.exists() && !parent.mkdirs() && !parent.exists()) {
+				throw new IOException("Unable to create directory: " + parent);
+			}
+
+			boolean created = !file.exists();
+
+			if (!created && isVersion1(file)) {
+				compact(distinct(readRecords(file)));
+			}
+
+			FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+					StandardOpenOption.WRITE);
+
+			if (created || channel.size() < HEADER.length) {
+				channel.truncate(0);
+				channel.write(ByteBuffer.wrap(HEADER), 0);
+				channel.force(false);
+				PersistJsonDb.syncDirectory(parent);
+			} else {
+				verifyHeader(channel);
+
+				// Truncate a partial record
+				long recordsSize = channel.size() - HEADER.length;
+				if (recordsSize % RECORD_SIZE != 0) {
+					channel.truncate(HEADER.length + recordsSize - recordsSize % RECORD_SIZE);
+				}
+			}
+
+			channel_synch_lock = channel;
+			return channel;
+		}
+	}
+
+	private void verifyHeader(FileChannel channel) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER.length);
+		while (header.hasRemaining() && channel.read(header, header.position()) != -1) {
+		}
+		if (!Arrays.equals(header.array(), HEADER)) {
+			throw new IOException("Unrecognized processed event journal: " + file.getPath());
+		}
+	}
+
+	private static boolean isVersion1(File file) throws IOException {
+		byte[] header = new byte[HEADER_V1.length];
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer buffer = ByteBuffer.wrap(header);
+			while (buffer.hasRemaining() && channel.read(buffer) != -1) {
+			}
+		}
+		return Arrays.equals(header, HEADER_V1);
+	}
+
+	/**
+	 * Returns every event in the file (including duplicates), in append order, or
+	 * an empty list if the file does not exist.
+	 */
+	static List<ProcessedEvent> readRecords(File file) {
+
+		byte[] contents;
+		try {
+			contents = Files.readAllBytes(file.toPath());
+		} catch (NoSuchFileException e) {
+			return new ArrayList<>();
+		} catch (IOException e) {
+			GHApiUtil.throwAsUnchecked(e);
+			return null;
+		}
+
+		if (contents.length < HEADER.length) {
+			return new ArrayList<>(); // Created, but the header was not written
+		}
+
+		byte[] header = Arrays.copyOf(contents, HEADER.length);
+		if (Arrays.equals(header, HEADER_V1)) {
+			return decodeVersion1(contents, HEADER_V1.length, contents.length);
+		}
+		if (!Arrays.equals(header, HEADER)) {
+			throw new RuntimeException("Unrecognized processed event journal: " + file.getPath());
+		}
+
+		return decode(contents, HEADER.length, contents.length);
+	}
+
+	/**
+	 * Returns each hash once, with the latest of its event times, in the order in
+	 * which the hashes first appear.
+	 */
+	static List<ProcessedEvent> distinct(Collection<ProcessedEvent> events) {
+		Map<String, Long> eventTimes = new LinkedHashMap<>();
+		events.forEach(e -> eventTimes.merge(e.getHash(), e.getEventTime(), Math::max));
+
+		List<ProcessedEvent> result = new ArrayList<>(eventTimes.size());
+		eventTimes.forEach((hash, eventTime) -> result.add(new ProcessedEvent(hash, eventTime)));
+		return result;
+	}
+
+	/** Returns the events as consecutive records; empty hashes are skipped. */
+	static byte[] encode(Collection<ProcessedEvent> events) {
+
+		ByteBuffer result = ByteBuffer.allocate(events.size() * RECORD_SIZE);
+
+		for (ProcessedEvent event : events) {
+			String hash = event.getHash();
+			if (hash.isEmpty()) {
+				continue;
+			}
+
+			if (isSha256Hex(hash)) {
+				result.put((byte) 0);
+				result.putLong(event.getEventTime());
+				for (int x = 0; x < hash.length(); x += 2) {
+					result.put((byte) ((Character.digit(hash.charAt(x), 16) << 4)
+							| Character.digit(hash.charAt(x + 1), 16)));
+				}
+				continue;
+			}
+
+			byte[] bytes = hash.getBytes(StandardCharsets.UTF_8);
+			if (bytes.length > 32) {
+				throw new IllegalArgumentException("Processed event hash is too long: " + hash);
+			}
+			result.put((byte) bytes.length);
+			result.putLong(event.getEventTime());
+			result.put(bytes);
+			result.put(new byte[32 - bytes.length]);
+		}
+
+		return Arrays.copyOf(result.array(), result.position());
+	}
+
+	/** Returns the events of the complete records between start and end. */
+	static List<ProcessedEvent> decode(byte[] contents, int start, int end) {
+
+		List<ProcessedEvent> result = new ArrayList<>((end - start) / RECORD_SIZE);
+
+		ByteBuffer buffer = ByteBuffer.wrap(contents);
+
+		for (int position = start; position + RECORD_SIZE <= end; position += RECORD_SIZE) {
+			result.add(new ProcessedEvent(decodeHash(contents, position, position + 9), buffer.getLong(position + 1)));
+		}
+
+		return result;
+	}
+
+	/**
+	 * Returns the events of the complete records (written by earlier versions,
+	 * without an event time) between start and end, with the current time.
+	 */
+	static List<ProcessedEvent> decodeVersion1(byte[] contents, int start, int end) {
+
+		List<ProcessedEvent> result = new ArrayList<>((end - start) / RECORD_SIZE_V1);
+
+		long loadTime = System.currentTimeMillis();
+
+		for (int position = start; position + RECORD_SIZE_V1 <= end; position += RECORD_SIZE_V1) {
+			result.add(new ProcessedEvent(decodeHash(contents, position, position + 1), loadTime));
+		}
+
+		return result;
+	}
+
+	/** Decode the hash of the record with the given type byte and (32 byte) hash positions */
+	private static String decodeHash(byte[] contents, int typePosition, int hashPosition) {
+		int type = contents[typePosition];
+
+		if (type == 0) {
+			char[] hex = new char[64];
+			for (int x = 0; x < 32; x++) {
+				int b = contents[hashPosition + x] & 0xff;
+				hex[x * 2] = HEX_DIGITS[b >> 4];
+				hex[x * 2 + 1] = HEX_DIGITS[b & 0xf];
+			}
+			return new String(hex);
+
+		} else if (type > 0 && type <= 32) {
+			return new String(contents, hashPosition, type, StandardCharsets.UTF_8);
+
+		} else {
+			throw new RuntimeException("Invalid processed event record at offset " + typePosition);
+		}
+	}
+
+	private static boolean isSha256Hex(String hash) {
+		if (hash.length() != 64) {
+			return false;
+		}
+		for (int x = 0; x < hash.length(); x++) {
+			char c = hash.charAt(x);
+			if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f'))) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
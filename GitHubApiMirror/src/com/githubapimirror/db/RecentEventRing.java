@@ -0,0 +1,256 @@
+/*
+ * Copyright 2021 Jonathan West
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.githubapimirror.db;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.githubapimirror.shared.GHApiUtil;
+import com.githubapimirror.shared.ResourceChangeEventFilter;
+import com.githubapimirror.shared.json.ResourceChangeEventJson;
+import com.githubapimirror.shared.json.ResourceChangeEventPageJson;
+
+/**
+ * A fixed-size ring of the most recently persisted resource change events,
+ * each held with its (basic view) JSON, used by InMemoryCacheDb to answer requests for
+ * recent events without reading the inner database.
+ *
+ * The ring tracks a timestamp ('covered since') such that every event with a
+ * time >= that timestamp that was persisted since the ring was created is in
+ * the ring; when an event is overwritten, the timestamp is moved past it. A
+ * request for an earlier timestamp returns null, and must be answered by the
+ * inner database.
+ *
+ * Likewise, the ring tracks a sequence number such that every event with a
+ * greater sequence number is in the ring. This requires that events are added
+ * in sequence number order, with no gaps, which is the case when they are added
+ * in the order in which the inner database persisted them.
+ *
+ * This class is thread safe. Additions are serialized, but reads do not acquire
+ * any locks: a reader checks the covered timestamp again after reading the
+ * ring, so an event that was overwritten during the read is never silently
+ * omitted.
+ */
+class RecentEventRing {
+
+	/** Clients that request enriched events are served from the event objects */
+	private static final ObjectWriter basicWriter = new ObjectMapper()
+			.writerWithView(ResourceChangeEventJson.Views.Basic.class);
+
+	private final AtomicReferenceArray<Entry> entries;
+
+	private final Object writeLock = new Object();
+
+	/** The total number of events ever added */
+	private volatile long added = 0;
+
+	private volatile long coveredSince;
+
+	/** Long.MAX_VALUE until the first event with a sequence number is added */
+	private volatile long coveredAfterSequence = Long.MAX_VALUE;
+
+	RecentEventRing(int capacity, long coveredSince) {
+		this.entries = new AtomicReferenceArray<>(capacity);
+		this.coveredSince = coveredSince;
+	}
+
+	void add(List<ResourceChangeEventJson> events) {
+
+		List<byte[]> jsons = new ArrayList<>();
+		for (ResourceChangeEventJson event : events) {
+			try {
+				jsons.add(basicWriter.writeValueAsBytes(event));
+			} catch (Exception e) {
+				GHApiUtil.throwAsUnchecked(e);
+			}
+		}
+
+		synchronized (writeLock) {
+			for (int x = 0; x < events.size(); x++) {
+				Entry entry = new Entry(events.get(x), jsons.get(x), added);
+
+				int slot = (int) (added % entries.length());
+
+				// The covered timestamp and sequence number must be updated before the
+				// overwritten event becomes unreadable.
+				Entry overwritten = entries.get(slot);
+				if (overwritten != null && overwritten.time >= coveredSince) {
+					coveredSince = overwritten.time + 1;
+				}
+				if (overwritten != null && overwritten.sequence > coveredAfterSequence) {
+					coveredAfterSequence = overwritten.sequence;
+				}
+				if (coveredAfterSequence == Long.MAX_VALUE && entry.sequence > 0) {
+					coveredAfterSequence = entry.sequence - 1;
+				}
+
+				entries.set(slot, entry);
+				added++;
+			}
+		}
+	}
+
+	/**
+	 * Returns the events with a time >= the timestamp, in ascending order of time,
+	 * or null if the ring may not contain all of them.
+	 */
+	List<Entry> get(long timestampEqualOrGreater) {
+
+		if (timestampEqualOrGreater < coveredSince) {
+			return null;
+		}
+
+		long end = added;
+		long start = Math.max(0, end - entries.length());
+
+		List<Entry> result = new ArrayList<>();
+		for (long x = start; x < end; x++) {
+			Entry entry = entries.get((int) (x % entries.length()));
+			// Skip a slot that has been overwritten by an event added after the read started
+			if (entry != null && entry.position == x && entry.time >= timestampEqualOrGreater) {
+				result.add(entry);
+			}
+		}
+
+		if (timestampEqualOrGreater < coveredSince) {
+			return null; // An event was overwritten while the ring was being read
+		}
+
+		result.sort((a, b) -> Long.compare(a.time, b.time));
+
+		return result;
+	}
+
+	/**
+	 * Returns up to 'limit' events with a sequence number greater than the given
+	 * sequence number, in sequence number order, or null if the ring may not
+	 * contain all of them.
+	 */
+	List<Entry> getAfter(long sequence, int limit) {
+
+		if (sequence < coveredAfterSequence) {
+			return null;
+		}
+
+		long end = added;
+		long start = Math.max(0, end - entries.length());
+
+		List<Entry> result = new ArrayList<>();
+		for (long x = start; x < end && result.size() < limit; x++) {
+			Entry entry = entries.get((int) (x % entries.length()));
+			if (entry != null && entry.position == x && entry.sequence > sequence) {
+				result.add(entry);
+			}
+		}
+
+		if (sequence < coveredAfterSequence) {
+			return null;
+		}
+
+		return result;
+	}
+
+	/**
+	 * Returns up to 'limit' of the events after the given sequence number that
+	 * match the filter (see Database.getResourceChangeEventsAfter(...)), or null if
+	 * the ring may not contain all of them. The ring is small enough to be
+	 * searched in full, so it has no repository index.
+	 */
+	ResourceChangeEventPageJson getAfter(long sequence, int limit, ResourceChangeEventFilter filter) {
+
+		if (sequence < coveredAfterSequence) {
+			return null;
+		}
+
+		long end = added;
+		long start = Math.max(0, end - entries.length());
+
+		List<ResourceChangeEventJson> result = new ArrayList<>();
+		long lastSequence = sequence;
+		for (long x = start; x < end && result.size() < limit; x++) {
+			Entry entry = entries.get((int) (x % entries.length()));
+			if (entry != null && entry.position == x && entry.sequence > sequence) {
+				lastSequence = entry.sequence;
+				if (filter.matches(entry.event)) {
+					result.add(entry.event);
+				}
+			}
+		}
+
+		if (sequence < coveredAfterSequence) {
+			return null;
+		}
+
+		return DatabaseUtil.createResourceChangeEventPage(result, lastSequence);
+	}
+
+	/** Remove all events, for example, when the inner database is emptied. */
+	void clear(long coveredSince) {
+		synchronized (writeLock) {
+			for (int x = 0; x < entries.length(); x++) {
+				entries.set(x, null);
+			}
+			this.coveredSince = coveredSince;
+			this.coveredAfterSequence = Long.MAX_VALUE;
+		}
+	}
+
+	/** Returns the events as a JSON array. */
+	static byte[] toJsonArray(List<Entry> entries) {
+		ByteArrayOutputStream result = new ByteArrayOutputStream(
+				2 + entries.stream().mapToInt(e -> e.json.length + 1).sum());
+
+		result.write('[');
+		for (int x = 0; x < entries.size(); x++) {
+			if (x > 0) {
+				result.write(',');
+			}
+			byte[] json = entries.get(x).json;
+			result.write(json, 0, json.length);
+		}
+		result.write(']');
+
+		return result.toByteArray();
+	}
+
+	/** An event and its JSON; neither may be modified. */
+	static class Entry {
+		private final long time;
+		private final long sequence;
+		private final ResourceChangeEventJson event;
+		private final byte[] json;
+
+		/** The number of events added to the ring before this one */
+		private final long position;
+
+		Entry(ResourceChangeEventJson event, byte[] json, long position) {
+			this.time = event.getTime();
+			this.sequence = event.getSequence();
+			this.event = event;
+			this.json = json;
+			this.position = position;
+		}
+
+		ResourceChangeEventJson getEvent() {
+			return event;
+		}
+	}
+}
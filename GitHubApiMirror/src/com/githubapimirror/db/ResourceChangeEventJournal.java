@@ -0,0 +1,1010 @@
+/*
+ * Copyright 2021 Jonathan West
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.githubapimirror.db;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.githubapimirror.GHLog;
+import com.githubapimirror.shared.GHApiUtil;
+import com.githubapimirror.shared.ResourceChangeEventFilter;
+import com.githubapimirror.shared.json.ResourceChangeEventJson;
+import com.githubapimirror.shared.json.ResourceChangeEventPageJson;
+
+/**
+ * An append-only journal of resource change events, stored as a sequence of
+ * segment files ('journal-(id).log') in a single directory. A new segment is
+ * started every hour (or when the active segment grows past a fixed size), and
+ * a background thread deletes whole segments once all of their events are
+ * older than the retention period.
+ *
+ * Each record contains the time of the event, so events can be filtered without
+ * parsing their JSON, and is protected by a CRC; on startup a torn record at the
+ * end of a segment (for example, from a crash mid-write) is truncated.
+ *
+ * Event times are not strictly increasing in append order, so each segment
+ * keeps a sparse in-memory index of (offset, the greatest event time before
+ * that offset) entries, one per INDEX_INTERVAL_IN_BYTES. As the greatest time
+ * never decreases, getEvents(since) can binary search for the last entry before
+ * which no event is >= since, and then read sequentially from there.
+ *
+ * Each appended event is assigned the next sequence number. Sequence numbers
+ * are consecutive within a segment, so a segment only needs to know the
+ * sequence number of its first record (and the index, the ordinal of each
+ * indexed record) for getEventsAfter(sequence, limit) to find where to start
+ * reading. The last segment is never expired, so sequence numbers continue
+ * to increase across restarts. Events are only returned by
+ * getEventsAfter(...) once they are durable, so that a cursor can never be
+ * advanced past an event that is lost on a crash.
+ *
+ * Each segment also keeps an in-memory index of its records by repository
+ * (with the issue number of each), so that getEventsAfter(sequence, limit,
+ * filter) reads only the records of the selected owners and repositories. The
+ * index of a segment written by this process is maintained as records are
+ * appended; that of a segment opened on startup is built from its contents
+ * when it is first searched.
+ *
+ * This class is thread safe. Appends are serialized, and are durable when they
+ * return (concurrent appends share a single fsync); reads do not block appends.
+ */
+public class ResourceChangeEventJournal {
+
+	private static final String SEGMENT_PREFIX = "journal-";
+	private static final String SEGMENT_SUFFIX = ".log";
+
+	/** crc (int) + time (long) + length (int) */
+	private static final int RECORD_HEADER_SIZE = 4 + 8 + 4;
+
+	private static final int MAX_RECORD_SIZE = 16 * 1024 * 1024;
+
+	private static final long MAX_SEGMENT_SIZE_IN_BYTES = 16 * 1024 * 1024;
+
+	private static final long SEGMENT_DURATION_IN_MSECS = TimeUnit.MILLISECONDS.convert(1, TimeUnit.HOURS);
+
+	private static final long INDEX_INTERVAL_IN_BYTES = 4 * 1024;
+
+	/** Records are read in chunks of this size by getEventsAfter(...) */
+	private static final int READ_CHUNK_SIZE_IN_BYTES = 64 * 1024;
+
+	private static final long RETENTION_CHECK_INTERVAL_IN_MSECS = TimeUnit.MILLISECONDS.convert(1, TimeUnit.MINUTES);
+
+	private static final ObjectMapper om = new ObjectMapper();
+
+	private static final GHLog log = GHLog.getInstance();
+
+	private final File directory;
+
+	private final long retentionInMsecs;
+
+	/** All segments, oldest first; the last is the active segment, if any. */
+	private final CopyOnWriteArrayList<Segment> segments = new CopyOnWriteArrayList<>();
+
+	private final Object writeLock = new Object();
+
+	/** Null until the first append after the journal is opened. */
+	private Segment activeSegment_synch_writeLock;
+
+	/** The greatest event time in the journal */
+	private long maxTime_synch_writeLock = 0;
+
+	private int nextSegmentId_synch_writeLock;
+
+	private long nextSequence_synch_writeLock;
+
+	/** Every event with a sequence number <= this is durable */
+	private final AtomicLong durableSequence = new AtomicLong();
+
+	private final GroupCommit groupCommit;
+
+	private final RetentionThread retentionThread;
+
+	public ResourceChangeEventJournal(File directory, long retentionInMsecs) {
+		this(directory, retentionInMsecs, 0);
+	}
+
+	/**
+	 * Sequence numbers will continue from the greater of the given sequence number
+	 * and the last in the journal.
+	 */
+	public ResourceChangeEventJournal(File directory, long retentionInMsecs, long lastSequence) {
+		this.directory = directory;
+		this.retentionInMsecs = retentionInMsecs;
+
+		List<Integer> ids = listSegmentIds(directory);
+
+		synchronized (writeLock) {
+			nextSequence_synch_writeLock = lastSequence + 1;
+
+			for (int id : ids) {
+				Segment segment = openSegment(id, maxTime_synch_writeLock);
+				if (segment.size == 0) {
+					segment.delete();
+					continue;
+				}
+				segments.add(segment);
+				maxTime_synch_writeLock = Math.max(maxTime_synch_writeLock, segment.maxTime);
+				if (segment.firstSequence > 0) {
+					nextSequence_synch_writeLock = Math.max(nextSequence_synch_writeLock,
+							segment.firstSequence + segment.recordCount);
+				}
+			}
+
+			// Appends always start a new segment, rather than continuing the last.
+			nextSegmentId_synch_writeLock = ids.isEmpty() ? 1 : ids.get(ids.size() - 1) + 1;
+
+			durableSequence.set(nextSequence_synch_writeLock - 1);
+		}
+
+		groupCommit = new GroupCommit(() -> {
+			Segment active;
+			synchronized (writeLock) {
+				active = activeSegment_synch_writeLock;
+			}
+			// If the active segment is rolled after this, the roll will have forced it.
+			if (active != null) {
+				active.force();
+			}
+		});
+
+		retentionThread = new RetentionThread();
+		retentionThread.start();
+	}
+
+	/**
+	 * Append the events, setting the sequence number of each; when this method
+	 * returns, they are durable.
+	 */
+	public void append(List<ResourceChangeEventJson> events) {
+
+		if (events.isEmpty()) {
+			return;
+		}
+
+		long commitSequence;
+		long lastEventSequence;
+
+		synchronized (writeLock) {
+
+			Segment active = activeSegment_synch_writeLock;
+			if (active == null || active.size >= MAX_SEGMENT_SIZE_IN_BYTES
+					|| System.currentTimeMillis() - active.created >= SEGMENT_DURATION_IN_MSECS) {
+				active = rollSegment();
+			}
+
+			for (ResourceChangeEventJson event : events) {
+				event.setSequence(nextSequence_synch_writeLock);
+
+				byte[] payload = null;
+				try {
+					payload = om.writeValueAsBytes(event);
+				} catch (Exception e) {
+					GHApiUtil.throwAsUnchecked(e);
+				}
+
+				long time = event.getTime();
+				active.append(encodeRecord(time, payload), time, maxTime_synch_writeLock, event);
+				maxTime_synch_writeLock = Math.max(maxTime_synch_writeLock, time);
+
+				// Only once the record is written, so that sequence numbers remain consecutive
+				// within the segment.
+				nextSequence_synch_writeLock++;
+			}
+
+			lastEventSequence = nextSequence_synch_writeLock - 1;
+			commitSequence = groupCommit.nextSequence();
+		}
+
+		// Wait outside the lock, so that other writers may join the same sync.
+		groupCommit.awaitDurable(commitSequence);
+
+		durableSequence.accumulateAndGet(lastEventSequence, Math::max);
+	}
+
+	/** Returns the sequence number of the last appended event (or 0, if none). */
+	public long getLastSequence() {
+		synchronized (writeLock) {
+			return nextSequence_synch_writeLock - 1;
+		}
+	}
+
+	/**
+	 * Returns the sequence number of the last durable event (or 0, if none); every
+	 * event up to it may be read with getEventsAfter(...).
+	 */
+	public long getDurableSequence() {
+		return durableSequence.get();
+	}
+
+	private Segment rollSegment() {
+		synchronized (writeLock) {
+
+			Segment previous = activeSegment_synch_writeLock;
+			if (previous != null) {
+				previous.force();
+			}
+
+			if (!directory.exists() && !directory.mkdirs() && !directory.exists()) {
+				throw new RuntimeException("Unable to create directory: " + directory);
+			}
+
+			Segment segment = new Segment(segmentFile(directory, nextSegmentId_synch_writeLock++),
+					maxTime_synch_writeLock, nextSequence_synch_writeLock, true);
+			segment.force(); // Creates the file
+			PersistJsonDb.syncDirectory(directory);
+
+			segments.add(segment);
+			activeSegment_synch_writeLock = segment;
+
+			return segment;
+		}
+	}
+
+	/** Returns the events with a time >= the given timestamp, in append order. */
+	public List<ResourceChangeEventJson> getEvents(long timestampEqualOrGreater) {
+
+		List<ResourceChangeEventJson> result = new ArrayList<>();
+
+		// The segments before the first whose events include one >= the timestamp
+		// cannot contain a match.
+		List<Segment> snapshot = new ArrayList<>(segments);
+		int first = 0;
+		while (first < snapshot.size() - 1 && snapshot.get(first).maxTime < timestampEqualOrGreater) {
+			first++;
+		}
+
+		for (int x = first; x < snapshot.size(); x++) {
+			Segment segment = snapshot.get(x);
+
+			// The index may include a record that is still being appended
+			long end = segment.size;
+			long start = x == first ? Math.min(segment.findStartOffset(timestampEqualOrGreater), end) : 0;
+
+			try {
+				readRecords(segment.read(start, end), timestampEqualOrGreater, result);
+			} catch (ClosedChannelException e) {
+				if (!segment.isClosed()) {
+					GHApiUtil.throwAsUnchecked(e);
+				}
+				// Otherwise, the segment was deleted by the retention thread after the
+				// snapshot, so its events have all expired.
+			} catch (IOException e) {
+				GHApiUtil.throwAsUnchecked(e);
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Returns the events with a time >= the given timestamp that match the filter,
+	 * in append order; where the filter selects owners or repositories, only the
+	 * records of those repositories are read (see Segment.findRecords(...)).
+	 */
+	public List<ResourceChangeEventJson> getEvents(long timestampEqualOrGreater, ResourceChangeEventFilter filter) {
+
+		if (!filter.hasOwnerOrRepoCriteria()) {
+			return getEvents(timestampEqualOrGreater).stream().filter(e -> filter.matches(e))
+					.collect(Collectors.toList());
+		}
+
+		List<ResourceChangeEventJson> result = new ArrayList<>();
+
+		for (Segment segment : new ArrayList<>(segments)) {
+
+			// As above, the segment cannot contain a match
+			if (segment.maxTime < timestampEqualOrGreater) {
+				continue;
+			}
+
+			try {
+				for (RecordRef ref : segment.findRecords(filter, 0, Integer.MAX_VALUE)) {
+					readRecords(segment.read(ref.offset, ref.offset + ref.length), timestampEqualOrGreater, result);
+				}
+			} catch (ClosedChannelException e) {
+				if (!segment.isClosed()) {
+					GHApiUtil.throwAsUnchecked(e);
+				}
+				// Otherwise, the segment has expired, as above.
+			} catch (IOException e) {
+				GHApiUtil.throwAsUnchecked(e);
+			}
+		}
+
+		return result.stream().filter(e -> filter.matches(e)).collect(Collectors.toList());
+	}
+
+	/**
+	 * Returns up to 'limit' durable events with a sequence number greater than the
+	 * given sequence number, in sequence number order.
+	 */
+	public List<ResourceChangeEventJson> getEventsAfter(long sequence, int limit) {
+
+		List<ResourceChangeEventJson> result = new ArrayList<>();
+
+		long durable = durableSequence.get();
+
+		for (Segment segment : new ArrayList<>(segments)) {
+
+			long end = segment.size;
+			int recordCount = segment.recordCount; // Read after the size, so it includes every record before it
+
+			// Skip the segments written before sequence numbers were assigned, and those
+			// that precede the sequence number.
+			if (segment.firstSequence <= 0 || segment.firstSequence + recordCount - 1 <= sequence) {
+				continue;
+			}
+
+			long firstOrdinal = Math.max(0, sequence + 1 - segment.firstSequence);
+			long position = Math.min(segment.findStartOffsetOfRecord(firstOrdinal), end);
+
+			try {
+				while (position < end && result.size() < limit) {
+					List<ResourceChangeEventJson> events = new ArrayList<>();
+
+					byte[] contents = segment.read(position, Math.min(end, position + READ_CHUNK_SIZE_IN_BYTES));
+					int length = readRecords(contents, Long.MIN_VALUE, events);
+					if (length == 0) {
+						// A record larger than the chunk
+						contents = segment.read(position, end);
+						length = readRecords(contents, Long.MIN_VALUE, events);
+						if (length == 0) {
+							break;
+						}
+					}
+					position += length;
+
+					for (ResourceChangeEventJson event : events) {
+						if (event.getSequence() > durable) {
+							return result;
+						}
+						if (event.getSequence() > sequence && result.size() < limit) {
+							result.add(event);
+						}
+					}
+				}
+			} catch (ClosedChannelException e) {
+				if (!segment.isClosed()) {
+					GHApiUtil.throwAsUnchecked(e);
+				}
+				// Otherwise, the segment has expired, as above.
+			} catch (IOException e) {
+				GHApiUtil.throwAsUnchecked(e);
+			}
+
+			if (result.size() >= limit) {
+				break;
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Returns up to 'limit' durable events that match the filter, with a sequence
+	 * number greater than the given sequence number, in sequence number order; the
+	 * page's last sequence number is the cursor for the next request. If the
+	 * filter selects owners or repositories, only their records are read.
+	 */
+	public ResourceChangeEventPageJson getEventsAfter(long sequence, int limit, ResourceChangeEventFilter filter) {
+
+		if (!filter.hasOwnerOrRepoCriteria()) {
+			return DatabaseUtil.scanResourceChangeEventsAfter(sequence, limit, filter, this::getEventsAfter);
+		}
+
+		List<ResourceChangeEventJson> result = new ArrayList<>();
+
+		long durable = durableSequence.get();
+
+		for (Segment segment : new ArrayList<>(segments)) {
+
+			int recordCount = segment.recordCount;
+			if (segment.firstSequence <= 0 || segment.firstSequence + recordCount - 1 <= sequence) {
+				continue;
+			}
+
+			long firstOrdinal = Math.max(0, sequence + 1 - segment.firstSequence);
+
+			try {
+				for (RecordRef ref : segment.findRecords(filter, firstOrdinal, limit - result.size())) {
+
+					long eventSequence = segment.firstSequence + ref.ordinal;
+					if (eventSequence > durable) {
+						return DatabaseUtil.createResourceChangeEventPage(result, Math.max(sequence, durable));
+					}
+
+					readRecords(segment.read(ref.offset, ref.offset + ref.length), Long.MIN_VALUE, result);
+
+					if (result.size() >= limit) {
+						return DatabaseUtil.createResourceChangeEventPage(result, eventSequence);
+					}
+				}
+			} catch (ClosedChannelException e) {
+				if (!segment.isClosed()) {
+					GHApiUtil.throwAsUnchecked(e);
+				}
+				// Otherwise, the segment has expired, as above.
+			} catch (IOException e) {
+				GHApiUtil.throwAsUnchecked(e);
+			}
+		}
+
+		return DatabaseUtil.createResourceChangeEventPage(result, Math.max(sequence, durable));
+	}
+
+	/**
+	 * Delete the (non-active) segments whose events are all older than the
+	 * retention period; the last segment is always kept, as it holds the last
+	 * sequence number.
+	 */
+	public void expireSegments() {
+		long expireTimestamp = System.currentTimeMillis() - retentionInMsecs;
+
+		List<Segment> snapshot = new ArrayList<>(segments);
+
+		for (Segment segment : snapshot) {
+			synchronized (writeLock) {
+				if (segment == activeSegment_synch_writeLock || segment == snapshot.get(snapshot.size() - 1)) {
+					continue;
+				}
+			}
+
+			if (segment.localMaxTime < expireTimestamp) {
+				segments.remove(segment);
+				segment.delete();
+			}
+		}
+	}
+
+	public void close() {
+		retentionThread.interrupt();
+		synchronized (writeLock) {
+			segments.forEach(e -> e.close());
+			segments.clear();
+			activeSegment_synch_writeLock = null;
+		}
+	}
+
+	// ------------------------------------------------------------------------
+
+	/**
+	 * Read all the events of the journal in the given directory, without opening
+	 * it for writes (and without modifying it).
+	 */
+	public static List<ResourceChangeEventJson> readEvents(File directory) {
+		List<ResourceChangeEventJson> result = new ArrayList<>();
+
+		for (int id : listSegmentIds(directory)) {
+			try {
+				readRecords(Files.readAllBytes(segmentFile(directory, id).toPath()), 0, result);
+			} catch (IOException e) {
+				GHApiUtil.throwAsUnchecked(e);
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Parse the records, adding the events >= the timestamp to the result, and
+	 * return the length of the valid records (those before the first incomplete or
+	 * corrupt record).
+	 */
+	private static int readRecords(byte[] contents, long timestampEqualOrGreater,
+			List<ResourceChangeEventJson> result) throws IOException {
+
+		ByteBuffer buffer = ByteBuffer.wrap(contents);
+
+		while (buffer.remaining() >= RECORD_HEADER_SIZE) {
+			int position = buffer.position();
+
+			int crcValue = buffer.getInt();
+			long time = buffer.getLong();
+			int length = buffer.getInt();
+
+			if (length < 0 || length > buffer.remaining() || (int) computeCrc(contents, position, length) != crcValue) {
+				return position;
+			}
+
+			if (time >= timestampEqualOrGreater && result != null) {
+				result.add(om.readValue(contents, buffer.position(), length, ResourceChangeEventJson.class));
+			}
+
+			buffer.position(buffer.position() + length);
+		}
+
+		return buffer.position();
+	}
+
+	private static ByteBuffer encodeRecord(long time, byte[] payload) {
+		if (payload.length > MAX_RECORD_SIZE) {
+			throw new IllegalArgumentException("Event is too large: " + payload.length);
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_SIZE + payload.length);
+		buffer.putInt(0); // crc, filled in below
+		buffer.putLong(time);
+		buffer.putInt(payload.length);
+		buffer.put(payload);
+
+		buffer.putInt(0, (int) computeCrc(buffer.array(), 0, payload.length));
+
+		buffer.flip();
+		return buffer;
+	}
+
+	/** The CRC of the record at the given position: its time, length, and payload. */
+	private static long computeCrc(byte[] contents, int position, int payloadLength) {
+		CRC32 crc = new CRC32();
+		crc.update(contents, position + 4, RECORD_HEADER_SIZE - 4 + payloadLength);
+		return crc.getValue();
+	}
+
+	private static List<Integer> listSegmentIds(File directory) {
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return Collections.emptyList();
+		}
+
+		return Arrays.asList(files).stream().map(e -> e.getName())
+				.filter(e -> e.startsWith(SEGMENT_PREFIX) && e.endsWith(SEGMENT_SUFFIX))
+				.map(e -> Integer.parseInt(e.substring(SEGMENT_PREFIX.length(), e.length() - SEGMENT_SUFFIX.length())))
+				.sorted().collect(Collectors.toList());
+	}
+
+	private static File segmentFile(File directory, int id) {
+		return new File(directory, SEGMENT_PREFIX + String.format("%08d", id) + SEGMENT_SUFFIX);
+	}
+
+	/**
+	 * Open the segment (creating it if it does not exist), and rebuild its index
+	 * from its records, truncating any torn record at the end.
+	 */
+	private Segment openSegment(int id, long maxTimeBefore) {
+		File file = segmentFile(directory, id);
+
+		if (!file.exists()) {
+			return new Segment(file, maxTimeBefore, 0, false);
+		}
+
+		Segment segment;
+
+		try {
+			byte[] contents = Files.readAllBytes(file.toPath());
+
+			ByteBuffer buffer = ByteBuffer.wrap(contents);
+			int validLength = readRecords(contents, Long.MAX_VALUE, null);
+
+			// Sequence numbers are consecutive within a segment, so only the first record
+			// needs to be parsed.
+			long firstSequence = 0;
+			if (validLength > 0) {
+				firstSequence = om.readValue(contents, RECORD_HEADER_SIZE, buffer.getInt(12),
+						ResourceChangeEventJson.class).getSequence();
+			}
+
+			segment = new Segment(file, maxTimeBefore, firstSequence, false);
+
+			while (buffer.position() < validLength) {
+				int position = buffer.position();
+				long time = buffer.getLong(position + 4);
+				int length = buffer.getInt(position + 12);
+				segment.addRecord(position, RECORD_HEADER_SIZE + length, time);
+				buffer.position(position + RECORD_HEADER_SIZE + length);
+			}
+
+			if (validLength < contents.length) {
+				log.logError("Truncating journal segment " + file.getName() + " from " + contents.length + " to "
+						+ validLength + " bytes.");
+				segment.truncate(validLength);
+			}
+
+		} catch (IOException e) {
+			throw new RuntimeException("Unable to open journal segment: " + file, e);
+		}
+
+		return segment;
+	}
+
+	/** A single segment file, and its sparse index. */
+	private static class Segment {
+
+		private final File file;
+
+		private final long created = System.currentTimeMillis();
+
+		private final Object lock = new Object();
+
+		private FileChannel channel_synch_lock;
+
+		/** Set once the segment is deleted (or the journal closed) */
+		private boolean closed_synch_lock = false;
+
+		/** Offsets of the indexed records */
+		private long[] indexOffsets_synch_lock = new long[16];
+
+		/** The greatest event time in the journal before each indexed record */
+		private long[] indexMaxTimes_synch_lock = new long[16];
+
+		/** The ordinal of each indexed record in the segment */
+		private int[] indexOrdinals_synch_lock = new int[16];
+
+		private int indexSize_synch_lock = 0;
+
+		/** The size of the complete records in the segment */
+		private volatile long size = 0;
+
+		/** The greatest event time in the journal, up to the end of this segment */
+		private volatile long maxTime;
+
+		/** The greatest event time in this segment */
+		private volatile long localMaxTime = 0;
+
+		/**
+		 * The sequence number of the first record, or 0 if the segment was written
+		 * before sequence numbers were assigned.
+		 */
+		private final long firstSequence;
+
+		/** The number of complete records in the segment */
+		private volatile int recordCount = 0;
+
+		/**
+		 * The records of each repository (by ResourceChangeEventFilter.repoKey(...)),
+		 * or null until built, for a segment opened on startup.
+		 */
+		private TreeMap<String, RepoRecords> repoIndex_synch_lock;
+
+		/**
+		 * An active segment is one that was created for appends, whose repository
+		 * index is maintained as records are appended.
+		 */
+		Segment(File file, long maxTimeBefore, long firstSequence, boolean active) {
+			this.file = file;
+			this.maxTime = maxTimeBefore;
+			this.firstSequence = firstSequence;
+			this.repoIndex_synch_lock = active ? new TreeMap<>() : null;
+		}
+
+		private FileChannel getChannel() throws IOException {
+			synchronized (lock) {
+				if (closed_synch_lock) {
+					throw new ClosedChannelException();
+				}
+
+				// An interrupt of a thread using the channel (for example, from WorkerThread's
+				// TimeOutThread) closes it for all threads, so it must be reopened.
+				if (channel_synch_lock == null || !channel_synch_lock.isOpen()) {
+					channel_synch_lock = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+							StandardOpenOption.READ, StandardOpenOption.WRITE);
+				}
+				return channel_synch_lock;
+			}
+		}
+
+		/** Called while holding the journal's write lock. */
+		void append(ByteBuffer record, long time, long maxTimeBefore, ResourceChangeEventJson event) {
+			long position = size;
+			int length = record.remaining();
+
+			try {
+				FileChannel channel = getChannel();
+				long writePosition = position;
+				while (record.hasRemaining()) {
+					writePosition += channel.write(record, writePosition);
+				}
+			} catch (IOException e) {
+				GHApiUtil.throwAsUnchecked(e);
+			}
+
+			addRecord(position, length, time, maxTimeBefore, event);
+		}
+
+		/** Add a record that was read on startup. */
+		void addRecord(long position, int length, long time) {
+			addRecord(position, length, time, maxTime, null);
+		}
+
+		private void addRecord(long position, int length, long time, long maxTimeBefore,
+				ResourceChangeEventJson event) {
+			synchronized (lock) {
+				if (repoIndex_synch_lock != null && event != null) {
+					repoIndex_synch_lock
+							.computeIfAbsent(ResourceChangeEventFilter.repoKey(event.getOwner(), event.getRepo()),
+									e -> new RepoRecords())
+							.add(recordCount, event.getIssueNumber(), position, length);
+				}
+
+				int indexSize = indexSize_synch_lock;
+				if (indexSize == 0 || position - indexOffsets_synch_lock[indexSize - 1] >= INDEX_INTERVAL_IN_BYTES) {
+					if (indexSize == indexOffsets_synch_lock.length) {
+						indexOffsets_synch_lock = Arrays.copyOf(indexOffsets_synch_lock, indexSize * 2);
+						indexMaxTimes_synch_lock = Arrays.copyOf(indexMaxTimes_synch_lock, indexSize * 2);
+						indexOrdinals_synch_lock = Arrays.copyOf(indexOrdinals_synch_lock, indexSize * 2);
+					}
+					indexOffsets_synch_lock[indexSize] = position;
+					indexMaxTimes_synch_lock[indexSize] = maxTimeBefore;
+					indexOrdinals_synch_lock[indexSize] = recordCount;
+					indexSize_synch_lock++;
+				}
+			}
+
+			localMaxTime = Math.max(localMaxTime, time);
+			maxTime = Math.max(maxTimeBefore, time);
+			recordCount++;
+			size = position + length; // Published last, so readers only see complete records
+		}
+
+		/**
+		 * Returns the offset of the last indexed record before which there is no event
+		 * >= the timestamp.
+		 */
+		long findStartOffset(long timestampEqualOrGreater) {
+			synchronized (lock) {
+				int low = 0;
+				int high = indexSize_synch_lock - 1;
+				int result = -1;
+				while (low <= high) {
+					int mid = (low + high) >>> 1;
+					if (indexMaxTimes_synch_lock[mid] < timestampEqualOrGreater) {
+						result = mid;
+						low = mid + 1;
+					} else {
+						high = mid - 1;
+					}
+				}
+				return result >= 0 ? indexOffsets_synch_lock[result] : 0;
+			}
+		}
+
+		/** Returns the offset of the last indexed record at or before the given ordinal. */
+		long findStartOffsetOfRecord(long ordinal) {
+			synchronized (lock) {
+				int low = 0;
+				int high = indexSize_synch_lock - 1;
+				int result = -1;
+				while (low <= high) {
+					int mid = (low + high) >>> 1;
+					if (indexOrdinals_synch_lock[mid] <= ordinal) {
+						result = mid;
+						low = mid + 1;
+					} else {
+						high = mid - 1;
+					}
+				}
+				return result >= 0 ? indexOffsets_synch_lock[result] : 0;
+			}
+		}
+
+		/**
+		 * Returns up to 'limit' of the records at or after the given ordinal that match
+		 * the filter's owners, repositories and issue numbers, in ordinal order.
+		 */
+		List<RecordRef> findRecords(ResourceChangeEventFilter filter, long firstOrdinal, int limit)
+				throws IOException {
+
+			TreeMap<String, RepoRecords> repoIndex = getRepoIndex();
+
+			List<RecordRef> result = new ArrayList<>();
+
+			synchronized (lock) {
+				Set<RepoRecords> matching = new LinkedHashSet<>();
+				for (String owner : filter.getOwners()) {
+					// '0' is the character after '/'
+					matching.addAll(repoIndex.subMap(owner + "/", owner + "0").values());
+				}
+				for (String repo : filter.getRepos()) {
+					RepoRecords records = repoIndex.get(repo);
+					if (records != null) {
+						matching.add(records);
+					}
+				}
+
+				// At most 'limit' records are needed from each repository
+				for (RepoRecords records : matching) {
+					records.find(firstOrdinal, filter, limit, result);
+				}
+			}
+
+			result.sort((a, b) -> Integer.compare(a.ordinal, b.ordinal));
+
+			return result.size() > limit ? new ArrayList<>(result.subList(0, limit)) : result;
+		}
+
+		/** Returns the repository index, building it if this is a segment opened on startup. */
+		private TreeMap<String, RepoRecords> getRepoIndex() throws IOException {
+			synchronized (lock) {
+				if (repoIndex_synch_lock != null) {
+					return repoIndex_synch_lock;
+				}
+			}
+
+			// A segment opened on startup is never appended to, and its records were
+			// validated (and any torn record truncated) when it was opened.
+			TreeMap<String, RepoRecords> repoIndex = new TreeMap<>();
+
+			byte[] contents = read(0, size);
+			ByteBuffer buffer = ByteBuffer.wrap(contents);
+			int ordinal = 0;
+			while (buffer.position() < contents.length) {
+				int position = buffer.position();
+				int length = buffer.getInt(position + 12);
+
+				ResourceChangeEventJson event = om.readValue(contents, position + RECORD_HEADER_SIZE, length,
+						ResourceChangeEventJson.class);
+				repoIndex.computeIfAbsent(ResourceChangeEventFilter.repoKey(event.getOwner(), event.getRepo()),
+						e -> new RepoRecords()).add(ordinal++, event.getIssueNumber(), position,
+								RECORD_HEADER_SIZE + length);
+
+				buffer.position(position + RECORD_HEADER_SIZE + length);
+			}
+
+			synchronized (lock) {
+				if (repoIndex_synch_lock == null) {
+					repoIndex_synch_lock = repoIndex;
+				}
+				return repoIndex_synch_lock;
+			}
+		}
+
+		byte[] read(long start, long end) throws IOException {
+			ByteBuffer buffer = ByteBuffer.allocate((int) (end - start));
+			FileChannel channel = getChannel();
+			while (buffer.hasRemaining()) {
+				int bytesRead = channel.read(buffer, start + buffer.position());
+				if (bytesRead < 0) {
+					throw new IOException("Unexpected end of journal segment: " + file);
+				}
+			}
+			return buffer.array();
+		}
+
+		void force() {
+			try {
+				getChannel().force(false);
+			} catch (IOException e) {
+				GHApiUtil.throwAsUnchecked(e);
+			}
+		}
+
+		void truncate(long newSize) throws IOException {
+			getChannel().truncate(newSize);
+		}
+
+		boolean isClosed() {
+			synchronized (lock) {
+				return closed_synch_lock;
+			}
+		}
+
+		void close() {
+			synchronized (lock) {
+				closed_synch_lock = true;
+				if (channel_synch_lock != null) {
+					try {
+						channel_synch_lock.close();
+					} catch (IOException e) {
+						/* ignore */
+					}
+				}
+			}
+		}
+
+		void delete() {
+			close();
+			if (file.exists() && !file.delete()) {
+				log.logError("Unable to delete journal segment: " + file);
+			}
+		}
+	}
+
+	/** The records of a single repository in a segment, in ordinal order. */
+	private static class RepoRecords {
+		private int size = 0;
+		private int[] ordinals = new int[4];
+		private int[] issueNumbers = new int[4];
+		private long[] offsets = new long[4];
+		private int[] lengths = new int[4];
+
+		void add(int ordinal, int issueNumber, long offset, int length) {
+			if (size == ordinals.length) {
+				ordinals = Arrays.copyOf(ordinals, size * 2);
+				issueNumbers = Arrays.copyOf(issueNumbers, size * 2);
+				offsets = Arrays.copyOf(offsets, size * 2);
+				lengths = Arrays.copyOf(lengths, size * 2);
+			}
+			ordinals[size] = ordinal;
+			issueNumbers[size] = issueNumber;
+			offsets[size] = offset;
+			lengths[size] = length;
+			size++;
+		}
+
+		/** Add up to 'limit' records at or after the ordinal, in the filter's issue range. */
+		void find(long firstOrdinal, ResourceChangeEventFilter filter, int limit, List<RecordRef> result) {
+			int x = Arrays.binarySearch(ordinals, 0, size, (int) Math.min(firstOrdinal, Integer.MAX_VALUE));
+			if (x < 0) {
+				x = -(x + 1);
+			}
+
+			for (int added = 0; x < size && added < limit; x++) {
+				if (issueNumbers[x] >= filter.getMinIssueNumber() && issueNumbers[x] <= filter.getMaxIssueNumber()) {
+					result.add(new RecordRef(ordinals[x], offsets[x], lengths[x]));
+					added++;
+				}
+			}
+		}
+	}
+
+	/** The location of a record in a segment. */
+	private static class RecordRef {
+		private final int ordinal;
+		private final long offset;
+		private final int length;
+
+		RecordRef(int ordinal, long offset, int length) {
+			this.ordinal = ordinal;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	/** Periodically deletes expired segments. */
+	private class RetentionThread extends Thread {
+
+		public RetentionThread() {
+			setName(RetentionThread.class.getName());
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			while (!isInterrupted()) {
+				try {
+					Thread.sleep(RETENTION_CHECK_INTERVAL_IN_MSECS);
+				} catch (InterruptedException e) {
+					return;
+				}
+
+				try {
+					expireSegments();
+				} catch (Exception e) {
+					// Log and ignore
+					log.logError("Exception occured in " + this.getClass().getSimpleName() + ",", e);
+				}
+			}
+		}
+	}
+
+}
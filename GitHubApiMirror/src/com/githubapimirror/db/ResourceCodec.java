@@ -0,0 +1,304 @@
+/*
+ * Copyright 2021 Jonathan West
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.githubapimirror.db;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.githubapimirror.shared.GHApiUtil;
+
+/**
+ * Encodes resources for storage in one of several formats: JSON, Smile (a
+ * binary encoding of JSON), or JSON compressed with DEFLATE using an optional
+ * preset dictionary.
+ *
+ * The format of a stored value is identified by its first bytes, so values in
+ * any format can be read, regardless of the format currently used for writes;
+ * JSON values (including all those written by earlier versions) have no header.
+ *
+ * A preset dictionary is trained from a sample of stored resources (see
+ * trainDictionary(...)), and is identified by its Adler-32 checksum, which is
+ * recorded in each value compressed with it. A dictionary must have been added
+ * to the codec before the values compressed with it can be read, so databases
+ * store their dictionaries alongside their resources.
+ *
+ * This class is thread safe.
+ */
+public class ResourceCodec {
+
+	public enum Format {
+		JSON, SMILE, DEFLATE
+	}
+
+	/** Values in the DEFLATE format are this header followed by a zlib stream. */
+	private static final byte[] DEFLATE_HEADER = new byte[] { 0, 'G', 'H', 'Z' };
+
+	/** Smile documents start with ':)\n', which a JSON document cannot. */
+	private static final byte[] SMILE_HEADER = new byte[] { ':', ')', '\n' };
+
+	public static final int DEFAULT_DICTIONARY_SIZE_IN_BYTES = 16 * 1024;
+
+	/** Strings longer than this are unlikely to be repeated across resources */
+	private static final int MAX_DICTIONARY_STRING_LENGTH = 64;
+
+	private static final ObjectMapper jsonMapper = new ObjectMapper();
+
+	private static final ObjectMapper smileMapper = new ObjectMapper(new SmileFactory());
+
+	private static final ThreadLocal<Deflater> deflaters = ThreadLocal.withInitial(() -> new Deflater());
+
+	private static final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(() -> new Inflater());
+
+	private final Format format;
+
+	/** Adler-32 checksum of the dictionary -> dictionary */
+	private final Map<Integer, byte[]> dictionaries = new ConcurrentHashMap<>();
+
+	/** The dictionary used to compress new values, or null if none. */
+	private volatile byte[] writeDictionary;
+
+	public ResourceCodec(Format format) {
+		this.format = format;
+	}
+
+	/** The format used to encode new values. */
+	public Format getFormat() {
+		return format;
+	}
+
+	/** The format of the given stored value. */
+	public static Format getFormat(byte[] stored) {
+		if (startsWith(stored, DEFLATE_HEADER)) {
+			return Format.DEFLATE;
+		}
+		if (startsWith(stored, SMILE_HEADER)) {
+			return Format.SMILE;
+		}
+		return Format.JSON;
+	}
+
+	/**
+	 * Add a dictionary that values may have been compressed with, optionally also
+	 * using it to compress new values.
+	 */
+	public void addDictionary(byte[] dictionary, boolean useForWrites) {
+		dictionaries.put(getDictionaryId(dictionary), dictionary);
+		if (useForWrites) {
+			writeDictionary = dictionary;
+		}
+	}
+
+	public boolean hasWriteDictionary() {
+		return writeDictionary != null;
+	}
+
+	public List<byte[]> getDictionaries() {
+		return new ArrayList<>(dictionaries.values());
+	}
+
+	public static int getDictionaryId(byte[] dictionary) {
+		Adler32 adler = new Adler32();
+		adler.update(dictionary);
+		return (int) adler.getValue();
+	}
+
+	public byte[] encode(Object value) {
+		try {
+			switch (format) {
+			case SMILE:
+				return smileMapper.writeValueAsBytes(value);
+			case DEFLATE:
+				return compress(jsonMapper.writeValueAsBytes(value));
+			default:
+				return jsonMapper.writeValueAsBytes(value);
+			}
+		} catch (Exception e) {
+			GHApiUtil.throwAsUnchecked(e);
+			return null;
+		}
+	}
+
+	public <T> T decode(byte[] stored, Class<T> c) {
+		try {
+			switch (getFormat(stored)) {
+			case SMILE:
+				return smileMapper.readValue(stored, c);
+			case DEFLATE:
+				return jsonMapper.readValue(decompress(stored), c);
+			default:
+				return jsonMapper.readValue(stored, c);
+			}
+		} catch (Exception e) {
+			GHApiUtil.throwAsUnchecked(e);
+			return null;
+		}
+	}
+
+	/** Returns the JSON of the stored value; JSON values are returned as is. */
+	public byte[] toJson(byte[] stored) {
+		try {
+			switch (getFormat(stored)) {
+			case SMILE:
+				return jsonMapper.writeValueAsBytes(smileMapper.readTree(stored));
+			case DEFLATE:
+				return decompress(stored);
+			default:
+				return stored;
+			}
+		} catch (Exception e) {
+			GHApiUtil.throwAsUnchecked(e);
+			return null;
+		}
+	}
+
+	private byte[] compress(byte[] json) {
+		byte[] dictionary = writeDictionary;
+
+		Deflater deflater = deflaters.get();
+		deflater.reset();
+		if (dictionary != null) {
+			deflater.setDictionary(dictionary);
+		}
+		deflater.setInput(json);
+		deflater.finish();
+
+		ByteArrayOutputStream result = new ByteArrayOutputStream(json.length / 4 + DEFLATE_HEADER.length);
+		result.write(DEFLATE_HEADER, 0, DEFLATE_HEADER.length);
+
+		byte[] buffer = new byte[8 * 1024];
+		while (!deflater.finished()) {
+			int length = deflater.deflate(buffer);
+			result.write(buffer, 0, length);
+		}
+
+		return result.toByteArray();
+	}
+
+	private byte[] decompress(byte[] stored) throws DataFormatException {
+		Inflater inflater = inflaters.get();
+		inflater.reset();
+		inflater.setInput(stored, DEFLATE_HEADER.length, stored.length - DEFLATE_HEADER.length);
+
+		ByteArrayOutputStream result = new ByteArrayOutputStream(stored.length * 4);
+
+		byte[] buffer = new byte[8 * 1024];
+		while (!inflater.finished()) {
+			int length = inflater.inflate(buffer);
+			if (length == 0) {
+				if (inflater.needsDictionary()) {
+					byte[] dictionary = dictionaries.get(inflater.getAdler());
+					if (dictionary == null) {
+						throw new RuntimeException(
+								"Value was compressed with an unknown dictionary: " + Integer.toHexString(inflater.getAdler()));
+					}
+					inflater.setDictionary(dictionary);
+				} else if (inflater.needsInput()) {
+					throw new RuntimeException("Compressed value is truncated.");
+				}
+			}
+			result.write(buffer, 0, length);
+		}
+
+		return result.toByteArray();
+	}
+
+	/**
+	 * Build a preset dictionary from a sample of JSON resources. The dictionary
+	 * contains the field names and short string values that occur in the most
+	 * resources, weighted by their length; the most valuable are placed at the
+	 * end, as DEFLATE encodes nearer matches in fewer bits.
+	 */
+	public static byte[] trainDictionary(Collection<byte[]> jsonSamples, int maxSizeInBytes) {
+
+		// fragment -> number of samples that contain it
+		Map<String, Integer> sampleCounts = new HashMap<>();
+
+		for (byte[] sample : jsonSamples) {
+			Set<String> fragments = new HashSet<>();
+
+			try (JsonParser parser = jsonMapper.getFactory().createParser(sample)) {
+				JsonToken token;
+				while ((token = parser.nextToken()) != null) {
+					if (token == JsonToken.FIELD_NAME) {
+						fragments.add("\"" + parser.getCurrentName() + "\":");
+					} else if (token == JsonToken.VALUE_STRING
+							&& parser.getTextLength() <= MAX_DICTIONARY_STRING_LENGTH) {
+						fragments.add("\"" + parser.getText() + "\"");
+					}
+				}
+			} catch (Exception e) {
+				GHApiUtil.throwAsUnchecked(e);
+			}
+
+			fragments.forEach(e -> sampleCounts.merge(e, 1, Integer::sum));
+		}
+
+		// Fragments that occur in only one sample are not worth including
+		List<Map.Entry<String, Integer>> entries = new ArrayList<>();
+		sampleCounts.entrySet().stream().filter(e -> e.getValue() > 1).forEach(e -> entries.add(e));
+
+		entries.sort((a, b) -> Long.compare((long) b.getValue() * b.getKey().length(),
+				(long) a.getValue() * a.getKey().length()));
+
+		List<byte[]> selected = new ArrayList<>();
+		int size = 0;
+		for (Map.Entry<String, Integer> entry : entries) {
+			byte[] fragment = entry.getKey().getBytes(StandardCharsets.UTF_8);
+			if (size + fragment.length <= maxSizeInBytes) {
+				selected.add(fragment);
+				size += fragment.length;
+			}
+		}
+
+		ByteArrayOutputStream result = new ByteArrayOutputStream(size);
+		for (int x = selected.size() - 1; x >= 0; x--) {
+			byte[] fragment = selected.get(x);
+			result.write(fragment, 0, fragment.length);
+		}
+
+		return result.toByteArray();
+	}
+
+	private static boolean startsWith(byte[] value, byte[] prefix) {
+		if (value.length < prefix.length) {
+			return false;
+		}
+		for (int x = 0; x < prefix.length; x++) {
+			if (value[x] != prefix[x]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+}
@@ -0,0 +1,1583 @@
+/*
+ * Copyright 2021 Jonathan West
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.githubapimirror.db;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Optional;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import com.githubapimirror.GHLog;
+import com.githubapimirror.shared.GHApiUtil;
+import com.githubapimirror.shared.Owner;
+import com.githubapimirror.shared.ResourceChangeEventFilter;
+import com.githubapimirror.shared.json.IssueJson;
+import com.githubapimirror.shared.json.OrganizationJson;
+import com.githubapimirror.shared.json.RepositoryJson;
+import com.githubapimirror.shared.json.ResourceChangeEventJson;
+import com.githubapimirror.shared.json.ResourceChangeEventPageJson;
+import com.githubapimirror.shared.json.UserJson;
+import com.githubapimirror.shared.json.UserRepositoriesJson;
+
+/**
+ * Persists the GH JSON resources to a small number of append-only segment
+ * files, rather than one file per resource (as is the case with
+ * PersistJsonDb).
+ *
+ * Every write appends a record (key and JSON value) to the end of the active
+ * segment; an in-memory index maps each key to the (segment, offset, length) of
+ * its most recent record, so a read is a single positional read. When the
+ * active segment grows past a fixed size a new segment is started. A background
+ * thread compacts older segments whose contents are mostly overwritten, by
+ * copying their live records to the active segment and deleting them.
+ *
+ * On startup the segments are replayed in order to rebuild the index; each
+ * record is protected by a CRC, and a torn record at the end of a segment (for
+ * example, from a crash mid-write) is truncated.
+ *
+ * Resource values are encoded with a ResourceCodec, in the format given in the
+ * constructor; the format is recorded in each value, so values written in an
+ * earlier format remain readable after it is changed. As with PersistJsonDb,
+ * the DEFLATE format uses a dictionary trained from the issues in the database
+ * on startup, which is stored as a record of the store.
+ * 
+ * Resource change events are keyed by time; each also has a record keyed by
+ * its sequence number, whose value is the key of the event, so that events can
+ * be read in sequence number order. The last sequence number is recorded
+ * before any of these records is deleted (on expiry), so that sequence numbers
+ * always increase. Likewise, each event has a record keyed by its (lowercase)
+ * repository and sequence number, so that the events of a repository, or of
+ * all the repositories of an owner, can be read without reading the others.
+ * Events are only read once they are durable, so that a reader never sees an
+ * event that could be lost on a crash (and its sequence number reused).
+ * 
+ * This class is thread safe. Reads do not acquire any locks; writes are
+ * serialized on the active segment.
+ */
+public class SegmentStoreDb implements Database {
+
+	static final String SEGMENTS_DIRECTORY = "segments";
+
+	private static final String SEGMENT_PREFIX = "segment-";
+	private static final String SEGMENT_SUFFIX = ".log";
+
+	private static final byte TYPE_PUT = 1;
+	private static final byte TYPE_DELETE = 2;
+
+	/** crc (int) + type (byte) + key length (int) + value length (int) */
+	private static final int RECORD_HEADER_SIZE = 4 + 1 + 4 + 4;
+
+	private static final int MAX_KEY_SIZE = 64 * 1024;
+
+	private static final long DEFAULT_MAX_SEGMENT_SIZE_IN_BYTES = 64 * 1024 * 1024;
+
+	/** Segments with less than this ratio of live data are compacted. */
+	private static final double COMPACTION_LIVE_RATIO = 0.5d;
+
+	private static final long COMPACTION_INTERVAL_IN_MSECS = TimeUnit.MILLISECONDS.convert(1, TimeUnit.MINUTES);
+
+	// Key prefixes for each resource type; everything after the prefix is
+	// generated using DatabaseUtil.
+	private static final String PREFIX_ISSUE = "issue/";
+	private static final String PREFIX_REPO = "repo/";
+	private static final String PREFIX_ORG = "org/";
+	private static final String PREFIX_USER_REPOS = "userrepos/";
+	private static final String PREFIX_KEY = "key/";
+	private static final String PREFIX_EVENT = "event/";
+	private static final String PREFIX_EVENT_END = "event0"; // '0' is the character after '/'
+	private static final String PREFIX_EVENT_SEQUENCE = "event-sequence/";
+	private static final String PREFIX_EVENT_SEQUENCE_END = "event-sequence0";
+	private static final String PREFIX_EVENT_REPO = "event-repo/";
+
+	/**
+	 * Events are persisted shortly after their time is set, so an event's time is
+	 * at most this much later than that of an event persisted after it.
+	 */
+	private static final long MAX_EVENT_TIME_SKEW_IN_MSECS = TimeUnit.MILLISECONDS.convert(1, TimeUnit.MINUTES);
+
+	private static final String KEY_LAST_EVENT_SEQUENCE = "metadata/last-event-sequence";
+
+	/** Present once every event in the store has a repository index record */
+	private static final String KEY_EVENT_REPO_INDEX = "metadata/event-repo-index";
+
+	/**
+	 * Processed events are stored as a series of records of fixed-width hashes
+	 * and event times (see ProcessedEventJournal), one per addition, keyed by a
+	 * counter, so that an addition writes only the new events. Once there are
+	 * more than MAX_PROCESSED_EVENTS_RECORDS, or events are expired, they are
+	 * merged into a single record.
+	 */
+	private static final String PREFIX_PROCESSED_EVENTS = "metadata/processed-events/";
+	private static final String PREFIX_PROCESSED_EVENTS_END = "metadata/processed-events0";
+
+	private static final int MAX_PROCESSED_EVENTS_RECORDS = 1000;
+
+	/** Earlier versions stored the hashes as a single (rewritten) list */
+	private static final String KEY_LEGACY_PROCESSED_EVENTS = "metadata/event-hashes";
+
+	/** ... and then as records of hashes without event times */
+	private static final String PREFIX_V1_PROCESSED_EVENTS = "metadata/event-hashes/";
+	private static final String PREFIX_V1_PROCESSED_EVENTS_END = "metadata/event-hashes0";
+
+	private static final String PREFIX_DICTIONARY = "metadata/dictionary/";
+
+	/** The number of issues sampled to train a compression dictionary */
+	private static final int DICTIONARY_SAMPLE_SIZE = 1000;
+
+	/** A dictionary is not trained from fewer issues than this */
+	private static final int MIN_DICTIONARY_SAMPLE_SIZE = 100;
+
+	private final static String KEY_GITHUB_CONTENTS_HASH = "GitHubContentsHash";
+
+
+	private static final GHLog log = GHLog.getInstance();
+
+	private final File outputDirectory;
+
+	private final File segmentDirectory;
+
+	private final long maxSegmentSizeInBytes;
+
+	private final ResourceCodec codec;
+
+	/** Most recent location of each key; deleted keys are not present. */
+	private final ConcurrentSkipListMap<String, RecordLocation> index = new ConcurrentSkipListMap<>();
+
+	private final Map<Integer /* segment id */, Segment> segments = new ConcurrentHashMap<>();
+
+	private final Object writeLock = new Object();
+
+	private Segment activeSegment_synch_writeLock;
+
+	private final Object processedEventsLock = new Object();
+
+	/** Serializes the assignment of event sequence numbers */
+	private final Object eventsLock = new Object();
+
+	private long lastEventSequence_synch_eventsLock;
+
+	/** Every event with a sequence number <= this is durable */
+	private final AtomicLong durableEventSequence = new AtomicLong();
+
+	private final AtomicBoolean initialized = new AtomicBoolean();
+
+	private final CompactionThread compactionThread;
+
+	/** Allows concurrent writers to share a single fsync of the active segment */
+	private final GroupCommit groupCommit;
+
+	public SegmentStoreDb(File outputDirectory) {
+		this(outputDirectory, DEFAULT_MAX_SEGMENT_SIZE_IN_BYTES);
+	}
+
+	public SegmentStoreDb(File outputDirectory, ResourceCodec.Format format) {
+		this(outputDirectory, DEFAULT_MAX_SEGMENT_SIZE_IN_BYTES, format);
+	}
+
+	public SegmentStoreDb(File outputDirectory, long maxSegmentSizeInBytes) {
+		this(outputDirectory, maxSegmentSizeInBytes, ResourceCodec.Format.JSON);
+	}
+
+	public SegmentStoreDb(File outputDirectory, long maxSegmentSizeInBytes, ResourceCodec.Format format) {
+		this.outputDirectory = outputDirectory;
+		this.segmentDirectory = new File(outputDirectory, SEGMENTS_DIRECTORY);
+		this.maxSegmentSizeInBytes = maxSegmentSizeInBytes;
+		this.codec = new ResourceCodec(format);
+
+		synchronized (writeLock) {
+			openSegments();
+		}
+
+		initialized.set(!index.isEmpty());
+
+		synchronized (eventsLock) {
+			lastEventSequence_synch_eventsLock = readLastEventSequence();
+			durableEventSequence.set(lastEventSequence_synch_eventsLock);
+		}
+
+		groupCommit = new GroupCommit(() -> {
+			Segment active;
+			synchronized (writeLock) {
+				active = activeSegment_synch_writeLock;
+			}
+			// If the active segment is rolled after this, the roll will have forced it.
+			active.force();
+		});
+
+		loadDictionaries();
+		if (format == ResourceCodec.Format.DEFLATE && !codec.hasWriteDictionary()) {
+			trainDictionary();
+		}
+
+		if (!index.containsKey(KEY_EVENT_REPO_INDEX)) {
+			indexEventsByRepo();
+		}
+
+		migrateProcessedEvents();
+
+		compactionThread = new CompactionThread();
+		compactionThread.start();
+	}
+
+	/**
+	 * Add the compression dictionaries in the store to the codec; the most recently
+	 * written (the one with the highest segment and offset) is used for writes.
+	 */
+	private void loadDictionaries() {
+		List<Map.Entry<String, RecordLocation>> entries = new ArrayList<>(
+				index.subMap(PREFIX_DICTIONARY, true, PREFIX_DICTIONARY + Character.MAX_VALUE, false).entrySet());
+
+		entries.sort((a, b) -> a.getValue().segmentId != b.getValue().segmentId
+				? Integer.compare(a.getValue().segmentId, b.getValue().segmentId)
+				: Long.compare(a.getValue().offset, b.getValue().offset));
+
+		for (int x = 0; x < entries.size(); x++) {
+			boolean useForWrites = x == entries.size() - 1;
+			get(entries.get(x).getKey()).ifPresent(e -> codec.addDictionary(e, useForWrites));
+		}
+	}
+
+	private void saveDictionary(byte[] dictionary) {
+		put(PREFIX_DICTIONARY + String.format("%08x", ResourceCodec.getDictionaryId(dictionary)), dictionary);
+	}
+
+	/**
+	 * Train a compression dictionary from a sample of the issues in the store, if
+	 * it contains enough of them; otherwise, issues are compressed without a
+	 * dictionary until the next start.
+	 */
+	private void trainDictionary() {
+		List<byte[]> samples = new ArrayList<>();
+
+		for (String key : index.subMap(PREFIX_ISSUE, true, PREFIX_ISSUE + Character.MAX_VALUE, false).keySet()) {
+			if (samples.size() >= DICTIONARY_SAMPLE_SIZE) {
+				break;
+			}
+			get(key).ifPresent(e -> samples.add(codec.toJson(e)));
+		}
+
+		if (samples.size() < MIN_DICTIONARY_SAMPLE_SIZE) {
+			log.logInfo("Not enough issues to train a compression dictionary: " + samples.size());
+			return;
+		}
+
+		byte[] dictionary = ResourceCodec.trainDictionary(samples, ResourceCodec.DEFAULT_DICTIONARY_SIZE_IN_BYTES);
+
+		saveDictionary(dictionary);
+		codec.addDictionary(dictionary, true);
+
+		log.logInfo("Trained a " + dictionary.length + " byte compression dictionary from " + samples.size()
+				+ " issues.");
+	}
+
+	/**
+	 * Replay all the existing segments (in order) to rebuild the index, then start
+	 * a new active segment.
+	 */
+	private void openSegments() {
+
+		if (!segmentDirectory.exists() && !segmentDirectory.mkdirs()) {
+			throw new RuntimeException("Unable to create directory: " + segmentDirectory);
+		}
+
+		index.clear();
+		segments.clear();
+
+		List<Integer> segmentIds = listSegmentIds();
+
+		for (int segmentId : segmentIds) {
+			Segment segment = new Segment(segmentId, segmentFile(segmentId));
+			segments.put(segmentId, segment);
+			recoverSegment(segment);
+		}
+
+		int nextId = segmentIds.isEmpty() ? 1 : segmentIds.get(segmentIds.size() - 1) + 1;
+
+		Segment active = new Segment(nextId, segmentFile(nextId));
+		segments.put(nextId, active);
+		activeSegment_synch_writeLock = active;
+
+		log.logInfo("Opened segment store with " + segmentIds.size() + " segment(s) and " + index.size()
+				+ " key(s): " + segmentDirectory.getPath());
+	}
+
+	private List<Integer> listSegmentIds() {
+		File[] files = segmentDirectory.listFiles();
+		if (files == null) {
+			return Collections.emptyList();
+		}
+
+		return Arrays.asList(files).stream().map(e -> e.getName())
+				.filter(e -> e.startsWith(SEGMENT_PREFIX) && e.endsWith(SEGMENT_SUFFIX))
+				.map(e -> Integer.parseInt(e.substring(SEGMENT_PREFIX.length(), e.length() - SEGMENT_SUFFIX.length())))
+				.sorted().collect(Collectors.toList());
+	}
+
+	private File segmentFile(int segmentId) {
+		return new File(segmentDirectory, SEGMENT_PREFIX + String.format("%08d", segmentId) + SEGMENT_SUFFIX);
+	}
+
+	/**
+	 * Read the records of a segment sequentially, applying them to the index. If a
+	 * record is incomplete or fails its CRC check, the segment is truncated at that
+	 * record.
+	 */
+	private void recoverSegment(Segment segment) {
+
+		long validLength = 0;
+
+		try (SegmentReader reader = new SegmentReader(segment.file)) {
+			Record record;
+			while ((record = reader.next()) != null) {
+				applyToIndex(record, segment);
+				validLength = reader.getPosition();
+			}
+
+			if (validLength < segment.size) {
+				log.logError("Truncating segment " + segment.file.getName() + " from " + segment.size + " to "
+						+ validLength + " bytes, due to an incomplete or corrupt record.");
+				segment.truncate(validLength);
+			}
+
+		} catch (IOException e) {
+			GHApiUtil.throwAsUnchecked(e);
+		}
+	}
+
+	private void applyToIndex(Record record, Segment segment) {
+		RecordLocation old;
+		if (record.type == TYPE_PUT) {
+			RecordLocation location = new RecordLocation(segment.id, record.offset, record.length,
+					record.value.length);
+			old = index.put(record.key, location);
+			segment.liveBytes.addAndGet(record.length);
+		} else {
+			old = index.remove(record.key);
+		}
+
+		if (old != null) {
+			Segment oldSegment = segments.get(old.segmentId);
+			if (oldSegment != null) {
+				oldSegment.liveBytes.addAndGet(-old.recordLength);
+			}
+		}
+	}
+
+	// ------------------------------------------------------------------------
+
+	/** Write the key and value, returning once the write is durable. */
+	private void put(String key, byte[] value) {
+		writeBatch(Collections.singletonMap(key, value), Collections.emptyList());
+	}
+
+	private void delete(String key) {
+		writeBatch(Collections.emptyMap(), Collections.singletonList(key));
+	}
+
+	/**
+	 * Write the keys and values (in iteration order), then delete the keys,
+	 * returning once all of them are durable; the batch shares a single sync.
+	 */
+	private void writeBatch(Map<String, byte[]> puts, Collection<String> deletes) {
+
+		Map<String, ByteBuffer> putRecords = new LinkedHashMap<>();
+		puts.forEach((key, value) -> putRecords.put(key,
+				encodeRecord(TYPE_PUT, key.getBytes(StandardCharsets.UTF_8), value)));
+
+		long sequence;
+
+		synchronized (writeLock) {
+			putRecords.forEach((key, record) -> {
+				Segment segment = appendRecord(record);
+
+				long offset = segment.size - record.capacity();
+
+				RecordLocation old = index.put(key, new RecordLocation(segment.id, offset, record.capacity(),
+						puts.get(key).length));
+				segment.liveBytes.addAndGet(record.capacity());
+
+				releaseLocation(old);
+			});
+
+			for (String key : deletes) {
+				if (!index.containsKey(key)) {
+					continue;
+				}
+
+				appendRecord(encodeRecord(TYPE_DELETE, key.getBytes(StandardCharsets.UTF_8), new byte[0]));
+
+				releaseLocation(index.remove(key));
+			}
+
+			sequence = groupCommit.nextSequence();
+		}
+
+		// Wait outside the lock, so that other writers may join the same sync.
+		groupCommit.awaitDurable(sequence);
+	}
+
+	/** Subtract an overwritten or deleted record from the live bytes of its segment. */
+	private void releaseLocation(RecordLocation old) {
+		if (old != null) {
+			Segment oldSegment = segments.get(old.segmentId);
+			if (oldSegment != null) {
+				oldSegment.liveBytes.addAndGet(-old.recordLength);
+			}
+		}
+	}
+
+	/** Append the record to the active segment, rolling to a new one if needed. */
+	private Segment appendRecord(ByteBuffer record) {
+		synchronized (writeLock) {
+			Segment active = activeSegment_synch_writeLock;
+
+			if (active.size > 0 && active.size + record.capacity() > maxSegmentSizeInBytes) {
+				active.force();
+
+				int nextId = active.id + 1;
+				active = new Segment(nextId, segmentFile(nextId));
+				segments.put(nextId, active);
+				activeSegment_synch_writeLock = active;
+			}
+
+			active.append(record);
+
+			return active;
+		}
+	}
+
+	private Optional<byte[]> get(String key) {
+
+		while (true) {
+			RecordLocation location = index.get(key);
+			if (location == null) {
+				return Optional.empty();
+			}
+
+			Segment segment = segments.get(location.segmentId);
+			if (segment != null) {
+				Optional<byte[]> result = segment.read(location.valueOffset(), location.valueLength);
+				if (result.isPresent()) {
+					return result;
+				}
+			}
+
+			// The segment was compacted after we looked up the location; if the index
+			// has moved on, try again at the new location.
+			if (index.get(key) == location) {
+				throw new RuntimeException("Unable to read key '" + key + "' from segment " + location.segmentId);
+			}
+		}
+	}
+
+	private Optional<String> getAsString(String key) {
+		return get(key).map(e -> new String(e, StandardCharsets.UTF_8));
+	}
+
+	private <T> Optional<T> getAsObject(String key, Class<T> c) {
+		return get(key).map(e -> codec.decode(e, c));
+	}
+
+	private void putObject(String key, Object o) {
+		put(key, codec.encode(o));
+	}
+
+	private static ByteBuffer encodeRecord(byte type, byte[] key, byte[] value) {
+		if (key.length == 0 || key.length > MAX_KEY_SIZE) {
+			throw new IllegalArgumentException("Invalid key length: " + key.length);
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_SIZE + key.length + value.length);
+		buffer.putInt(0); // crc, filled in below
+		buffer.put(type);
+		buffer.putInt(key.length);
+		buffer.putInt(value.length);
+		buffer.put(key);
+		buffer.put(value);
+
+		CRC32 crc = new CRC32();
+		crc.update(buffer.array(), 4, buffer.capacity() - 4);
+		buffer.putInt(0, (int) crc.getValue());
+
+		buffer.flip();
+		return buffer;
+	}
+
+	// ------------------------------------------------------------------------
+
+	private static String generateIssueKey(Owner owner, String repoName, long issueNumber) {
+		// Zero-pad the issue number, so that the issues of a repository are sorted
+		// numerically in the index.
+		return PREFIX_ISSUE + DatabaseUtil.generateRepoKey(owner, repoName) + "/" + String.format("%010d", issueNumber);
+	}
+
+	private static String generateEventKey(long time, String uuid) {
+		return PREFIX_EVENT + String.format("%019d", time) + "/" + uuid;
+	}
+
+	private static String generateEventSequenceKey(long sequence) {
+		return PREFIX_EVENT_SEQUENCE + String.format("%019d", sequence);
+	}
+
+	private static String generateEventRepoKey(String owner, String repo, long sequence) {
+		return PREFIX_EVENT_REPO + ResourceChangeEventFilter.repoKey(owner, repo) + "/"
+				+ String.format("%019d", sequence);
+	}
+
+	/** Add the repository index records of the events written before the index existed. */
+	private void indexEventsByRepo() {
+		int indexed = 0;
+
+		for (String sequenceKey : new ArrayList<>(
+				index.subMap(PREFIX_EVENT_SEQUENCE, true, PREFIX_EVENT_SEQUENCE_END, false).keySet())) {
+
+			String key = getAsString(sequenceKey).orElse(null);
+			ResourceChangeEventJson event = key != null ? getAsObject(key, ResourceChangeEventJson.class).orElse(null)
+					: null;
+			if (event != null) {
+				put(generateEventRepoKey(event.getOwner(), event.getRepo(), event.getSequence()),
+						key.getBytes(StandardCharsets.UTF_8));
+				indexed++;
+			}
+		}
+
+		put(KEY_EVENT_REPO_INDEX, new byte[0]);
+
+		if (indexed > 0) {
+			log.logInfo("Indexed " + indexed + " resource change event(s) by repository.");
+		}
+	}
+
+	private void writeLastEventSequence() {
+		synchronized (eventsLock) {
+			put(KEY_LAST_EVENT_SEQUENCE,
+					Long.toString(lastEventSequence_synch_eventsLock).getBytes(StandardCharsets.UTF_8));
+		}
+	}
+
+	/** The greater of the recorded last sequence number, and the last in the index */
+	private long readLastEventSequence() {
+		long result = getAsString(KEY_LAST_EVENT_SEQUENCE).map(e -> Long.parseLong(e)).orElse(0l);
+
+		String lastKey = index.lowerKey(PREFIX_EVENT_SEQUENCE_END);
+		if (lastKey != null && lastKey.startsWith(PREFIX_EVENT_SEQUENCE)) {
+			result = Math.max(result, Long.parseLong(lastKey.substring(PREFIX_EVENT_SEQUENCE.length())));
+		}
+
+		return result;
+	}
+
+	@Override
+	public Optional<IssueJson> getIssue(Owner owner, String repoName, long issueNumber) {
+		return getAsObject(generateIssueKey(owner, repoName, issueNumber), IssueJson.class);
+	}
+
+	@Override
+	public void persistIssue(Owner owner, IssueJson issue) {
+		putObject(generateIssueKey(owner, issue.getParentRepo(), issue.getNumber()), issue);
+	}
+
+	@Override
+	public BitSet getIssueNumbers(Owner owner, String repoName) {
+
+		// The issue keys of a repository are contiguous in the index, and end with the
+		// issue number.
+		String prefix = PREFIX_ISSUE + DatabaseUtil.generateRepoKey(owner, repoName) + "/";
+
+		BitSet result = new BitSet();
+
+		for (String key : index.subMap(prefix, true, prefix + Character.MAX_VALUE, false).keySet()) {
+			result.set(Integer.parseInt(key.substring(prefix.length())));
+		}
+
+		return result;
+	}
+
+	@Override
+	public Optional<byte[]> getIssueAsJson(Owner owner, String repoName, long issueNumber) {
+		return get(generateIssueKey(owner, repoName, issueNumber)).map(e -> codec.toJson(e));
+	}
+
+	@Override
+	public SortedMap<Integer, byte[]> getIssuesAsJson(Owner owner, String repoName,
+			Collection<Integer> issueNumbers) {
+		return DatabaseUtil.readIssuesInParallel(issueNumbers, e -> getIssueAsJson(owner, repoName, e));
+	}
+
+	@Override
+	public List<IssueJson> getIssues(Owner owner, String repoName, Collection<Integer> issueNumbers) {
+		return DatabaseUtil.getIssuesInParallel(issueNumbers, e -> getIssue(owner, repoName, e));
+	}
+
+	@Override
+	public Stream<IssueJson> scanIssues(Owner owner, String repoName) {
+		return DatabaseUtil.scanIssuesInBatches(getIssueNumbers(owner, repoName),
+				e -> getIssues(owner, repoName, e));
+	}
+
+	@Override
+	public Optional<OrganizationJson> getOrganization(String orgName) {
+		return getAsObject(PREFIX_ORG + DatabaseUtil.generateOrgKey(orgName), OrganizationJson.class);
+	}
+
+	@Override
+	public void persistOrganization(OrganizationJson org) {
+		putObject(PREFIX_ORG + DatabaseUtil.generateOrgKey(org.getName()), org);
+	}
+
+	@Override
+	public Optional<RepositoryJson> getRepository(Owner owner, String repoName) {
+		return getAsObject(PREFIX_REPO + DatabaseUtil.generateRepoKey(owner, repoName), RepositoryJson.class);
+	}
+
+	@Override
+	public void persistRepository(RepositoryJson repo) {
+		String orgName = repo.getOrgName();
+		String userName = repo.getOwnerUserName();
+
+		Owner owner = orgName != null ? Owner.org(orgName) : Owner.user(userName);
+
+		putObject(PREFIX_REPO + DatabaseUtil.generateRepoKey(owner, repo.getName()), repo);
+	}
+
+	@Override
+	public Optional<UserJson> getUser(String loginName) {
+		// generateUserKey(...) already includes a 'users/' prefix
+		return getAsObject(DatabaseUtil.generateUserKey(loginName), UserJson.class);
+	}
+
+	@Override
+	public void persistUser(UserJson user) {
+		putObject(DatabaseUtil.generateUserKey(user.getLogin()), user);
+	}
+
+	@Override
+	public Optional<UserRepositoriesJson> getUserRepositories(String userName) {
+		return getAsObject(PREFIX_USER_REPOS + DatabaseUtil.generateUserRepositoriesKey(userName),
+				UserRepositoriesJson.class);
+	}
+
+	@Override
+	public void persistUserRepositories(UserRepositoriesJson r) {
+		putObject(PREFIX_USER_REPOS + DatabaseUtil.generateUserRepositoriesKey(r.getUserName()), r);
+	}
+
+	@Override
+	public void addProcessedEvents(List<ProcessedEvent> events) {
+		synchronized (processedEventsLock) {
+			byte[] records = ProcessedEventJournal.encode(ProcessedEventJournal.distinct(events));
+			if (records.length == 0) {
+				return;
+			}
+
+			put(nextProcessedEventsKey(), records);
+
+			if (getProcessedEventsKeys().size() > MAX_PROCESSED_EVENTS_RECORDS) {
+				mergeProcessedEvents(getProcessedEvents());
+			}
+		}
+	}
+
+	@Override
+	public List<ProcessedEvent> getProcessedEvents() {
+		synchronized (processedEventsLock) {
+			List<ProcessedEvent> result = new ArrayList<>();
+
+			for (String key : getProcessedEventsKeys()) {
+				get(key).ifPresent(e -> result.addAll(ProcessedEventJournal.decode(e, 0, e.length)));
+			}
+
+			return ProcessedEventJournal.distinct(result);
+		}
+	}
+
+	@Override
+	public void expireProcessedEvents(long beforeTime) {
+		synchronized (processedEventsLock) {
+			List<ProcessedEvent> events = getProcessedEvents();
+
+			List<ProcessedEvent> remaining = events.stream().filter(e -> e.getEventTime() >= beforeTime)
+					.collect(Collectors.toList());
+
+			if (remaining.size() != events.size()) {
+				mergeProcessedEvents(remaining);
+			}
+		}
+	}
+
+	/** Replace the processed event records with a single record of the given events. */
+	private void mergeProcessedEvents(List<ProcessedEvent> events) {
+		List<String> keys = new ArrayList<>(getProcessedEventsKeys());
+
+		// The merged record is written before the others are deleted
+		byte[] records = ProcessedEventJournal.encode(events);
+		if (records.length > 0) {
+			put(nextProcessedEventsKey(), records);
+		}
+		keys.forEach(e -> delete(e));
+	}
+
+	private NavigableSet<String> getProcessedEventsKeys() {
+		return index.subMap(PREFIX_PROCESSED_EVENTS, true, PREFIX_PROCESSED_EVENTS_END, false).navigableKeySet();
+	}
+
+	private String nextProcessedEventsKey() {
+		NavigableSet<String> keys = getProcessedEventsKeys();
+
+		long next = keys.isEmpty() ? 1 : Long.parseLong(keys.last().substring(PREFIX_PROCESSED_EVENTS.length()), 16) + 1;
+
+		return PREFIX_PROCESSED_EVENTS + String.format("%016x", next);
+	}
+
+	/**
+	 * Move the hashes written by earlier versions to the new records; they have no
+	 * event time, so are given the current time, and expire one retention window
+	 * from now.
+	 */
+	private void migrateProcessedEvents() {
+		Optional<String> legacy = getAsString(KEY_LEGACY_PROCESSED_EVENTS);
+		if (legacy.isPresent()) {
+			long loadTime = System.currentTimeMillis();
+			addProcessedEvents(Arrays.stream(legacy.get().split("\n")).map(e -> new ProcessedEvent(e, loadTime))
+					.collect(Collectors.toList()));
+			delete(KEY_LEGACY_PROCESSED_EVENTS);
+		}
+
+		List<String> v1Keys = new ArrayList<>(index
+				.subMap(PREFIX_V1_PROCESSED_EVENTS, true, PREFIX_V1_PROCESSED_EVENTS_END, false).navigableKeySet());
+		if (!v1Keys.isEmpty()) {
+			List<ProcessedEvent> events = new ArrayList<>();
+			for (String key : v1Keys) {
+				get(key).ifPresent(e -> events.addAll(ProcessedEventJournal.decodeVersion1(e, 0, e.length)));
+			}
+			addProcessedEvents(events);
+			v1Keys.forEach(e -> delete(e));
+		}
+	}
+
+	@Override
+	public void clearProcessedEvents() {
+		synchronized (processedEventsLock) {
+			new ArrayList<>(getProcessedEventsKeys()).forEach(e -> delete(e));
+		}
+	}
+
+	@Override
+	public boolean isDatabaseInitialized() {
+		return initialized.get();
+	}
+
+	@Override
+	public void initializeDatabase() {
+		initialized.set(true);
+	}
+
+	@Override
+	public void uninitializeDatabaseOnContentsMismatch(List<String> orgs, List<String> userRepos,
+			List<String> individualRepos) {
+
+		String encoded = DatabaseUtil.generateContentsHash(orgs, userRepos, individualRepos);
+
+		if (!isDatabaseInitialized()) {
+			// If the database has not yet been initialized, then just set the value and
+			// return.
+			persistString(KEY_GITHUB_CONTENTS_HASH, encoded);
+			return;
+		}
+
+		boolean uninitializeDatabase = false;
+
+		Optional<String> gitHubContentsHash = getString(KEY_GITHUB_CONTENTS_HASH);
+		if (!gitHubContentsHash.isPresent()) { // key not found
+			uninitializeDatabase = true;
+			log.logInfo("GitHub contents key not found, so uninitializing database.");
+		} else if (!gitHubContentsHash.get().equals(encoded)) {
+			uninitializeDatabase = true; // key doesn't match
+			log.logInfo("GitHub contents key did not match, so uninitializing database.");
+		}
+
+		if (!uninitializeDatabase) {
+			// The database on the filesystem matches the same GitHub repos/orgs/users as
+			// the current server instance, so no further action is required.
+			return;
+		}
+
+		// If we want to "un-initialize" the database, move it to 'old/' (as is done by
+		// PersistJsonDb), then start again with an empty set of segments.
+		synchronized (writeLock) {
+
+			segments.values().forEach(e -> e.close());
+
+			File oldDir = new File(outputDirectory, "old");
+			if (!oldDir.exists() && !oldDir.mkdirs()) {
+				throw new RuntimeException("Unable to create: " + oldDir);
+			}
+
+			long time = System.currentTimeMillis();
+
+			for (File f : outputDirectory.listFiles()) {
+				if (f.getPath().equals(oldDir.getPath())) {
+					continue; // Don't move the old directory
+				}
+
+				try {
+					Files.move(f.toPath(), new File(oldDir, f.getName() + ".old." + time).toPath());
+				} catch (IOException e1) {
+					throw new RuntimeException("Unable to move: " + f.getPath(), e1);
+				}
+			}
+
+			log.logInfo("* Old database has been moved to " + oldDir.getPath());
+
+			openSegments();
+		}
+
+		// Values may still be compressed with the dictionaries that were moved
+		codec.getDictionaries().forEach(e -> saveDictionary(e));
+
+		// Sequence numbers continue from those of the old database, so that clients'
+		// cursors remain valid.
+		writeLastEventSequence();
+		put(KEY_EVENT_REPO_INDEX, new byte[0]);
+
+		persistString(KEY_GITHUB_CONTENTS_HASH, encoded);
+
+		initialized.set(false);
+
+	}
+
+	@Override
+	public void persistLong(String key, long value) {
+		persistString(key, Long.toString(value));
+	}
+
+	@Override
+	public Optional<Long> getLong(String key) {
+		return getString(key).map(e -> Long.parseLong(e));
+	}
+
+	@Override
+	public void persistString(String key, String value) {
+		put(PREFIX_KEY + key, value.getBytes(StandardCharsets.UTF_8));
+	}
+
+	@Override
+	public Optional<String> getString(String key) {
+		return getAsString(PREFIX_KEY + key);
+	}
+
+	@Override
+	public void persistResourceChangeEvents(List<ResourceChangeEventJson> newEvents) {
+
+		newEvents.stream().filter(e -> e.getTime() <= 0).findAny().ifPresent(e -> {
+			throw new RuntimeException("One or more JSON files was missing a time.");
+		});
+
+		// Sequence numbers are assigned and written in order, so that a reader never
+		// sees a sequence number before a lower one. The records of all the events are
+		// written as a single batch, and are only read once it is durable.
+		synchronized (eventsLock) {
+			Map<String, byte[]> puts = new LinkedHashMap<>();
+
+			long sequence = lastEventSequence_synch_eventsLock;
+			for (ResourceChangeEventJson event : newEvents) {
+				sequence++;
+				event.setSequence(sequence);
+
+				String uuid = event.getUuid() != null ? event.getUuid() : UUID.randomUUID().toString();
+				String key = generateEventKey(event.getTime(), uuid);
+				puts.put(key, codec.encode(event));
+				puts.put(generateEventSequenceKey(sequence), key.getBytes(StandardCharsets.UTF_8));
+				puts.put(generateEventRepoKey(event.getOwner(), event.getRepo(), sequence),
+						key.getBytes(StandardCharsets.UTF_8));
+			}
+
+			// The sequence numbers are used even if the write fails: some of its records
+			// may have reached the segment, and so be replayed on restart.
+			lastEventSequence_synch_eventsLock = sequence;
+
+			try {
+				writeBatch(puts, Collections.emptyList());
+			} catch (RuntimeException e) {
+				removeFromIndex(puts.keySet());
+				throw e;
+			}
+
+			durableEventSequence.set(sequence);
+		}
+	}
+
+	/**
+	 * Remove the index records of a failed write, so that they are not read; any
+	 * of its records that reached a segment are replayed on restart.
+	 */
+	private void removeFromIndex(Collection<String> keys) {
+		synchronized (writeLock) {
+			keys.forEach(e -> releaseLocation(index.remove(e)));
+		}
+	}
+
+	/**
+	 * Write events that were assigned their sequence numbers by another database
+	 * (see PersistJsonDbMigration), keeping those sequence numbers, so that clients'
+	 * cursors remain valid. Events without a sequence number (written before they
+	 * were assigned) are only written by time. Sequence numbers then continue from
+	 * the last of the events.
+	 */
+	void importResourceChangeEvents(List<ResourceChangeEventJson> events) {
+
+		synchronized (eventsLock) {
+			Map<String, byte[]> puts = new LinkedHashMap<>();
+
+			long sequence = lastEventSequence_synch_eventsLock;
+			for (ResourceChangeEventJson event : events) {
+				String uuid = event.getUuid() != null ? event.getUuid() : UUID.randomUUID().toString();
+				String key = generateEventKey(event.getTime(), uuid);
+				puts.put(key, codec.encode(event));
+
+				if (event.getSequence() > 0) {
+					puts.put(generateEventSequenceKey(event.getSequence()), key.getBytes(StandardCharsets.UTF_8));
+					puts.put(generateEventRepoKey(event.getOwner(), event.getRepo(), event.getSequence()),
+							key.getBytes(StandardCharsets.UTF_8));
+					sequence = Math.max(sequence, event.getSequence());
+				}
+			}
+
+			puts.put(KEY_LAST_EVENT_SEQUENCE, Long.toString(sequence).getBytes(StandardCharsets.UTF_8));
+
+			writeBatch(puts, Collections.emptyList());
+
+			lastEventSequence_synch_eventsLock = sequence;
+			durableEventSequence.set(sequence);
+		}
+	}
+
+	@Override
+	public List<ResourceChangeEventJson> getRecentResourceChangeEvents(long timestampEqualOrGreater) {
+
+		// Event keys are sorted by time, so we only need to read the tail of the range.
+		String fromKey = generateEventKey(Math.max(0, timestampEqualOrGreater), "");
+
+		long durable = durableEventSequence.get();
+
+		List<ResourceChangeEventJson> result = new ArrayList<>();
+
+		for (String key : index.subMap(fromKey, true, PREFIX_EVENT_END, false).keySet()) {
+			getAsObject(key, ResourceChangeEventJson.class).filter(e -> e.getSequence() <= durable).ifPresent(e -> {
+				result.add(e);
+			});
+		}
+
+		return result;
+	}
+
+	@Override
+	public byte[] getRecentResourceChangeEventsAsJson(long timestampEqualOrGreater) {
+		return DatabaseUtil.toJson(getRecentResourceChangeEvents(timestampEqualOrGreater),
+				ResourceChangeEventJson.Views.Basic.class);
+	}
+
+	@Override
+	public List<ResourceChangeEventJson> getRecentResourceChangeEvents(long timestampEqualOrGreater,
+			ResourceChangeEventFilter filter) {
+
+		if (!filter.hasOwnerOrRepoCriteria()) {
+			return getRecentResourceChangeEvents(timestampEqualOrGreater).stream().filter(e -> filter.matches(e))
+					.collect(Collectors.toList());
+		}
+
+		long durable = durableEventSequence.get();
+
+		List<ResourceChangeEventJson> result = new ArrayList<>();
+
+		// Read each repository's events from the newest, until they are older than the
+		// timestamp (allowing for events that were persisted out of time order)
+		for (String repoPrefix : getEventRepoIndexPrefixes(filter)) {
+			for (String key : index.subMap(repoPrefix, true, repoPrefix + Character.MAX_VALUE, false)
+					.descendingKeySet()) {
+				long eventSequence = Long.parseLong(key.substring(repoPrefix.length()));
+				if (eventSequence > durable) {
+					continue;
+				}
+
+				ResourceChangeEventJson event = getAsString(key)
+						.flatMap(e -> getAsObject(e, ResourceChangeEventJson.class)).orElse(null);
+				if (event == null) {
+					continue;
+				}
+				if (event.getTime() < timestampEqualOrGreater - MAX_EVENT_TIME_SKEW_IN_MSECS) {
+					break;
+				}
+				if (event.getTime() >= timestampEqualOrGreater && filter.matches(event)) {
+					result.add(event);
+				}
+			}
+		}
+
+		result.sort((a, b) -> a.getTime() != b.getTime() ? Long.compare(a.getTime(), b.getTime())
+				: Long.compare(a.getSequence(), b.getSequence()));
+
+		return result;
+	}
+
+	@Override
+	public List<ResourceChangeEventJson> getResourceChangeEventsAfter(long sequence, int limit) {
+
+		long durable = durableEventSequence.get();
+
+		List<ResourceChangeEventJson> result = new ArrayList<>();
+		if (sequence >= durable) {
+			return result;
+		}
+
+		String fromKey = generateEventSequenceKey(Math.max(0, sequence + 1));
+		String toKey = generateEventSequenceKey(durable + 1);
+
+		for (String key : index.subMap(fromKey, true, toKey, false).keySet()) {
+			if (result.size() >= limit) {
+				break;
+			}
+
+			getAsString(key).flatMap(e -> getAsObject(e, ResourceChangeEventJson.class)).ifPresent(e -> {
+				result.add(e);
+			});
+		}
+
+		return result;
+	}
+
+	@Override
+	public long getLastResourceChangeEventSequence() {
+		return durableEventSequence.get();
+	}
+
+	@Override
+	public byte[] getResourceChangeEventsAfterAsJson(long sequence, int limit) {
+		return DatabaseUtil.toJson(getResourceChangeEventsAfter(sequence, limit),
+				ResourceChangeEventJson.Views.Basic.class);
+	}
+
+	@Override
+	public ResourceChangeEventPageJson getResourceChangeEventsAfter(long sequence, int limit,
+			ResourceChangeEventFilter filter) {
+
+		if (!filter.hasOwnerOrRepoCriteria()) {
+			return DatabaseUtil.scanResourceChangeEventsAfter(sequence, limit, filter,
+					this::getResourceChangeEventsAfter);
+		}
+
+		// Every index record of an event up to this sequence number is durable
+		long lastSequence = durableEventSequence.get();
+
+		// At most 'limit' events are needed from each repository
+		TreeMap<Long, ResourceChangeEventJson> matches = new TreeMap<>();
+		for (String repoPrefix : getEventRepoIndexPrefixes(filter)) {
+			String fromKey = repoPrefix + String.format("%019d", Math.max(0, sequence + 1));
+
+			int found = 0;
+			for (String key : index.subMap(fromKey, true, repoPrefix + Character.MAX_VALUE, false).keySet()) {
+				long eventSequence = Long.parseLong(key.substring(repoPrefix.length()));
+				if (eventSequence > lastSequence || found >= limit) {
+					break;
+				}
+
+				ResourceChangeEventJson event = getAsString(key)
+						.flatMap(e -> getAsObject(e, ResourceChangeEventJson.class)).orElse(null);
+				if (event != null && filter.matches(event)) {
+					matches.put(eventSequence, event);
+					found++;
+				}
+			}
+		}
+
+		List<ResourceChangeEventJson> result = new ArrayList<>(matches.values());
+		if (result.size() >= limit) {
+			result = new ArrayList<>(result.subList(0, limit));
+			return DatabaseUtil.createResourceChangeEventPage(result, result.get(limit - 1).getSequence());
+		}
+
+		return DatabaseUtil.createResourceChangeEventPage(result, Math.max(sequence, lastSequence));
+	}
+
+	/** Returns the event repository index key prefix of each repository selected by the filter. */
+	private Set<String> getEventRepoIndexPrefixes(ResourceChangeEventFilter filter) {
+		Set<String> result = new TreeSet<>();
+		filter.getRepos().forEach(e -> result.add(PREFIX_EVENT_REPO + e + "/"));
+		for (String owner : filter.getOwners()) {
+			String ownerPrefix = PREFIX_EVENT_REPO + owner + "/";
+			String key = index.ceilingKey(ownerPrefix);
+			while (key != null && key.startsWith(ownerPrefix)) {
+				String repoPrefix = key.substring(0, key.lastIndexOf('/') + 1);
+				result.add(repoPrefix);
+				key = index.higherKey(repoPrefix + Character.MAX_VALUE);
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public void flush() {
+		// Writes are durable once they return, so this is only needed for compaction
+		synchronized (writeLock) {
+			activeSegment_synch_writeLock.force();
+		}
+	}
+
+	/**
+	 * Stop compaction, and close the segments; the store may not be used
+	 * afterwards. All writes are already durable.
+	 */
+	@Override
+	public void close() {
+		compactionThread.interrupt();
+		try {
+			// Wait for any compaction in progress to finish
+			compactionThread.join();
+		} catch (InterruptedException e) {
+			GHApiUtil.throwAsUnchecked(e);
+		}
+
+		synchronized (writeLock) {
+			activeSegment_synch_writeLock.force();
+			segments.values().forEach(e -> e.close());
+		}
+	}
+
+	/** Remove resource change events older than 8 days. */
+	private void expireResourceChangeEvents() {
+		long expireTimestamp = System.currentTimeMillis() - TimeUnit.MILLISECONDS.convert(8, TimeUnit.DAYS);
+
+		List<String> expiredKeys = new ArrayList<>(
+				index.subMap(PREFIX_EVENT, true, generateEventKey(expireTimestamp, ""), false).keySet());
+
+		if (expiredKeys.isEmpty()) {
+			return;
+		}
+
+		List<String> deletes = new ArrayList<>();
+		for (String key : expiredKeys) {
+			getAsObject(key, ResourceChangeEventJson.class).filter(e -> e.getSequence() > 0).ifPresent(e -> {
+				deletes.add(generateEventSequenceKey(e.getSequence()));
+				deletes.add(generateEventRepoKey(e.getOwner(), e.getRepo(), e.getSequence()));
+			});
+			deletes.add(key);
+		}
+
+		// The last sequence number is written (in the same batch) before any of the
+		// records are deleted.
+		long lastSequence;
+		synchronized (eventsLock) {
+			lastSequence = lastEventSequence_synch_eventsLock;
+		}
+
+		writeBatch(Collections.singletonMap(KEY_LAST_EVENT_SEQUENCE,
+				Long.toString(lastSequence).getBytes(StandardCharsets.UTF_8)), deletes);
+	}
+
+	// ------------------------------------------------------------------------
+
+	/**
+	 * Copy the live records of any (non-active) segment that is mostly dead, to the
+	 * active segment, then delete the old segment. This is called periodically by
+	 * the compaction thread.
+	 */
+	public void compact() {
+
+		int activeId;
+		synchronized (writeLock) {
+			activeId = activeSegment_synch_writeLock.id;
+		}
+
+		List<Segment> toCompact = segments.values().stream().filter(e -> e.id != activeId)
+				.filter(e -> e.size == 0 || ((double) e.liveBytes.get() / (double) e.size) < COMPACTION_LIVE_RATIO
+						|| e.size < maxSegmentSizeInBytes / 4)
+				.sorted((a, b) -> a.id - b.id).collect(Collectors.toList());
+
+		for (Segment segment : toCompact) {
+			try {
+				compactSegment(segment);
+			} catch (Exception e) {
+				log.logError("Unable to compact segment " + segment.file.getName(), e);
+			}
+		}
+	}
+
+	private void compactSegment(Segment segment) throws IOException {
+
+		long liveBytesBefore = segment.liveBytes.get();
+
+		try (SegmentReader reader = new SegmentReader(segment.file)) {
+
+			Record record;
+			while ((record = reader.next()) != null) {
+
+				if (record.type == TYPE_PUT) {
+
+					RecordLocation current = index.get(record.key);
+					if (current == null || current.segmentId != segment.id || current.offset != record.offset) {
+						continue; // Record is dead: the key was since overwritten or deleted
+					}
+
+					ByteBuffer buffer = encodeRecord(TYPE_PUT, record.key.getBytes(StandardCharsets.UTF_8),
+							record.value);
+
+					synchronized (writeLock) {
+						// Only move the key if it was not written in the meantime; otherwise the copy
+						// would follow the newer record in the log, and replace it on replay.
+						if (index.get(record.key) != current) {
+							continue;
+						}
+
+						Segment active = appendRecord(buffer);
+						long offset = active.size - buffer.capacity();
+
+						index.put(record.key,
+								new RecordLocation(active.id, offset, buffer.capacity(), record.value.length));
+						active.liveBytes.addAndGet(buffer.capacity());
+						segment.liveBytes.addAndGet(-current.recordLength);
+					}
+
+				} else if (record.type == TYPE_DELETE) {
+
+					// A delete must be preserved for as long as an older segment (which may contain
+					// a put for the same key) still exists.
+					boolean olderSegmentExists = segments.keySet().stream().anyMatch(e -> e < segment.id);
+
+					synchronized (writeLock) {
+						// As above, a key that was written in the meantime must not be deleted on replay
+						if (olderSegmentExists && !index.containsKey(record.key)) {
+							appendRecord(encodeRecord(TYPE_DELETE, record.key.getBytes(StandardCharsets.UTF_8),
+									new byte[0]));
+						}
+					}
+				}
+			}
+		}
+
+		// Ensure the relocated records are on disk before we delete their old copy.
+		synchronized (writeLock) {
+			activeSegment_synch_writeLock.force();
+			segments.remove(segment.id);
+		}
+
+		segment.retire();
+
+		log.logDebug("Compacted segment " + segment.file.getName() + ", " + liveBytesBefore + " of " + segment.size
+				+ " bytes were live.");
+	}
+
+	// ------------------------------------------------------------------------
+
+	/** The most recent location of a key's value. */
+	private static class RecordLocation {
+		private final int segmentId;
+		private final long offset;
+		private final int recordLength;
+		private final int valueLength;
+
+		public RecordLocation(int segmentId, long offset, int recordLength, int valueLength) {
+			this.segmentId = segmentId;
+			this.offset = offset;
+			this.recordLength = recordLength;
+			this.valueLength = valueLength;
+		}
+
+		long valueOffset() {
+			// The value follows the header and the key
+			return offset + (recordLength - valueLength);
+		}
+	}
+
+	/** A single record, as read sequentially from a segment file. */
+	private static class Record {
+		private final byte type;
+		private final String key;
+		private final byte[] value;
+		private final long offset;
+		private final int length;
+
+		public Record(byte type, String key, byte[] value, long offset, int length) {
+			this.type = type;
+			this.key = key;
+			this.value = value;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	/**
+	 * Sequentially reads the records of a segment file, returning null at the end
+	 * of the file, or at the first incomplete/corrupt record.
+	 */
+	private static class SegmentReader implements AutoCloseable {
+
+		private final DataInputStream dis;
+
+		private long position = 0;
+
+		public SegmentReader(File file) throws IOException {
+			this.dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 256 * 1024));
+		}
+
+		public Record next() throws IOException {
+			try {
+				int crcValue = dis.readInt();
+				byte type = dis.readByte();
+				int keyLength = dis.readInt();
+				int valueLength = dis.readInt();
+
+				if ((type != TYPE_PUT && type != TYPE_DELETE) || keyLength <= 0 || keyLength > MAX_KEY_SIZE
+						|| valueLength < 0) {
+					return null;
+				}
+
+				byte[] body = new byte[keyLength + valueLength];
+				dis.readFully(body);
+
+				CRC32 crc = new CRC32();
+				crc.update(new byte[] { type });
+				crc.update(ByteBuffer.allocate(8).putInt(keyLength).putInt(valueLength).array());
+				crc.update(body);
+
+				if ((int) crc.getValue() != crcValue) {
+					return null;
+				}
+
+				int length = RECORD_HEADER_SIZE + body.length;
+
+				Record result = new Record(type, new String(body, 0, keyLength, StandardCharsets.UTF_8),
+						Arrays.copyOfRange(body, keyLength, body.length), position, length);
+
+				position += length;
+
+				return result;
+
+			} catch (EOFException e) {
+				return null;
+			}
+		}
+
+		/** Position after the last record returned. */
+		public long getPosition() {
+			return position;
+		}
+
+		@Override
+		public void close() throws IOException {
+			dis.close();
+		}
+	}
+
+	/**
+	 * An append-only segment file. The file channel supports concurrent positional
+	 * reads; appends are serialized by the caller (writeLock).
+	 */
+	private static class Segment {
+
+		private final int id;
+
+		private final File file;
+
+		private final AtomicLong liveBytes = new AtomicLong();
+
+		private final Object channelLock = new Object();
+
+		private volatile FileChannel channel;
+
+		/** Set when the segment has been compacted and deleted. */
+		private volatile boolean retired = false;
+
+		private volatile long size;
+
+		public Segment(int id, File file) {
+			this.id = id;
+			this.file = file;
+			this.channel = openChannel();
+			try {
+				this.size = channel.size();
+			} catch (IOException e) {
+				throw new RuntimeException("Unable to open segment: " + file, e);
+			}
+		}
+
+		private FileChannel openChannel() {
+			try {
+				return FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+						StandardOpenOption.WRITE);
+			} catch (IOException e) {
+				throw new RuntimeException("Unable to open segment: " + file, e);
+			}
+		}
+
+		/**
+		 * A thread interrupt (for example, from WorkerThread's TimeOutThread) will close
+		 * the channel for all threads; reopen it so that other readers are unaffected.
+		 */
+		private FileChannel reopenChannel(FileChannel closed) {
+			synchronized (channelLock) {
+				if (channel == closed && !retired) {
+					channel = openChannel();
+				}
+				return channel;
+			}
+		}
+
+		public void append(ByteBuffer record) {
+			FileChannel ch = channel;
+			try {
+				long position = size;
+				while (record.hasRemaining()) {
+					position += ch.write(record, position);
+				}
+				size = position;
+			} catch (ClosedChannelException e) {
+				reopenChannel(ch);
+				GHApiUtil.throwAsUnchecked(e);
+			} catch (IOException e) {
+				GHApiUtil.throwAsUnchecked(e);
+			}
+		}
+
+		/** Returns empty if the segment was retired (compacted) before/while reading. */
+		public Optional<byte[]> read(long position, int length) {
+
+			while (!retired) {
+				FileChannel ch = channel;
+				try {
+					ByteBuffer buffer = ByteBuffer.allocate(length);
+					while (buffer.hasRemaining()) {
+						if (ch.read(buffer, position + buffer.position()) == -1) {
+							throw new EOFException("Unexpected end of segment: " + file.getName());
+						}
+					}
+					return Optional.of(buffer.array());
+
+				} catch (ClosedByInterruptException e) {
+					reopenChannel(ch);
+					GHApiUtil.throwAsUnchecked(e);
+				} catch (ClosedChannelException e) {
+					// Closed by another thread's interrupt, or by compaction; retry
+					reopenChannel(ch);
+				} catch (IOException e) {
+					GHApiUtil.throwAsUnchecked(e);
+				}
+			}
+
+			return Optional.empty();
+		}
+
+		public void force() {
+			FileChannel ch = channel;
+			try {
+				ch.force(false);
+			} catch (ClosedChannelException e) {
+				reopenChannel(ch);
+				GHApiUtil.throwAsUnchecked(e);
+			} catch (IOException e) {
+				GHApiUtil.throwAsUnchecked(e);
+			}
+		}
+
+		public void truncate(long newSize) {
+			try {
+				channel.truncate(newSize);
+				size = newSize;
+			} catch (IOException e) {
+				GHApiUtil.throwAsUnchecked(e);
+			}
+		}
+
+		public void close() {
+			synchronized (channelLock) {
+				retired = true;
+				try {
+					channel.close();
+				} catch (IOException e) {
+					/* ignore */
+				}
+			}
+		}
+
+		/** Close and delete the segment, after its live contents have been moved. */
+		public void retire() {
+			close();
+			if (!file.delete()) {
+				log.logError("Unable to delete segment: " + file.getPath());
+			}
+		}
+	}
+
+	/** Periodically compacts segments, and expires old resource change events. */
+	private class CompactionThread extends Thread {
+
+		public CompactionThread() {
+			setName(CompactionThread.class.getName());
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			while (!isInterrupted()) {
+				try {
+					Thread.sleep(COMPACTION_INTERVAL_IN_MSECS);
+				} catch (InterruptedException e) {
+					return;
+				}
+
+				try {
+					expireResourceChangeEvents();
+					compact();
+				} catch (Exception e) {
+					// Log and ignore
+					log.logError("Exception occured in " + this.getClass().getSimpleName() + ",", e);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,562 @@
+/*
+ * Copyright 2021 Jonathan West
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.githubapimirror.db;
+
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+
+import com.githubapimirror.shared.json.CacheStatisticsJson;
+
+/**
+ * A concurrent cache that is bounded by the total weight (approximate size in
+ * bytes) of its values, and which evicts using a W-TinyLFU style policy:
+ *
+ * - New entries are admitted to a small LRU 'window' (1% of the maximum
+ * weight).
+ *
+ * - Entries evicted from the window become candidates for the 'main' space,
+ * which is a segmented LRU (a 'probation' and a 'protected' segment). A
+ * candidate is only admitted if it has been accessed more frequently than the
+ * entry it would replace, as estimated by a count-min sketch of recent
+ * accesses.
+ *
+ * Reads do not acquire a lock: each access is recorded in a lossy ring buffer,
+ * which is applied to the eviction policy (under a lock) in batches. Writes
+ * update the policy immediately.
+ *
+ * Concurrent loads of the same missing key are coalesced: only one thread calls
+ * the loader, and the other threads wait for its result.
+ */
+public class WeightedCache<V> {
+
+	private static final int READ_BUFFER_SIZE = 128; // must be a power of 2
+
+	private static final int READ_BUFFER_DRAIN_THRESHOLD = 32; // must be a power of 2
+
+	private static final double WINDOW_PERCENTAGE = 0.01d;
+
+	private static final double PROTECTED_PERCENTAGE = 0.80d;
+
+	private final long maximumWeight;
+
+	private final long maximumWindowWeight;
+
+	private final long maximumProtectedWeight;
+
+	private final ToIntFunction<V> weigher;
+
+	private final ConcurrentHashMap<String, Node<V>> data = new ConcurrentHashMap<>();
+
+	private final ConcurrentHashMap<String, CompletableFuture<V>> loads = new ConcurrentHashMap<>();
+
+	// Read buffer ----------------------------
+
+	private final AtomicReferenceArray<Node<V>> readBuffer = new AtomicReferenceArray<>(READ_BUFFER_SIZE);
+
+	private final AtomicLong readBufferWrites = new AtomicLong();
+
+	// Eviction policy ------------------------
+
+	/** Guards all fields with the _synch_evictionLock suffix, and the node queues */
+	private final ReentrantLock evictionLock = new ReentrantLock();
+
+	private final NodeQueue<V> window_synch_evictionLock = new NodeQueue<>();
+	private final NodeQueue<V> probation_synch_evictionLock = new NodeQueue<>();
+	private final NodeQueue<V> protected_synch_evictionLock = new NodeQueue<>();
+
+	private long windowWeight_synch_evictionLock = 0;
+	private long protectedWeight_synch_evictionLock = 0;
+	private long totalWeight_synch_evictionLock = 0;
+
+	private final FrequencySketch sketch_synch_evictionLock;
+
+	// Statistics -----------------------------
+
+	private final LongAdder hitCount = new LongAdder();
+	private final LongAdder missCount = new LongAdder();
+	private final LongAdder loadSuccessCount = new LongAdder();
+	private final LongAdder loadFailureCount = new LongAdder();
+	private final LongAdder evictionCount = new LongAdder();
+	private final LongAdder evictionWeight = new LongAdder();
+
+	public WeightedCache(long maximumWeight, ToIntFunction<V> weigher) {
+		this.maximumWeight = maximumWeight;
+		this.maximumWindowWeight = Math.max(1, (long) (maximumWeight * WINDOW_PERCENTAGE));
+		this.maximumProtectedWeight = (long) ((maximumWeight - maximumWindowWeight) * PROTECTED_PERCENTAGE);
+		this.weigher = weigher;
+
+		// Assume an average entry of about 1KB when sizing the sketch
+		this.sketch_synch_evictionLock = new FrequencySketch(
+				(int) Math.min(1 << 22, Math.max(1024, maximumWeight / 1024)));
+	}
+
+	/** Returns the cached value, or null if not present. */
+	public V getIfPresent(String key) {
+		Node<V> node = data.get(key);
+		if (node == null) {
+			missCount.increment();
+			return null;
+		}
+
+		hitCount.increment();
+		recordRead(node);
+		return node.value;
+	}
+
+	/**
+	 * Returns the cached value, or calls the loader (once, across all concurrent
+	 * callers for the same key) and caches the result. The loader must not return
+	 * null.
+	 */
+	public V get(String key, Function<String, V> loader) {
+
+		V result = getIfPresent(key);
+		if (result != null) {
+			return result;
+		}
+
+		CompletableFuture<V> future = new CompletableFuture<>();
+		CompletableFuture<V> inProgress = loads.putIfAbsent(key, future);
+		if (inProgress != null) {
+			try {
+				return inProgress.join();
+			} catch (CompletionException e) {
+				if (e.getCause() instanceof RuntimeException) {
+					throw (RuntimeException) e.getCause();
+				}
+				throw e;
+			}
+		}
+
+		try {
+			// The value may have been written since our check, above.
+			Node<V> node = data.get(key);
+			if (node != null) {
+				future.complete(node.value);
+				return node.value;
+			}
+
+			V loaded = loader.apply(key);
+			loadSuccessCount.increment();
+
+			// A value written while we were loading is newer than ours, so keep it.
+			Node<V> current = putInternal(key, loaded, true);
+			V value = current != null ? current.value : loaded;
+
+			future.complete(value);
+			return value;
+
+		} catch (RuntimeException e) {
+			loadFailureCount.increment();
+			future.completeExceptionally(e);
+			throw e;
+		} finally {
+			loads.remove(key, future);
+		}
+	}
+
+	/** Add or replace the value for the key. */
+	public void put(String key, V value) {
+		putInternal(key, value, false);
+	}
+
+	/**
+	 * Add the value for the key, unless the key is already present: a value read
+	 * from the underlying store is older than any value that was put while it was
+	 * being read.
+	 */
+	public void putIfAbsent(String key, V value) {
+		putInternal(key, value, true);
+	}
+
+	/**
+	 * Returns the existing node if onlyIfAbsent is true and the key was present
+	 * (in which case nothing is changed), otherwise null.
+	 */
+	private Node<V> putInternal(String key, V value, boolean onlyIfAbsent) {
+
+		int weight = Math.max(1, weigher.applyAsInt(value));
+
+		Node<V> node = new Node<>(key, value, weight);
+
+		if (weight > maximumWeight) {
+			// Too large to cache, but any previous value is now out of date.
+			if (!onlyIfAbsent) {
+				invalidate(key);
+			}
+			return null;
+		}
+
+		Node<V> old;
+		if (onlyIfAbsent) {
+			old = data.putIfAbsent(key, node);
+			if (old != null) {
+				return old;
+			}
+		} else {
+			old = data.put(key, node);
+		}
+
+		evictionLock.lock();
+		try {
+			if (old != null) {
+				onRemove(old);
+			}
+			onAdd(node);
+			evict();
+		} finally {
+			evictionLock.unlock();
+		}
+
+		return null;
+	}
+
+	public void invalidate(String key) {
+		Node<V> node = data.remove(key);
+		if (node != null) {
+			evictionLock.lock();
+			try {
+				onRemove(node);
+			} finally {
+				evictionLock.unlock();
+			}
+		}
+	}
+
+	public void invalidateAll() {
+		new ArrayList<>(data.keySet()).forEach(e -> invalidate(e));
+	}
+
+	public CacheStatisticsJson getStatistics() {
+		CacheStatisticsJson result = new CacheStatisticsJson();
+		result.setHitCount(hitCount.sum());
+		result.setMissCount(missCount.sum());
+		result.setLoadSuccessCount(loadSuccessCount.sum());
+		result.setLoadFailureCount(loadFailureCount.sum());
+		result.setEvictionCount(evictionCount.sum());
+		result.setEvictionWeight(evictionWeight.sum());
+		result.setEntryCount(data.size());
+		result.setMaximumWeight(maximumWeight);
+
+		evictionLock.lock();
+		try {
+			result.setWeightedSize(totalWeight_synch_evictionLock);
+		} finally {
+			evictionLock.unlock();
+		}
+
+		long requests = result.getHitCount() + result.getMissCount();
+		result.setHitRate(requests == 0 ? 1d : (double) result.getHitCount() / (double) requests);
+
+		return result;
+	}
+
+	// ------------------------------------------------------------------------
+
+	/**
+	 * Record the read in the ring buffer; if the buffer is full, older reads are
+	 * overwritten (lost), which only makes the policy slightly less accurate.
+	 */
+	private void recordRead(Node<V> node) {
+		long writes = readBufferWrites.getAndIncrement();
+		readBuffer.lazySet((int) (writes & (READ_BUFFER_SIZE - 1)), node);
+
+		if ((writes & (READ_BUFFER_DRAIN_THRESHOLD - 1)) == 0 && evictionLock.tryLock()) {
+			try {
+				drainReadBuffer();
+			} finally {
+				evictionLock.unlock();
+			}
+		}
+	}
+
+	private void drainReadBuffer() {
+		for (int x = 0; x < READ_BUFFER_SIZE; x++) {
+			Node<V> node = readBuffer.getAndSet(x, null);
+			if (node != null) {
+				onAccess(node);
+			}
+		}
+	}
+
+	private void onAdd(Node<V> node) {
+		if (node.queue != QueueType.NONE || node.removed) {
+			// Already removed by a concurrent write to the same key
+			return;
+		}
+
+		sketch_synch_evictionLock.increment(node.key);
+
+		node.queue = QueueType.WINDOW;
+		window_synch_evictionLock.addLast(node);
+		windowWeight_synch_evictionLock += node.weight;
+		totalWeight_synch_evictionLock += node.weight;
+	}
+
+	private void onRemove(Node<V> node) {
+		node.removed = true;
+		unlink(node);
+	}
+
+	private void unlink(Node<V> node) {
+		switch (node.queue) {
+		case WINDOW:
+			window_synch_evictionLock.remove(node);
+			windowWeight_synch_evictionLock -= node.weight;
+			break;
+		case PROBATION:
+			probation_synch_evictionLock.remove(node);
+			break;
+		case PROTECTED:
+			protected_synch_evictionLock.remove(node);
+			protectedWeight_synch_evictionLock -= node.weight;
+			break;
+		case NONE:
+			return;
+		}
+		totalWeight_synch_evictionLock -= node.weight;
+		node.queue = QueueType.NONE;
+	}
+
+	private void onAccess(Node<V> node) {
+		if (node.removed) {
+			return;
+		}
+
+		sketch_synch_evictionLock.increment(node.key);
+
+		switch (node.queue) {
+		case WINDOW:
+			window_synch_evictionLock.moveToLast(node);
+			break;
+		case PROBATION:
+			// Promote to the protected segment
+			probation_synch_evictionLock.remove(node);
+			node.queue = QueueType.PROTECTED;
+			protected_synch_evictionLock.addLast(node);
+			protectedWeight_synch_evictionLock += node.weight;
+
+			// Demote the least recently used protected entries, if over capacity
+			while (protectedWeight_synch_evictionLock > maximumProtectedWeight) {
+				Node<V> demoted = protected_synch_evictionLock.first();
+				protected_synch_evictionLock.remove(demoted);
+				protectedWeight_synch_evictionLock -= demoted.weight;
+				demoted.queue = QueueType.PROBATION;
+				probation_synch_evictionLock.addLast(demoted);
+			}
+			break;
+		case PROTECTED:
+			protected_synch_evictionLock.moveToLast(node);
+			break;
+		case NONE:
+			break;
+		}
+	}
+
+	private void evict() {
+
+		// Move entries from the window to the probation segment, as candidates for the
+		// main space
+		while (windowWeight_synch_evictionLock > maximumWindowWeight) {
+			Node<V> node = window_synch_evictionLock.first();
+			window_synch_evictionLock.remove(node);
+			windowWeight_synch_evictionLock -= node.weight;
+			node.queue = QueueType.PROBATION;
+			probation_synch_evictionLock.addLast(node);
+		}
+
+		while (totalWeight_synch_evictionLock > maximumWeight) {
+
+			// The most recent candidate from the window, versus the least recently used
+			// entry of the probation segment.
+			Node<V> candidate = probation_synch_evictionLock.last();
+			Node<V> victim = probation_synch_evictionLock.first();
+
+			Node<V> toEvict;
+			if (victim == null) {
+				toEvict = protected_synch_evictionLock.first();
+				if (toEvict == null) {
+					toEvict = window_synch_evictionLock.first();
+				}
+			} else if (candidate == victim) {
+				toEvict = victim;
+			} else if (sketch_synch_evictionLock.frequency(candidate.key) > sketch_synch_evictionLock
+					.frequency(victim.key)) {
+				toEvict = victim;
+			} else {
+				toEvict = candidate;
+			}
+
+			if (toEvict == null) {
+				break;
+			}
+
+			unlink(toEvict);
+			toEvict.removed = true;
+			data.remove(toEvict.key, toEvict);
+
+			evictionCount.increment();
+			evictionWeight.add(toEvict.weight);
+		}
+	}
+
+	// ------------------------------------------------------------------------
+
+	private static enum QueueType {
+		NONE, WINDOW, PROBATION, PROTECTED
+	}
+
+	private static class Node<V> {
+		private final String key;
+		private final V value;
+		private final int weight;
+
+		// The fields below are guarded by the eviction lock
+		private QueueType queue = QueueType.NONE;
+		private boolean removed = false;
+		private Node<V> prev;
+		private Node<V> next;
+
+		public Node(String key, V value, int weight) {
+			this.key = key;
+			this.value = value;
+			this.weight = weight;
+		}
+	}
+
+	/** An intrusive doubly-linked list of nodes, ordered from least to most recently used. */
+	private static class NodeQueue<V> {
+		private Node<V> head;
+		private Node<V> tail;
+
+		public Node<V> first() {
+			return head;
+		}
+
+		public Node<V> last() {
+			return tail;
+		}
+
+		public void addLast(Node<V> node) {
+			node.prev = tail;
+			node.next = null;
+			if (tail != null) {
+				tail.next = node;
+			} else {
+				head = node;
+			}
+			tail = node;
+		}
+
+		public void remove(Node<V> node) {
+			if (node.prev != null) {
+				node.prev.next = node.next;
+			} else {
+				head = node.next;
+			}
+			if (node.next != null) {
+				node.next.prev = node.prev;
+			} else {
+				tail = node.prev;
+			}
+			node.prev = null;
+			node.next = null;
+		}
+
+		public void moveToLast(Node<V> node) {
+			if (tail != node) {
+				remove(node);
+				addLast(node);
+			}
+		}
+	}
+
+	/**
+	 * A count-min sketch of 4-bit counters, estimating how often each key has been
+	 * accessed recently. All counters are halved periodically, so that the
+	 * estimates favour recent accesses.
+	 */
+	private static class FrequencySketch {
+
+		private static final int DEPTH = 4;
+
+		private static final int MAX_COUNT = 15;
+
+		private static final int[] SEEDS = { 0x97cb3127, 0xb9f0ea2f, 0x3fe4bd4d, 0x8f2fa5a1 };
+
+		private final byte[][] table;
+
+		private final int mask;
+
+		private final int sampleSize;
+
+		private int additions = 0;
+
+		public FrequencySketch(int expectedEntries) {
+			int width = Integer.highestOneBit(Math.max(16, expectedEntries - 1) << 1);
+			this.table = new byte[DEPTH][width];
+			this.mask = width - 1;
+			this.sampleSize = 10 * width;
+		}
+
+		private int index(String key, int row) {
+			int hash = key.hashCode() * SEEDS[row];
+			hash ^= hash >>> 17;
+			return hash & mask;
+		}
+
+		public void increment(String key) {
+			boolean incremented = false;
+			for (int row = 0; row < DEPTH; row++) {
+				int index = index(key, row);
+				if (table[row][index] < MAX_COUNT) {
+					table[row][index]++;
+					incremented = true;
+				}
+			}
+
+			if (incremented && ++additions >= sampleSize) {
+				reset();
+			}
+		}
+
+		public int frequency(String key) {
+			int result = MAX_COUNT;
+			for (int row = 0; row < DEPTH; row++) {
+				result = Math.min(result, table[row][index(key, row)]);
+			}
+			return result;
+		}
+
+		private void reset() {
+			for (byte[] row : table) {
+				for (int x = 0; x < row.length; x++) {
+					row[x] = (byte) (row[x] >> 1);
+				}
+			}
+			additions /= 2;
+		}
+	}
+}
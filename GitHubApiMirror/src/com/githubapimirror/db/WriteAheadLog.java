@@ -0,0 +1,349 @@
+/*
+ * Copyright 2021 Jonathan West
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.githubapimirror.db;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+
+import com.githubapimirror.shared.GHApiUtil;
+
+/**
+ * An append-only log of (path, contents) writes, used by PersistJsonDb to make
+ * writes durable without synchronously rewriting (and fsync-ing) the target
+ * file. Concurrent appends are made durable together, using GroupCommit.
+ *
+ * The log is split into files ('wal-(id).log'); roll() starts a new file, after
+ * which the older files may be deleted once their contents have been
+ * checkpointed.
+ *
+ * Each entry is protected by a CRC; on read, an incomplete or corrupt entry (and
+ * everything after it) is ignored.
+ */
+public class WriteAheadLog {
+
+	private static final String LOG_PREFIX = "wal-";
+	private static final String LOG_SUFFIX = ".log";
+
+	/** crc (int) + path length (int) + contents length (int) */
+	private static final int ENTRY_HEADER_SIZE = 4 + 4 + 4;
+
+	private final File directory;
+
+	private final Object lock = new Object();
+
+	private int currentId_synch_lock;
+
+	private FileChannel channel_synch_lock;
+
+	private long position_synch_lock;
+
+	private boolean closed_synch_lock = false;
+
+	private final GroupCommit groupCommit;
+
+	public WriteAheadLog(File directory) {
+		this.directory = directory;
+
+		if (!directory.exists() && !directory.mkdirs()) {
+			throw new RuntimeException("Unable to create directory: " + directory);
+		}
+
+		List<Integer> ids = listLogIds(directory);
+
+		synchronized (lock) {
+			currentId_synch_lock = ids.isEmpty() ? 1 : ids.get(ids.size() - 1) + 1;
+			openChannel();
+		}
+
+		this.groupCommit = new GroupCommit(() -> {
+			FileChannel ch;
+			synchronized (lock) {
+				ch = channel_synch_lock;
+			}
+			try {
+				ch.force(false);
+			} catch (ClosedChannelException e) {
+				synchronized (lock) {
+					if (ch != channel_synch_lock) {
+						return; // The log was rolled, which forces the old channel before closing it
+					}
+					reopenChannel();
+				}
+				throw e;
+			}
+		});
+	}
+
+	private void openChannel() {
+		synchronized (lock) {
+			File file = logFile(directory, currentId_synch_lock);
+			try {
+				channel_synch_lock = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+						StandardOpenOption.WRITE);
+				position_synch_lock = channel_synch_lock.size();
+			} catch (IOException e) {
+				throw new RuntimeException("Unable to open log file: " + file, e);
+			}
+		}
+	}
+
+	/**
+	 * An interrupt of a thread using the channel (for example, from WorkerThread's
+	 * TimeOutThread) closes it for all threads, so it must be reopened.
+	 */
+	private void reopenChannel() {
+		synchronized (lock) {
+			if (!closed_synch_lock && !channel_synch_lock.isOpen()) {
+				long position = position_synch_lock;
+
+				// If the interrupt is still pending, it would close the new channel too
+				boolean interrupted = Thread.interrupted();
+				try {
+					openChannel();
+				} finally {
+					if (interrupted) {
+						Thread.currentThread().interrupt();
+					}
+				}
+				position_synch_lock = position;
+			}
+		}
+	}
+
+	/**
+	 * Append an entry to the log, and return a sequence number that may be passed
+	 * to awaitDurable(...). The entry is not durable until awaitDurable returns.
+	 */
+	public long append(String path, byte[] contents) {
+
+		ByteBuffer entry = encodeEntry(path, contents);
+
+		synchronized (lock) {
+			if (closed_synch_lock) {
+				throw new IllegalStateException("The log is closed: " + directory);
+			}
+
+			try {
+				long position = position_synch_lock;
+				while (entry.hasRemaining()) {
+					position += channel_synch_lock.write(entry, position);
+				}
+				position_synch_lock = position;
+
+			} catch (ClosedChannelException e) {
+				reopenChannel();
+				GHApiUtil.throwAsUnchecked(e);
+			} catch (IOException e) {
+				GHApiUtil.throwAsUnchecked(e);
+			}
+
+			return groupCommit.nextSequence();
+		}
+	}
+
+	public void awaitDurable(long sequence) {
+		groupCommit.awaitDurable(sequence);
+	}
+
+	/**
+	 * Start a new log file, and return the previous log files (which may be deleted
+	 * once their contents have been checkpointed). If this fails, the current log
+	 * file remains open, and is still used.
+	 */
+	public List<File> roll() {
+		synchronized (lock) {
+			if (closed_synch_lock) {
+				throw new IllegalStateException("The log is closed: " + directory);
+			}
+
+			FileChannel previousChannel = channel_synch_lock;
+			try {
+				previousChannel.force(false);
+			} catch (ClosedChannelException e) {
+				reopenChannel();
+				GHApiUtil.throwAsUnchecked(e);
+			} catch (IOException e) {
+				GHApiUtil.throwAsUnchecked(e);
+			}
+
+			int previousId = currentId_synch_lock;
+			long previousPosition = position_synch_lock;
+			currentId_synch_lock++;
+			try {
+				openChannel();
+			} catch (RuntimeException e) {
+				currentId_synch_lock = previousId;
+				position_synch_lock = previousPosition;
+				throw e;
+			}
+
+			// Its contents are durable, so a failure to close it is harmless
+			try {
+				previousChannel.close();
+			} catch (IOException e) {
+				/* ignore */
+			}
+
+			return listLogIds(directory).stream().filter(e -> e <= previousId).map(e -> logFile(directory, e))
+					.collect(Collectors.toList());
+		}
+	}
+
+	/** The size of the current log file, in bytes. */
+	public long getCurrentSize() {
+		synchronized (lock) {
+			return position_synch_lock;
+		}
+	}
+
+	public GroupCommit getGroupCommit() {
+		return groupCommit;
+	}
+
+	public void close() {
+		synchronized (lock) {
+			if (closed_synch_lock) {
+				return;
+			}
+			closed_synch_lock = true;
+
+			try {
+				channel_synch_lock.force(false);
+				channel_synch_lock.close();
+			} catch (IOException e) {
+				/* ignore */
+			}
+		}
+	}
+
+	// ------------------------------------------------------------------------
+
+	/** Returns the log files in the directory, in the order they were written. */
+	public static List<File> listLogFiles(File directory) {
+		return listLogIds(directory).stream().map(e -> logFile(directory, e)).collect(Collectors.toList());
+	}
+
+	private static List<Integer> listLogIds(File directory) {
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return Collections.emptyList();
+		}
+
+		return Arrays.asList(files).stream().map(e -> e.getName())
+				.filter(e -> e.startsWith(LOG_PREFIX) && e.endsWith(LOG_SUFFIX))
+				.map(e -> Integer.parseInt(e.substring(LOG_PREFIX.length(), e.length() - LOG_SUFFIX.length())))
+				.sorted().collect(Collectors.toList());
+	}
+
+	private static File logFile(File directory, int id) {
+		return new File(directory, LOG_PREFIX + String.format("%08d", id) + LOG_SUFFIX);
+	}
+
+	/**
+	 * Read the entries of a log file, stopping at the first incomplete or corrupt
+	 * entry.
+	 */
+	public static List<Entry> readEntries(File logFile) {
+		List<Entry> result = new ArrayList<>();
+
+		try (DataInputStream dis = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(logFile), 256 * 1024))) {
+
+			while (true) {
+				int crcValue = dis.readInt();
+				int pathLength = dis.readInt();
+				int contentsLength = dis.readInt();
+
+				if (pathLength <= 0 || contentsLength < 0 || pathLength > 64 * 1024) {
+					break;
+				}
+
+				byte[] body = new byte[pathLength + contentsLength];
+				dis.readFully(body);
+
+				CRC32 crc = new CRC32();
+				crc.update(ByteBuffer.allocate(8).putInt(pathLength).putInt(contentsLength).array());
+				crc.update(body);
+				if ((int) crc.getValue() != crcValue) {
+					break;
+				}
+
+				result.add(new Entry(new String(body, 0, pathLength, StandardCharsets.UTF_8),
+						Arrays.copyOfRange(body, pathLength, body.length)));
+			}
+
+		} catch (EOFException e) {
+			/* ignore: end of log, or an incomplete entry */
+		} catch (IOException e) {
+			GHApiUtil.throwAsUnchecked(e);
+		}
+
+		return result;
+	}
+
+	private static ByteBuffer encodeEntry(String path, byte[] contents) {
+		byte[] pathBytes = path.getBytes(StandardCharsets.UTF_8);
+
+		ByteBuffer buffer = ByteBuffer.allocate(ENTRY_HEADER_SIZE + pathBytes.length + contents.length);
+		buffer.putInt(0); // crc, filled in below
+		buffer.putInt(pathBytes.length);
+		buffer.putInt(contents.length);
+		buffer.put(pathBytes);
+		buffer.put(contents);
+
+		CRC32 crc = new CRC32();
+		crc.update(buffer.array(), 4, buffer.capacity() - 4);
+		buffer.putInt(0, (int) crc.getValue());
+
+		buffer.flip();
+		return buffer;
+	}
+
+	/** A single write: the path (relative to the database directory) and its new contents. */
+	public static class Entry {
+		private final String path;
+		private final byte[] contents;
+
+		public Entry(String path, byte[] contents) {
+			this.path = path;
+			this.contents = contents;
+		}
+
+		public String getPath() {
+			return path;
+		}
+
+		public byte[] getContents() {
+			return contents;
+		}
+	}
+}
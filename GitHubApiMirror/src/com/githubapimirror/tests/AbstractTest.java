@@ -21,8 +21,12 @@
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
 import java.util.Properties;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
 
 import com.githubapimirror.ServerInstance;
 import com.githubapimirror.ServerInstance.ServerInstanceBuilder;
@@ -100,6 +104,18 @@ protected static ServerInstanceBuilder getClientBuilder() {
 
 	}
 
+	/** Delete the directory, and everything in it. */
+	static void deleteDirectory(File directory) throws IOException {
+		if (!directory.exists()) {
+			return;
+		}
+
+		try (Stream<Path> paths = Files.walk(directory.toPath())) {
+			// Children are sorted after their parents, so delete in reverse
+			paths.sorted(Comparator.reverseOrder()).forEach(e -> e.toFile().delete());
+		}
+	}
+
 	private static String getProperty(String property, Properties props) {
 
 		String apiKey = (String) props.getOrDefault(property, null);
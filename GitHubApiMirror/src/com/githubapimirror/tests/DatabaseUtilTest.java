@@ -0,0 +1,100 @@
+/*
+ * Copyright 2021 Jonathan West
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+*/
+
+
+package com.githubapimirror.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.Test;
+
+import com.githubapimirror.db.DatabaseUtil;
+
+/**
+ * Tests for the parallel issue reads of DatabaseUtil.
+ */
+public class DatabaseUtilTest {
+
+	@Test
+	public void testReadIssuesInParallel() {
+
+		List<Integer> issueNumbers = new ArrayList<>();
+		for (int x = 1000; x > 0; x--) {
+			issueNumbers.add(x);
+		}
+		issueNumbers.add(500); // Duplicates are read once
+		Collections.shuffle(issueNumbers);
+
+		Set<String> readerThreads = ConcurrentHashMap.newKeySet();
+		Set<Integer> read = ConcurrentHashMap.newKeySet();
+
+		// Issues that are a multiple of 10 do not exist
+		SortedMap<Integer, String> result = DatabaseUtil.readIssuesInParallel(issueNumbers, e -> {
+			assertTrue(read.add(e));
+			readerThreads.add(Thread.currentThread().getName());
+			return e % 10 == 0 ? Optional.empty() : Optional.of("issue-" + e);
+		});
+
+		assertEquals(1000, read.size());
+		assertEquals(900, result.size());
+		int expected = 1;
+		for (Integer issueNumber : result.keySet()) {
+			if (expected % 10 == 0) {
+				expected++;
+			}
+			assertEquals(expected, (int) issueNumber);
+			assertEquals("issue-" + expected, result.get(issueNumber));
+			expected++;
+		}
+
+		// The reads are shared by the calling thread and a bounded number of reader
+		// threads, not the common fork/join pool
+		readerThreads.remove(Thread.currentThread().getName());
+		assertTrue(readerThreads.toString(), readerThreads.size() <= 8);
+		assertTrue(readerThreads.toString(), readerThreads.stream().noneMatch(e -> e.contains("ForkJoinPool")));
+	}
+
+	@Test
+	public void testReadFailureIsThrownToCaller() {
+
+		List<Integer> issueNumbers = new ArrayList<>();
+		for (int x = 1; x <= 1000; x++) {
+			issueNumbers.add(x);
+		}
+
+		try {
+			DatabaseUtil.readIssuesInParallel(issueNumbers, e -> {
+				if (e == 900) {
+					throw new IllegalStateException("Unable to read issue " + e);
+				}
+				return Optional.of(e);
+			});
+			fail("Expected the read failure to be thrown");
+		} catch (IllegalStateException e) {
+			assertEquals("Unable to read issue 900", e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2021 Jonathan West
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.githubapimirror.tests;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.kohsuke.github.GHEvent;
+
+import com.githubapimirror.EventFingerprint;
+import com.githubapimirror.EventFingerprintSet;
+import com.githubapimirror.shared.Owner;
+
+/**
+ * Compares the processed event set of EventScanData before (a synchronized
+ * HashSet of SHA-256 hex strings) and after (an EventFingerprintSet of 128-bit
+ * fingerprints): the heap used by each for the same events, the cost of
+ * hashing an event, and the cost of a lookup (half of which are misses).
+ *
+ * Usage: EventFingerprintSetBenchmark [events]
+ */
+public class EventFingerprintSetBenchmark {
+
+	private static final Owner OWNER = Owner.org("benchmark-org");
+
+	private static final int ITERATIONS = 5;
+
+	/** Keeps the result of each operation live, so that it is not optimized away */
+	private static long sink;
+
+	public static void main(String[] args) throws Exception {
+
+		int numEvents = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+
+		List<Object[]> events = createEvents(numEvents * 2, new Random(1));
+
+		// The first half of the events are added to each set; the second half are
+		// only used for lookups that miss.
+		List<String> hashes = new ArrayList<>();
+		List<EventFingerprint> fingerprints = new ArrayList<>();
+
+		long hashNanos = bestOf(() -> {
+			hashes.clear();
+			events.forEach(e -> hashes.add(createLegacyHash(e)));
+		});
+
+		long fingerprintNanos = bestOf(() -> {
+			fingerprints.clear();
+			events.forEach(e -> fingerprints.add(createFingerprint(e)));
+		});
+
+		System.out.println("Events: " + numEvents);
+		System.out.println();
+		System.out.println(String.format("%-24s %14s %14s %14s", "", "Heap bytes", "Hashes/s", "Lookups/s"));
+
+		// HashSet of strings
+		long before = usedHeap();
+		HashSet<String> hashSet = new HashSet<>();
+		for (int x = 0; x < numEvents; x++) {
+			// A copy, as the database would return a new string for each
+			hashSet.add(new String(hashes.get(x).toCharArray()));
+		}
+		long hashSetBytes = usedHeap() - before;
+
+		Object lock = new Object();
+		long hashSetLookupNanos = bestOf(() -> {
+			for (String hash : hashes) {
+				synchronized (lock) {
+					sink += hashSet.contains(hash) ? 1 : 0;
+				}
+			}
+		});
+
+		System.out.println(String.format("%-24s %14d %14.0f %14.0f", "HashSet<String>", hashSetBytes,
+				perSecond(events.size(), hashNanos), perSecond(hashes.size(), hashSetLookupNanos)));
+
+		hashSet.clear();
+
+		// Fingerprint set
+		before = usedHeap();
+		EventFingerprintSet fingerprintSet = new EventFingerprintSet();
+		for (int x = 0; x < numEvents; x++) {
+			fingerprintSet.add(fingerprints.get(x), ((Date) events.get(x)[3]).getTime());
+		}
+		long fingerprintSetBytes = usedHeap() - before;
+
+		long fingerprintSetLookupNanos = bestOf(() -> {
+			for (EventFingerprint fingerprint : fingerprints) {
+				sink += fingerprintSet.contains(fingerprint) ? 1 : 0;
+			}
+		});
+
+		System.out.println(String.format("%-24s %14d %14.0f %14.0f", "EventFingerprintSet", fingerprintSetBytes,
+				perSecond(events.size(), fingerprintNanos), perSecond(fingerprints.size(), fingerprintSetLookupNanos)));
+
+		System.out.println();
+		System.out.println("(" + sink + ")");
+	}
+
+	private static String createLegacyHash(Object[] event) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(((GHEvent) event[0]).ordinal());
+		sb.append("-");
+		sb.append(OWNER.getOrgNameOrNull());
+		sb.append("-");
+		sb.append(OWNER.getUserNameOrNull());
+		sb.append("-");
+		sb.append(event[1]);
+		sb.append("-");
+		sb.append(event[2]);
+		sb.append("-");
+		sb.append(((Date) event[3]).getTime());
+		sb.append("-");
+		sb.append(event[4]);
+
+		return DigestUtils.sha256Hex(sb.toString());
+	}
+
+	private static EventFingerprint createFingerprint(Object[] event) {
+		return EventFingerprint.create(event[0], OWNER, (String) event[1], (Integer) event[2], (Date) event[3],
+				(String) event[4]);
+	}
+
+	/** Each event is (event type, repository, issue number, created at, actor) */
+	private static List<Object[]> createEvents(int count, Random random) {
+		List<Object[]> result = new ArrayList<>();
+		for (int x = 0; x < count; x++) {
+			result.add(new Object[] { random.nextBoolean() ? GHEvent.ISSUES : GHEvent.ISSUE_COMMENT,
+					"repo-" + random.nextInt(200), random.nextInt(20_000) + 1,
+					new Date(1_500_000_000_000L + x * 1000L), "user-" + random.nextInt(5000) });
+		}
+		return result;
+	}
+
+	private static long usedHeap() throws InterruptedException {
+		Runtime runtime = Runtime.getRuntime();
+		for (int x = 0; x < 3; x++) {
+			System.gc();
+			Thread.sleep(100);
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	/** Run the operation several times, returning the fastest time in nanoseconds. */
+	private static long bestOf(Runnable operation) {
+		long best = Long.MAX_VALUE;
+		for (int x = 0; x < ITERATIONS; x++) {
+			long start = System.nanoTime();
+			operation.run();
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		return best;
+	}
+
+	private static double perSecond(int count, long nanos) {
+		return count / (nanos / (double) TimeUnit.NANOSECONDS.convert(1, TimeUnit.SECONDS));
+	}
+}
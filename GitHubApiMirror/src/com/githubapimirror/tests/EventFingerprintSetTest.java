@@ -0,0 +1,118 @@
+/*
+ * Copyright 2021 Jonathan West
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.githubapimirror.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Date;
+import java.util.Random;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.Test;
+import org.kohsuke.github.GHEvent;
+
+import com.githubapimirror.EventFingerprint;
+import com.githubapimirror.EventFingerprintSet;
+import com.githubapimirror.shared.Owner;
+
+/**
+ * Tests for EventFingerprint and EventFingerprintSet.
+ */
+public class EventFingerprintSetTest {
+
+	@Test
+	public void testFingerprintMatchesStoredHash() {
+
+		Date createdAt = new Date(1_600_000_000_123L);
+
+		// The hash stored by earlier versions (see EventScan)
+		String hash = DigestUtils.sha256Hex(GHEvent.ISSUES.ordinal() + "-my-org-null-my-repo-12-"
+				+ createdAt.getTime() + "-user-é");
+
+		EventFingerprint fingerprint = EventFingerprint.create(GHEvent.ISSUES, Owner.org("my-org"), "my-repo", 12,
+				createdAt, "user-é");
+
+		assertEquals(fingerprint, EventFingerprint.fromHex(hash));
+		assertEquals(hash.substring(0, 32), fingerprint.toString());
+		assertEquals(fingerprint, EventFingerprint.fromHex(fingerprint.toString()));
+
+		String issueEventHash = DigestUtils.sha256Hex("labeled-null-my-user-my-repo-null-" + createdAt.getTime() + "-null");
+		assertEquals(EventFingerprint.fromHex(issueEventHash),
+				EventFingerprint.create("labeled", Owner.user("my-user"), "my-repo", null, createdAt, null));
+	}
+
+	@Test
+	public void testAddAndContains() {
+
+		EventFingerprintSet set = new EventFingerprintSet();
+
+		Random random = new Random(1);
+		long[] values = new long[20_000];
+		for (int x = 0; x < values.length; x++) {
+			values[x] = random.nextLong();
+		}
+
+		// Enough to resize the table several times
+		for (int x = 0; x < values.length; x += 2) {
+			assertTrue(set.add(values[x], values[x + 1], x));
+			assertFalse(set.add(values[x], values[x + 1], x));
+		}
+		assertEquals(values.length / 2, set.size());
+
+		for (int x = 0; x < values.length; x += 2) {
+			assertTrue(set.contains(values[x], values[x + 1]));
+			assertFalse(set.contains(values[x], values[x + 1] + 1));
+		}
+
+		// The all-zero fingerprint is distinct from an empty slot
+		assertFalse(set.contains(0, 0));
+		assertTrue(set.add(0, 0, 0));
+		assertTrue(set.contains(0, 0));
+
+		set.clear();
+		assertEquals(0, set.size());
+		assertFalse(set.contains(values[0], values[1]));
+	}
+
+	@Test
+	public void testRemoveEventsBefore() {
+
+		EventFingerprintSet set = new EventFingerprintSet();
+
+		for (int x = 1; x <= 10_000; x++) {
+			set.add(x, x, x);
+		}
+		long tableSize = set.getTableSizeInBytes();
+
+		// Re-adding keeps the later event time
+		assertFalse(set.add(1, 1, 20_000));
+		assertFalse(set.add(2, 2, 0));
+
+		assertEquals(9_997, set.removeEventsBefore(9_999));
+		assertEquals(3, set.size());
+		assertTrue(set.contains(1, 1));
+		assertFalse(set.contains(2, 2));
+		assertTrue(set.contains(9_999, 9_999));
+		assertTrue(set.contains(10_000, 10_000));
+		assertTrue(set.getTableSizeInBytes() < tableSize);
+
+		assertEquals(0, set.removeEventsBefore(9_999));
+		assertTrue(set.add(2, 2, 0));
+	}
+}
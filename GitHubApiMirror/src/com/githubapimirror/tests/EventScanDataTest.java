@@ -0,0 +1,84 @@
+/*
+ * Copyright 2021 Jonathan West
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+*/
+
+
+package com.githubapimirror.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.kohsuke.github.GHEvent;
+
+import com.githubapimirror.EventFingerprint;
+import com.githubapimirror.EventScan.EventScanData;
+import com.githubapimirror.db.ProcessedEvent;
+import com.githubapimirror.shared.Owner;
+
+/**
+ * Tests for the expiry of the processed events of EventScanData.
+ */
+public class EventScanDataTest {
+
+	private static final long HOUR = TimeUnit.MILLISECONDS.convert(1, TimeUnit.HOURS);
+
+	@Test
+	public void testEventsSinceLastFullScanAreNotExpired() {
+
+		long now = System.currentTimeMillis();
+
+		// The retention window (1 hour) is shorter than the time since the last full
+		// scan started (3 hours)
+		long lastFullScanStart = now - 3 * HOUR;
+
+		List<ProcessedEvent> events = new ArrayList<>();
+		events.add(new ProcessedEvent(fingerprint(1).toString(), now - 4 * HOUR));
+		events.add(new ProcessedEvent(fingerprint(2).toString(), lastFullScanStart - 1));
+		events.add(new ProcessedEvent(fingerprint(3).toString(), lastFullScanStart));
+		events.add(new ProcessedEvent(fingerprint(4).toString(), now - 2 * HOUR));
+		events.add(new ProcessedEvent(fingerprint(5).toString(), now - HOUR / 2));
+
+		EventScanData data = new EventScanData(events, HOUR);
+
+		// The event scan checks the events back to the start of the last full scan, so
+		// only those before it are expired
+		assertEquals(lastFullScanStart, data.expireEvents(lastFullScanStart));
+		assertFalse(data.isEventProcessed(fingerprint(1)));
+		assertFalse(data.isEventProcessed(fingerprint(2)));
+		assertTrue(data.isEventProcessed(fingerprint(3)));
+		assertTrue(data.isEventProcessed(fingerprint(4)));
+		assertTrue(data.isEventProcessed(fingerprint(5)));
+
+		// Once a later full scan has started, the retention window applies
+		long expireBefore = data.expireEvents(now - HOUR / 4);
+		assertTrue(expireBefore >= now - HOUR);
+		assertTrue(expireBefore <= System.currentTimeMillis() - HOUR);
+		assertFalse(data.isEventProcessed(fingerprint(3)));
+		assertFalse(data.isEventProcessed(fingerprint(4)));
+		assertTrue(data.isEventProcessed(fingerprint(5)));
+	}
+
+	private static EventFingerprint fingerprint(int issueNumber) {
+		return EventFingerprint.create(GHEvent.ISSUES, Owner.org("my-org"), "my-repo", issueNumber, new Date(0),
+				"my-user");
+	}
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2021 Jonathan West
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+*/
+
+
+package com.githubapimirror.tests;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Calendar;
+
+import org.junit.Test;
+
+import com.githubapimirror.FullScanScheduler;
+
+/**
+ * Tests for when the background scheduler thread starts a full scan.
+ */
+public class FullScanSchedulerTest {
+
+	@Test
+	public void testDailyScanRunsOncePerDay() {
+		FullScanScheduler scheduler = new FullScanScheduler();
+
+		assertFalse(scheduler.shouldStartFullScan(time(1, 2, 0), false, false));
+
+		assertTrue(scheduler.shouldStartFullScan(time(1, 3, 0), false, false));
+
+		// The scan completes within the hour; it doesn't run again that day
+		assertFalse(scheduler.shouldStartFullScan(time(1, 3, 40), false, false));
+
+		assertTrue(scheduler.shouldStartFullScan(time(2, 3, 5), false, false));
+	}
+
+	@Test
+	public void testRequestDuringFullScanStartsAfterIt() {
+		FullScanScheduler scheduler = new FullScanScheduler();
+
+		assertTrue(scheduler.shouldStartFullScan(time(1, 3, 0), false, false));
+
+		// Requested (for example, by the event scan) while the daily scan is in progress
+		scheduler.requestFullScan();
+		assertFalse(scheduler.shouldStartFullScan(time(1, 3, 10), true, false));
+		assertFalse(scheduler.shouldStartFullScan(time(1, 4, 0), true, false));
+
+		// The daily scan has already run today, but the request is not dropped
+		assertTrue(scheduler.shouldStartFullScan(time(1, 5, 0), false, false));
+
+		// The request was consumed by that scan
+		assertFalse(scheduler.shouldStartFullScan(time(1, 6, 0), false, false));
+	}
+
+	@Test
+	public void testRequestedScanBypassesDailyGuard() {
+		FullScanScheduler scheduler = new FullScanScheduler();
+
+		assertTrue(scheduler.shouldStartFullScan(time(1, 3, 0), false, false));
+
+		scheduler.requestFullScan();
+		assertTrue(scheduler.shouldStartFullScan(time(1, 3, 30), false, false));
+
+		scheduler.requestFullScan();
+		assertTrue(scheduler.shouldStartFullScan(time(1, 12, 0), false, false));
+	}
+
+	@Test
+	public void testRequiredScanBypassesDailyGuard() {
+		FullScanScheduler scheduler = new FullScanScheduler();
+
+		assertTrue(scheduler.shouldStartFullScan(time(1, 3, 0), false, false));
+
+		assertFalse(scheduler.shouldStartFullScan(time(1, 4, 0), true, true));
+		assertTrue(scheduler.shouldStartFullScan(time(1, 5, 0), false, true));
+	}
+
+	@Test
+	public void testResumedScanCountsAsDailyScan() {
+		FullScanScheduler scheduler = new FullScanScheduler();
+
+		// A full scan that started at 3 AM was resumed from a checkpoint, and completed
+		scheduler.fullScanStarted(time(1, 3, 0));
+
+		assertFalse(scheduler.shouldStartFullScan(time(1, 3, 30), false, false));
+		assertTrue(scheduler.shouldStartFullScan(time(2, 3, 0), false, false));
+	}
+
+	private static Calendar time(int dayOfMonth, int hour, int minute) {
+		Calendar c = Calendar.getInstance();
+		c.clear();
+		c.set(2021, Calendar.MARCH, dayOfMonth, hour, minute);
+		return c;
+	}
+
+}
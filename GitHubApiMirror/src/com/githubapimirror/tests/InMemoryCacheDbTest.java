@@ -0,0 +1,331 @@
+/*
+ * Copyright 2021 Jonathan West
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.githubapimirror.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.githubapimirror.db.Database;
+import com.githubapimirror.db.InMemoryCacheDb;
+import com.githubapimirror.db.PersistJsonDb;
+import com.githubapimirror.db.ProcessedEvent;
+import com.githubapimirror.db.SegmentStoreDb;
+import com.githubapimirror.shared.Owner;
+import com.githubapimirror.shared.ResourceChangeEventFilter;
+import com.githubapimirror.shared.json.IssueJson;
+import com.githubapimirror.shared.json.OrganizationJson;
+import com.githubapimirror.shared.json.RepositoryJson;
+import com.githubapimirror.shared.json.ResourceChangeEventJson;
+import com.githubapimirror.shared.json.UserRepositoriesJson;
+
+/**
+ * Tests for the write-behind mode, issue number tracking, and recent resource
+ * change events of InMemoryCacheDb.
+ */
+public class InMemoryCacheDbTest {
+
+	@Rule
+	public TemporaryFolder tempFolder = new TemporaryFolder();
+
+	@Test
+	public void testWriteBehindCoalescesWrites() throws IOException {
+
+		File dirDb = tempFolder.newFolder();
+
+		Map<String, AtomicInteger> innerCalls = new ConcurrentHashMap<>();
+
+		Database inner = countingDatabase(new SegmentStoreDb(dirDb), innerCalls);
+
+		InMemoryCacheDb db = new InMemoryCacheDb(inner, true, InMemoryCacheDb.DEFAULT_CACHE_SIZE_IN_BYTES);
+
+		Owner owner = Owner.org("my-org");
+
+		for (int x = 1; x <= 1000; x++) {
+			db.persistRepository(createRepository(x));
+
+			// Reads always see the most recent write
+			assertEquals(x, (int) db.getRepository(owner, "my-repo").get().getLastIssue());
+		}
+
+		db.flush();
+
+		int repoWrites = innerCalls.get("persistRepository").get();
+		assertTrue("Inner writes: " + repoWrites, repoWrites < 1000);
+
+		assertEquals(1000, (int) inner.getRepository(owner, "my-repo").get().getLastIssue());
+
+		db.close();
+	}
+
+	@Test
+	public void testWorkQueueCheckpointIsWrittenThrough() throws IOException {
+
+		File dirDb = tempFolder.newFolder();
+
+		SegmentStoreDb inner = new SegmentStoreDb(dirDb);
+
+		InMemoryCacheDb db = new InMemoryCacheDb(inner, true, InMemoryCacheDb.DEFAULT_CACHE_SIZE_IN_BYTES);
+
+		// The checkpoint must be in the inner database before the processed events of
+		// the work it contains, which are also written through.
+		db.persistString(Database.WORK_QUEUE_CHECKPOINT, "first");
+		db.addProcessedEvents(Arrays.asList(new ProcessedEvent("a", 1)));
+		assertEquals("first", inner.getString(Database.WORK_QUEUE_CHECKPOINT).get());
+		assertEquals(1, inner.getProcessedEvents().size());
+
+		db.persistString(Database.WORK_QUEUE_CHECKPOINT, "second");
+		assertEquals("second", inner.getString(Database.WORK_QUEUE_CHECKPOINT).get());
+		assertEquals("second", db.getString(Database.WORK_QUEUE_CHECKPOINT).get());
+
+		db.close();
+	}
+
+	@Test
+	public void testOrganizationAndUserRepositoriesDoNotCollide() throws IOException {
+
+		File dirDb = tempFolder.newFolder();
+
+		InMemoryCacheDb db = new InMemoryCacheDb(new SegmentStoreDb(dirDb), true, InMemoryCacheDb.DEFAULT_CACHE_SIZE_IN_BYTES);
+
+		OrganizationJson org = new OrganizationJson();
+		org.setName("same-name");
+		db.persistOrganization(org);
+
+		UserRepositoriesJson userRepos = new UserRepositoriesJson();
+		userRepos.setUserName("same-name");
+		db.persistUserRepositories(userRepos);
+
+		db.flush();
+
+		assertEquals("same-name", db.getOrganization("same-name").get().getName());
+		assertEquals("same-name", db.getUserRepositories("same-name").get().getUserName());
+
+		db.close();
+	}
+
+	@Test
+	public void testIssueNumbersIncludeUnwrittenIssues() throws IOException {
+
+		File dirDb = tempFolder.newFolder();
+
+		Owner owner = Owner.org("my-org");
+
+		PersistJsonDb inner = new PersistJsonDb(dirDb);
+		inner.persistIssue(owner, createIssue(2));
+
+		InMemoryCacheDb db = new InMemoryCacheDb(inner, true, InMemoryCacheDb.DEFAULT_CACHE_SIZE_IN_BYTES);
+		db.persistIssue(owner, createIssue(5));
+
+		assertEquals("{2, 5}", db.getIssueNumbers(owner, "my-repo").toString());
+
+		// Issues persisted after the first read are included
+		db.persistIssue(owner, createIssue(7));
+		assertEquals("{2, 5, 7}", db.getIssueNumbers(owner, "my-repo").toString());
+
+		db.flush();
+		assertEquals("{2, 5, 7}", inner.getIssueNumbers(owner, "my-repo").toString());
+		assertEquals("{}", inner.getIssueNumbers(owner, "other-repo").toString());
+
+		db.close();
+	}
+
+	@Test
+	public void testGetAndScanIssues() throws IOException {
+
+		File dirDb = tempFolder.newFolder();
+
+		Owner owner = Owner.org("my-org");
+
+		PersistJsonDb inner = new PersistJsonDb(dirDb);
+		for (int x = 1; x <= 300; x += 2) {
+			inner.persistIssue(owner, createIssue(x));
+		}
+
+		InMemoryCacheDb db = new InMemoryCacheDb(inner, true, InMemoryCacheDb.DEFAULT_CACHE_SIZE_IN_BYTES);
+		db.persistIssue(owner, createIssue(4));
+
+		// Sorted, and missing issues skipped
+		List<Integer> result = db.getIssues(owner, "my-repo", Arrays.asList(7, 4, 3, 2, 7)).stream()
+				.map(e -> e.getNumber()).collect(Collectors.toList());
+		assertEquals(Arrays.asList(3, 4, 7), result);
+
+		// Cached on the second read
+		assertEquals(result, db.getIssues(owner, "my-repo", Arrays.asList(2, 3, 4, 7)).stream()
+				.map(e -> e.getNumber()).collect(Collectors.toList()));
+
+		List<Integer> scanned = db.scanIssues(owner, "my-repo").map(e -> e.getNumber()).collect(Collectors.toList());
+		assertEquals(151, scanned.size());
+		assertEquals(Arrays.asList(1, 3, 4, 5), scanned.subList(0, 4));
+		assertEquals(299, (int) scanned.get(150));
+
+		db.close();
+	}
+
+	@Test
+	public void testIssueJsonReflectsLatestWrite() throws IOException {
+
+		File dirDb = tempFolder.newFolder();
+
+		Owner owner = Owner.org("my-org");
+
+		SegmentStoreDb inner = new SegmentStoreDb(dirDb);
+		IssueJson issue = createIssue(1);
+		issue.setTitle("first");
+		inner.persistIssue(owner, issue);
+
+		InMemoryCacheDb db = new InMemoryCacheDb(inner, true, InMemoryCacheDb.DEFAULT_CACHE_SIZE_IN_BYTES);
+
+		ObjectMapper om = new ObjectMapper();
+		assertEquals("first", om.readValue(db.getIssueAsJson(owner, "my-repo", 1).get(), IssueJson.class).getTitle());
+
+		issue.setTitle("second");
+		db.persistIssue(owner, issue);
+		assertEquals("second", om.readValue(db.getIssueAsJson(owner, "my-repo", 1).get(), IssueJson.class).getTitle());
+
+		SortedMap<Integer, byte[]> issues = db.getIssuesAsJson(owner, "my-repo", Arrays.asList(1, 2));
+		assertEquals(Arrays.asList(1), new ArrayList<>(issues.keySet()));
+		assertEquals("second", om.readValue(issues.get(1), IssueJson.class).getTitle());
+
+		db.close();
+	}
+
+	@Test
+	public void testRecentEventsAreReadFromMemory() throws IOException {
+
+		File dirDb = tempFolder.newFolder();
+
+		Map<String, AtomicInteger> innerCalls = new ConcurrentHashMap<>();
+
+		Database inner = countingDatabase(new SegmentStoreDb(dirDb), innerCalls);
+
+		InMemoryCacheDb db = new InMemoryCacheDb(inner);
+
+		// More events than are held in memory
+		long now = System.currentTimeMillis();
+		for (int x = 0; x < 20_000; x += 100) {
+			List<ResourceChangeEventJson> events = new ArrayList<>();
+			for (int y = x; y < x + 100; y++) {
+				events.add(createEvent(now + y, y));
+			}
+			db.persistResourceChangeEvents(events);
+		}
+
+		ObjectMapper om = new ObjectMapper();
+
+		// Recent events are read from memory...
+		List<ResourceChangeEventJson> recent = db.getRecentResourceChangeEvents(now + 15_000);
+		assertEquals(5000, recent.size());
+		assertEquals(15_000, recent.get(0).getIssueNumber());
+		assertEquals(5000, om.readValue(db.getRecentResourceChangeEventsAsJson(now + 15_000),
+				ResourceChangeEventJson[].class).length);
+		assertEquals(null, innerCalls.get("getRecentResourceChangeEvents"));
+		assertEquals(null, innerCalls.get("getRecentResourceChangeEventsAsJson"));
+
+		// ... and older events from the inner database
+		assertEquals(20_000, db.getRecentResourceChangeEvents(now).size());
+		assertEquals(1, innerCalls.get("getRecentResourceChangeEvents").get());
+
+		// Likewise for the events that match a filter
+		ResourceChangeEventFilter filter = new ResourceChangeEventFilter(Arrays.asList("my-org"), new ArrayList<>(),
+				15_000, 15_009);
+		assertEquals(10, db.getRecentResourceChangeEvents(now + 15_000, filter).size());
+		assertEquals(1, innerCalls.get("getRecentResourceChangeEvents").get());
+
+		filter = new ResourceChangeEventFilter(Arrays.asList("my-org"), new ArrayList<>(), 5, 14);
+		recent = db.getRecentResourceChangeEvents(now, filter);
+		assertEquals(Arrays.asList(5, 6, 7, 8, 9, 10, 11, 12, 13, 14),
+				recent.stream().map(e -> e.getIssueNumber()).collect(Collectors.toList()));
+		assertEquals(2, innerCalls.get("getRecentResourceChangeEvents").get());
+
+		// Likewise for sequence numbers, which are assigned by the inner database
+		List<ResourceChangeEventJson> page = db.getResourceChangeEventsAfter(15_000, 100);
+		assertEquals(15_001, page.get(0).getSequence());
+		assertEquals(15_100, page.get(99).getSequence());
+		assertEquals(null, innerCalls.get("getResourceChangeEventsAfter"));
+
+		page = db.getResourceChangeEventsAfter(0, 100);
+		assertEquals(1, page.get(0).getSequence());
+		assertEquals(100, page.size());
+		assertEquals(1, innerCalls.get("getResourceChangeEventsAfter").get());
+
+		// Sequence numbers continue when the inner database is reopened
+		db.close();
+		db = new InMemoryCacheDb(new SegmentStoreDb(dirDb));
+		List<ResourceChangeEventJson> events = Arrays.asList(createEvent(now, 1));
+		db.persistResourceChangeEvents(events);
+		assertEquals(20_001, events.get(0).getSequence());
+		assertEquals(1, db.getResourceChangeEventsAfter(20_000, 100).size());
+
+		db.close();
+	}
+
+	private static IssueJson createIssue(int number) {
+		IssueJson issue = new IssueJson();
+		issue.setNumber(number);
+		issue.setParentRepo("my-repo");
+		return issue;
+	}
+
+	private static ResourceChangeEventJson createEvent(long time, int issueNumber) {
+		ResourceChangeEventJson event = new ResourceChangeEventJson();
+		event.setTime(time);
+		event.setOwner("my-org");
+		event.setRepo("my-repo");
+		event.setIssueNumber(issueNumber);
+		return event;
+	}
+
+	private static RepositoryJson createRepository(int lastIssue) {
+		RepositoryJson repo = new RepositoryJson();
+		repo.setOrgName("my-org");
+		repo.setName("my-repo");
+		repo.setFirstIssue(1);
+		repo.setLastIssue(lastIssue);
+		return repo;
+	}
+
+	/** Wrap the database, counting the number of calls to each method. */
+	private static Database countingDatabase(Database db, Map<String, AtomicInteger> calls) {
+		return (Database) Proxy.newProxyInstance(Database.class.getClassLoader(), new Class<?>[] { Database.class },
+				(proxy, method, args) -> {
+					calls.computeIfAbsent(method.getName(), e -> new AtomicInteger()).incrementAndGet();
+					try {
+						return method.invoke(db, args);
+					} catch (InvocationTargetException e) {
+						throw e.getCause();
+					}
+				});
+	}
+}
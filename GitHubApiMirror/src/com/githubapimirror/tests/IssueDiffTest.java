@@ -0,0 +1,128 @@
+/*
+ * Copyright 2021 Jonathan West
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.githubapimirror.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.githubapimirror.IssueDiff;
+import com.githubapimirror.shared.json.IssueChangeJson;
+import com.githubapimirror.shared.json.IssueCommentJson;
+import com.githubapimirror.shared.json.IssueJson;
+import com.githubapimirror.shared.json.ResourceChangeEventJson;
+
+/**
+ * Tests for the changed fields reported by enriched resource change events.
+ */
+public class IssueDiffTest {
+
+	@Test
+	public void testDiff() {
+
+		IssueJson oldVersion = createIssue(Arrays.asList("bug", "help wanted"), Arrays.asList("alice"));
+		oldVersion.getComments().add(createComment("bob", 1000, 1000, "First"));
+		oldVersion.getComments().add(createComment("carol", 2000, 2000, "Second"));
+
+		IssueJson newVersion = createIssue(Arrays.asList("bug", "fixed"), Arrays.asList("alice", "dave"));
+		newVersion.setClosed(true);
+		newVersion.setTitle("New title");
+		newVersion.getComments().add(createComment("bob", 1000, 1000, "First"));
+		newVersion.getComments().add(createComment("carol", 2000, 3000, "Second (edited)"));
+		newVersion.getComments().add(createComment("bob", 4000, 4000, "Third"));
+
+		IssueChangeJson change = IssueDiff.diff(oldVersion, newVersion);
+
+		assertFalse(change.isCreated());
+		assertEquals(Boolean.TRUE, change.getClosed());
+		assertEquals("New title", change.getTitle());
+		assertFalse(change.isBodyChanged());
+		assertEquals(Arrays.asList("fixed"), change.getLabelsAdded());
+		assertEquals(Arrays.asList("help wanted"), change.getLabelsRemoved());
+		assertEquals(Arrays.asList("dave"), change.getAssigneesAdded());
+		assertTrue(change.getAssigneesRemoved().isEmpty());
+		assertEquals(2, change.getNewComments().size());
+		assertEquals("Second (edited)", change.getNewComments().get(0).getBody());
+		assertEquals("Third", change.getNewComments().get(1).getBody());
+
+		// An issue that was not previously in the database
+		change = IssueDiff.diff(null, newVersion);
+		assertTrue(change.isCreated());
+		assertEquals(Arrays.asList("bug", "fixed"), change.getLabelsAdded());
+
+		// The comments of a created issue are not embedded in its event
+		assertTrue(change.getNewComments().isEmpty());
+
+		// Unchanged fields are reported as unchanged
+		change = IssueDiff.diff(newVersion, newVersion);
+		assertNull(change.getClosed());
+		assertNull(change.getTitle());
+		assertTrue(change.getLabelsAdded().isEmpty());
+		assertTrue(change.getNewComments().isEmpty());
+	}
+
+	@Test
+	public void testChangeIsOnlyInEnrichedView() throws Exception {
+		ObjectMapper om = new ObjectMapper();
+
+		ResourceChangeEventJson event = new ResourceChangeEventJson();
+		event.setOwner("my-org");
+		event.setRepo("my-repo");
+		event.setIssueNumber(1);
+		event.setChange(IssueDiff.diff(null, createIssue(Arrays.asList("bug"), new ArrayList<>())));
+
+		String basic = om.writerWithView(ResourceChangeEventJson.Views.Basic.class).writeValueAsString(event);
+		assertFalse(basic.contains("change"));
+
+		String enriched = om.writerWithView(ResourceChangeEventJson.Views.Enriched.class)
+				.writeValueAsString(event);
+		assertTrue(enriched.contains("\"labelsAdded\":[\"bug\"]"));
+		assertFalse(enriched.contains("labelsRemoved")); // Unchanged fields are omitted
+
+		// Stored events keep the changed fields
+		ResourceChangeEventJson read = om.readValue(om.writeValueAsString(event), ResourceChangeEventJson.class);
+		assertEquals(Arrays.asList("bug"), read.getChange().getLabelsAdded());
+	}
+
+	private static IssueJson createIssue(List<String> labels, List<String> assignees) {
+		IssueJson issue = new IssueJson();
+		issue.setNumber(1);
+		issue.setTitle("Title");
+		issue.setBody("Body");
+		issue.setLabels(new ArrayList<>(labels));
+		issue.setAssignees(new ArrayList<>(assignees));
+		return issue;
+	}
+
+	private static IssueCommentJson createComment(String userLogin, long createdAt, long updatedAt, String body) {
+		IssueCommentJson comment = new IssueCommentJson();
+		comment.setUserLogin(userLogin);
+		comment.setCreatedAt(new Date(createdAt));
+		comment.setUpdatedAt(new Date(updatedAt));
+		comment.setBody(body);
+		return comment;
+	}
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2021 Jonathan West
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.githubapimirror.tests;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.githubapimirror.db.Database;
+import com.githubapimirror.db.PersistJsonDb;
+import com.githubapimirror.shared.Owner;
+import com.githubapimirror.shared.json.IssueJson;
+
+/**
+ * Measures PersistJsonDb read throughput and latency while writer threads are
+ * continuously persisting large issues (as is the case during a full scan).
+ *
+ * Usage: PersistJsonDbConcurrencyBenchmark [seconds] [reader threads] [writer
+ * threads]
+ */
+public class PersistJsonDbConcurrencyBenchmark {
+
+	private static final Owner OWNER = Owner.org("benchmark-org");
+
+	private static final String REPO_NAME = "benchmark-repo";
+
+	private static final int NUM_ISSUES = 2000;
+
+	public static void main(String[] args) throws Exception {
+
+		int durationInSeconds = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+		int numReaders = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+		int numWriters = args.length > 2 ? Integer.parseInt(args[2]) : 5; // the number of WorkerThreads
+
+		File dirDb = Files.createTempDirectory("gham-benchmark").toFile();
+
+		try {
+			Database db = new PersistJsonDb(dirDb);
+
+			// A large issue body, so that each write takes a meaningful amount of time
+			char[] bodyChars = new char[256 * 1024];
+			Arrays.fill(bodyChars, 'x');
+			String largeBody = new String(bodyChars);
+
+			for (int x = 1; x <= NUM_ISSUES; x++) {
+				db.persistIssue(OWNER, createIssue(x, "Small issue body"));
+			}
+
+			AtomicBoolean running = new AtomicBoolean(true);
+			AtomicLong reads = new AtomicLong();
+			AtomicLong writes = new AtomicLong();
+
+			List<Thread> threads = new ArrayList<>();
+			List<long[]> readLatencies = new ArrayList<>();
+
+			for (int x = 0; x < numWriters; x++) {
+				threads.add(new Thread(() -> {
+					while (running.get()) {
+						int issue = ThreadLocalRandom.current().nextInt(1, NUM_ISSUES + 1);
+						db.persistIssue(OWNER, createIssue(issue, largeBody));
+						writes.incrementAndGet();
+					}
+				}));
+			}
+
+			for (int x = 0; x < numReaders; x++) {
+				// Per-thread latency histogram, with 10 microsecond buckets up to 1 second
+				long[] latencies = new long[100_000];
+				readLatencies.add(latencies);
+
+				threads.add(new Thread(() -> {
+					while (running.get()) {
+						int issue = ThreadLocalRandom.current().nextInt(1, NUM_ISSUES + 1);
+						long start = System.nanoTime();
+						if (!db.getIssue(OWNER, REPO_NAME, issue).isPresent()) {
+							throw new RuntimeException("Issue not found: " + issue);
+						}
+						long elapsedMicros = TimeUnit.MICROSECONDS.convert(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+						latencies[(int) Math.min(latencies.length - 1, elapsedMicros / 10)]++;
+						reads.incrementAndGet();
+					}
+				}));
+			}
+
+			threads.forEach(e -> {
+				e.setDaemon(true);
+				e.start();
+			});
+
+			Thread.sleep(TimeUnit.MILLISECONDS.convert(durationInSeconds, TimeUnit.SECONDS));
+			running.set(false);
+			for (Thread t : threads) {
+				t.join();
+			}
+			db.close();
+
+			long[] combined = new long[readLatencies.get(0).length];
+			for (long[] latencies : readLatencies) {
+				for (int x = 0; x < latencies.length; x++) {
+					combined[x] += latencies[x];
+				}
+			}
+
+			System.out.println("Readers: " + numReaders + ", writers: " + numWriters + ", duration: "
+					+ durationInSeconds + " seconds");
+			System.out.println("Reads/sec:  " + (reads.get() / durationInSeconds));
+			System.out.println("Writes/sec: " + (writes.get() / durationInSeconds));
+			System.out.println("Read p50:   " + percentileInMicros(combined, reads.get(), 0.50) + " us");
+			System.out.println("Read p99:   " + percentileInMicros(combined, reads.get(), 0.99) + " us");
+			System.out.println("Read p99.9: " + percentileInMicros(combined, reads.get(), 0.999) + " us");
+		} finally {
+			AbstractTest.deleteDirectory(dirDb);
+		}
+	}
+
+	private static long percentileInMicros(long[] histogram, long total, double percentile) {
+		long target = (long) Math.ceil(total * percentile);
+		long count = 0;
+		for (int x = 0; x < histogram.length; x++) {
+			count += histogram[x];
+			if (count >= target) {
+				return x * 10l;
+			}
+		}
+		return histogram.length * 10l;
+	}
+
+	private static IssueJson createIssue(int number, String body) {
+		IssueJson issue = new IssueJson();
+		issue.setNumber(number);
+		issue.setParentRepo(REPO_NAME);
+		issue.setTitle("Issue " + number);
+		issue.setBody(body);
+		return issue;
+	}
+}
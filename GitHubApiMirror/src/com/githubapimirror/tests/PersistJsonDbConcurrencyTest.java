@@ -0,0 +1,226 @@
+/*
+ * Copyright 2021 Jonathan West
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+*/
+
+
+package com.githubapimirror.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.githubapimirror.db.PersistJsonDb;
+import com.githubapimirror.shared.Owner;
+import com.githubapimirror.shared.json.IssueJson;
+
+/**
+ * Concurrent writers and readers of PersistJsonDb: readers must only ever see
+ * whole writes, and never an older write than one they have already seen.
+ */
+public class PersistJsonDbConcurrencyTest {
+
+	private static final Owner OWNER = Owner.org("my-org");
+
+	private static final String REPO_NAME = "my-repo";
+
+	private static final int NUM_WRITERS = 4;
+
+	private static final int NUM_READERS = 4;
+
+	private static final int WRITES_PER_WRITER = 300;
+
+	/** Issues 1 to NUM_SHARED_ISSUES are written by every writer */
+	private static final int NUM_SHARED_ISSUES = 4;
+
+	@Rule
+	public TemporaryFolder tempFolder = new TemporaryFolder();
+
+	@Test
+	public void testConcurrentReadersSeeWholeWrites() throws Exception {
+
+		File dirDb = tempFolder.newFolder();
+
+		PersistJsonDb db = new PersistJsonDb(dirDb);
+
+		Queue<String> errors = new ConcurrentLinkedQueue<>();
+
+		AtomicBoolean writing = new AtomicBoolean(true);
+
+		List<Thread> writers = new ArrayList<>();
+		for (int w = 0; w < NUM_WRITERS; w++) {
+			int writer = w;
+			writers.add(new Thread(() -> {
+				int ownIssue = getOwnIssue(writer);
+				for (int version = 1; version <= WRITES_PER_WRITER; version++) {
+					int sharedIssue = ThreadLocalRandom.current().nextInt(1, NUM_SHARED_ISSUES + 1);
+					db.persistIssue(OWNER, createIssue(sharedIssue, writer, version));
+					db.persistIssue(OWNER, createIssue(ownIssue, writer, version));
+
+					// A writer always reads its own (most recent) write
+					IssueJson issue = db.getIssue(OWNER, REPO_NAME, ownIssue).orElse(null);
+					if (issue == null || getVersion(issue) != version) {
+						errors.add("Writer " + writer + " did not read version " + version + ": "
+								+ (issue != null ? issue.getTitle() : null));
+					}
+				}
+			}));
+		}
+
+		List<Integer> allIssues = new ArrayList<>();
+		for (int x = 1; x <= NUM_SHARED_ISSUES + NUM_WRITERS; x++) {
+			allIssues.add(x);
+		}
+
+		List<Thread> readers = new ArrayList<>();
+		for (int r = 0; r < NUM_READERS; r++) {
+			readers.add(new Thread(() -> {
+				ObjectMapper om = new ObjectMapper();
+
+				// The most recent version of each writer's own issue seen by this reader
+				int[] lastVersions = new int[NUM_WRITERS];
+
+				while (writing.get()) {
+					try {
+						for (int w = 0; w < NUM_WRITERS; w++) {
+							int issueNumber = getOwnIssue(w);
+							IssueJson issue = db.getIssue(OWNER, REPO_NAME, issueNumber).orElse(null);
+							if (issue == null) {
+								continue;
+							}
+							checkIssue(issue, errors);
+
+							int version = getVersion(issue);
+							if (version < lastVersions[w]) {
+								errors.add("Issue " + issueNumber + " went from version " + lastVersions[w] + " to "
+										+ version);
+							}
+							lastVersions[w] = version;
+						}
+
+						db.getIssues(OWNER, REPO_NAME, allIssues).forEach(e -> checkIssue(e, errors));
+
+						for (byte[] json : db.getIssuesAsJson(OWNER, REPO_NAME, allIssues).values()) {
+							checkIssue(om.readValue(json, IssueJson.class), errors);
+						}
+
+					} catch (Exception e) {
+						errors.add("Read failed: " + e);
+					}
+				}
+			}));
+		}
+
+		// Checkpoints move writes from the log to their files while they are read
+		Thread checkpointer = new Thread(() -> {
+			while (writing.get()) {
+				db.flush();
+			}
+		});
+
+		readers.forEach(e -> e.start());
+		checkpointer.start();
+		writers.forEach(e -> e.start());
+
+		for (Thread t : writers) {
+			t.join();
+		}
+		writing.set(false);
+		for (Thread t : readers) {
+			t.join();
+		}
+		checkpointer.join();
+
+		assertTrue(errors.stream().limit(10).collect(Collectors.joining("\n")), errors.isEmpty());
+
+		// The last write to each writer's own issue is the one that remains, including
+		// after the database is reopened
+		for (int w = 0; w < NUM_WRITERS; w++) {
+			assertEquals(WRITES_PER_WRITER, getVersion(db.getIssue(OWNER, REPO_NAME, getOwnIssue(w)).get()));
+		}
+		db.close();
+
+		PersistJsonDb reopened = new PersistJsonDb(dirDb);
+		for (int w = 0; w < NUM_WRITERS; w++) {
+			assertEquals(WRITES_PER_WRITER, getVersion(reopened.getIssue(OWNER, REPO_NAME, getOwnIssue(w)).get()));
+		}
+		for (IssueJson issue : reopened.getIssues(OWNER, REPO_NAME, allIssues)) {
+			checkIssue(issue, errors);
+		}
+		assertTrue(errors.toString(), errors.isEmpty());
+		assertEquals(allIssues.size(), reopened.getIssueNumbers(OWNER, REPO_NAME).cardinality());
+		reopened.close();
+	}
+
+	private static int getOwnIssue(int writer) {
+		return NUM_SHARED_ISSUES + 1 + writer;
+	}
+
+	/**
+	 * The title is 'writer:version:length', and the body is 'length' copies of a
+	 * character derived from the writer and version; the length varies between
+	 * writes, so that a partial write is detected.
+	 */
+	private static IssueJson createIssue(int number, int writer, int version) {
+		int length = 1000 + ((writer * 7919 + version * 104_729) % 64) * 1024;
+
+		char[] body = new char[length];
+		Arrays.fill(body, getBodyChar(writer, version));
+
+		IssueJson issue = new IssueJson();
+		issue.setNumber(number);
+		issue.setParentRepo(REPO_NAME);
+		issue.setTitle(writer + ":" + version + ":" + length);
+		issue.setBody(new String(body));
+		return issue;
+	}
+
+	private static char getBodyChar(int writer, int version) {
+		return (char) ('a' + (writer * 31 + version) % 26);
+	}
+
+	private static int getVersion(IssueJson issue) {
+		return Integer.parseInt(issue.getTitle().split(":")[1]);
+	}
+
+	/** Report an issue whose body does not match its title */
+	private static void checkIssue(IssueJson issue, Queue<String> errors) {
+		String[] title = issue.getTitle().split(":");
+		int writer = Integer.parseInt(title[0]);
+		int version = Integer.parseInt(title[1]);
+		int length = Integer.parseInt(title[2]);
+
+		String body = issue.getBody();
+		char expected = getBodyChar(writer, version);
+		if (body.length() != length || body.chars().anyMatch(e -> e != expected)) {
+			errors.add("Issue " + issue.getNumber() + " (" + issue.getTitle() + ") has a partial or mixed body");
+		}
+	}
+
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2021 Jonathan West
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.githubapimirror.tests;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.githubapimirror.db.PersistJsonDb;
+import com.githubapimirror.shared.Owner;
+import com.githubapimirror.shared.json.IssueJson;
+import com.githubapimirror.shared.json.ResourceChangeEventJson;
+
+/**
+ * Compares issue lookup and listing times, and event listing times, of the
+ * original (flat) PersistJsonDb layout with the sharded layout: a flat database
+ * is generated on disk, measured, then upgraded by opening it with
+ * PersistJsonDb, and measured again.
+ *
+ * Usage: PersistJsonDbLayoutBenchmark [issues] [lookups]
+ */
+public class PersistJsonDbLayoutBenchmark {
+
+	private static final Owner OWNER = Owner.org("benchmark-org");
+
+	private static final String REPO_NAME = "benchmark-repo";
+
+	private static final int ITERATIONS = 5;
+
+	/** One event file per minute, for the 8 days that events are retained */
+	private static final int NUM_EVENT_FILES = 8 * 24 * 60;
+
+	public static void main(String[] args) throws Exception {
+
+		int numIssues = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+		int numLookups = args.length > 1 ? Integer.parseInt(args[1]) : 20_000;
+
+		File dirDb = Files.createTempDirectory("gham-benchmark").toFile();
+
+		try {
+			ObjectMapper om = new ObjectMapper();
+
+			// Generate the database in the flat layout, as it was written by earlier
+			// versions.
+			long start = System.nanoTime();
+			File repoDir = new File(dirDb, OWNER.getName() + "/" + REPO_NAME);
+			repoDir.mkdirs();
+			for (int x = 1; x <= numIssues; x++) {
+				Files.write(new File(repoDir, x + ".json").toPath(), om.writeValueAsBytes(createIssue(x)));
+			}
+
+			long now = System.currentTimeMillis();
+			File eventsDir = new File(dirDb, "events");
+			eventsDir.mkdirs();
+			for (int x = 0; x < NUM_EVENT_FILES; x++) {
+				long time = now - TimeUnit.MILLISECONDS.convert(x, TimeUnit.MINUTES);
+				ResourceChangeEventJson event = new ResourceChangeEventJson();
+				event.setTime(time);
+				event.setOwner(OWNER.getName());
+				event.setRepo(REPO_NAME);
+				event.setIssueNumber(1 + (x % numIssues));
+				Files.write(new File(eventsDir, "issue-" + time + ".json").toPath(),
+						om.writeValueAsBytes(new ResourceChangeEventJson[] { event }));
+			}
+			System.out.println("Generated " + numIssues + " issues and " + NUM_EVENT_FILES + " event files in "
+					+ elapsedMsecs(start) + " msecs.");
+			System.out.println();
+
+			// Flat layout: the operations of the previous PersistJsonDb implementation
+			System.out.println("Flat layout:");
+
+			report("List repository issues", bestOf(() -> repoDir.listFiles().length));
+
+			report("Issue lookup (x" + numLookups + ")", bestOf(() -> {
+				for (int x = 0; x < numLookups; x++) {
+					int issue = ThreadLocalRandom.current().nextInt(1, numIssues + 1);
+					Files.readAllBytes(new File(repoDir, issue + ".json").toPath());
+				}
+				return numLookups;
+			}));
+
+			report("List events (any interval)", bestOf(() -> eventsDir.listFiles().length));
+			System.out.println();
+
+			// Upgrade
+			start = System.nanoTime();
+			PersistJsonDb db = new PersistJsonDb(dirDb);
+			System.out.println("Upgrade to sharded layout: " + elapsedMsecs(start) + " msecs");
+			System.out.println();
+
+			System.out.println("Sharded layout:");
+
+			report("List repository issues", bestOf(() -> db.getIssueNumbers(OWNER, REPO_NAME).cardinality()));
+
+			report("Issue lookup (x" + numLookups + ")", bestOf(() -> {
+				for (int x = 0; x < numLookups; x++) {
+					int issue = ThreadLocalRandom.current().nextInt(1, numIssues + 1);
+					if (!db.getIssueAsJson(OWNER, REPO_NAME, issue).isPresent()) {
+						throw new RuntimeException("Issue not found: " + issue);
+					}
+				}
+				return numLookups;
+			}));
+
+			long lastHour = now - TimeUnit.MILLISECONDS.convert(1, TimeUnit.HOURS);
+			report("Read events of the last hour", bestOf(() -> db.getRecentResourceChangeEvents(lastHour).size()));
+			report("Read events of all 8 days", bestOf(() -> db.getRecentResourceChangeEvents(0).size()));
+
+			db.close();
+		} finally {
+			AbstractTest.deleteDirectory(dirDb);
+		}
+	}
+
+	/**
+	 * Run the operation several times (the first runs warm up the JIT and the
+	 * filesystem cache), returning the fastest time (in microseconds) and the result.
+	 */
+	private static long[] bestOf(Callable<Integer> operation) throws Exception {
+		long best = Long.MAX_VALUE;
+		int result = 0;
+		for (int x = 0; x < ITERATIONS; x++) {
+			long start = System.nanoTime();
+			result = operation.call();
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		return new long[] { TimeUnit.MICROSECONDS.convert(best, TimeUnit.NANOSECONDS), result };
+	}
+
+	private static void report(String name, long[] result) {
+		System.out.println(String.format("- %-32s %10.1f msecs (%d)", name, result[0] / 1000d, result[1]));
+	}
+
+	private static long elapsedMsecs(long startNanos) {
+		return TimeUnit.MILLISECONDS.convert(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+	}
+
+	private static IssueJson createIssue(int number) {
+		IssueJson issue = new IssueJson();
+		issue.setNumber(number);
+		issue.setParentRepo(REPO_NAME);
+		issue.setTitle("Issue " + number);
+		issue.setBody("Issue body");
+		return issue;
+	}
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright 2021 Jonathan West
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.githubapimirror.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.githubapimirror.db.PersistJsonDb;
+import com.githubapimirror.db.ProcessedEvent;
+import com.githubapimirror.shared.Owner;
+import com.githubapimirror.shared.json.IssueJson;
+import com.githubapimirror.shared.json.RepositoryJson;
+import com.githubapimirror.shared.json.ResourceChangeEventJson;
+
+/**
+ * Tests for the upgrade of a PersistJsonDb from the flat to the sharded layout,
+ * and from the earlier processed event hash file.
+ */
+public class PersistJsonDbLayoutTest {
+
+	@Rule
+	public TemporaryFolder tempFolder = new TemporaryFolder();
+
+	private static final Owner OWNER = Owner.org("my-org");
+
+	@Test
+	public void testFlatLayoutIsUpgraded() throws IOException {
+
+		File dirDb = tempFolder.newFolder();
+
+		ObjectMapper om = new ObjectMapper();
+
+		// A repository whose name is a number, so its JSON resembles an issue file
+		File repoDir = new File(dirDb, "my-org/1234");
+		repoDir.mkdirs();
+
+		RepositoryJson repo = new RepositoryJson();
+		repo.setOrgName("my-org");
+		repo.setName("1234");
+		Files.write(new File(repoDir, "1234.json").toPath(), om.writeValueAsBytes(repo));
+
+		for (int x : new int[] { 1, 999, 1000, 2500 }) {
+			IssueJson issue = new IssueJson();
+			issue.setNumber(x);
+			issue.setParentRepo("1234");
+			Files.write(new File(repoDir, x + ".json").toPath(), om.writeValueAsBytes(issue));
+		}
+
+		long eventTime = System.currentTimeMillis() - TimeUnit.MILLISECONDS.convert(1, TimeUnit.HOURS);
+		ResourceChangeEventJson event = new ResourceChangeEventJson();
+		event.setTime(eventTime);
+		File eventsDir = new File(dirDb, "events");
+		eventsDir.mkdirs();
+		Files.write(new File(eventsDir, "issue-" + eventTime + ".json").toPath(),
+				om.writeValueAsBytes(new ResourceChangeEventJson[] { event }));
+
+		PersistJsonDb db = new PersistJsonDb(dirDb);
+
+		assertTrue(db.isDatabaseInitialized());
+		assertEquals("{1, 999, 1000, 2500}", db.getIssueNumbers(OWNER, "1234").toString());
+		assertEquals(2500, (int) db.getIssue(OWNER, "1234", 2500).get().getNumber());
+		assertEquals("1234", db.getRepository(OWNER, "1234").get().getName());
+		assertFalse(new File(repoDir, "1.json").exists());
+		assertTrue(new File(repoDir, "issues/2/2500.json").exists());
+
+		assertEquals(1, db.getRecentResourceChangeEvents(eventTime).size());
+		assertEquals(0, db.getRecentResourceChangeEvents(eventTime + 1).size());
+		assertEquals(1, eventsDir.listFiles().length); // Only the journal segment
+
+		// New events are appended to the journal, and listed with the upgraded ones
+		ResourceChangeEventJson newEvent = new ResourceChangeEventJson();
+		newEvent.setTime(System.currentTimeMillis());
+		db.persistResourceChangeEvents(Arrays.asList(newEvent));
+		db.flush();
+		assertEquals(2, db.getRecentResourceChangeEvents(0).size());
+		db.close();
+	}
+
+	@Test
+	public void testNewDatabaseIsNotInitialized() throws IOException {
+
+		File dirDb = tempFolder.newFolder();
+
+		PersistJsonDb db = new PersistJsonDb(dirDb);
+		assertFalse(db.isDatabaseInitialized());
+		db.close();
+
+		// The layout version alone does not make the database initialized
+		db = new PersistJsonDb(dirDb);
+		assertFalse(db.isDatabaseInitialized());
+		db.close();
+	}
+
+	@Test
+	public void testProcessedEventHashesAreJournaled() throws IOException {
+
+		File dirDb = tempFolder.newFolder();
+
+		String sha1 = createHash("1");
+		String sha2 = createHash("2");
+
+		File metadataDir = new File(dirDb, "metadata");
+		metadataDir.mkdirs();
+		Files.write(new File(metadataDir, "event-hashes.txt").toPath(),
+				(sha1 + "\nlegacy\n").getBytes(StandardCharsets.UTF_8));
+
+		// Hashes without an event time are given the time at which they were loaded
+		long beforeLoad = System.currentTimeMillis();
+		PersistJsonDb db = new PersistJsonDb(dirDb);
+		long t = db.getProcessedEvents().get(0).getEventTime();
+		assertTrue(t >= beforeLoad);
+		assertEquals(Arrays.asList(new ProcessedEvent(sha1, t), new ProcessedEvent("legacy", t)),
+				db.getProcessedEvents());
+		assertFalse(new File(metadataDir, "event-hashes.txt").exists());
+
+		db.addProcessedEvents(Arrays.asList(new ProcessedEvent(sha2, t + 20), new ProcessedEvent(sha1, t + 10)));
+
+		// A partial record at the end of the journal is ignored, then truncated
+		File journal = new File(metadataDir, "event-hashes.bin");
+		assertEquals(8 + 4 * 41, journal.length());
+		db.close();
+		Files.write(journal.toPath(), new byte[] { 0, 1, 2 }, StandardOpenOption.APPEND);
+
+		// A hash keeps the latest of its event times
+		db = new PersistJsonDb(dirDb);
+		assertEquals(Arrays.asList(new ProcessedEvent(sha1, t + 10), new ProcessedEvent("legacy", t),
+				new ProcessedEvent(sha2, t + 20)), db.getProcessedEvents());
+
+		db.addProcessedEvents(Arrays.asList(new ProcessedEvent("new", t + 30)));
+		assertEquals(Arrays.asList(new ProcessedEvent(sha1, t + 10), new ProcessedEvent("legacy", t),
+				new ProcessedEvent(sha2, t + 20), new ProcessedEvent("new", t + 30)),
+				readProcessedEvents(dirDb));
+
+		db.expireProcessedEvents(t + 20);
+		assertEquals(Arrays.asList(new ProcessedEvent(sha2, t + 20), new ProcessedEvent("new", t + 30)),
+				readProcessedEvents(dirDb));
+		assertEquals(8 + 2 * 41, journal.length());
+
+		db.clearProcessedEvents();
+		assertTrue(readProcessedEvents(dirDb).isEmpty());
+		db.close();
+	}
+
+	@Test
+	public void testVersion1JournalIsUpgraded() throws IOException {
+
+		File dirDb = tempFolder.newFolder();
+
+		// A journal written by an earlier version: records of a type byte and 32 bytes
+		File metadataDir = new File(dirDb, "metadata");
+		metadataDir.mkdirs();
+		byte[] contents = new byte[8 + 33];
+		System.arraycopy("GHAMPEJ1".getBytes(StandardCharsets.US_ASCII), 0, contents, 0, 8);
+		contents[8] = 3;
+		System.arraycopy("old".getBytes(StandardCharsets.UTF_8), 0, contents, 9, 3);
+		File journal = new File(metadataDir, "event-hashes.bin");
+		Files.write(journal.toPath(), contents);
+
+		// The journal is rewritten on open, with the time at which it was loaded
+		long beforeLoad = System.currentTimeMillis();
+		PersistJsonDb db = new PersistJsonDb(dirDb);
+		assertEquals(8 + 41, journal.length());
+		long t = db.getProcessedEvents().get(0).getEventTime();
+		assertTrue(t >= beforeLoad);
+		assertEquals(Arrays.asList(new ProcessedEvent("old", t)), readProcessedEvents(dirDb));
+
+		db.addProcessedEvents(Arrays.asList(new ProcessedEvent("new", 5)));
+		assertEquals(8 + 2 * 41, journal.length());
+		assertEquals(Arrays.asList(new ProcessedEvent("old", t), new ProcessedEvent("new", 5)),
+				readProcessedEvents(dirDb));
+		db.close();
+	}
+
+	/** Returns the processed events, as read by a new instance of the database. */
+	private static List<ProcessedEvent> readProcessedEvents(File dirDb) {
+		PersistJsonDb db = new PersistJsonDb(dirDb);
+		try {
+			return db.getProcessedEvents();
+		} finally {
+			db.close();
+		}
+	}
+
+	private static String createHash(String value) {
+		try {
+			StringBuilder sb = new StringBuilder();
+			for (byte b : MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8))) {
+				sb.append(String.format("%02x", b));
+			}
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
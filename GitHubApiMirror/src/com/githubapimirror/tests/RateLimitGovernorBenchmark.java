@@ -0,0 +1,165 @@
+/*
+ * Copyright 2021 Jonathan West
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.githubapimirror.tests;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.githubapimirror.RateLimitGovernor;
+import com.githubapimirror.shared.GHApiUtil;
+
+/**
+ * Runs worker threads that make requests, through a RateLimitGovernor, to a
+ * simulated server with a GitHub-style rate limit (a fixed number of requests
+ * per window, reported in the headers of each response, with requests over the
+ * limit rejected). The window is scaled down from an hour, so that the
+ * benchmark runs in seconds.
+ *
+ * Each window tests a different load: in the first, the workers always have
+ * work; in the second, they are idle for the first half of the window (so the
+ * governor must burst to use the budget); in the third, another client with
+ * the same credentials spends 10% of the limit (which the governor only learns
+ * of from the headers).
+ *
+ * Usage: RateLimitGovernorBenchmark [limit per window] [window in msecs]
+ */
+public class RateLimitGovernorBenchmark {
+
+	private static final int WORKERS = 5;
+
+	private static final int WINDOWS = 3;
+
+	public static void main(String[] args) throws Exception {
+
+		int limit = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		long windowInMsecs = args.length > 1 ? Long.parseLong(args[1]) : 10_000;
+
+		SimulatedServer server = new SimulatedServer(limit, windowInMsecs);
+
+		RateLimitGovernor governor = new RateLimitGovernor(limit, windowInMsecs, 0);
+
+		long endTime = server.getStartTime() + WINDOWS * windowInMsecs;
+
+		List<Thread> threads = new ArrayList<>();
+		for (int x = 0; x < WORKERS; x++) {
+			threads.add(new Thread(() -> {
+				while (true) {
+					long now = System.currentTimeMillis();
+					if (now >= endTime) {
+						return;
+					}
+
+					// Idle for the first half of the second window
+					long timeInWindow = (now - server.getStartTime()) % windowInMsecs;
+					if (server.getWindow(now) == 1 && timeInWindow < windowInMsecs / 2) {
+						GHApiUtil.sleep(10);
+						continue;
+					}
+
+					governor.acquire();
+					long[] headers = server.request(false);
+					governor.observe(headers[0], headers[1], headers[2]);
+
+					GHApiUtil.sleep(1); // Response time
+				}
+			}));
+		}
+
+		// Another client, without a governor, during the third window
+		threads.add(new Thread(() -> {
+			long start = server.getStartTime() + 2 * windowInMsecs;
+			int requests = limit / 10;
+			for (int x = 0; x < requests; x++) {
+				long next = start + (x * windowInMsecs) / requests;
+				GHApiUtil.sleep(Math.max(0, next - System.currentTimeMillis()));
+				server.request(true);
+			}
+		}));
+
+		threads.forEach(Thread::start);
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		System.out.println("Limit: " + limit + " requests per " + windowInMsecs + " msecs, " + WORKERS + " workers");
+		System.out.println();
+		System.out.println(String.format("%-28s %10s %10s %10s %10s", "Window", "Governed", "Other", "Rejected",
+				"Budget used"));
+
+		String[] names = new String[] { "Saturated", "Idle, then burst", "Shared with another client" };
+
+		long totalGoverned = 0;
+		for (int x = 0; x < WINDOWS; x++) {
+			long used = server.governed[x] + server.other[x];
+			System.out.println(String.format("%-28s %10d %10d %10d %10.1f%%", names[x], server.governed[x],
+					server.other[x], server.rejected[x], 100d * used / limit));
+			totalGoverned += server.governed[x];
+		}
+
+		long windowsPerHour = TimeUnit.MILLISECONDS.convert(1, TimeUnit.HOURS) / windowInMsecs;
+
+		System.out.println();
+		System.out.println(String.format("Requests per hour (scaled, governed only): %d of a limit of %d",
+				(totalGoverned * windowsPerHour) / WINDOWS, limit * windowsPerHour));
+	}
+
+	/** Counts the requests of each window; requests over the limit are rejected. */
+	private static class SimulatedServer {
+
+		private final int limit;
+		private final long windowInMsecs;
+		private final long startTime;
+
+		private final long[] governed = new long[WINDOWS + 1];
+		private final long[] other = new long[WINDOWS + 1];
+		private final long[] rejected = new long[WINDOWS + 1];
+
+		SimulatedServer(int limit, long windowInMsecs) {
+			this.limit = limit;
+			this.windowInMsecs = windowInMsecs;
+			this.startTime = System.currentTimeMillis();
+		}
+
+		long getStartTime() {
+			return startTime;
+		}
+
+		int getWindow(long time) {
+			return (int) Math.min((time - startTime) / windowInMsecs, WINDOWS);
+		}
+
+		/** Returns the X-RateLimit-Limit, X-RateLimit-Remaining and X-RateLimit-Reset (msecs) headers. */
+		synchronized long[] request(boolean fromOtherClient) {
+			long now = System.currentTimeMillis();
+			int window = getWindow(now);
+
+			long used = governed[window] + other[window];
+			if (used >= limit) {
+				rejected[window]++;
+			} else if (fromOtherClient) {
+				other[window]++;
+				used++;
+			} else {
+				governed[window]++;
+				used++;
+			}
+
+			return new long[] { limit, limit - used, startTime + (window + 1) * windowInMsecs };
+		}
+	}
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2021 Jonathan West
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+*/
+
+
+package com.githubapimirror.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.githubapimirror.RateLimitGovernor;
+
+/**
+ * Tests for the token bucket of RateLimitGovernor: its burst and refill, and
+ * the adoption of the rate limit reported by the response headers.
+ */
+public class RateLimitGovernorTest {
+
+	@Test
+	public void testBurstThenRefill() {
+
+		// The burst is 10% of the limit
+		RateLimitGovernor governor = new RateLimitGovernor(100, 1000, 0);
+
+		long start = System.nanoTime();
+		for (int x = 0; x < 10; x++) {
+			governor.acquire();
+		}
+		long elapsedInMsecs = TimeUnit.MILLISECONDS.convert(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+
+		assertTrue("The burst should not wait: " + elapsedInMsecs, elapsedInMsecs < 100);
+		assertEquals(90, governor.getRemaining());
+		assertTrue(governor.getAvailableTokens() < 1);
+
+		// The 90 remaining requests are spread over the rest of the window, so the
+		// next request waits for a token (about 11 msecs)
+		start = System.nanoTime();
+		governor.acquire();
+		elapsedInMsecs = TimeUnit.MILLISECONDS.convert(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+		assertTrue("The request should wait for a token: " + elapsedInMsecs, elapsedInMsecs >= 5);
+
+		// While idle, tokens accumulate up to the burst size
+		sleep(400);
+		double tokens = governor.getAvailableTokens();
+		assertTrue("Tokens should refill while idle: " + tokens, tokens >= 9 && tokens <= 10);
+	}
+
+	@Test
+	public void testAdoptsReportedRateLimit() {
+
+		RateLimitGovernor governor = new RateLimitGovernor(5000, 0);
+
+		long reset = System.currentTimeMillis() + TimeUnit.MILLISECONDS.convert(30, TimeUnit.MINUTES);
+
+		governor.observe(60, 50, reset);
+		assertEquals(60, governor.getLimit());
+		assertEquals(50, governor.getRemaining());
+		assertTrue(governor.getAvailableTokens() <= 6);
+
+		governor.acquire();
+		assertEquals(49, governor.getRemaining());
+
+		// A response that predates the request does not undo its charge
+		governor.observe(60, 50, reset);
+		assertEquals(49, governor.getRemaining());
+
+		// Requests made without a token (by another client) are charged
+		governor.observe(60, 40, reset);
+		assertEquals(40, governor.getRemaining());
+
+		// A response of the previous window is ignored
+		governor.observe(60, 10, reset - TimeUnit.MILLISECONDS.convert(1, TimeUnit.HOURS));
+		assertEquals(40, governor.getRemaining());
+
+		// A new window
+		governor.observe(70, 70, reset + TimeUnit.MILLISECONDS.convert(1, TimeUnit.HOURS));
+		assertEquals(70, governor.getLimit());
+		assertEquals(70, governor.getRemaining());
+	}
+
+	@Test
+	public void testExhaustedRateLimitWaitsForReset() {
+
+		// Windows that are not reported by the server are assumed to be 10 seconds
+		RateLimitGovernor governor = new RateLimitGovernor(5000, 10_000, 0);
+
+		governor.observe(100, 0, System.currentTimeMillis() + 500);
+
+		long start = System.nanoTime();
+		governor.acquire();
+		long elapsedInMsecs = TimeUnit.MILLISECONDS.convert(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+
+		assertTrue("The request should wait for the reset: " + elapsedInMsecs, elapsedInMsecs >= 400);
+
+		// The window reset without a response reporting it, so the last limit is
+		// assumed, and the new window starts with a full burst (10% of the limit)
+		assertEquals(100, governor.getLimit());
+		assertEquals(99, governor.getRemaining());
+
+		start = System.nanoTime();
+		for (int x = 0; x < 9; x++) {
+			governor.acquire();
+		}
+		elapsedInMsecs = TimeUnit.MILLISECONDS.convert(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+
+		assertTrue("The burst should not wait: " + elapsedInMsecs, elapsedInMsecs < 100);
+		assertEquals(90, governor.getRemaining());
+	}
+
+	@Test
+	public void testIgnoresUnknownRateLimit() {
+
+		RateLimitGovernor governor = new RateLimitGovernor(3600, 0);
+
+		long reset = System.currentTimeMillis() + TimeUnit.MILLISECONDS.convert(30, TimeUnit.MINUTES);
+
+		// github-api reports 1000000 for a server without a rate limit (such as GHE)
+		governor.observe(1000000, 1000000, reset);
+		governor.observe(1000000, 999999, reset);
+
+		// Headers that are missing, or invalid
+		governor.observe(-1, -1, reset);
+		governor.observe(0, 0, reset);
+		governor.observe(60, 70, reset);
+		governor.observe(60, 50, 0);
+
+		assertEquals(3600, governor.getLimit());
+		assertEquals(3600, governor.getRemaining());
+		assertTrue(governor.getAvailableTokens() <= 360);
+	}
+
+	private static void sleep(long msecs) {
+		try {
+			Thread.sleep(msecs);
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+}
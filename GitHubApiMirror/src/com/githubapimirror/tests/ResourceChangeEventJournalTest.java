@@ -0,0 +1,240 @@
+/*
+ * Copyright 2021 Jonathan West
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.githubapimirror.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.githubapimirror.db.ResourceChangeEventJournal;
+import com.githubapimirror.shared.ResourceChangeEventFilter;
+import com.githubapimirror.shared.json.ResourceChangeEventJson;
+import com.githubapimirror.shared.json.ResourceChangeEventPageJson;
+
+/**
+ * Tests for the journal used by PersistJsonDb to store resource change events.
+ */
+public class ResourceChangeEventJournalTest {
+
+	@Rule
+	public TemporaryFolder tempFolder = new TemporaryFolder();
+
+	private static final long RETENTION = TimeUnit.MILLISECONDS.convert(8, TimeUnit.DAYS);
+
+	@Test
+	public void testGetEventsSince() throws IOException {
+
+		File dir = tempFolder.newFolder();
+
+		ResourceChangeEventJournal journal = new ResourceChangeEventJournal(dir, RETENTION);
+
+		// Times that are mostly, but not strictly, increasing, in enough records to
+		// span many index entries.
+		long now = System.currentTimeMillis();
+		Random random = new Random(1);
+		List<ResourceChangeEventJson> all = new ArrayList<>();
+		for (int x = 0; x < 2000; x++) {
+			ResourceChangeEventJson event = createEvent(now + x * 10 - random.nextInt(500));
+			all.add(event);
+			journal.append(Arrays.asList(event));
+		}
+
+		assertEventsSince(journal, all, now);
+
+		// The index is rebuilt when the journal is reopened
+		journal.close();
+		journal = new ResourceChangeEventJournal(dir, RETENTION);
+		assertEventsSince(journal, all, now);
+
+		// A torn record at the end of the last segment is truncated, and new events are
+		// appended after the existing ones.
+		journal.close();
+		File segment = dir.listFiles()[0];
+		Files.write(segment.toPath(), new byte[] { 1, 2, 3, 4, 5 }, StandardOpenOption.APPEND);
+
+		journal = new ResourceChangeEventJournal(dir, RETENTION);
+		ResourceChangeEventJson event = createEvent(now + 100_000);
+		all.add(event);
+		journal.append(Arrays.asList(event));
+		assertEventsSince(journal, all, now);
+
+		assertEquals(all.size(), ResourceChangeEventJournal.readEvents(dir).size());
+	}
+
+	@Test
+	public void testGetEventsAfterSequence() throws IOException {
+
+		File dir = tempFolder.newFolder();
+
+		ResourceChangeEventJournal journal = new ResourceChangeEventJournal(dir, RETENTION);
+
+		long now = System.currentTimeMillis();
+		for (int x = 0; x < 1000; x += 10) {
+			List<ResourceChangeEventJson> events = new ArrayList<>();
+			for (int y = x; y < x + 10; y++) {
+				events.add(createEvent(now + y));
+			}
+			journal.append(events);
+			assertEquals(x + 10, events.get(9).getSequence());
+		}
+
+		// Sequence numbers continue after the journal is reopened (in a new segment)
+		journal.close();
+		journal = new ResourceChangeEventJournal(dir, RETENTION);
+		assertEquals(1000, journal.getDurableSequence());
+		ResourceChangeEventJson event = createEvent(now);
+		journal.append(Arrays.asList(event));
+		assertEquals(1001, event.getSequence());
+		assertEquals(1001, journal.getDurableSequence());
+
+		// Read every event, a page at a time
+		List<Long> sequences = new ArrayList<>();
+		long cursor = 0;
+		List<ResourceChangeEventJson> page;
+		while (!(page = journal.getEventsAfter(cursor, 75)).isEmpty()) {
+			assertTrue(page.size() <= 75);
+			page.forEach(e -> sequences.add(e.getSequence()));
+			cursor = page.get(page.size() - 1).getSequence();
+		}
+
+		assertEquals(LongStream.rangeClosed(1, 1001).boxed().collect(Collectors.toList()), sequences);
+		assertEquals(1, journal.getEventsAfter(1000, 75).size());
+	}
+
+	@Test
+	public void testGetEventsAfterSequenceWithFilter() throws IOException {
+
+		File dir = tempFolder.newFolder();
+
+		ResourceChangeEventJournal journal = new ResourceChangeEventJournal(dir, RETENTION);
+
+		String[][] repos = { { "org-a", "repo-1" }, { "org-a", "repo-2" }, { "Org-B", "Repo-1" } };
+
+		long now = System.currentTimeMillis();
+		List<ResourceChangeEventJson> all = new ArrayList<>();
+		for (int x = 0; x < 330; x++) {
+			ResourceChangeEventJson event = createEvent(now + x);
+			event.setOwner(repos[x % 3 == 0 ? 0 : x % 7 == 0 ? 2 : 1][0]);
+			event.setRepo(repos[x % 3 == 0 ? 0 : x % 7 == 0 ? 2 : 1][1]);
+			event.setIssueNumber(x % 50);
+			journal.append(Arrays.asList(event));
+			all.add(event);
+
+			// The index of a segment opened on startup is built when it is searched
+			if (x == 200) {
+				journal.close();
+				journal = new ResourceChangeEventJournal(dir, RETENTION);
+			}
+		}
+
+		List<ResourceChangeEventFilter> filters = Arrays.asList(
+				new ResourceChangeEventFilter(Arrays.asList("org-a"), new ArrayList<>()),
+				new ResourceChangeEventFilter(new ArrayList<>(), Arrays.asList("org-b/repo-1")),
+				new ResourceChangeEventFilter(new ArrayList<>(), Arrays.asList("org-a/repo-2", "org-b/repo-1"), 10,
+						20),
+				new ResourceChangeEventFilter(new ArrayList<>(), new ArrayList<>(), 45, 100),
+				new ResourceChangeEventFilter(Arrays.asList("unknown"), new ArrayList<>()));
+
+		for (ResourceChangeEventFilter filter : filters) {
+			List<Long> expected = all.stream().filter(e -> filter.matches(e)).map(e -> e.getSequence())
+					.collect(Collectors.toList());
+
+			// Read every matching event, a page at a time
+			List<Long> sequences = new ArrayList<>();
+			long cursor = 0;
+			ResourceChangeEventPageJson page;
+			do {
+				page = journal.getEventsAfter(cursor, 7, filter);
+				assertTrue(page.getEvents().size() <= 7);
+				page.getEvents().forEach(e -> sequences.add(e.getSequence()));
+				cursor = page.getLastSequence();
+			} while (!page.getEvents().isEmpty());
+
+			assertEquals(filter.toString(), expected, sequences);
+			assertEquals(330, cursor);
+
+			// The events since a time, across the segment opened on startup
+			List<Long> expectedSince = all.stream().filter(e -> e.getTime() >= now + 150 && filter.matches(e))
+					.map(e -> e.getSequence()).collect(Collectors.toList());
+			assertEquals(filter.toString(), expectedSince, journal.getEvents(now + 150, filter).stream()
+					.map(e -> e.getSequence()).collect(Collectors.toList()));
+		}
+	}
+
+	@Test
+	public void testExpiredSegmentsAreDeleted() throws IOException {
+
+		File dir = tempFolder.newFolder();
+
+		long now = System.currentTimeMillis();
+
+		ResourceChangeEventJournal journal = new ResourceChangeEventJournal(dir, RETENTION);
+		journal.append(Arrays.asList(createEvent(now - TimeUnit.MILLISECONDS.convert(9, TimeUnit.DAYS))));
+		journal.close();
+
+		journal = new ResourceChangeEventJournal(dir, RETENTION);
+		journal.append(Arrays.asList(createEvent(now)));
+		journal.close();
+
+		// Only the segment whose events have all expired is deleted
+		journal = new ResourceChangeEventJournal(dir, RETENTION);
+		assertEquals(2, journal.getEvents(0).size());
+		journal.expireSegments();
+		assertEquals(1, journal.getEvents(0).size());
+		assertEquals(1, dir.listFiles().length);
+	}
+
+	private static void assertEventsSince(ResourceChangeEventJournal journal, List<ResourceChangeEventJson> all,
+			long now) {
+
+		for (long since : new long[] { 0, now, now + 5_000, now + 19_990, now + 200_000 }) {
+			List<String> expected = all.stream().filter(e -> e.getTime() >= since).map(e -> e.getUuid())
+					.collect(Collectors.toList());
+
+			List<String> actual = journal.getEvents(since).stream().map(e -> e.getUuid())
+					.collect(Collectors.toList());
+
+			assertEquals("since " + since, expected, actual);
+		}
+	}
+
+	private static ResourceChangeEventJson createEvent(long time) {
+		ResourceChangeEventJson event = new ResourceChangeEventJson();
+		event.setTime(time);
+		event.setOwner("my-org");
+		event.setRepo("my-repo");
+		event.setIssueNumber(1);
+		event.setUuid(UUID.randomUUID().toString());
+		return event;
+	}
+}
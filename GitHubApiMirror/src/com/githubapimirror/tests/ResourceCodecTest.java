@@ -0,0 +1,147 @@
+/*
+ * Copyright 2021 Jonathan West
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.githubapimirror.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.githubapimirror.db.Database;
+import com.githubapimirror.db.PersistJsonDb;
+import com.githubapimirror.db.ResourceCodec;
+import com.githubapimirror.db.ResourceCodec.Format;
+import com.githubapimirror.db.SegmentStoreDb;
+import com.githubapimirror.shared.Owner;
+import com.githubapimirror.shared.json.IssueJson;
+
+/**
+ * Tests for the storage formats of database resources.
+ */
+public class ResourceCodecTest {
+
+	@Rule
+	public TemporaryFolder tempFolder = new TemporaryFolder();
+
+	private static final Owner OWNER = Owner.org("my-org");
+
+	private static final ObjectMapper om = new ObjectMapper();
+
+	@Test
+	public void testEncodeAndDecode() throws IOException {
+
+		List<byte[]> samples = new ArrayList<>();
+		for (int x = 1; x <= 10; x++) {
+			samples.add(om.writeValueAsBytes(createIssue(x)));
+		}
+
+		byte[] dictionary = ResourceCodec.trainDictionary(samples, 1024);
+		assertTrue(dictionary.length > 0 && dictionary.length <= 1024);
+
+		for (Format format : Format.values()) {
+			ResourceCodec codec = new ResourceCodec(format);
+			codec.addDictionary(dictionary, true);
+
+			IssueJson issue = createIssue(11);
+			byte[] stored = codec.encode(issue);
+
+			assertEquals(format, ResourceCodec.getFormat(stored));
+			assertEquals(issue.getTitle(), codec.decode(stored, IssueJson.class).getTitle());
+			assertEquals(om.readTree(om.writeValueAsBytes(issue)), om.readTree(codec.toJson(stored)));
+		}
+	}
+
+	@Test
+	public void testPersistJsonDbReadsAllFormats() throws IOException {
+
+		File dirDb = tempFolder.newFolder();
+
+		// Write enough issues as JSON to train a dictionary, then reopen the database
+		// in each format, writing one issue in that format.
+		writeIssues(new PersistJsonDb(dirDb), 1, 150);
+
+		int issueNumber = 1000;
+		for (Format format : Arrays.asList(Format.SMILE, Format.DEFLATE, Format.JSON)) {
+			writeIssues(new PersistJsonDb(dirDb, format), issueNumber, issueNumber);
+			issueNumber++;
+		}
+
+		assertTrue(new File(dirDb, "metadata/dictionaries").list().length == 1);
+
+		Database db = new PersistJsonDb(dirDb);
+		assertIssues(db, new int[] { 1, 150, 1000, 1001, 1002 });
+		assertEquals(Format.DEFLATE,
+				ResourceCodec.getFormat(Files.readAllBytes(new File(dirDb, "my-org/my-repo/issues/1/1001.json").toPath())));
+		db.close();
+	}
+
+	@Test
+	public void testSegmentStoreDbReadsAllFormats() throws IOException {
+
+		File dirDb = tempFolder.newFolder();
+
+		writeIssues(new SegmentStoreDb(dirDb), 1, 150);
+
+		int issueNumber = 1000;
+		for (Format format : Arrays.asList(Format.SMILE, Format.DEFLATE, Format.JSON)) {
+			writeIssues(new SegmentStoreDb(dirDb, format), issueNumber, issueNumber);
+			issueNumber++;
+		}
+
+		Database db = new SegmentStoreDb(dirDb);
+		assertIssues(db, new int[] { 1, 150, 1000, 1001, 1002 });
+		db.close();
+	}
+
+	private static void writeIssues(Database db, int first, int last) {
+		for (int x = first; x <= last; x++) {
+			db.persistIssue(OWNER, createIssue(x));
+		}
+		db.close();
+	}
+
+	private static void assertIssues(Database db, int[] issueNumbers) throws IOException {
+		for (int issueNumber : issueNumbers) {
+			assertEquals("Issue " + issueNumber, db.getIssue(OWNER, "my-repo", issueNumber).get().getTitle());
+
+			// Always served as JSON, regardless of the stored format
+			IssueJson fromJson = om.readValue(db.getIssueAsJson(OWNER, "my-repo", issueNumber).get(), IssueJson.class);
+			assertEquals(issueNumber, (int) fromJson.getNumber());
+		}
+	}
+
+	private static IssueJson createIssue(int number) {
+		IssueJson issue = new IssueJson();
+		issue.setNumber(number);
+		issue.setParentRepo("my-repo");
+		issue.setTitle("Issue " + number);
+		issue.setBody("The body of issue " + number);
+		issue.setReporter("reporter-" + (number % 5));
+		issue.setLabels(Arrays.asList("bug", "area/db"));
+		return issue;
+	}
+}
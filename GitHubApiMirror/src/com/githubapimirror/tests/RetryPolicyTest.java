@@ -0,0 +1,82 @@
+/*
+ * Copyright 2021 Jonathan West
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.githubapimirror.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.egit.github.core.RequestError;
+import org.eclipse.egit.github.core.client.RequestException;
+import org.junit.Test;
+import org.kohsuke.github.GHFileNotFoundException;
+import org.kohsuke.github.HttpException;
+
+import com.githubapimirror.RetryPolicy;
+import com.githubapimirror.RetryPolicy.RetryAfterException;
+
+/**
+ * Tests for the classification of failures, and the retry delays, of
+ * RetryPolicy.
+ */
+public class RetryPolicyTest {
+
+	@Test
+	public void testPermanentFailures() {
+
+		assertTrue(RetryPolicy.isPermanent(new GHFileNotFoundException("Not found")));
+		assertTrue(RetryPolicy.isPermanent(new RequestException(new RequestError(), 410)));
+
+		// Wrapped, as thrown by the github-api iterators
+		assertTrue(RetryPolicy.isPermanent(
+				new RuntimeException(new HttpException("Not found", 404, "Not Found", "https://api.github.com/x"))));
+
+		assertFalse(RetryPolicy.isPermanent(new RequestException(new RequestError(), 502)));
+		assertFalse(RetryPolicy.isPermanent(new IOException("Connection reset")));
+
+		// Only github-api's 404 is permanent, not a missing local file
+		assertFalse(RetryPolicy.isPermanent(new FileNotFoundException("/db/issues/1.json (Too many open files)")));
+		assertFalse(RetryPolicy.isPermanent(new RetryAfterException("Abuse limit reached", 1000, null)));
+	}
+
+	@Test
+	public void testRetryDelay() {
+
+		long thirtySeconds = TimeUnit.MILLISECONDS.convert(30, TimeUnit.SECONDS);
+		long oneHour = TimeUnit.MILLISECONDS.convert(1, TimeUnit.HOURS);
+
+		for (int x = 0; x < 100; x++) {
+			long first = RetryPolicy.getRetryDelayInMsecs(2, new IOException());
+			assertTrue(first >= thirtySeconds / 2 && first <= thirtySeconds);
+
+			long third = RetryPolicy.getRetryDelayInMsecs(4, new IOException());
+			assertTrue(third >= 2 * thirtySeconds && third <= 4 * thirtySeconds);
+
+			long last = RetryPolicy.getRetryDelayInMsecs(100, new IOException());
+			assertTrue(last >= oneHour / 2 && last <= oneHour);
+		}
+
+		// Retry-After is honoured, when it is later than the backoff
+		IOException abuse = new IOException(new RetryAfterException("Abuse limit reached", 10 * oneHour, null));
+		assertEquals(Long.valueOf(10 * oneHour), RetryPolicy.getRetryAfterInMsecs(abuse).get());
+		assertEquals(10 * oneHour, RetryPolicy.getRetryDelayInMsecs(2, abuse));
+	}
+}
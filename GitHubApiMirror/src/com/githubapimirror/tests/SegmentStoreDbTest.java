@@ -0,0 +1,469 @@
+/*
+ * Copyright 2021 Jonathan West
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.githubapimirror.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.githubapimirror.db.PersistJsonDb;
+import com.githubapimirror.db.PersistJsonDbMigration;
+import com.githubapimirror.db.ProcessedEvent;
+import com.githubapimirror.db.ResourceCodec;
+import com.githubapimirror.db.SegmentStoreDb;
+import com.githubapimirror.shared.Owner;
+import com.githubapimirror.shared.ResourceChangeEventFilter;
+import com.githubapimirror.shared.json.IssueJson;
+import com.githubapimirror.shared.json.RepositoryJson;
+import com.githubapimirror.shared.json.ResourceChangeEventJson;
+import com.githubapimirror.shared.json.ResourceChangeEventPageJson;
+import com.githubapimirror.shared.json.UserRepositoriesJson;
+
+/**
+ * Tests for SegmentStoreDb that do not require a GitHub connection.
+ */
+public class SegmentStoreDbTest {
+
+	@Rule
+	public TemporaryFolder tempFolder = new TemporaryFolder();
+
+	private static final Owner OWNER = Owner.org("my-org");
+
+	@Test
+	public void testPersistAndReopen() throws IOException {
+
+		File dirDb = tempFolder.newFolder();
+
+		SegmentStoreDb db = new SegmentStoreDb(dirDb);
+
+		for (int x = 1; x <= 50; x++) {
+			db.persistIssue(OWNER, createIssue(x, "first"));
+		}
+		db.persistIssue(OWNER, createIssue(7, "second"));
+		db.persistRepository(createRepository());
+		db.persistLong("my-key", 1234);
+		db.addProcessedEvents(Arrays.asList(new ProcessedEvent("a", 1), new ProcessedEvent("b", 2)));
+		db.addProcessedEvents(Arrays.asList(new ProcessedEvent("b", 3), new ProcessedEvent("c", 1)));
+		db.close();
+
+		db = new SegmentStoreDb(dirDb);
+
+		assertEquals("second", db.getIssue(OWNER, "my-repo", 7).get().getTitle());
+		assertEquals("first", db.getIssue(OWNER, "my-repo", 8).get().getTitle());
+		assertFalse(db.getIssue(OWNER, "my-repo", 51).isPresent());
+		assertEquals(50, db.getIssueNumbers(OWNER, "my-repo").cardinality());
+		assertEquals("my-repo", db.getRepository(OWNER, "my-repo").get().getName());
+		assertEquals(1234l, (long) db.getLong("my-key").get());
+		assertEquals(Arrays.asList(new ProcessedEvent("a", 1), new ProcessedEvent("b", 3), new ProcessedEvent("c", 1)),
+				db.getProcessedEvents());
+		assertTrue(db.isDatabaseInitialized());
+
+		db.expireProcessedEvents(2);
+		SegmentStoreDb reopened = new SegmentStoreDb(dirDb);
+		assertEquals(Arrays.asList(new ProcessedEvent("b", 3)), reopened.getProcessedEvents());
+		reopened.close();
+
+		db.clearProcessedEvents();
+		db.close();
+		db = new SegmentStoreDb(dirDb);
+		assertTrue(db.getProcessedEvents().isEmpty());
+		db.close();
+	}
+
+	@Test
+	public void testGetEventsAfterSequenceWithFilter() throws IOException {
+
+		File dirDb = tempFolder.newFolder();
+
+		SegmentStoreDb db = new SegmentStoreDb(dirDb);
+
+		long now = System.currentTimeMillis();
+		for (int x = 0; x < 60; x++) {
+			ResourceChangeEventJson event = new ResourceChangeEventJson();
+			event.setTime(now + x);
+			event.setOwner(x % 2 == 0 ? "org-a" : "Org-B");
+			event.setRepo(x % 3 == 0 ? "repo-1" : "repo-2");
+			event.setIssueNumber(x);
+			event.setUuid(UUID.randomUUID().toString());
+			db.persistResourceChangeEvents(Arrays.asList(event));
+		}
+		db.close();
+
+		db = new SegmentStoreDb(dirDb);
+
+		// Events of an owner's repositories are merged in sequence number order
+		ResourceChangeEventPageJson page = db.getResourceChangeEventsAfter(10,
+				5, new ResourceChangeEventFilter(Arrays.asList("org-b"), new ArrayList<>()));
+		assertEquals(Arrays.asList(12l, 14l, 16l, 18l, 20l),
+				page.getEvents().stream().map(e -> e.getSequence()).collect(Collectors.toList()));
+		assertEquals(20, page.getLastSequence());
+
+		// Issue numbers are 'sequence - 1'
+		page = db.getResourceChangeEventsAfter(0, 100,
+				new ResourceChangeEventFilter(new ArrayList<>(), Arrays.asList("org-a/repo-1"), 20, 40));
+		assertEquals(Arrays.asList(25l, 31l, 37l),
+				page.getEvents().stream().map(e -> e.getSequence()).collect(Collectors.toList()));
+		assertEquals(60, page.getLastSequence());
+
+		// The events since a time are also read using the index
+		List<ResourceChangeEventJson> events = db.getRecentResourceChangeEvents(now + 50,
+				new ResourceChangeEventFilter(Arrays.asList("org-b"), new ArrayList<>()));
+		assertEquals(Arrays.asList(52l, 54l, 56l, 58l, 60l), getSequences(events));
+
+		events = db.getRecentResourceChangeEvents(now + 20,
+				new ResourceChangeEventFilter(new ArrayList<>(), Arrays.asList("org-a/repo-1"), 20, 40));
+		assertEquals(Arrays.asList(25l, 31l, 37l), getSequences(events));
+		db.close();
+	}
+
+	@Test
+	public void testFailedEventWriteIsNotRead() throws IOException {
+
+		File dirDb = tempFolder.newFolder();
+
+		// Use a small segment size, so that a large batch of events rolls the segment
+		SegmentStoreDb db = new SegmentStoreDb(dirDb, 4 * 1024);
+
+		long now = System.currentTimeMillis();
+		for (int x = 1; x <= 3; x++) {
+			db.persistResourceChangeEvents(Arrays.asList(createEvent(now + x, x)));
+		}
+
+		// The next segment can't be created, so the batch fails partway through
+		File segmentsDir = new File(dirDb, "segments");
+		File nextSegment = new File(segmentsDir, String.format("segment-%08d.log", segmentsDir.list().length + 1));
+		assertTrue(nextSegment.mkdir());
+
+		List<ResourceChangeEventJson> batch = new ArrayList<>();
+		for (int x = 4; x <= 43; x++) {
+			batch.add(createEvent(now + x, x));
+		}
+		try {
+			db.persistResourceChangeEvents(batch);
+			fail("The write should fail");
+		} catch (RuntimeException e) {
+			/* expected */
+		}
+
+		// None of the failed batch is read
+		assertEquals(Arrays.asList(1l, 2l, 3l), getSequences(db.getResourceChangeEventsAfter(0, 100)));
+		assertEquals(3, db.getRecentResourceChangeEvents(0).size());
+		ResourceChangeEventPageJson page = db.getResourceChangeEventsAfter(0, 100,
+				new ResourceChangeEventFilter(Arrays.asList(OWNER.getName()), new ArrayList<>()));
+		assertEquals(Arrays.asList(1l, 2l, 3l), getSequences(page.getEvents()));
+		assertEquals(3, page.getLastSequence());
+
+		// The sequence numbers of the failed batch are not reused
+		assertTrue(nextSegment.delete());
+		ResourceChangeEventJson event = createEvent(now + 44, 44);
+		db.persistResourceChangeEvents(Arrays.asList(event));
+		assertEquals(44, event.getSequence());
+		assertEquals(Arrays.asList(44l), getSequences(db.getResourceChangeEventsAfter(3, 100)));
+
+		// Simulate a crash: the records of the failed batch that reached the segment are
+		// replayed, with their own sequence numbers, and new events continue after every
+		// sequence number that was read.
+		db = new SegmentStoreDb(dirDb, 4 * 1024);
+		List<Long> sequences = getSequences(db.getResourceChangeEventsAfter(0, 100));
+		assertEquals(Arrays.asList(1l, 2l, 3l), sequences.subList(0, 3));
+		assertEquals(44l, (long) sequences.get(sequences.size() - 1));
+		assertEquals(new ArrayList<>(new TreeSet<>(sequences)), sequences);
+
+		event = createEvent(now + 45, 45);
+		db.persistResourceChangeEvents(Arrays.asList(event));
+		assertEquals(45, event.getSequence());
+		db.close();
+	}
+
+	@Test
+	public void testTornWriteIsTruncated() throws IOException {
+
+		File dirDb = tempFolder.newFolder();
+
+		SegmentStoreDb db = new SegmentStoreDb(dirDb);
+		db.persistIssue(OWNER, createIssue(1, "first"));
+		db.persistIssue(OWNER, createIssue(2, "second"));
+		db.close();
+
+		// Simulate a crash partway through writing the last record
+		File segment = new File(dirDb, "segments").listFiles()[0];
+		try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+			raf.setLength(raf.length() - 10);
+		}
+
+		db = new SegmentStoreDb(dirDb);
+		assertEquals("first", db.getIssue(OWNER, "my-repo", 1).get().getTitle());
+		assertFalse(db.getIssue(OWNER, "my-repo", 2).isPresent());
+
+		// New writes are not affected by the truncated segment
+		db.persistIssue(OWNER, createIssue(2, "third"));
+		db.close();
+		db = new SegmentStoreDb(dirDb);
+		assertEquals("third", db.getIssue(OWNER, "my-repo", 2).get().getTitle());
+		db.close();
+	}
+
+	@Test
+	public void testCompaction() throws IOException {
+
+		File dirDb = tempFolder.newFolder();
+
+		// Use a small segment size, so that the writes span many segments
+		SegmentStoreDb db = new SegmentStoreDb(dirDb, 4 * 1024);
+
+		for (int iteration = 0; iteration < 20; iteration++) {
+			for (int x = 1; x <= 20; x++) {
+				db.persistIssue(OWNER, createIssue(x, "iteration-" + iteration));
+			}
+		}
+
+		int segmentsBefore = new File(dirDb, "segments").listFiles().length;
+
+		db.compact();
+
+		int segmentsAfter = new File(dirDb, "segments").listFiles().length;
+		assertTrue(segmentsBefore + " " + segmentsAfter, segmentsAfter < segmentsBefore);
+
+		for (int x = 1; x <= 20; x++) {
+			assertEquals("iteration-19", db.getIssue(OWNER, "my-repo", x).get().getTitle());
+		}
+		db.close();
+
+		db = new SegmentStoreDb(dirDb, 4 * 1024);
+		for (int x = 1; x <= 20; x++) {
+			assertEquals("iteration-19", db.getIssue(OWNER, "my-repo", x).get().getTitle());
+		}
+		db.close();
+	}
+
+	@Test
+	public void testMigrationFromPersistJsonDb() throws IOException {
+
+		File dirDb = tempFolder.newFolder();
+
+		PersistJsonDb oldDb = new PersistJsonDb(dirDb);
+		oldDb.persistRepository(createRepository());
+		oldDb.persistIssue(OWNER, createIssue(5, "migrated"));
+		oldDb.persistString("my-key", "my-value");
+		oldDb.addProcessedEvents(Arrays.asList(new ProcessedEvent("a", 1), new ProcessedEvent("b", 2)));
+
+		ResourceChangeEventJson event = new ResourceChangeEventJson();
+		event.setTime(System.currentTimeMillis());
+		event.setOwner(OWNER.getName());
+		event.setRepo("my-repo");
+		event.setIssueNumber(5);
+		event.setUuid(UUID.randomUUID().toString());
+		oldDb.persistResourceChangeEvents(Arrays.asList(event));
+		oldDb.close();
+
+		assertTrue(PersistJsonDbMigration.containsPersistJsonDb(dirDb));
+
+		SegmentStoreDb db = new SegmentStoreDb(dirDb);
+		new PersistJsonDbMigration(dirDb, db).migrate();
+
+		assertEquals("my-repo", db.getRepository(OWNER, "my-repo").get().getName());
+		assertEquals("migrated", db.getIssue(OWNER, "my-repo", 5).get().getTitle());
+		assertEquals("my-value", db.getString("my-key").get());
+		assertEquals(Arrays.asList(new ProcessedEvent("a", 1), new ProcessedEvent("b", 2)), db.getProcessedEvents());
+
+		List<ResourceChangeEventJson> events = db.getRecentResourceChangeEvents(0);
+		assertEquals(1, events.size());
+		assertEquals(5, events.get(0).getIssueNumber());
+		db.close();
+	}
+
+	@Test
+	public void testMigrationKeepsEventSequences() throws IOException {
+
+		File dirDb = tempFolder.newFolder();
+
+		PersistJsonDb oldDb = new PersistJsonDb(dirDb);
+		long now = System.currentTimeMillis();
+		for (int x = 1; x <= 3; x++) {
+			ResourceChangeEventJson event = new ResourceChangeEventJson();
+			event.setTime(now + x);
+			event.setOwner(OWNER.getName());
+			event.setRepo("my-repo");
+			event.setIssueNumber(x);
+			event.setUuid(UUID.randomUUID().toString());
+			oldDb.persistResourceChangeEvents(Arrays.asList(event));
+		}
+
+		// A client has read up to sequence number 2
+		List<ResourceChangeEventJson> unread = oldDb.getResourceChangeEventsAfter(2, 100);
+		assertEquals(1, unread.size());
+		oldDb.close();
+
+		// An event of an older layout, written before sequence numbers were assigned
+		ResourceChangeEventJson oldEvent = new ResourceChangeEventJson();
+		oldEvent.setTime(now - 1000);
+		oldEvent.setOwner(OWNER.getName());
+		oldEvent.setRepo("my-repo");
+		oldEvent.setIssueNumber(10);
+		new ObjectMapper().writeValue(new File(dirDb, "events/issue-" + (now - 1000) + ".json"),
+				new ResourceChangeEventJson[] { oldEvent });
+
+		PersistJsonDbMigration.migrateToSegmentStore(dirDb, ResourceCodec.Format.JSON);
+
+		// The client's cursor selects the same events after the migration...
+		SegmentStoreDb db = new SegmentStoreDb(dirDb);
+		assertEquals(3, db.getLastResourceChangeEventSequence());
+		List<ResourceChangeEventJson> migrated = db.getResourceChangeEventsAfter(2, 100);
+		assertEquals(1, migrated.size());
+		assertEquals(unread.get(0).getSequence(), migrated.get(0).getSequence());
+		assertEquals(unread.get(0).getUuid(), migrated.get(0).getUuid());
+		assertEquals(Arrays.asList(3l), db.getResourceChangeEventsAfter(2, 100,
+				new ResourceChangeEventFilter(Arrays.asList(OWNER.getName()), new ArrayList<>())).getEvents()
+				.stream().map(e -> e.getSequence()).collect(Collectors.toList()));
+
+		// ... the event without a sequence number is only read by time...
+		assertEquals(4, db.getRecentResourceChangeEvents(0).size());
+
+		// ... and new events continue from the last sequence number
+		ResourceChangeEventJson event = new ResourceChangeEventJson();
+		event.setTime(now + 4);
+		event.setOwner(OWNER.getName());
+		event.setRepo("my-repo");
+		event.setIssueNumber(4);
+		db.persistResourceChangeEvents(Arrays.asList(event));
+		assertEquals(4, event.getSequence());
+		assertEquals(4, db.getLastResourceChangeEventSequence());
+		db.close();
+	}
+
+	@Test
+	public void testCompactionDuringWrites() throws Exception {
+
+		File dirDb = tempFolder.newFolder();
+
+		SegmentStoreDb db = new SegmentStoreDb(dirDb, 4 * 1024);
+
+		List<String> keys = new ArrayList<>();
+		for (int x = 0; x < 8000; x++) {
+			keys.add("key-" + x);
+			db.persistString("key-" + x, "first");
+		}
+
+		// Overwrite every key while its first value is being relocated by compaction
+		List<Thread> writers = new ArrayList<>();
+		for (int w = 0; w < 4; w++) {
+			List<String> writerKeys = keys.subList(w * 2000, (w + 1) * 2000);
+			writers.add(new Thread(() -> writerKeys.forEach(e -> db.persistString(e, "second"))));
+		}
+		writers.forEach(e -> e.start());
+
+		while (writers.stream().anyMatch(e -> e.isAlive())) {
+			db.compact();
+		}
+		db.close();
+
+		// A relocated copy of the first value must not replace the second on replay
+		SegmentStoreDb reopened = new SegmentStoreDb(dirDb, 4 * 1024);
+		for (String key : keys) {
+			assertEquals(key, "second", reopened.getString(key).get());
+		}
+		reopened.close();
+	}
+
+	@Test
+	public void testIncompleteMigrationIsRerun() throws IOException {
+
+		File dirDb = tempFolder.newFolder();
+
+		PersistJsonDb oldDb = new PersistJsonDb(dirDb);
+		oldDb.persistRepository(createRepository());
+		oldDb.persistIssue(OWNER, createIssue(5, "migrated"));
+
+		// The owner of a repository without a repository or owner JSON is unknown, so
+		// it is skipped
+		oldDb.persistIssue(Owner.org("unknown-owner"), createIssue(7, "skipped"));
+
+		// The repository JSON of a user's repository is missing, but the user
+		// repositories JSON identifies its owner as a user
+		UserRepositoriesJson userRepos = new UserRepositoriesJson();
+		userRepos.setUserName("my-user");
+		userRepos.setRepoNames(Arrays.asList("user-repo"));
+		oldDb.persistUserRepositories(userRepos);
+		IssueJson userIssue = createIssue(6, "user-issue");
+		userIssue.setParentRepo("user-repo");
+		oldDb.persistIssue(Owner.user("my-user"), userIssue);
+		oldDb.close();
+
+		// Simulate a crash partway through an earlier migration
+		SegmentStoreDb partial = new SegmentStoreDb(new File(dirDb, "segments-migration"));
+		partial.persistString("partial-key", "partial-value");
+		partial.close();
+
+		PersistJsonDbMigration.migrateToSegmentStore(dirDb, ResourceCodec.Format.JSON);
+
+		assertFalse(new File(dirDb, "segments-migration").exists());
+
+		SegmentStoreDb db = new SegmentStoreDb(dirDb);
+		assertTrue(db.isDatabaseInitialized());
+		assertEquals("migrated", db.getIssue(OWNER, "my-repo", 5).get().getTitle());
+		assertEquals("user-issue", db.getIssue(Owner.user("my-user"), "user-repo", 6).get().getTitle());
+		assertFalse(db.getIssue(Owner.org("unknown-owner"), "my-repo", 7).isPresent());
+		assertFalse(db.getString("partial-key").isPresent());
+		db.close();
+	}
+
+	private static ResourceChangeEventJson createEvent(long time, int issueNumber) {
+		ResourceChangeEventJson event = new ResourceChangeEventJson();
+		event.setTime(time);
+		event.setOwner(OWNER.getName());
+		event.setRepo("my-repo");
+		event.setIssueNumber(issueNumber);
+		event.setUuid(UUID.randomUUID().toString());
+		return event;
+	}
+
+	private static List<Long> getSequences(List<ResourceChangeEventJson> events) {
+		return events.stream().map(e -> e.getSequence()).collect(Collectors.toList());
+	}
+
+	private static IssueJson createIssue(int number, String title) {
+		IssueJson issue = new IssueJson();
+		issue.setNumber(number);
+		issue.setParentRepo("my-repo");
+		issue.setTitle(title);
+		issue.setBody("Body of issue " + number);
+		return issue;
+	}
+
+	private static RepositoryJson createRepository() {
+		RepositoryJson repo = new RepositoryJson();
+		repo.setOrgName(OWNER.getName());
+		repo.setName("my-repo");
+		return repo;
+	}
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright 2021 Jonathan West
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.githubapimirror.tests;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+import java.util.stream.Stream;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.githubapimirror.db.Database;
+import com.githubapimirror.db.PersistJsonDb;
+import com.githubapimirror.db.ResourceCodec;
+import com.githubapimirror.db.ResourceCodec.Format;
+import com.githubapimirror.db.SegmentStoreDb;
+import com.githubapimirror.shared.Owner;
+import com.githubapimirror.shared.json.IssueCommentJson;
+import com.githubapimirror.shared.json.IssueEventJson;
+import com.githubapimirror.shared.json.IssueJson;
+
+/**
+ * Compares the size and the encode/decode throughput of each storage format,
+ * and the disk footprint and read/write throughput of a PersistJsonDb and a
+ * SegmentStoreDb that use it, for a corpus of generated issues (with comments and events, in
+ * roughly the proportions of a typical GitHub repository).
+ *
+ * Usage: StorageFormatBenchmark [issues]
+ */
+public class StorageFormatBenchmark {
+
+	private static final Owner OWNER = Owner.org("benchmark-org");
+
+	private static final String REPO_NAME = "benchmark-repo";
+
+	private static final int ITERATIONS = 5;
+
+	private static final long BLOCK_SIZE = 4096;
+
+	private static final String[] WORDS = ("the a to of and in is it that for this with on be not we when error "
+			+ "should workspace build fails after update using version container pod server log see attached "
+			+ "please fix thanks running kubernetes openshift plugin editor test release branch merge")
+					.split(" ");
+
+	private static final String[] LABELS = { "kind/bug", "kind/enhancement", "kind/question", "severity/P1",
+			"severity/P2", "area/editor", "area/plugins", "area/dashboard", "status/need-triage", "lifecycle/stale" };
+
+	public static void main(String[] args) throws Exception {
+
+		int numIssues = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+
+		Random random = new Random(1);
+		List<IssueJson> issues = new ArrayList<>();
+		for (int x = 1; x <= numIssues; x++) {
+			issues.add(createIssue(x, random));
+		}
+
+		ObjectMapper om = new ObjectMapper();
+
+		// Train the dictionary on the first 1000 issues, as the databases do
+		List<byte[]> samples = new ArrayList<>();
+		for (int x = 0; x < Math.min(1000, numIssues); x++) {
+			samples.add(om.writeValueAsBytes(issues.get(x)));
+		}
+		byte[] dictionary = ResourceCodec.trainDictionary(samples, ResourceCodec.DEFAULT_DICTIONARY_SIZE_IN_BYTES);
+
+		System.out.println("Issues: " + numIssues + ", dictionary: " + dictionary.length + " bytes");
+		System.out.println();
+
+		System.out.println(String.format("%-20s %12s %8s %12s %12s %12s", "Format", "Bytes", "Ratio", "Encode/s",
+				"Decode/s", "To JSON/s"));
+
+		long jsonBytes = 0;
+
+		List<ResourceCodec> codecs = new ArrayList<>();
+		codecs.add(new ResourceCodec(Format.JSON));
+		codecs.add(new ResourceCodec(Format.SMILE));
+		codecs.add(new ResourceCodec(Format.DEFLATE));
+		ResourceCodec deflateDictionary = new ResourceCodec(Format.DEFLATE);
+		deflateDictionary.addDictionary(dictionary, true);
+		codecs.add(deflateDictionary);
+
+		for (ResourceCodec codec : codecs) {
+
+			List<byte[]> encoded = new ArrayList<>();
+			long encodeNanos = bestOf(() -> {
+				encoded.clear();
+				issues.forEach(e -> encoded.add(codec.encode(e)));
+			});
+
+			long bytes = encoded.stream().mapToLong(e -> e.length).sum();
+			if (codec.getFormat() == Format.JSON) {
+				jsonBytes = bytes;
+			}
+
+			long decodeNanos = bestOf(() -> encoded.forEach(e -> codec.decode(e, IssueJson.class)));
+
+			long toJsonNanos = bestOf(() -> encoded.forEach(e -> codec.toJson(e)));
+
+			System.out.println(String.format("%-20s %12d %8.2f %12.0f %12.0f %12.0f", getName(codec), bytes,
+					(double) bytes / jsonBytes, perSecond(numIssues, encodeNanos), perSecond(numIssues, decodeNanos),
+					perSecond(numIssues, toJsonNanos)));
+		}
+
+		System.out.println();
+		System.out.println("PersistJsonDb:");
+		benchmarkDatabase(issues, (dir, format) -> new PersistJsonDb(dir, format));
+
+		System.out.println();
+		System.out.println("SegmentStoreDb:");
+		benchmarkDatabase(issues, (dir, format) -> new SegmentStoreDb(dir, format));
+	}
+
+	private static void benchmarkDatabase(List<IssueJson> issues, BiFunction<File, Format, Database> factory)
+			throws IOException {
+
+		System.out.println(String.format("%-20s %12s %12s %12s %12s", "Format", "File bytes", "4K blocks",
+				"Writes/s", "Reads/s"));
+
+		int numIssues = issues.size();
+
+		for (Format format : Format.values()) {
+
+			File dirDb = Files.createTempDirectory("gham-benchmark").toFile();
+
+			try {
+				// Write the dictionary training sample as JSON, so that the database trains
+				// its dictionary when it is reopened.
+				Database trainingDb = factory.apply(dirDb, Format.JSON);
+				for (int x = 0; x < Math.min(1000, numIssues); x++) {
+					trainingDb.persistIssue(OWNER, issues.get(x));
+				}
+				trainingDb.close();
+
+				Database db = factory.apply(dirDb, format);
+
+				long start = System.nanoTime();
+				issues.forEach(e -> db.persistIssue(OWNER, e));
+				db.flush();
+				long writeNanos = System.nanoTime() - start;
+
+				long readNanos = bestOf(() -> {
+					for (int x = 1; x <= numIssues; x++) {
+						db.getIssue(OWNER, REPO_NAME, x).get();
+					}
+				});
+
+				// Remove the (now overwritten) training sample
+				if (db instanceof SegmentStoreDb) {
+					((SegmentStoreDb) db).compact();
+				}
+
+				long[] size = getSize(db instanceof SegmentStoreDb ? new File(dirDb, "segments")
+						: new File(dirDb, OWNER.getName() + "/" + REPO_NAME + "/issues"));
+
+				System.out.println(String.format("%-20s %12d %12d %12.0f %12.0f", format, size[0], size[1],
+						perSecond(numIssues, writeNanos), perSecond(numIssues, readNanos)));
+
+				db.close();
+			} finally {
+				AbstractTest.deleteDirectory(dirDb);
+			}
+		}
+	}
+
+	private static String getName(ResourceCodec codec) {
+		if (codec.getFormat() == Format.DEFLATE) {
+			return codec.hasWriteDictionary() ? "DEFLATE+dictionary" : "DEFLATE";
+		}
+		return codec.getFormat().name();
+	}
+
+	/**
+	 * Returns the total size of the files in the directory, and the space they
+	 * occupy on a file system with 4 KB blocks (as most small files use a whole
+	 * block).
+	 */
+	private static long[] getSize(File directory) throws IOException {
+		long[] result = new long[2];
+		try (Stream<Path> paths = Files.walk(directory.toPath())) {
+			paths.filter(e -> Files.isRegularFile(e)).forEach(e -> {
+				long size = e.toFile().length();
+				result[0] += size;
+				result[1] += (size + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE;
+			});
+		}
+		return result;
+	}
+
+	/** Run the operation several times, returning the fastest time in nanoseconds. */
+	private static long bestOf(Runnable operation) {
+		long best = Long.MAX_VALUE;
+		for (int x = 0; x < ITERATIONS; x++) {
+			long start = System.nanoTime();
+			operation.run();
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		return best;
+	}
+
+	private static double perSecond(int count, long nanos) {
+		return count / (nanos / (double) TimeUnit.NANOSECONDS.convert(1, TimeUnit.SECONDS));
+	}
+
+	private static IssueJson createIssue(int number, Random random) {
+		long created = 1_500_000_000_000L + number * 3_600_000L;
+
+		IssueJson issue = new IssueJson();
+		issue.setNumber(number);
+		issue.setParentRepo(REPO_NAME);
+		issue.setTitle(createText(random, 4 + random.nextInt(8)));
+		issue.setBody(createText(random, 20 + random.nextInt(200)));
+		issue.setHtmlUrl("https://github.com/" + OWNER.getName() + "/" + REPO_NAME + "/issues/" + number);
+		issue.setReporter("user-" + random.nextInt(500));
+		issue.setCreatedAt(new Date(created));
+		issue.setClosed(random.nextBoolean());
+		if (issue.isClosed()) {
+			issue.setClosedAt(new Date(created + random.nextInt(1_000_000_000)));
+		}
+
+		List<String> labels = new ArrayList<>();
+		for (int x = random.nextInt(4); x > 0; x--) {
+			labels.add(LABELS[random.nextInt(LABELS.length)]);
+		}
+		issue.setLabels(labels);
+		issue.setAssignees(random.nextBoolean() ? Arrays.asList("user-" + random.nextInt(50)) : new ArrayList<>());
+
+		List<IssueCommentJson> comments = new ArrayList<>();
+		for (int x = random.nextInt(6); x > 0; x--) {
+			IssueCommentJson comment = new IssueCommentJson();
+			comment.setUserLogin("user-" + random.nextInt(500));
+			comment.setBody(createText(random, 5 + random.nextInt(80)));
+			comment.setCreatedAt(new Date(created + random.nextInt(100_000_000)));
+			comment.setUpdatedAt(comment.getCreatedAt());
+			comments.add(comment);
+		}
+		issue.setComments(comments);
+
+		List<IssueEventJson> events = new ArrayList<>();
+		for (int x = random.nextInt(5); x > 0; x--) {
+			IssueEventJson event = new IssueEventJson();
+			event.setType(random.nextBoolean() ? "labeled" : "assigned");
+			event.setActorUserLogin("user-" + random.nextInt(50));
+			event.setCreatedAt(new Date(created + random.nextInt(100_000_000)));
+			events.add(event);
+		}
+		issue.setIssueEvents(events);
+
+		return issue;
+	}
+
+	private static String createText(Random random, int words) {
+		StringBuilder sb = new StringBuilder();
+		for (int x = 0; x < words; x++) {
+			if (x > 0) {
+				sb.append(' ');
+			}
+			sb.append(WORDS[random.nextInt(WORDS.length)]);
+		}
+		return sb.toString();
+	}
+}
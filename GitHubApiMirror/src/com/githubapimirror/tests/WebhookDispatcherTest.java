@@ -0,0 +1,173 @@
+/*
+ * Copyright 2021 Jonathan West
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.githubapimirror.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.githubapimirror.WebhookDispatcher;
+import com.githubapimirror.db.InMemoryCacheDb;
+import com.githubapimirror.db.SegmentStoreDb;
+import com.githubapimirror.shared.ResourceChangeEventFilter;
+import com.githubapimirror.shared.json.ResourceChangeEventJson;
+import com.githubapimirror.shared.json.ResourceChangeEventJson.Enrichment;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Tests for WebhookDispatcher, against a local HTTP server.
+ */
+public class WebhookDispatcherTest {
+
+	@Rule
+	public TemporaryFolder tempFolder = new TemporaryFolder();
+
+	private static final String OFFSET_KEY = "webhook-offset-my-webhook";
+
+	@Test
+	public void testBatchedDeliveryWithRetryAndResume() throws Exception {
+
+		List<List<ResourceChangeEventJson>> batches = Collections.synchronizedList(new ArrayList<>());
+		AtomicInteger failuresRemaining = new AtomicInteger(1);
+
+		HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/events", exchange -> {
+			byte[] body;
+			try (InputStream is = exchange.getRequestBody()) {
+				body = readFully(is);
+			}
+			if (failuresRemaining.getAndDecrement() > 0) {
+				exchange.sendResponseHeaders(500, -1);
+			} else {
+				batches.add(Arrays.asList(new ObjectMapper().readValue(body, ResourceChangeEventJson[].class)));
+				exchange.sendResponseHeaders(204, -1);
+			}
+			exchange.close();
+		});
+		server.start();
+
+		try {
+			File dirDb = tempFolder.newFolder();
+			InMemoryCacheDb db = new InMemoryCacheDb(new SegmentStoreDb(dirDb), false,
+					InMemoryCacheDb.DEFAULT_CACHE_SIZE_IN_BYTES);
+
+			WebhookDispatcher.Subscriber subscriber = new WebhookDispatcher.Subscriber("my-webhook",
+					"http://127.0.0.1:" + server.getAddress().getPort() + "/events", null,
+					new ResourceChangeEventFilter(Arrays.asList("org-a"), Collections.emptyList()), Enrichment.NONE,
+					10, 100);
+
+			// Events persisted before the subscriber was added
+			persistEvents(db, 100, 5);
+
+			WebhookDispatcher dispatcher = new WebhookDispatcher(db, Arrays.asList(subscriber));
+			db.addResourceChangeEventListener(dispatcher::onEventsPersisted);
+
+			// A new subscriber starts after the last event in the database
+			waitFor(() -> db.getLong(OFFSET_KEY).isPresent());
+			assertEquals(5l, (long) db.getLong(OFFSET_KEY).get());
+
+			persistEvents(db, 0, 25);
+
+			List<Long> expected = getMatchingSequences(db, 5, subscriber.getFilter());
+			assertEquals(13, expected.size());
+
+			waitFor(() -> getSequences(batches).size() >= expected.size());
+			assertEquals(expected, getSequences(batches));
+			assertTrue(batches.stream().allMatch(e -> e.size() <= 10));
+			assertTrue(failuresRemaining.get() < 0);
+
+			// The last event (which does not match the filter) is included in the offset
+			waitFor(() -> db.getLong(OFFSET_KEY).get() == 30);
+
+			// Events persisted while stopped are read from the database on restart
+			dispatcher.close();
+			persistEvents(db, 25, 5);
+
+			dispatcher = new WebhookDispatcher(db, Arrays.asList(subscriber));
+			db.addResourceChangeEventListener(dispatcher::onEventsPersisted);
+
+			List<Long> expectedAfterRestart = getMatchingSequences(db, 5, subscriber.getFilter());
+			waitFor(() -> getSequences(batches).size() >= expectedAfterRestart.size());
+			assertEquals(expectedAfterRestart, getSequences(batches));
+
+			dispatcher.close();
+			db.close();
+
+		} finally {
+			server.stop(0);
+		}
+	}
+
+	private static void persistEvents(InMemoryCacheDb db, int start, int count) {
+		for (int x = start; x < start + count; x++) {
+			ResourceChangeEventJson event = new ResourceChangeEventJson();
+			event.setTime(System.currentTimeMillis());
+			event.setOwner(x % 2 == 0 ? "org-a" : "org-b");
+			event.setRepo("my-repo");
+			event.setIssueNumber(x);
+			event.setUuid(x + "");
+			db.persistResourceChangeEvents(Arrays.asList(event));
+		}
+	}
+
+	private static List<Long> getMatchingSequences(InMemoryCacheDb db, long sequence,
+			ResourceChangeEventFilter filter) {
+		return db.getResourceChangeEventsAfter(sequence, 1000).stream().filter(e -> filter.matches(e))
+				.map(e -> e.getSequence()).collect(Collectors.toList());
+	}
+
+	private static List<Long> getSequences(List<List<ResourceChangeEventJson>> batches) {
+		synchronized (batches) {
+			return batches.stream().flatMap(e -> e.stream()).map(e -> e.getSequence()).collect(Collectors.toList());
+		}
+	}
+
+	private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+		long expireTime = System.currentTimeMillis() + 30 * 1000;
+		while (!condition.getAsBoolean()) {
+			assertTrue("Timed out", System.currentTimeMillis() < expireTime);
+			Thread.sleep(50);
+		}
+	}
+
+	private static byte[] readFully(InputStream is) throws IOException {
+		ByteArrayOutputStream result = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int c;
+		while ((c = is.read(buffer)) != -1) {
+			result.write(buffer, 0, c);
+		}
+		return result.toByteArray();
+	}
+}
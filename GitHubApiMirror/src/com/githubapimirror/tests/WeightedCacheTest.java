@@ -0,0 +1,125 @@
+/*
+ * Copyright 2021 Jonathan West
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.githubapimirror.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.githubapimirror.db.WeightedCache;
+import com.githubapimirror.shared.GHApiUtil;
+import com.githubapimirror.shared.json.CacheStatisticsJson;
+
+/**
+ * Tests for the bounded cache used by InMemoryCacheDb.
+ */
+public class WeightedCacheTest {
+
+	@Test
+	public void testWeightStaysWithinMaximum() {
+
+		long maximumWeight = 100 * 1024;
+
+		WeightedCache<String> cache = new WeightedCache<>(maximumWeight, e -> e.length());
+
+		for (int x = 0; x < 10000; x++) {
+			cache.put("key-" + x, createString(1000));
+		}
+
+		CacheStatisticsJson stats = cache.getStatistics();
+		assertTrue("Weighted size: " + stats.getWeightedSize(), stats.getWeightedSize() <= maximumWeight);
+		assertTrue(stats.getEvictionCount() > 0);
+		assertTrue(stats.getEntryCount() > 0);
+	}
+
+	@Test
+	public void testConcurrentLoadsAreCoalesced() throws InterruptedException {
+
+		WeightedCache<String> cache = new WeightedCache<>(1024 * 1024, e -> e.length());
+
+		AtomicInteger loads = new AtomicInteger();
+
+		CountDownLatch start = new CountDownLatch(1);
+
+		List<Thread> threads = new ArrayList<>();
+		for (int x = 0; x < 8; x++) {
+			threads.add(new Thread(() -> {
+				try {
+					start.await();
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+				assertEquals("value", cache.get("key", k -> {
+					loads.incrementAndGet();
+					GHApiUtil.sleep(200);
+					return "value";
+				}));
+			}));
+		}
+
+		threads.forEach(e -> e.start());
+		start.countDown();
+		for (Thread t : threads) {
+			t.join();
+		}
+
+		assertEquals(1, loads.get());
+		assertEquals(1, cache.getStatistics().getLoadSuccessCount());
+	}
+
+	@Test
+	public void testMissingValuesAreCached() {
+
+		WeightedCache<Optional<String>> cache = new WeightedCache<>(1024 * 1024, e -> 64);
+
+		AtomicInteger loads = new AtomicInteger();
+
+		for (int x = 0; x < 10; x++) {
+			Optional<String> result = cache.get("missing", k -> {
+				loads.incrementAndGet();
+				return Optional.empty();
+			});
+			assertFalse(result.isPresent());
+		}
+
+		assertEquals(1, loads.get());
+
+		CacheStatisticsJson stats = cache.getStatistics();
+		assertEquals(9, stats.getHitCount());
+		assertEquals(1, stats.getMissCount());
+
+		cache.invalidate("missing");
+		assertNull(cache.getIfPresent("missing"));
+	}
+
+	private static String createString(int length) {
+		StringBuilder sb = new StringBuilder();
+		for (int x = 0; x < length; x++) {
+			sb.append('a');
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,362 @@
+/*
+ * Copyright 2021 Jonathan West
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+*/
+
+
+package com.githubapimirror.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+
+import org.junit.Test;
+import org.kohsuke.github.GHFileNotFoundException;
+import org.kohsuke.github.GHIssue;
+import org.kohsuke.github.GHRepository;
+import org.kohsuke.github.GHUser;
+
+import com.fasterxml.jackson.annotation.JsonAutoDetect.Visibility;
+import com.fasterxml.jackson.annotation.PropertyAccessor;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.githubapimirror.GHRepoCache;
+import com.githubapimirror.RateLimitGovernor;
+import com.githubapimirror.RetryPolicy;
+import com.githubapimirror.WorkQueue;
+import com.githubapimirror.WorkQueue.IssueContainer;
+import com.githubapimirror.WorkQueue.OwnerContainer;
+import com.githubapimirror.WorkQueue.Priority;
+import com.githubapimirror.WorkQueue.RepositoryContainer;
+import com.githubapimirror.WorkQueue.WorkItem;
+import com.githubapimirror.shared.JsonUtil;
+import com.githubapimirror.shared.Owner;
+import com.githubapimirror.shared.json.DeadLetterJson;
+import com.githubapimirror.shared.json.WorkQueueCheckpointJson;
+
+/**
+ * Tests for the scheduling of WorkQueue (work is polled by priority class, and
+ * classes that have waited are promoted, so that they are not starved), for
+ * the keying of queued and active work, for retrying failed work, and for
+ * resuming its work from a checkpoint.
+ */
+public class WorkQueueTest {
+
+	/** Reads the github-api resources from JSON into their fields, as the github-api client does */
+	private static final ObjectMapper GH_MAPPER = new ObjectMapper()
+			.setVisibility(PropertyAccessor.ALL, Visibility.NONE)
+			.setVisibility(PropertyAccessor.FIELD, Visibility.ANY)
+			.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+	private static final Owner OWNER = Owner.org("my-org");
+
+	@Test
+	public void testPollsHighestPriorityFirst() throws IOException {
+
+		// Long enough that no class is promoted during the test
+		WorkQueue queue = createQueue(60 * 60 * 1000);
+
+		GHRepository repo = repository("my-repo");
+
+		// Added lowest priority first, so that insertion order does not decide
+		queue.addUser(user("my-user"));
+		queue.addIssue(issue(1), repo, OWNER, Priority.FULL_SCAN);
+		queue.addIssue(issue(2), repo, OWNER, Priority.INCREMENTAL);
+		queue.addIssue(issue(3), repo, OWNER, Priority.EVENT);
+		queue.addIssue(issue(4), repo, OWNER, Priority.FULL_SCAN);
+		queue.addIssue(issue(5), repo, OWNER, Priority.EVENT);
+
+		assertEquals(6, queue.availableWork());
+
+		List<String> polled = new ArrayList<>();
+		for (int x = 0; x < 6; x++) {
+			polled.add(describe(queue.poll().get()));
+		}
+
+		assertEquals("[EVENT 3, EVENT 5, INCREMENTAL 2, FULL_SCAN 1, FULL_SCAN 4, USER_REFRESH my-user]",
+				polled.toString());
+
+		assertFalse(queue.poll().isPresent());
+		assertEquals(0, queue.availableWork());
+	}
+
+	@Test
+	public void testReaddingWithHigherPriorityMovesWork() throws IOException {
+
+		WorkQueue queue = createQueue(60 * 60 * 1000);
+
+		GHRepository repo = repository("my-repo");
+
+		queue.addIssue(issue(1), repo, OWNER, Priority.FULL_SCAN);
+		queue.addIssue(issue(2), repo, OWNER, Priority.INCREMENTAL);
+
+		// Moved to EVENT; adding it again with a lower priority does not move it back
+		queue.addIssue(issue(1), repo, OWNER, Priority.EVENT);
+		queue.addIssue(issue(1), repo, OWNER, Priority.FULL_SCAN);
+
+		assertEquals(2, queue.availableWork());
+
+		assertEquals("EVENT 1", describe(queue.poll().get()));
+		assertEquals("INCREMENTAL 2", describe(queue.poll().get()));
+		assertFalse(queue.poll().isPresent());
+	}
+
+	@Test
+	public void testAgingPromotesStarvedClass() throws IOException, InterruptedException {
+
+		long agingIntervalInMsecs = 500;
+
+		WorkQueue queue = createQueue(agingIntervalInMsecs);
+
+		GHRepository repo = repository("my-repo");
+
+		queue.addIssue(issue(1), repo, OWNER, Priority.FULL_SCAN);
+		queue.addIssue(issue(2), repo, OWNER, Priority.EVENT);
+
+		// Before FULL_SCAN has waited, EVENT is polled first
+		assertEquals("EVENT 2", describe(queue.poll().get()));
+
+		// FULL_SCAN is two classes below EVENT, so after three intervals it is
+		// promoted above EVENT work that has only just been queued
+		Thread.sleep(agingIntervalInMsecs * 3 + 100);
+
+		queue.addIssue(issue(3), repo, OWNER, Priority.EVENT);
+
+		assertEquals("FULL_SCAN 1", describe(queue.poll().get()));
+		assertEquals("EVENT 3", describe(queue.poll().get()));
+		assertFalse(queue.poll().isPresent());
+	}
+
+	@Test
+	public void testResumeFromCheckpoint() throws IOException {
+
+		GHRepository repo1 = repository("my-repo-1");
+		GHRepository repo2 = repository("my-repo-2");
+		GHRepository repo3 = repository("my-repo-3");
+
+		Owner userOwner = Owner.user("my-user");
+
+		List<OwnerContainer> owners = Arrays.asList(
+				new OwnerContainer(Arrays.asList(repo1, repo2, repo3), OWNER),
+				new OwnerContainer(Arrays.asList(repository(userOwner, "user-repo")), userOwner));
+
+		WorkQueue queue = createQueue(60 * 60 * 1000);
+
+		queue.addOwner(owners.get(1), Priority.FULL_SCAN);
+		queue.addRepository(OWNER, repo1, Priority.FULL_SCAN);
+		queue.addIssue(issue(3), repo2, OWNER, Priority.FULL_SCAN);
+		queue.addIssue(issue(5), repo2, OWNER, Priority.EVENT);
+		queue.addIssue(issue(7), repo3, OWNER, Priority.INCREMENTAL);
+
+		// No longer mirrored, so it is not resumed
+		queue.addRepository(OWNER, repository("removed-repo"), Priority.FULL_SCAN);
+
+		// Work that is active is also checkpointed
+		assertEquals("EVENT 5", describe(queue.poll().get()));
+
+		// Persisted, then read after a 'restart'
+		String value = JsonUtil.toString(queue.createCheckpoint());
+		WorkQueueCheckpointJson checkpoint = new ObjectMapper().readValue(value, WorkQueueCheckpointJson.class);
+
+		assertEquals(5, checkpoint.getEntries().size());
+
+		WorkQueue resumedQueue = createQueue(60 * 60 * 1000);
+
+		assertEquals(4, resumedQueue.resumeFromCheckpoint(checkpoint, owners, new GHRepoCache(null)));
+
+		List<String> polled = new ArrayList<>();
+		Optional<WorkItem> item;
+		while ((item = resumedQueue.poll()).isPresent()) {
+			polled.add(describe(item.get()));
+		}
+
+		// The issues of a repository are resumed together, with the highest of their priorities
+		assertEquals("[EVENT my-repo-2 {3, 5}, INCREMENTAL my-repo-3 {7}, FULL_SCAN my-user, FULL_SCAN my-repo-1]",
+				polled.toString());
+	}
+
+	@Test
+	public void testResourcesAreKeyed() throws IOException {
+
+		WorkQueue queue = createQueue(60 * 60 * 1000);
+
+		// Separate instances of the same issue are the same work
+		queue.addIssue(issue(1), repository("my-repo"), OWNER, Priority.FULL_SCAN);
+		queue.addIssue(issue(1), repository("my-repo"), OWNER, Priority.FULL_SCAN);
+		assertEquals(1, queue.availableWork());
+
+		// The same issue number, in another repository, or of another owner
+		queue.addIssue(issue(1), repository("other-repo"), OWNER, Priority.FULL_SCAN);
+		queue.addIssue(issue(1), repository(Owner.org("other-org"), "my-repo"), Owner.org("other-org"),
+				Priority.FULL_SCAN);
+		assertEquals(3, queue.availableWork());
+
+		// A repository is not the same work as its issues
+		queue.addRepository(OWNER, repository("my-repo"), Priority.FULL_SCAN);
+		queue.addRepository(OWNER, repository("my-repo"), Priority.FULL_SCAN);
+		assertEquals(4, queue.availableWork());
+
+		List<String> polled = new ArrayList<>();
+		Optional<WorkItem> item;
+		while ((item = queue.poll()).isPresent()) {
+			polled.add(describe(item.get()));
+		}
+		assertEquals("[FULL_SCAN 1, FULL_SCAN 1, FULL_SCAN 1, FULL_SCAN my-repo]", polled.toString());
+		assertEquals(4, queue.activeResources());
+	}
+
+	@Test
+	public void testWorkAddedWhileActiveIsQueuedOnceProcessed() throws IOException {
+
+		WorkQueue queue = createQueue(60 * 60 * 1000);
+
+		GHRepository repo = repository("my-repo");
+
+		queue.addIssue(issue(1), repo, OWNER, Priority.FULL_SCAN);
+		WorkItem item = queue.poll().get();
+		assertEquals(1, queue.activeResources());
+
+		// Not queued while it is being processed, so that two worker threads never
+		// process it at once; the highest priority is kept
+		queue.addIssue(issue(1), repo, OWNER, Priority.INCREMENTAL);
+		queue.addIssue(issue(1), repo, OWNER, Priority.EVENT);
+		queue.addIssue(issue(1), repo, OWNER, Priority.FULL_SCAN);
+		assertEquals(0, queue.availableWork());
+		assertFalse(queue.poll().isPresent());
+
+		queue.markAsProcessed(item, null);
+		assertEquals(0, queue.activeResources());
+		assertEquals(1, queue.availableWork());
+
+		item = queue.poll().get();
+		assertEquals("EVENT 1", describe(item));
+
+		// Processed without being added again
+		queue.markAsProcessed(item, null);
+		assertEquals(0, queue.availableWork());
+		assertFalse(queue.poll().isPresent());
+	}
+
+	@Test
+	public void testWaitForAvailableWorkIsWokenByAdd() throws Exception {
+
+		WorkQueue queue = createQueue(60 * 60 * 1000);
+
+		Thread waiter = new Thread(() -> queue.waitForAvailableWork());
+		waiter.setDaemon(true);
+		waiter.start();
+
+		waiter.join(500);
+		assertTrue(waiter.isAlive());
+
+		queue.addIssue(issue(1), repository("my-repo"), OWNER, Priority.EVENT);
+
+		waiter.join(10 * 1000);
+		assertFalse(waiter.isAlive());
+	}
+
+	@Test
+	public void testFailedWorkIsRetriedThenDeadLettered() throws IOException {
+
+		WorkQueue queue = createQueue(60 * 60 * 1000);
+
+		GHRepository repo = repository("my-repo");
+
+		queue.addIssue(issue(1), repo, OWNER, Priority.EVENT);
+
+		for (int attempt = 1; attempt <= RetryPolicy.MAX_ATTEMPTS; attempt++) {
+			WorkItem item = queue.poll().get();
+			assertEquals("EVENT 1", describe(item));
+
+			// A local file that could not be read is a transient failure
+			queue.markAsProcessed(item, new FileNotFoundException("/db/issues/1.json (Too many open files)"));
+
+			if (attempt < RetryPolicy.MAX_ATTEMPTS) {
+				// Waiting for the retry (after the backoff), not dead-lettered
+				assertEquals(0, queue.availableWork());
+				assertTrue(queue.getDeadLetters().isEmpty());
+
+				// Queued again, for example, by the event scan; the failures are still counted
+				queue.addIssue(issue(1), repo, OWNER, Priority.EVENT);
+			}
+		}
+
+		List<DeadLetterJson> deadLetters = queue.getDeadLetters();
+		assertEquals(1, deadLetters.size());
+		assertEquals(RetryPolicy.MAX_ATTEMPTS, deadLetters.get(0).getAttempts());
+		assertFalse(deadLetters.get(0).isPermanent());
+		assertEquals(0, queue.availableWork());
+
+		// Requeued, and then succeeds
+		assertEquals(1, queue.requeueDeadLetters());
+		queue.markAsProcessed(queue.poll().get(), null);
+		assertTrue(queue.getDeadLetters().isEmpty());
+
+		// A permanent failure is dead-lettered on the first attempt
+		queue.addIssue(issue(2), repo, OWNER, Priority.EVENT);
+		queue.markAsProcessed(queue.poll().get(), new GHFileNotFoundException("Not found"));
+
+		deadLetters = queue.getDeadLetters();
+		assertEquals(1, deadLetters.size());
+		assertEquals(1, deadLetters.get(0).getAttempts());
+		assertTrue(deadLetters.get(0).isPermanent());
+	}
+
+	private static WorkQueue createQueue(long agingIntervalInMsecs) {
+		return new WorkQueue(null, null, new RateLimitGovernor(5000, 0), agingIntervalInMsecs);
+	}
+
+	/**
+	 * Returns the priority class of the item, and its issue number, user login,
+	 * owner name, or repository name (and the issues to resume, if any).
+	 */
+	private static String describe(WorkItem item) {
+		Object resource = item.getResource();
+		if (resource instanceof IssueContainer) {
+			return item.getPriority() + " " + ((IssueContainer) resource).getIssue().getNumber();
+		} else if (resource instanceof RepositoryContainer) {
+			RepositoryContainer rc = (RepositoryContainer) resource;
+			return item.getPriority() + " " + rc.getRepo().getName()
+					+ rc.getIssuesToResume().map(issues -> " " + issues).orElse("");
+		} else if (resource instanceof OwnerContainer) {
+			return item.getPriority() + " " + ((OwnerContainer) resource).getOwner().getName();
+		}
+		return item.getPriority() + " " + ((GHUser) resource).getLogin();
+	}
+
+	static GHRepository repository(String name) throws IOException {
+		return repository(OWNER, name);
+	}
+
+	static GHRepository repository(Owner owner, String name) throws IOException {
+		return GH_MAPPER.readValue("{\"name\": \"" + name + "\", \"full_name\": \"" + owner.getName() + "/" + name
+				+ "\"}", GHRepository.class);
+	}
+
+	static GHIssue issue(int number) throws IOException {
+		return GH_MAPPER.readValue("{\"number\": " + number + "}", GHIssue.class);
+	}
+
+	static GHUser user(String login) throws IOException {
+		return GH_MAPPER.readValue("{\"login\": \"" + login + "\"}", GHUser.class);
+	}
+
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2021 Jonathan West
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.githubapimirror.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.githubapimirror.db.GroupCommit;
+import com.githubapimirror.db.PersistJsonDb;
+import com.githubapimirror.db.WriteAheadLog;
+import com.githubapimirror.shared.GHApiUtil;
+import com.githubapimirror.shared.Owner;
+import com.githubapimirror.shared.json.IssueJson;
+
+/**
+ * Tests for the write-ahead log used by PersistJsonDb.
+ */
+public class WriteAheadLogTest {
+
+	@Rule
+	public TemporaryFolder tempFolder = new TemporaryFolder();
+
+	@Test
+	public void testReplayOfUncheckpointedWrites() throws IOException {
+
+		File dirDb = tempFolder.newFolder();
+
+		Owner owner = Owner.org("my-org");
+
+		PersistJsonDb db = new PersistJsonDb(dirDb);
+
+		IssueJson issue = new IssueJson();
+		issue.setNumber(1);
+		issue.setParentRepo("my-repo");
+		issue.setTitle("my-title");
+		db.persistIssue(owner, issue);
+		db.persistString("my-key", "my-value");
+
+		// Writes are readable before they are checkpointed
+		assertEquals("my-title", db.getIssue(owner, "my-repo", 1).get().getTitle());
+
+		// Simulate a restart before the checkpoint thread has run
+		PersistJsonDb.replayWriteAheadLog(dirDb);
+
+		assertTrue(new File(dirDb, "my-org/my-repo/issues/0/1.json").exists());
+
+		db.close();
+
+		db = new PersistJsonDb(dirDb);
+		assertEquals("my-title", db.getIssue(owner, "my-repo", 1).get().getTitle());
+		assertEquals("my-value", db.getString("my-key").get());
+		assertTrue(db.isDatabaseInitialized());
+		db.close();
+	}
+
+	@Test
+	public void testCloseCheckpointsWrites() throws IOException {
+
+		File dirDb = tempFolder.newFolder();
+
+		PersistJsonDb db = new PersistJsonDb(dirDb);
+		db.persistString("my-key", "my-value");
+		db.close();
+
+		// Nothing remains to be replayed
+		for (File logFile : WriteAheadLog.listLogFiles(new File(dirDb, "wal"))) {
+			assertTrue(WriteAheadLog.readEntries(logFile).isEmpty());
+		}
+
+		// A write that fails is not read
+		try {
+			db.persistString("my-key", "other-value");
+			fail("Writes should fail once the database is closed");
+		} catch (IllegalStateException e) {
+			/* expected */
+		}
+		assertEquals("my-value", db.getString("my-key").get());
+
+		db = new PersistJsonDb(dirDb);
+		assertEquals("my-value", db.getString("my-key").get());
+		db.close();
+	}
+
+	@Test
+	public void testFailedRollKeepsLogOpen() throws IOException {
+
+		File dirWal = tempFolder.newFolder();
+
+		WriteAheadLog wal = new WriteAheadLog(dirWal);
+		wal.awaitDurable(wal.append("a.json", "first".getBytes(StandardCharsets.UTF_8)));
+
+		// The next log file cannot be created, as a directory has its name
+		File nextLogFile = new File(dirWal, "wal-00000002.log");
+		assertTrue(nextLogFile.mkdir());
+
+		try {
+			wal.roll();
+			fail("Roll should fail when the next log file cannot be created");
+		} catch (RuntimeException e) {
+			/* expected */
+		}
+
+		// The current log file is still used
+		wal.awaitDurable(wal.append("b.json", "second".getBytes(StandardCharsets.UTF_8)));
+
+		assertTrue(nextLogFile.delete());
+		assertEquals(1, wal.roll().size());
+		wal.awaitDurable(wal.append("c.json", "third".getBytes(StandardCharsets.UTF_8)));
+
+		// A thread interrupt closes the channel, so the roll fails; the log is reopened
+		Thread.currentThread().interrupt();
+		try {
+			wal.roll();
+			fail("Roll should fail when interrupted");
+		} catch (RuntimeException e) {
+			/* expected */
+		} finally {
+			Thread.interrupted();
+		}
+
+		wal.awaitDurable(wal.append("d.json", "fourth".getBytes(StandardCharsets.UTF_8)));
+		wal.close();
+
+		List<File> logFiles = WriteAheadLog.listLogFiles(dirWal);
+		assertEquals(2, logFiles.size());
+		assertEquals(Arrays.asList("a.json", "b.json"), paths(WriteAheadLog.readEntries(logFiles.get(0))));
+		assertEquals(Arrays.asList("c.json", "d.json"), paths(WriteAheadLog.readEntries(logFiles.get(1))));
+	}
+
+	private static List<String> paths(List<WriteAheadLog.Entry> entries) {
+		return entries.stream().map(e -> e.getPath()).collect(Collectors.toList());
+	}
+
+	@Test
+	public void testIncompleteEntryIsIgnored() throws IOException {
+
+		File dirWal = tempFolder.newFolder();
+
+		WriteAheadLog wal = new WriteAheadLog(dirWal);
+		wal.awaitDurable(wal.append("a.json", "first".getBytes(StandardCharsets.UTF_8)));
+		wal.awaitDurable(wal.append("b.json", "second".getBytes(StandardCharsets.UTF_8)));
+		wal.close();
+
+		File logFile = WriteAheadLog.listLogFiles(dirWal).get(0);
+		try (RandomAccessFile raf = new RandomAccessFile(logFile, "rw")) {
+			raf.setLength(raf.length() - 3);
+		}
+
+		List<WriteAheadLog.Entry> entries = WriteAheadLog.readEntries(logFile);
+		assertEquals(1, entries.size());
+		assertEquals("a.json", entries.get(0).getPath());
+		assertEquals("first", new String(entries.get(0).getContents(), StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void testConcurrentWritersShareSyncs() throws InterruptedException {
+
+		AtomicInteger syncs = new AtomicInteger();
+
+		// A slow sync, so that writers arrive while it is in progress
+		GroupCommit gc = new GroupCommit(() -> {
+			syncs.incrementAndGet();
+			GHApiUtil.sleep(5);
+		});
+
+		int numThreads = 8;
+		int writesPerThread = 20;
+
+		List<Thread> threads = new ArrayList<>();
+		for (int x = 0; x < numThreads; x++) {
+			threads.add(new Thread(() -> {
+				for (int y = 0; y < writesPerThread; y++) {
+					gc.awaitDurable(gc.nextSequence());
+				}
+			}));
+		}
+
+		threads.forEach(e -> e.start());
+		for (Thread t : threads) {
+			t.join();
+		}
+
+		assertEquals(numThreads * writesPerThread, gc.getIssuedCount());
+		assertEquals(syncs.get(), gc.getSyncCount());
+		assertTrue("syncs: " + syncs.get(), syncs.get() < (numThreads * writesPerThread) / 2);
+	}
+}
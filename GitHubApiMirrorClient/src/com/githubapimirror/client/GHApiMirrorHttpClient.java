@@ -16,19 +16,25 @@
 
 package com.githubapimirror.client;
 
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 
 import com.githubapimirror.shared.Owner;
 import com.githubapimirror.shared.Owner.Type;
+import com.githubapimirror.shared.ResourceChangeEventFilter;
 import com.githubapimirror.shared.json.BulkIssuesJson;
 import com.githubapimirror.shared.json.IssueJson;
 import com.githubapimirror.shared.json.OrganizationJson;
 import com.githubapimirror.shared.json.RepositoryJson;
 import com.githubapimirror.shared.json.ResourceChangeEventJson;
+import com.githubapimirror.shared.json.ResourceChangeEventJson.Enrichment;
+import com.githubapimirror.shared.json.ResourceChangeEventPageJson;
 import com.githubapimirror.shared.json.UserJson;
 import com.githubapimirror.shared.json.UserRepositoriesJson;
 
@@ -108,6 +114,24 @@ public Optional<UserJson> getUser(String loginName) {
 
 	}
 
+	/**
+	 * Returns the numbers of the issues of the repository that are in the mirror,
+	 * in ascending order.
+	 */
+	public Optional<List<Integer>> getIssueNumbers(Owner owner, String repoName) {
+
+		String ownerType = owner.getType() == Type.ORG ? OWNER_TYPE_ORG : OWNER_TYPE_USER;
+		String ownerName = owner.getName();
+
+		try {
+			ApiResponse<Integer[]> response = client
+					.get("/issue-numbers/" + ownerType + "/" + ownerName + "/" + repoName, Integer[].class);
+			return Optional.of(Arrays.asList(response.getResponse()));
+		} catch (GHApiMirrorClientException e) {
+			return Optional.empty();
+		}
+	}
+
 	public Optional<BulkIssuesJson> getBulkIssues(Owner owner, String repoName, int start, int end) {
 
 		String ownerType = owner.getType() == Type.ORG ? OWNER_TYPE_ORG : OWNER_TYPE_USER;
@@ -164,6 +188,156 @@ public List<ResourceChangeEventJson> getResourceChangeEvents(long timestampEqual
 
 	}
 
+	/**
+	 * Returns up to 'limit' events with a sequence number greater than the given
+	 * sequence number, in sequence number order; the server may return fewer
+	 * events than the limit. To read the next page, pass the sequence number of
+	 * the last event returned.
+	 */
+	public List<ResourceChangeEventJson> getResourceChangeEventsAfter(long sequence, int limit) {
+		return getResourceChangeEventsAfter(sequence, limit, Enrichment.NONE);
+	}
+
+	/**
+	 * As above, with each event enriched with the changed fields of the issue
+	 * (DIFF), or also with the current version of the issue (ISSUE).
+	 */
+	public List<ResourceChangeEventJson> getResourceChangeEventsAfter(long sequence, int limit,
+			Enrichment enrichment) {
+		return getResourceChangeEventsAfter(sequence, limit, ResourceChangeEventFilter.ALL, enrichment);
+	}
+
+	/**
+	 * As above, returning only the events that match the filter; the server reads
+	 * only the events of the filter's owners and repositories. To read the next
+	 * page without rereading the events that did not match, use
+	 * getResourceChangeEventPageAfter(...).
+	 */
+	public List<ResourceChangeEventJson> getResourceChangeEventsAfter(long sequence, int limit,
+			ResourceChangeEventFilter filter, Enrichment enrichment) {
+
+		if (!filter.matchesAll()) {
+			return getResourceChangeEventPageAfter(sequence, limit, filter, enrichment)
+					.map(ResourceChangeEventPageJson::getEvents).orElse(Collections.emptyList());
+		}
+
+		try {
+			ApiResponse<ResourceChangeEventJson[]> response = client.get(
+					"/resourceChangeEvent?after=" + sequence + "&limit=" + limit + filterQueryParams(filter)
+							+ enrichQueryParam(enrichment),
+					ResourceChangeEventJson[].class);
+
+			List<ResourceChangeEventJson> result = new ArrayList<>();
+
+			result.addAll(Arrays.asList(response.getResponse()));
+
+			return result;
+
+		} catch (GHApiMirrorClientException e) {
+			return Collections.emptyList();
+		}
+
+	}
+
+	/**
+	 * Returns up to 'limit' of the events after the given sequence number that match
+	 * the filter; the page's last sequence number is the cursor for the next
+	 * request. Returns Optional.empty() if the request failed.
+	 */
+	public Optional<ResourceChangeEventPageJson> getResourceChangeEventPageAfter(long sequence, int limit,
+			ResourceChangeEventFilter filter, Enrichment enrichment) {
+
+		if (filter.matchesAll()) {
+			// The server returns a page only for a filtered request; otherwise, the
+			// cursor is the sequence number of the last event
+			List<ResourceChangeEventJson> events;
+			try {
+				events = Arrays.asList(client.get("/resourceChangeEvent?after=" + sequence + "&limit=" + limit
+						+ enrichQueryParam(enrichment), ResourceChangeEventJson[].class).getResponse());
+			} catch (GHApiMirrorClientException e) {
+				return Optional.empty();
+			}
+
+			ResourceChangeEventPageJson page = new ResourceChangeEventPageJson();
+			page.setEvents(new ArrayList<>(events));
+			page.setLastSequence(events.isEmpty() ? sequence : events.get(events.size() - 1).getSequence());
+			return Optional.of(page);
+		}
+
+		try {
+			ApiResponse<ResourceChangeEventPageJson> response = client.get(
+					"/resourceChangeEvent?after=" + sequence + "&limit=" + limit + filterQueryParams(filter)
+							+ enrichQueryParam(enrichment),
+					ResourceChangeEventPageJson.class);
+			return Optional.of(response.getResponse());
+		} catch (GHApiMirrorClientException e) {
+			return Optional.empty();
+		}
+	}
+
+	/**
+	 * Long-poll for the events after the given sequence number, that match any of
+	 * the owners (names) and repositories ('owner/repo'), or all events if both
+	 * are empty. The server responds as soon as there are matching events, or with
+	 * an empty page after the timeout; the page's last sequence number is the
+	 * cursor for the next poll. Returns Optional.empty() if the request failed.
+	 */
+	public Optional<ResourceChangeEventPageJson> pollResourceChangeEvents(long sequence, int limit,
+			List<String> owners, List<String> repos, int timeoutInSeconds) {
+		return pollResourceChangeEvents(sequence, limit, owners, repos, timeoutInSeconds, Enrichment.NONE);
+	}
+
+	/** As above, with the events enriched as requested. */
+	public Optional<ResourceChangeEventPageJson> pollResourceChangeEvents(long sequence, int limit,
+			List<String> owners, List<String> repos, int timeoutInSeconds, Enrichment enrichment) {
+		return pollResourceChangeEvents(sequence, limit, new ResourceChangeEventFilter(owners, repos),
+				timeoutInSeconds, enrichment);
+	}
+
+	/** As above, with the events selected by the filter. */
+	public Optional<ResourceChangeEventPageJson> pollResourceChangeEvents(long sequence, int limit,
+			ResourceChangeEventFilter filter, int timeoutInSeconds, Enrichment enrichment) {
+
+		String url = "/resourceChangeEvent/poll?after=" + sequence + "&limit=" + limit + "&timeout="
+				+ timeoutInSeconds + filterQueryParams(filter) + enrichQueryParam(enrichment);
+
+		// Allow for the server to be slow to respond after the timeout
+		int readTimeoutInMsecs = (int) TimeUnit.MILLISECONDS.convert(timeoutInSeconds + 30, TimeUnit.SECONDS);
+
+		try {
+			ApiResponse<ResourceChangeEventPageJson> response = client.get(url,
+					ResourceChangeEventPageJson.class, readTimeoutInMsecs);
+			return Optional.of(response.getResponse());
+		} catch (GHApiMirrorClientException e) {
+			return Optional.empty();
+		}
+	}
+
+	private static String filterQueryParams(ResourceChangeEventFilter filter) {
+		StringBuilder result = new StringBuilder();
+		filter.getOwners().forEach(e -> result.append("&owner=" + encode(e)));
+		filter.getRepos().forEach(e -> result.append("&repo=" + encode(e)));
+		if (filter.getMinIssueNumber() > 0) {
+			result.append("&minIssue=" + filter.getMinIssueNumber());
+		}
+		if (filter.getMaxIssueNumber() != Integer.MAX_VALUE) {
+			result.append("&maxIssue=" + filter.getMaxIssueNumber());
+		}
+		return result.toString();
+	}
+
+	private static String enrichQueryParam(Enrichment enrichment) {
+		return enrichment != Enrichment.NONE ? "&enrich=" + enrichment.getQueryValue() : "";
+	}
+
+	private static String encode(String queryParam) {
+		try {
+			return URLEncoder.encode(queryParam, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw GHApiMirrorClientException.createFromThrowable(e);
+		}
+	}
+
 	public void adminTriggerFullScan() {
 		try {
 			@SuppressWarnings("unused")
@@ -51,8 +51,13 @@ public JavaNetHttpClient(String apiUrl, String presharedKey) {
 	}
 
 	public <T> ApiResponse<T> get(String apiUrl, Class<T> clazz) {
+		return get(apiUrl, clazz, 0);
+	}
+
+	/** A read timeout of 0 waits indefinitely for the response. */
+	public <T> ApiResponse<T> get(String apiUrl, Class<T> clazz, int readTimeoutInMsecs) {
 
-		ApiResponse<String> body = getRequest(apiUrl);
+		ApiResponse<String> body = getRequest(apiUrl, readTimeoutInMsecs);
 
 //		log.out(body.getResponse());
 
@@ -90,7 +95,7 @@ public <T> ApiResponse<T> post(String apiUrl, Class<T> clazz) {
 
 	}
 
-	private ApiResponse<String> getRequest(String requestUrlParam) {
+	private ApiResponse<String> getRequest(String requestUrlParam, int readTimeoutInMsecs) {
 
 		requestUrlParam = ensureDoesNotBeginsWithSlash(requestUrlParam);
 
@@ -98,6 +103,7 @@ private ApiResponse<String> getRequest(String requestUrlParam) {
 		HttpURLConnection httpRequest;
 		try {
 			httpRequest = createConnection(this.apiUrl + "/" + requestUrlParam, "GET", presharedKey);
+			httpRequest.setReadTimeout(readTimeoutInMsecs);
 			final int code = httpRequest.getResponseCode();
 
 			InputStream is = httpRequest.getInputStream();
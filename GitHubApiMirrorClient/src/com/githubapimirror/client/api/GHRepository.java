@@ -131,6 +131,14 @@ public List<GHIssue> bulkListIssues() {
 			return Collections.emptyList();
 		}
 
+		// Only request the issues that exist in the mirror (pull requests are not
+		// mirrored, so the range may contain many holes). Older servers do not support
+		// this, in which case the full range is requested.
+		List<Integer> issueNumbers = client.getIssueNumbers(owner, name).orElse(null);
+		if (issueNumbers != null) {
+			return bulkListIssues(issueNumbers);
+		}
+
 		// Convert the range of issues to acquire into blocks of 30
 		List<WorkUnit> workUnits = new ArrayList<>();
 		{
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2021 Jonathan West
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.githubapimirror.client.api;
+
+import java.util.Optional;
+import java.util.function.Consumer;
+
+import com.githubapimirror.client.GHApiMirrorHttpClient;
+import com.githubapimirror.shared.ResourceChangeEventFilter;
+import com.githubapimirror.shared.json.ResourceChangeEventJson;
+import com.githubapimirror.shared.json.ResourceChangeEventJson.Enrichment;
+import com.githubapimirror.shared.json.ResourceChangeEventPageJson;
+
+/**
+ * A subscription to the resource change events of a mirror server, optionally
+ * filtered by owner, repository and issue number. A background thread long-polls the server,
+ * passing each event to the listener in sequence number order; if a request
+ * fails, the thread waits (with an increasing delay) and then resumes from the
+ * last event it received, so no events are missed or repeated.
+ *
+ * Create with GitHub.subscribeToResourceChangeEvents(...), and call close()
+ * when no longer needed.
+ */
+public class GHResourceChangeEventSubscription {
+
+	private static final int POLL_LIMIT = 1000;
+
+	private static final int POLL_TIMEOUT_IN_SECONDS = 60;
+
+	private static final long MIN_RETRY_DELAY_IN_MSECS = 1000;
+
+	private static final long MAX_RETRY_DELAY_IN_MSECS = 60 * 1000;
+
+	private final GHApiMirrorHttpClient client;
+
+	private final ResourceChangeEventFilter filter;
+
+	private final Enrichment enrichment;
+
+	private final Consumer<ResourceChangeEventJson> listener;
+
+	/** The sequence number of the last event passed to the listener */
+	private volatile long lastSequence;
+
+	private volatile boolean closed = false;
+
+	private final SubscriptionThread thread;
+
+	GHResourceChangeEventSubscription(GHConnectInfo connectionInfo, long afterSequence,
+			ResourceChangeEventFilter filter, Enrichment enrichment, Consumer<ResourceChangeEventJson> listener) {
+		this.client = connectionInfo.getClient();
+		this.lastSequence = afterSequence;
+		this.filter = filter;
+		this.enrichment = enrichment;
+		this.listener = listener;
+
+		thread = new SubscriptionThread();
+		thread.start();
+	}
+
+	/**
+	 * The cursor of the subscription; pass this to a new subscription to resume
+	 * after the last event received by this one.
+	 */
+	public long getLastSequence() {
+		return lastSequence;
+	}
+
+	public void close() {
+		closed = true;
+		thread.interrupt();
+	}
+
+	/** Polls the server for events, until the subscription is closed. */
+	private class SubscriptionThread extends Thread {
+
+		public SubscriptionThread() {
+			setName(SubscriptionThread.class.getName());
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			long retryDelay = MIN_RETRY_DELAY_IN_MSECS;
+
+			while (!closed) {
+
+				Optional<ResourceChangeEventPageJson> page;
+				try {
+					page = client.pollResourceChangeEvents(lastSequence, POLL_LIMIT, filter,
+							POLL_TIMEOUT_IN_SECONDS, enrichment);
+				} catch (Exception e) {
+					page = Optional.empty();
+				}
+
+				if (closed) {
+					return;
+				}
+
+				if (!page.isPresent()) {
+					// Reconnect after a delay
+					try {
+						Thread.sleep(retryDelay);
+					} catch (InterruptedException e) {
+						return; // Closed
+					}
+					retryDelay = Math.min(retryDelay * 2, MAX_RETRY_DELAY_IN_MSECS);
+					continue;
+				}
+
+				retryDelay = MIN_RETRY_DELAY_IN_MSECS;
+
+				for (ResourceChangeEventJson event : page.get().getEvents()) {
+					if (closed) {
+						return;
+					}
+					try {
+						listener.accept(event);
+					} catch (Exception e) {
+						System.err.println("Exception occurred in resource change event listener: " + e);
+					}
+					lastSequence = event.getSequence();
+				}
+
+				// Skip past the events that did not match the filter
+				lastSequence = Math.max(lastSequence, page.get().getLastSequence());
+			}
+		}
+	}
+}
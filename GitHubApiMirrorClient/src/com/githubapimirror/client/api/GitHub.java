@@ -17,9 +17,14 @@
 package com.githubapimirror.client.api;
 
 import java.util.List;
+import java.util.Optional;
+import java.util.function.Consumer;
 
+import com.githubapimirror.shared.ResourceChangeEventFilter;
 import com.githubapimirror.shared.json.OrganizationJson;
 import com.githubapimirror.shared.json.ResourceChangeEventJson;
+import com.githubapimirror.shared.json.ResourceChangeEventJson.Enrichment;
+import com.githubapimirror.shared.json.ResourceChangeEventPageJson;
 import com.githubapimirror.shared.json.UserRepositoriesJson;
 
 /**
@@ -68,6 +73,70 @@ public List<ResourceChangeEventJson> getResourceChangeEvents(long timeGreaterOrE
 		return connectionInfo.getClient().getResourceChangeEvents(timeGreaterOrEqualInMsecs);
 	}
 
+	/**
+	 * Returns up to 'limit' events with a sequence number greater than the given
+	 * sequence number (use 0 to start from the oldest event); pass the sequence
+	 * number of the last event returned to read the next page.
+	 */
+	public List<ResourceChangeEventJson> getResourceChangeEventsAfter(long sequence, int limit) {
+		return connectionInfo.getClient().getResourceChangeEventsAfter(sequence, limit);
+	}
+
+	/**
+	 * As above, with each event enriched with the changed fields of the issue
+	 * (Enrichment.DIFF), or also with the current version of the issue
+	 * (Enrichment.ISSUE), so that no further request is needed to apply the
+	 * change.
+	 */
+	public List<ResourceChangeEventJson> getResourceChangeEventsAfter(long sequence, int limit,
+			Enrichment enrichment) {
+		return connectionInfo.getClient().getResourceChangeEventsAfter(sequence, limit, enrichment);
+	}
+
+	/**
+	 * As above, returning only the events that match the filter (by owner,
+	 * repository and issue number); the server reads only the events of the
+	 * filter's owners and repositories.
+	 */
+	public List<ResourceChangeEventJson> getResourceChangeEventsAfter(long sequence, int limit,
+			ResourceChangeEventFilter filter, Enrichment enrichment) {
+		return connectionInfo.getClient().getResourceChangeEventsAfter(sequence, limit, filter, enrichment);
+	}
+
+	/**
+	 * As above, returning the page of events with the cursor for the next request,
+	 * which skips past the events that did not match the filter.
+	 */
+	public Optional<ResourceChangeEventPageJson> getResourceChangeEventPageAfter(long sequence, int limit,
+			ResourceChangeEventFilter filter, Enrichment enrichment) {
+		return connectionInfo.getClient().getResourceChangeEventPageAfter(sequence, limit, filter, enrichment);
+	}
+
+	/**
+	 * Subscribe to the resource change events after the given sequence number (0
+	 * for all events), of the given owners (names) and repositories
+	 * ('owner/repo'), or of all owners and repositories if both are empty. Events
+	 * are passed to the listener, on a background thread, as they are persisted by
+	 * the server.
+	 */
+	public GHResourceChangeEventSubscription subscribeToResourceChangeEvents(long afterSequence, List<String> owners,
+			List<String> repos, Consumer<ResourceChangeEventJson> listener) {
+		return subscribeToResourceChangeEvents(afterSequence, owners, repos, Enrichment.NONE, listener);
+	}
+
+	/** As above, with the events enriched as requested. */
+	public GHResourceChangeEventSubscription subscribeToResourceChangeEvents(long afterSequence, List<String> owners,
+			List<String> repos, Enrichment enrichment, Consumer<ResourceChangeEventJson> listener) {
+		return subscribeToResourceChangeEvents(afterSequence, new ResourceChangeEventFilter(owners, repos),
+				enrichment, listener);
+	}
+
+	/** As above, with the events selected by the filter. */
+	public GHResourceChangeEventSubscription subscribeToResourceChangeEvents(long afterSequence,
+			ResourceChangeEventFilter filter, Enrichment enrichment, Consumer<ResourceChangeEventJson> listener) {
+		return new GHResourceChangeEventSubscription(connectionInfo, afterSequence, filter, enrichment, listener);
+	}
+
 	public void adminTriggerFullScan() {
 		connectionInfo.getClient().adminTriggerFullScan();
 	}
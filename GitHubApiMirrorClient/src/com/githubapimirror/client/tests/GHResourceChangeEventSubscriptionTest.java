@@ -0,0 +1,208 @@
+/*
+ * Copyright 2021 Jonathan West
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+*/
+
+
+package com.githubapimirror.client.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.githubapimirror.client.api.GHConnectInfo;
+import com.githubapimirror.client.api.GHResourceChangeEventSubscription;
+import com.githubapimirror.client.api.GitHub;
+import com.githubapimirror.shared.json.ResourceChangeEventJson;
+import com.githubapimirror.shared.json.ResourceChangeEventPageJson;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Tests for GHResourceChangeEventSubscription, against a local HTTP server that
+ * stands in for the long-poll endpoint of the mirror server.
+ */
+public class GHResourceChangeEventSubscriptionTest {
+
+	private HttpServer server;
+
+	/** The 'after' parameter of each poll request, in order */
+	private final List<Long> requestCursors = Collections.synchronizedList(new ArrayList<>());
+
+	private final List<String> requestQueries = Collections.synchronizedList(new ArrayList<>());
+
+	private final Object lock = new Object();
+
+	/** The responses to the next poll requests; null fails the request */
+	private final List<ResourceChangeEventPageJson> responses_synch_lock = new ArrayList<>();
+
+	@Before
+	public void before() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/resourceChangeEvent/poll", this::handlePoll);
+		server.start();
+	}
+
+	@After
+	public void after() {
+		server.stop(0);
+	}
+
+	@Test
+	public void testEventsAreDeliveredInOrderAcrossFailures() throws Exception {
+
+		// Events 6 and 7 match; 8 and 9 did not, so the cursor is 9
+		addResponse(page(9, 6, 7));
+		addResponse(null);
+		addResponse(page(10, 10));
+
+		List<Long> received = Collections.synchronizedList(new ArrayList<>());
+
+		GHResourceChangeEventSubscription subscription = createGitHub().subscribeToResourceChangeEvents(5,
+				Arrays.asList("org-a"), Collections.emptyList(), e -> received.add(e.getSequence()));
+		try {
+			waitFor(() -> received.size() >= 3);
+			assertEquals(Arrays.asList(6l, 7l, 10l), received);
+
+			// After the failed request, the subscription reconnects from the last cursor
+			waitFor(() -> requestCursors.size() >= 4);
+			assertEquals(Arrays.asList(5l, 9l, 9l, 10l), requestCursors.subList(0, 4));
+			assertEquals(10, subscription.getLastSequence());
+
+			assertTrue(requestQueries.get(0).contains("owner=org-a"));
+
+		} finally {
+			subscription.close();
+		}
+	}
+
+	@Test
+	public void testNewSubscriptionResumesFromLastSequence() throws Exception {
+
+		addResponse(page(3, 1, 2, 3));
+
+		List<Long> received = Collections.synchronizedList(new ArrayList<>());
+
+		GitHub gh = createGitHub();
+		GHResourceChangeEventSubscription subscription = gh.subscribeToResourceChangeEvents(0,
+				Collections.emptyList(), Collections.emptyList(), e -> received.add(e.getSequence()));
+		waitFor(() -> received.size() >= 3);
+		subscription.close();
+
+		long cursor = subscription.getLastSequence();
+		assertEquals(3, cursor);
+
+		addResponse(page(4, 4));
+		requestCursors.clear();
+
+		subscription = gh.subscribeToResourceChangeEvents(cursor, Collections.emptyList(), Collections.emptyList(),
+				e -> received.add(e.getSequence()));
+		try {
+			waitFor(() -> received.size() >= 4);
+			assertEquals(Arrays.asList(1l, 2l, 3l, 4l), received);
+			assertEquals(3l, (long) requestCursors.get(0));
+		} finally {
+			subscription.close();
+		}
+	}
+
+	private GitHub createGitHub() {
+		return new GitHub(new GHConnectInfo("http://127.0.0.1:" + server.getAddress().getPort(), null));
+	}
+
+	private void addResponse(ResourceChangeEventPageJson page) {
+		synchronized (lock) {
+			responses_synch_lock.add(page);
+		}
+	}
+
+	private void handlePoll(HttpExchange exchange) throws IOException {
+		String query = exchange.getRequestURI().getQuery();
+		requestQueries.add(query);
+
+		long after = Arrays.stream(query.split("&")).filter(e -> e.startsWith("after="))
+				.map(e -> Long.parseLong(e.substring("after=".length()))).findFirst().get();
+		requestCursors.add(after);
+
+		ResourceChangeEventPageJson page;
+		boolean fail = false;
+		synchronized (lock) {
+			if (responses_synch_lock.isEmpty()) {
+				// No new events: respond as if the poll had timed out
+				page = page(after);
+			} else {
+				page = responses_synch_lock.remove(0);
+				fail = page == null;
+			}
+		}
+
+		if (fail) {
+			exchange.sendResponseHeaders(500, -1);
+			exchange.close();
+			return;
+		}
+
+		if (page.getEvents().isEmpty()) {
+			try {
+				Thread.sleep(100);
+			} catch (InterruptedException e) {
+				/* ignore */
+			}
+		}
+
+		byte[] body = new ObjectMapper().writeValueAsString(page).getBytes(StandardCharsets.UTF_8);
+		exchange.sendResponseHeaders(200, body.length);
+		try (OutputStream os = exchange.getResponseBody()) {
+			os.write(body);
+		}
+		exchange.close();
+	}
+
+	private static ResourceChangeEventPageJson page(long lastSequence, long... sequences) {
+		ResourceChangeEventPageJson page = new ResourceChangeEventPageJson();
+		for (long sequence : sequences) {
+			ResourceChangeEventJson event = new ResourceChangeEventJson();
+			event.setSequence(sequence);
+			event.setOwner("org-a");
+			event.setRepo("my-repo");
+			event.setIssueNumber(1);
+			page.getEvents().add(event);
+		}
+		page.setLastSequence(lastSequence);
+		return page;
+	}
+
+	private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+		long expireTime = System.nanoTime() + TimeUnit.NANOSECONDS.convert(30, TimeUnit.SECONDS);
+		while (!condition.getAsBoolean()) {
+			assertTrue("Timed out waiting for condition", System.nanoTime() < expireTime);
+			Thread.sleep(50);
+		}
+	}
+}
@@ -61,6 +61,7 @@ public void contextInitialized(ServletContextEvent servletContextEvent) {
 	}
 
 	public void contextDestroyed(ServletContextEvent servletContextEvent) {
+		ApiMirrorInstance.getInstance().shutdown();
 	}
 
 	/** Start a thread which outputs all the VM's thread stacks traces. */
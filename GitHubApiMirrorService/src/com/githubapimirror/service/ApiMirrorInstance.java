@@ -30,10 +30,17 @@
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
 import com.githubapimirror.ServerInstance;
+import com.githubapimirror.ServerInstance.DbType;
 import com.githubapimirror.ServerInstance.ServerInstanceBuilder;
+import com.githubapimirror.WebhookDispatcher;
 import com.githubapimirror.db.Database;
+import com.githubapimirror.db.InMemoryCacheDb;
+import com.githubapimirror.db.ResourceCodec;
 import com.githubapimirror.service.yaml.ConfigFileYaml;
 import com.githubapimirror.service.yaml.IndividualRepoListYaml;
+import com.githubapimirror.service.yaml.WebhookYaml;
+import com.githubapimirror.shared.ResourceChangeEventFilter;
+import com.githubapimirror.shared.json.ResourceChangeEventJson.Enrichment;
 
 /**
  * Only a single instance of a number of objects are maintained in the
@@ -162,11 +169,59 @@ public void initializeServerInstance(String configPath, String dbPath) {
 				builder = builder.fileLoggingPath(new File(configYaml.getFileLoggerPath()));
 			}
 
+			if (configYaml.getDbType() != null) {
+				String dbType = configYaml.getDbType().trim().toLowerCase();
+				if (dbType.equals("segment")) {
+					builder = builder.dbType(DbType.SEGMENT_STORE);
+				} else if (dbType.equals("json")) {
+					builder = builder.dbType(DbType.PERSIST_JSON);
+				} else {
+					throw new RuntimeException("Unrecognized dbType value: " + configYaml.getDbType());
+				}
+			}
+
+			if (configYaml.getWriteBehindCache() != null) {
+				builder = builder.writeBehindCache(configYaml.getWriteBehindCache());
+			}
+
+			if (configYaml.getCacheSizeInMegabytes() != null) {
+				builder = builder.cacheSizeInBytes(configYaml.getCacheSizeInMegabytes() * 1024 * 1024);
+			}
+
+			if (configYaml.getStorageFormat() != null) {
+				String storageFormat = configYaml.getStorageFormat().trim().toLowerCase();
+				if (storageFormat.equals("json")) {
+					builder = builder.storageFormat(ResourceCodec.Format.JSON);
+				} else if (storageFormat.equals("smile")) {
+					builder = builder.storageFormat(ResourceCodec.Format.SMILE);
+				} else if (storageFormat.equals("deflate")) {
+					builder = builder.storageFormat(ResourceCodec.Format.DEFLATE);
+				} else {
+					throw new RuntimeException("Unrecognized storageFormat value: " + configYaml.getStorageFormat());
+				}
+			}
+
+			if (configYaml.getProcessedEventRetentionInHours() != null) {
+				builder = builder.processedEventRetentionInHours(configYaml.getProcessedEventRetentionInHours());
+			}
+
+			if (configYaml.getWebhooks() != null) {
+				for (WebhookYaml webhook : configYaml.getWebhooks()) {
+					builder = builder.webhookSubscriber(toWebhookSubscriber(webhook));
+				}
+			}
+
 			synchronized (lock) {
 				if (this.serverInstance_synch_lock == null) {
 					this.presharedKey_synch_lock = configYaml.getPresharedKey();
 					this.serverInstance_synch_lock = builder.build();
 					this.db_sync_lock = serverInstance_synch_lock.getDb();
+
+					this.longPoll_synch_lock = new ResourceChangeEventLongPoll(db_sync_lock);
+					if (db_sync_lock instanceof InMemoryCacheDb) {
+						((InMemoryCacheDb) db_sync_lock)
+								.addResourceChangeEventListener(longPoll_synch_lock::onEventsPersisted);
+					}
 				} else {
 					throw new RuntimeException(this.getClass().getName() + " is already initialized");
 				}
@@ -181,6 +236,23 @@ public void initializeServerInstance(String configPath, String dbPath) {
 		}
 	}
 
+	private static WebhookDispatcher.Subscriber toWebhookSubscriber(WebhookYaml webhook) {
+
+		if (webhook.getName() == null || webhook.getUrl() == null) {
+			throw new RuntimeException("Each webhook requires a name and url.");
+		}
+
+		ResourceChangeEventFilter filter = new ResourceChangeEventFilter(
+				webhook.getOwners() != null ? webhook.getOwners() : new ArrayList<>(),
+				webhook.getRepos() != null ? webhook.getRepos() : new ArrayList<>());
+
+		return new WebhookDispatcher.Subscriber(webhook.getName(), webhook.getUrl(), webhook.getAuthorization(),
+				filter, Enrichment.fromQueryValue(webhook.getEnrich()),
+				webhook.getBatchSize() != null ? webhook.getBatchSize() : WebhookDispatcher.Subscriber.DEFAULT_BATCH_SIZE,
+				webhook.getMaxBatchDelayInMsecs() != null ? webhook.getMaxBatchDelayInMsecs()
+						: WebhookDispatcher.Subscriber.DEFAULT_MAX_BATCH_DELAY_IN_MSECS);
+	}
+
 //	private static Optional<String> lookupString(String key) {
 //
 //		try {
@@ -195,6 +267,24 @@ public void initializeServerInstance(String configPath, String dbPath) {
 //		}
 //	}
 
+	/** Called when the application is stopping. */
+	public void shutdown() {
+		ServerInstance serverInstance;
+		ResourceChangeEventLongPoll longPoll;
+		synchronized (lock) {
+			serverInstance = serverInstance_synch_lock;
+			longPoll = longPoll_synch_lock;
+		}
+
+		if (longPoll != null) {
+			longPoll.close();
+		}
+
+		if (serverInstance != null) {
+			serverInstance.shutdown();
+		}
+	}
+
 	public static ApiMirrorInstance getInstance() {
 		return instance;
 	}
@@ -207,6 +297,8 @@ public static ApiMirrorInstance getInstance() {
 
 	private String presharedKey_synch_lock;
 
+	private ResourceChangeEventLongPoll longPoll_synch_lock;
+
 	// -----------------------------------------
 
 	public Database getDb() {
@@ -218,6 +310,15 @@ public Database getDb() {
 		}
 	}
 
+	public ResourceChangeEventLongPoll getLongPoll() {
+		synchronized (lock) {
+			if (longPoll_synch_lock == null) {
+				throw new RuntimeException(this.getClass().getName() + " not initialized.");
+			}
+			return longPoll_synch_lock;
+		}
+	}
+
 	public String getPresharedKey() {
 		synchronized (lock) {
 			if (serverInstance_synch_lock == null) {
@@ -16,31 +16,45 @@
 
 package com.githubapimirror.service;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.List;
 
 import javax.ws.rs.GET;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.core.StreamingOutput;
 
+import com.githubapimirror.ResourceChangeEventEnricher;
 import com.githubapimirror.db.Database;
+import com.githubapimirror.db.InMemoryCacheDb;
 import com.githubapimirror.shared.GHApiUtil;
 import com.githubapimirror.shared.JsonUtil;
 import com.githubapimirror.shared.Owner;
-import com.githubapimirror.shared.json.BulkIssuesJson;
-import com.githubapimirror.shared.json.IssueJson;
+import com.githubapimirror.shared.ResourceChangeEventFilter;
+import com.githubapimirror.shared.json.CacheStatisticsJson;
+import com.githubapimirror.shared.json.DeadLetterJson;
 import com.githubapimirror.shared.json.OrganizationJson;
 import com.githubapimirror.shared.json.RepositoryJson;
 import com.githubapimirror.shared.json.ResourceChangeEventJson;
+import com.githubapimirror.shared.json.ResourceChangeEventJson.Enrichment;
+import com.githubapimirror.shared.json.ResourceChangeEventPageJson;
 import com.githubapimirror.shared.json.UserJson;
 import com.githubapimirror.shared.json.UserRepositoriesJson;
+import com.githubapimirror.shared.json.WorkQueueStatisticsJson;
 
 /**
  * A JAX-RS resource class that listens on resource requests to
@@ -54,6 +68,17 @@ public class ApiMirrorService {
 	public static final String OWNER_TYPE_USER = "user";
 	public static final String OWNER_TYPE_ORG = "org";
 
+	private static final byte[] BULK_ISSUES_PREFIX = "{\"issues\":[".getBytes(StandardCharsets.UTF_8);
+
+	private static final byte[] BULK_ISSUES_SUFFIX = "]}".getBytes(StandardCharsets.UTF_8);
+
+	/** The maximum (and default) number of resource change events returned for a cursor */
+	private static final int MAX_RESOURCE_CHANGE_EVENTS_LIMIT = 1000;
+
+	private static final int DEFAULT_POLL_TIMEOUT_IN_SECONDS = 30;
+
+	private static final int MAX_POLL_TIMEOUT_IN_SECONDS = 120;
+
 	@Context
 	HttpHeaders headers;
 
@@ -116,9 +141,10 @@ public Response getIssue(@PathParam("ownerType") String ownerType, @PathParam("o
 
 		Database db = getDb();
 
-		IssueJson issue = db.getIssue(owner, repoName, issueNum).orElse(null);
+		// The stored JSON is returned as is, rather than parsed and re-serialized
+		byte[] issue = db.getIssueAsJson(owner, repoName, issueNum).orElse(null);
 		if (issue != null) {
-			return Response.ok(JsonUtil.toString(issue)).type(MediaType.APPLICATION_JSON_TYPE).build();
+			return Response.ok(issue).type(MediaType.APPLICATION_JSON_TYPE).build();
 		} else {
 			return Response.status(Status.NOT_FOUND).build();
 		}
@@ -136,37 +162,67 @@ public Response getBulkIssues(@PathParam("ownerType") String ownerType, @PathPar
 
 		Database db = getDb();
 
-		BulkIssuesJson result = new BulkIssuesJson();
+		// Only read the issues that exist: in a repository with many pull requests,
+		// most of the numbers in a range will not.
+		BitSet issueNumbers = db.getIssueNumbers(owner, repoName);
 
-		List<IssueJson> results = result.getIssues();
+		List<Integer> toRead = new ArrayList<>();
 
 		if (startIssue != null && endIssue != null) {
 
-			for (int x = startIssue; x <= endIssue; x++) {
-				db.getIssue(owner, repoName, x).ifPresent(e -> {
-					results.add(e);
-				});
+			for (int x = issueNumbers.nextSetBit(Math.max(0, startIssue)); x >= 0 && x <= endIssue; x = issueNumbers
+					.nextSetBit(x + 1)) {
+				toRead.add(x);
 			}
 
 		} else if (issueList != null) {
 			// Comma-separated issue list
 
 			Arrays.asList(issueList.split(",")).stream().map(e -> e.trim()).filter(e -> e.length() > 0)
-					.map(e -> Integer.parseInt(e)).forEach(issue -> {
-						db.getIssue(owner, repoName, issue).ifPresent(e -> {
-							results.add(e);
-						});
-
+					.map(e -> Integer.parseInt(e)).filter(e -> e >= 0 && issueNumbers.get(e)).forEach(issue -> {
+						toRead.add(issue);
 					});
 
 		} else {
 			return Response.status(Status.BAD_REQUEST).build();
 		}
 
-		return Response.ok(JsonUtil.toString(result)).type(MediaType.APPLICATION_JSON_TYPE).build();
+		Collection<byte[]> issues = db.getIssuesAsJson(owner, repoName, toRead).values();
+
+		// Equivalent to serializing a BulkIssuesJson, but using the stored JSON of each
+		// issue as is.
+		StreamingOutput result = os -> {
+			os.write(BULK_ISSUES_PREFIX);
+			boolean first = true;
+			for (byte[] issue : issues) {
+				if (!first) {
+					os.write(',');
+				}
+				os.write(issue);
+				first = false;
+			}
+			os.write(BULK_ISSUES_SUFFIX);
+		};
+
+		return Response.ok(result).type(MediaType.APPLICATION_JSON_TYPE).build();
 
 	}
 
+	@GET
+	@Path("/issue-numbers/{ownerType}/{ownerName}/{repoName}")
+	public Response getIssueNumbers(@PathParam("ownerType") String ownerType, @PathParam("ownerName") String ownerName,
+			@PathParam("repoName") String repoName) {
+		verifyHeaderAuth();
+
+		Owner owner = getOwner(ownerType, ownerName);
+
+		Database db = getDb();
+
+		int[] result = db.getIssueNumbers(owner, repoName).stream().toArray();
+
+		return Response.ok(JsonUtil.toString(result)).type(MediaType.APPLICATION_JSON_TYPE).build();
+	}
+
 	private static Owner getOwner(String ownerType, String ownerName) {
 		if (ownerType != null && ownerType.equals(OWNER_TYPE_ORG)) {
 			return Owner.org(ownerName);
@@ -192,14 +248,107 @@ public Response getUser(@PathParam("loginName") String loginName) {
 		}
 	}
 
+	/**
+	 * Returns the resource change events since a time, or after a sequence number.
+	 * With enrich=diff, each event includes the fields of the issue that were
+	 * changed; with enrich=issue, each event also includes the current version of
+	 * the issue.
+	 * 
+	 * The owner (name) and repo ('owner/repo') parameters may be repeated, to
+	 * return only the events of those owners and repositories, and minIssue and
+	 * maxIssue select a range of issue numbers; these are read using the
+	 * database's per-repository index. After a sequence number, with any of these
+	 * parameters, the response is a page of the matching events with the cursor
+	 * for the next request (which skips past the events that did not match).
+	 */
 	@GET
 	@Path("/resourceChangeEvent")
-	public Response getRecentResourceChangeEvents(@QueryParam("since") long sinceGreaterOrEqualTime) {
+	public Response getRecentResourceChangeEvents(@QueryParam("since") long sinceGreaterOrEqualTime,
+			@QueryParam("after") Long afterSequence, @QueryParam("limit") Integer limit,
+			@QueryParam("owner") List<String> owners, @QueryParam("repo") List<String> repos,
+			@QueryParam("minIssue") Integer minIssue, @QueryParam("maxIssue") Integer maxIssue,
+			@QueryParam("enrich") String enrich) {
 		verifyHeaderAuth();
 
+		Enrichment enrichment = Enrichment.fromQueryValue(enrich);
+
+		ResourceChangeEventFilter filter = createFilter(owners, repos, minIssue, maxIssue);
+
 		Database db = getDb();
-		List<ResourceChangeEventJson> changes = db.getRecentResourceChangeEvents(sinceGreaterOrEqualTime);
-		return Response.ok(JsonUtil.toString(changes)).type(MediaType.APPLICATION_JSON_TYPE).build();
+
+		int boundedLimit = limit != null ? Math.max(1, Math.min(limit, MAX_RESOURCE_CHANGE_EVENTS_LIMIT))
+				: MAX_RESOURCE_CHANGE_EVENTS_LIMIT;
+
+		if (afterSequence != null && !filter.matchesAll()) {
+			ResourceChangeEventPageJson page = db.getResourceChangeEventsAfter(afterSequence, boundedLimit, filter);
+
+			page.setEvents(ResourceChangeEventEnricher.enrich(page.getEvents(), enrichment, db));
+
+			return Response.ok(ResourceChangeEventEnricher.toJson(page, enrichment))
+					.type(MediaType.APPLICATION_JSON_TYPE).build();
+		}
+
+		if (enrichment != Enrichment.NONE || !filter.matchesAll()) {
+			List<ResourceChangeEventJson> events;
+			if (afterSequence != null) {
+				events = db.getResourceChangeEventsAfter(afterSequence, boundedLimit);
+			} else {
+				events = db.getRecentResourceChangeEvents(sinceGreaterOrEqualTime, filter);
+			}
+
+			events = ResourceChangeEventEnricher.enrich(events, enrichment, db);
+
+			return Response.ok(ResourceChangeEventEnricher.toJson(events, enrichment))
+					.type(MediaType.APPLICATION_JSON_TYPE).build();
+		}
+
+		byte[] changes;
+		if (afterSequence != null) {
+			// The client passes the sequence number of the last event it received
+			changes = db.getResourceChangeEventsAfterAsJson(afterSequence, boundedLimit);
+		} else {
+			changes = db.getRecentResourceChangeEventsAsJson(sinceGreaterOrEqualTime);
+		}
+		return Response.ok(changes).type(MediaType.APPLICATION_JSON_TYPE).build();
+	}
+
+	/**
+	 * Long-poll for the resource change events after a sequence number: responds
+	 * with the matching events as soon as there are any, or with an empty page
+	 * after the timeout. The owner (name) and repo ('owner/repo') parameters may
+	 * be repeated, to receive only the events of those owners and repositories.
+	 * The minIssue, maxIssue and enrich parameters are as above.
+	 */
+	@GET
+	@Path("/resourceChangeEvent/poll")
+	@Produces(MediaType.APPLICATION_JSON)
+	public void pollResourceChangeEvents(@QueryParam("after") long afterSequence, @QueryParam("limit") Integer limit,
+			@QueryParam("owner") List<String> owners, @QueryParam("repo") List<String> repos,
+			@QueryParam("minIssue") Integer minIssue, @QueryParam("maxIssue") Integer maxIssue,
+			@QueryParam("timeout") Integer timeoutInSeconds, @QueryParam("enrich") String enrich,
+			@Suspended AsyncResponse response) {
+		verifyHeaderAuth();
+
+		Enrichment enrichment = Enrichment.fromQueryValue(enrich);
+
+		ResourceChangeEventFilter filter = createFilter(owners, repos, minIssue, maxIssue);
+
+		int boundedLimit = limit != null ? Math.max(1, Math.min(limit, MAX_RESOURCE_CHANGE_EVENTS_LIMIT))
+				: MAX_RESOURCE_CHANGE_EVENTS_LIMIT;
+
+		int boundedTimeout = timeoutInSeconds != null
+				? Math.max(1, Math.min(timeoutInSeconds, MAX_POLL_TIMEOUT_IN_SECONDS))
+				: DEFAULT_POLL_TIMEOUT_IN_SECONDS;
+
+		ApiMirrorInstance.getInstance().getLongPoll().poll(afterSequence, boundedLimit, filter, enrichment,
+				boundedTimeout, response);
+	}
+
+	private static ResourceChangeEventFilter createFilter(List<String> owners, List<String> repos, Integer minIssue,
+			Integer maxIssue) {
+		return new ResourceChangeEventFilter(owners != null ? owners : new ArrayList<>(),
+				repos != null ? repos : new ArrayList<>(), minIssue != null ? minIssue : 0,
+				maxIssue != null ? maxIssue : Integer.MAX_VALUE);
 	}
 
 	@POST
@@ -210,6 +359,48 @@ public Response adminTriggerFullScan() {
 		return Response.ok().build();
 	}
 
+	@GET
+	@Path("/admin/cache/statistics")
+	public Response adminGetCacheStatistics() {
+		verifyHeaderAuth();
+
+		Database db = getDb();
+		if (!(db instanceof InMemoryCacheDb)) {
+			return Response.status(Status.NOT_FOUND).build();
+		}
+
+		CacheStatisticsJson stats = ((InMemoryCacheDb) db).getCacheStatistics();
+		return Response.ok(JsonUtil.toString(stats)).type(MediaType.APPLICATION_JSON_TYPE).build();
+	}
+
+	@GET
+	@Path("/admin/workqueue/statistics")
+	public Response adminGetWorkQueueStatistics() {
+		verifyHeaderAuth();
+
+		WorkQueueStatisticsJson stats = ApiMirrorInstance.getInstance().getServerInstance().getWorkQueueStatistics();
+		return Response.ok(JsonUtil.toString(stats)).type(MediaType.APPLICATION_JSON_TYPE).build();
+	}
+
+	@GET
+	@Path("/admin/workqueue/deadletters")
+	public Response adminGetDeadLetters() {
+		verifyHeaderAuth();
+
+		List<DeadLetterJson> deadLetters = ApiMirrorInstance.getInstance().getServerInstance().getDeadLetters();
+		return Response.ok(JsonUtil.toString(deadLetters)).type(MediaType.APPLICATION_JSON_TYPE).build();
+	}
+
+	@POST
+	@Path("/admin/workqueue/deadletters/requeue")
+	public Response adminRequeueDeadLetters() {
+		verifyHeaderAuth();
+
+		ApiMirrorInstance.getInstance().getServerInstance().requeueDeadLetters();
+
+		return Response.ok().build();
+	}
+
 	private void verifyHeaderAuth() {
 		String key = ApiMirrorInstance.getInstance().getPresharedKey();
 
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2021 Jonathan West
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.githubapimirror.service;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.container.AsyncResponse;
+
+import com.githubapimirror.GHLog;
+import com.githubapimirror.ResourceChangeEventEnricher;
+import com.githubapimirror.db.Database;
+import com.githubapimirror.db.DatabaseUtil;
+import com.githubapimirror.shared.ResourceChangeEventFilter;
+import com.githubapimirror.shared.json.ResourceChangeEventJson;
+import com.githubapimirror.shared.json.ResourceChangeEventJson.Enrichment;
+import com.githubapimirror.shared.json.ResourceChangeEventPageJson;
+
+/**
+ * Long-poll requests for resource change events: a request for the events
+ * after a sequence number (optionally filtered by owner, repository and issue
+ * number) is answered immediately if there are any matching events, otherwise
+ * it is suspended until a matching event is persisted, or the request times
+ * out (with an empty page).
+ *
+ * Suspended requests are completed by a background thread, rather than the
+ * thread that persisted the event (usually a WorkerThread).
+ */
+public class ResourceChangeEventLongPoll {
+
+	private static final GHLog log = GHLog.getInstance();
+
+	private final Database db;
+
+	private final Object lock = new Object();
+
+	private final Set<Poll> polls_synch_lock = new HashSet<>();
+
+	private boolean closed_synch_lock = false;
+
+	/** Suspended requests that have a matching event */
+	private final LinkedBlockingQueue<Poll> toComplete = new LinkedBlockingQueue<>();
+
+	private final CompletionThread completionThread;
+
+	public ResourceChangeEventLongPoll(Database db) {
+		this.db = db;
+
+		completionThread = new CompletionThread();
+		completionThread.start();
+	}
+
+	public void poll(long afterSequence, int limit, ResourceChangeEventFilter filter, Enrichment enrichment,
+			int timeoutInSeconds, AsyncResponse response) {
+
+		Poll poll = new Poll(afterSequence, limit, filter, enrichment, response);
+
+		response.setTimeoutHandler(
+				e -> complete(poll, DatabaseUtil.createResourceChangeEventPage(new ArrayList<>(), poll.cursor)));
+		response.setTimeout(timeoutInSeconds, TimeUnit.SECONDS);
+
+		// Register before reading, so that an event persisted after the read will
+		// complete the request.
+		synchronized (lock) {
+			if (!closed_synch_lock) {
+				polls_synch_lock.add(poll);
+			}
+		}
+
+		ResourceChangeEventPageJson page;
+		try {
+			page = readPage(poll);
+		} catch (RuntimeException e) {
+			synchronized (lock) {
+				polls_synch_lock.remove(poll);
+			}
+			throw e;
+		}
+
+		if (!page.getEvents().isEmpty()) {
+			complete(poll, page);
+		} else {
+			// Events that did not match the filter need not be read again
+			poll.cursor = page.getLastSequence();
+		}
+	}
+
+	/** Called after resource change events are persisted. */
+	public void onEventsPersisted(List<ResourceChangeEventJson> events) {
+		synchronized (lock) {
+			for (Poll poll : polls_synch_lock) {
+				if (events.stream().anyMatch(e -> poll.filter.matches(e))) {
+					toComplete.offer(poll);
+				}
+			}
+		}
+	}
+
+	/** Complete all waiting requests, for example, on shutdown. */
+	public void close() {
+		List<Poll> polls;
+		synchronized (lock) {
+			closed_synch_lock = true;
+			polls = new ArrayList<>(polls_synch_lock);
+		}
+
+		completionThread.interrupt();
+
+		polls.forEach(e -> complete(e, DatabaseUtil.createResourceChangeEventPage(new ArrayList<>(), e.cursor)));
+	}
+
+	/**
+	 * Read up to the poll's limit of matching events after its cursor; the
+	 * database reads only the events of the filter's owners and repositories.
+	 */
+	private ResourceChangeEventPageJson readPage(Poll poll) {
+		return db.getResourceChangeEventsAfter(poll.cursor, poll.limit, poll.filter);
+	}
+
+	private void complete(Poll poll, ResourceChangeEventPageJson page) {
+		synchronized (lock) {
+			polls_synch_lock.remove(poll);
+		}
+
+		page.setEvents(ResourceChangeEventEnricher.enrich(page.getEvents(), poll.enrichment, db));
+
+		// The endpoint produces JSON, so the page is resumed as the entity
+		poll.response.resume(ResourceChangeEventEnricher.toJson(page, poll.enrichment));
+	}
+
+	/** A suspended request. */
+	private static class Poll {
+		private final int limit;
+		private final ResourceChangeEventFilter filter;
+		private final Enrichment enrichment;
+		private final AsyncResponse response;
+
+		/** The sequence number after which to read matching events */
+		private volatile long cursor;
+
+		public Poll(long afterSequence, int limit, ResourceChangeEventFilter filter, Enrichment enrichment,
+				AsyncResponse response) {
+			this.cursor = afterSequence;
+			this.limit = limit;
+			this.filter = filter;
+			this.enrichment = enrichment;
+			this.response = response;
+		}
+	}
+
+	/** Reads the events of, and completes, the requests that have a matching event. */
+	private class CompletionThread extends Thread {
+
+		public CompletionThread() {
+			setName(CompletionThread.class.getName());
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				Poll poll;
+				try {
+					poll = toComplete.take();
+				} catch (InterruptedException e) {
+					return;
+				}
+
+				if (poll.response.isDone()) {
+					continue; // Already completed (or timed out)
+				}
+
+				try {
+					complete(poll, readPage(poll));
+				} catch (Exception e) {
+					// Log and ignore
+					log.logError("Exception occured in " + this.getClass().getSimpleName() + ",", e);
+					poll.response.resume(e);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright 2021 Jonathan West
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+*/
+
+
+package com.githubapimirror.service.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.TimeoutHandler;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.githubapimirror.db.InMemoryCacheDb;
+import com.githubapimirror.db.SegmentStoreDb;
+import com.githubapimirror.service.ResourceChangeEventLongPoll;
+import com.githubapimirror.shared.ResourceChangeEventFilter;
+import com.githubapimirror.shared.json.ResourceChangeEventJson;
+import com.githubapimirror.shared.json.ResourceChangeEventJson.Enrichment;
+import com.githubapimirror.shared.json.ResourceChangeEventPageJson;
+
+/**
+ * Tests for ResourceChangeEventLongPoll, the implementation of the resource
+ * change event long-poll endpoint, with a fake AsyncResponse.
+ */
+public class ResourceChangeEventLongPollTest {
+
+	@Rule
+	public TemporaryFolder tempFolder = new TemporaryFolder();
+
+	private InMemoryCacheDb db;
+
+	private ResourceChangeEventLongPoll longPoll;
+
+	private final ResourceChangeEventFilter orgAFilter = new ResourceChangeEventFilter(Arrays.asList("org-a"),
+			Collections.emptyList());
+
+	@Before
+	public void before() throws Exception {
+		db = new InMemoryCacheDb(new SegmentStoreDb(tempFolder.newFolder()), false,
+				InMemoryCacheDb.DEFAULT_CACHE_SIZE_IN_BYTES);
+
+		longPoll = new ResourceChangeEventLongPoll(db);
+		db.addResourceChangeEventListener(longPoll::onEventsPersisted);
+	}
+
+	@After
+	public void after() {
+		longPoll.close();
+		db.close();
+	}
+
+	@Test
+	public void testRespondsImmediatelyWithMatchingEvents() throws Exception {
+		persistEvent("org-b");
+		long first = persistEvent("org-a");
+		long second = persistEvent("org-a");
+		persistEvent("org-b");
+
+		FakeAsyncResponse response = new FakeAsyncResponse();
+		longPoll.poll(0, 100, orgAFilter, Enrichment.NONE, 30, response);
+
+		assertTrue(response.isDone());
+		assertEquals(30, response.timeoutInSeconds);
+
+		ResourceChangeEventPageJson page = response.getPage();
+		assertEquals(Arrays.asList(first, second), getSequences(page));
+
+		// The cursor skips past the events that did not match
+		assertEquals(second + 1, page.getLastSequence());
+
+		// Up to the limit
+		response = new FakeAsyncResponse();
+		longPoll.poll(0, 1, orgAFilter, Enrichment.NONE, 30, response);
+		assertEquals(Arrays.asList(first), getSequences(response.getPage()));
+		assertEquals(first, response.getPage().getLastSequence());
+	}
+
+	@Test
+	public void testWaitsForMatchingEvent() throws Exception {
+		persistEvent("org-b");
+
+		FakeAsyncResponse response = new FakeAsyncResponse();
+		longPoll.poll(0, 100, orgAFilter, Enrichment.NONE, 30, response);
+		assertFalse(response.isDone());
+
+		// An event that does not match does not complete the request
+		persistEvent("org-b");
+		Thread.sleep(500);
+		assertFalse(response.isDone());
+
+		long expected = persistEvent("org-a");
+		waitFor(() -> response.isDone());
+
+		ResourceChangeEventPageJson page = response.getPage();
+		assertEquals(Arrays.asList(expected), getSequences(page));
+		assertEquals(expected, page.getLastSequence());
+	}
+
+	@Test
+	public void testTimeoutRespondsWithCursorPastNonMatchingEvents() throws Exception {
+		persistEvent("org-b");
+		long last = persistEvent("org-b");
+
+		FakeAsyncResponse response = new FakeAsyncResponse();
+		longPoll.poll(0, 100, orgAFilter, Enrichment.NONE, 5, response);
+		assertFalse(response.isDone());
+		assertEquals(5, response.timeoutInSeconds);
+
+		response.timeoutHandler.handleTimeout(response);
+
+		assertTrue(response.isDone());
+		ResourceChangeEventPageJson page = response.getPage();
+		assertTrue(page.getEvents().isEmpty());
+		assertEquals(last, page.getLastSequence());
+
+		// A matching event after the timeout is not sent to the completed request
+		persistEvent("org-a");
+		Thread.sleep(500);
+		assertEquals(1, response.resumeCount);
+	}
+
+	@Test
+	public void testCloseCompletesWaitingRequests() throws Exception {
+		FakeAsyncResponse response = new FakeAsyncResponse();
+		longPoll.poll(0, 100, orgAFilter, Enrichment.NONE, 30, response);
+		assertFalse(response.isDone());
+
+		longPoll.close();
+
+		assertTrue(response.isDone());
+		assertTrue(response.getPage().getEvents().isEmpty());
+	}
+
+	private long persistEvent(String owner) {
+		ResourceChangeEventJson event = new ResourceChangeEventJson();
+		event.setTime(System.currentTimeMillis());
+		event.setOwner(owner);
+		event.setRepo("my-repo");
+		event.setIssueNumber(1);
+		db.persistResourceChangeEvents(Arrays.asList(event));
+
+		List<ResourceChangeEventJson> events = db.getRecentResourceChangeEvents(0);
+		return events.get(events.size() - 1).getSequence();
+	}
+
+	private static List<Long> getSequences(ResourceChangeEventPageJson page) {
+		return page.getEvents().stream().map(e -> e.getSequence()).collect(Collectors.toList());
+	}
+
+	private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+		long expireTime = System.nanoTime() + TimeUnit.NANOSECONDS.convert(30, TimeUnit.SECONDS);
+		while (!condition.getAsBoolean()) {
+			assertTrue("Timed out waiting for condition", System.nanoTime() < expireTime);
+			Thread.sleep(50);
+		}
+	}
+
+	/** Records the entity that the request was resumed with. */
+	private static class FakeAsyncResponse implements AsyncResponse {
+
+		private volatile Object entity;
+
+		private volatile int resumeCount = 0;
+
+		private volatile long timeoutInSeconds = -1;
+
+		private volatile TimeoutHandler timeoutHandler;
+
+		public ResourceChangeEventPageJson getPage() throws Exception {
+			assertNotNull(entity);
+			assertTrue(entity instanceof String);
+			return new ObjectMapper().readValue((String) entity, ResourceChangeEventPageJson.class);
+		}
+
+		@Override
+		public synchronized boolean resume(Object response) {
+			resumeCount++;
+			if (entity != null) {
+				return false;
+			}
+			entity = response;
+			return true;
+		}
+
+		@Override
+		public boolean resume(Throwable response) {
+			return resume((Object) response);
+		}
+
+		@Override
+		public boolean cancel() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public boolean cancel(int retryAfter) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public boolean cancel(Date retryAfter) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public boolean isSuspended() {
+			return entity == null;
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return false;
+		}
+
+		@Override
+		public boolean isDone() {
+			return entity != null;
+		}
+
+		@Override
+		public boolean setTimeout(long time, TimeUnit unit) {
+			timeoutInSeconds = TimeUnit.SECONDS.convert(time, unit);
+			return true;
+		}
+
+		@Override
+		public void setTimeoutHandler(TimeoutHandler handler) {
+			timeoutHandler = handler;
+		}
+
+		@Override
+		public Collection<Class<?>> register(Class<?> callback) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public Map<Class<?>, Collection<Class<?>>> register(Class<?> callback, Class<?>... callbacks) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public Collection<Class<?>> register(Object callback) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public Map<Class<?>, Collection<Class<?>>> register(Object callback, Object... callbacks) {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
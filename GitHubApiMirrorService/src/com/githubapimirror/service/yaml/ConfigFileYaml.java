@@ -46,6 +46,18 @@ public class ConfigFileYaml {
 
 	private String fileLoggerPath;
 
+	private String dbType;
+
+	private Boolean writeBehindCache;
+
+	private Long cacheSizeInMegabytes;
+
+	private String storageFormat;
+
+	private List<WebhookYaml> webhooks = new ArrayList<>();
+
+	private Long processedEventRetentionInHours;
+
 	public ConfigFileYaml() {
 	}
 
@@ -152,4 +164,52 @@ public String getFileLoggerPath() {
 	public void setFileLoggerPath(String fileLoggerPath) {
 		this.fileLoggerPath = fileLoggerPath;
 	}
+
+	public String getDbType() {
+		return dbType;
+	}
+
+	public void setDbType(String dbType) {
+		this.dbType = dbType;
+	}
+
+	public Boolean getWriteBehindCache() {
+		return writeBehindCache;
+	}
+
+	public void setWriteBehindCache(Boolean writeBehindCache) {
+		this.writeBehindCache = writeBehindCache;
+	}
+
+	public Long getCacheSizeInMegabytes() {
+		return cacheSizeInMegabytes;
+	}
+
+	public void setCacheSizeInMegabytes(Long cacheSizeInMegabytes) {
+		this.cacheSizeInMegabytes = cacheSizeInMegabytes;
+	}
+
+	public String getStorageFormat() {
+		return storageFormat;
+	}
+
+	public void setStorageFormat(String storageFormat) {
+		this.storageFormat = storageFormat;
+	}
+
+	public List<WebhookYaml> getWebhooks() {
+		return webhooks;
+	}
+
+	public void setWebhooks(List<WebhookYaml> webhooks) {
+		this.webhooks = webhooks;
+	}
+
+	public Long getProcessedEventRetentionInHours() {
+		return processedEventRetentionInHours;
+	}
+
+	public void setProcessedEventRetentionInHours(Long processedEventRetentionInHours) {
+		this.processedEventRetentionInHours = processedEventRetentionInHours;
+	}
 }
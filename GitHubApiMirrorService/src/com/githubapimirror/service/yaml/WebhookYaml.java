@@ -0,0 +1,104 @@
+/*
+ * Copyright 2021 Jonathan West
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.githubapimirror.service.yaml;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class WebhookYaml {
+
+	private String name;
+
+	private String url;
+
+	private String authorization;
+
+	private List<String> owners = new ArrayList<>();
+
+	private List<String> repos = new ArrayList<>();
+
+	private String enrich;
+
+	private Integer batchSize;
+
+	private Long maxBatchDelayInMsecs;
+
+	public String getName() {
+		return name;
+	}
+
+	public void setName(String name) {
+		this.name = name;
+	}
+
+	public String getUrl() {
+		return url;
+	}
+
+	public void setUrl(String url) {
+		this.url = url;
+	}
+
+	public String getAuthorization() {
+		return authorization;
+	}
+
+	public void setAuthorization(String authorization) {
+		this.authorization = authorization;
+	}
+
+	public List<String> getOwners() {
+		return owners;
+	}
+
+	public void setOwners(List<String> owners) {
+		this.owners = owners;
+	}
+
+	public List<String> getRepos() {
+		return repos;
+	}
+
+	public void setRepos(List<String> repos) {
+		this.repos = repos;
+	}
+
+	public String getEnrich() {
+		return enrich;
+	}
+
+	public void setEnrich(String enrich) {
+		this.enrich = enrich;
+	}
+
+	public Integer getBatchSize() {
+		return batchSize;
+	}
+
+	public void setBatchSize(Integer batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	public Long getMaxBatchDelayInMsecs() {
+		return maxBatchDelayInMsecs;
+	}
+
+	public void setMaxBatchDelayInMsecs(Long maxBatchDelayInMsecs) {
+		this.maxBatchDelayInMsecs = maxBatchDelayInMsecs;
+	}
+
+}
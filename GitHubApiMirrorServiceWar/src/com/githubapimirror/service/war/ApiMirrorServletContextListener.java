@@ -64,6 +64,7 @@ public void contextInitialized(ServletContextEvent servletContextEvent) {
 	}
 
 	public void contextDestroyed(ServletContextEvent servletContextEvent) {
+		ApiMirrorInstance.getInstance().shutdown();
 	}
 	
 	private static Optional<String> lookupString(String key) {
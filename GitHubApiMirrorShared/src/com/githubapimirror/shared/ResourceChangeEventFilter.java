@@ -0,0 +1,127 @@
+/*
+ * Copyright 2021 Jonathan West
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.githubapimirror.shared;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+
+import com.githubapimirror.shared.json.ResourceChangeEventJson;
+
+/**
+ * Selects resource change events by owner, by repository ('owner/repo'), and by
+ * issue number range. An event matches if its owner or its repository is one of
+ * those given (or if neither owners nor repositories are given), and its issue
+ * number is in the range. Names are compared case-insensitively, as on GitHub.
+ * 
+ * This class is immutable.
+ */
+public class ResourceChangeEventFilter {
+
+	/** Matches all events */
+	public static final ResourceChangeEventFilter ALL = new ResourceChangeEventFilter(Collections.emptyList(),
+			Collections.emptyList());
+
+	/** Lowercase owner names */
+	private final Set<String> owners;
+
+	/** Lowercase 'owner/repo' names */
+	private final Set<String> repos;
+
+	private final int minIssueNumber;
+
+	private final int maxIssueNumber;
+
+	public ResourceChangeEventFilter(Collection<String> owners, Collection<String> repos) {
+		this(owners, repos, 0, Integer.MAX_VALUE);
+	}
+
+	/** The issue number range is inclusive. */
+	public ResourceChangeEventFilter(Collection<String> owners, Collection<String> repos, int minIssueNumber,
+			int maxIssueNumber) {
+		this.owners = normalize(owners);
+		this.repos = normalize(repos);
+		this.minIssueNumber = minIssueNumber;
+		this.maxIssueNumber = maxIssueNumber;
+
+		if (this.repos.stream().anyMatch(e -> e.indexOf('/') <= 0 || e.indexOf('/') != e.lastIndexOf('/'))) {
+			throw new IllegalArgumentException("Repositories must be of the form 'owner/repo': " + repos);
+		}
+	}
+
+	public boolean matches(ResourceChangeEventJson event) {
+		if (event.getIssueNumber() < minIssueNumber || event.getIssueNumber() > maxIssueNumber) {
+			return false;
+		}
+
+		if (!hasOwnerOrRepoCriteria()) {
+			return true;
+		}
+
+		String owner = event.getOwner() != null ? event.getOwner().toLowerCase() : "";
+		String repo = event.getRepo() != null ? event.getRepo().toLowerCase() : "";
+
+		return owners.contains(owner) || repos.contains(owner + "/" + repo);
+	}
+
+	/**
+	 * True if the filter selects events by owner or repository, in which case a
+	 * database may read only the events of those owners and repositories.
+	 */
+	public boolean hasOwnerOrRepoCriteria() {
+		return !owners.isEmpty() || !repos.isEmpty();
+	}
+
+	public boolean matchesAll() {
+		return !hasOwnerOrRepoCriteria() && minIssueNumber <= 0 && maxIssueNumber == Integer.MAX_VALUE;
+	}
+
+	/** Lowercase owner names */
+	public Set<String> getOwners() {
+		return owners;
+	}
+
+	/** Lowercase 'owner/repo' names */
+	public Set<String> getRepos() {
+		return repos;
+	}
+
+	public int getMinIssueNumber() {
+		return minIssueNumber;
+	}
+
+	public int getMaxIssueNumber() {
+		return maxIssueNumber;
+	}
+
+	/** The key of an event's repository in an index: its lowercase 'owner/repo' name */
+	public static String repoKey(String owner, String repo) {
+		return (owner != null ? owner : "").toLowerCase() + "/" + (repo != null ? repo : "").toLowerCase();
+	}
+
+	private static Set<String> normalize(Collection<String> names) {
+		Set<String> result = new TreeSet<>();
+		names.stream().map(e -> e.trim().toLowerCase()).filter(e -> !e.isEmpty()).forEach(e -> result.add(e));
+		return Collections.unmodifiableSet(result);
+	}
+
+	@Override
+	public String toString() {
+		return "owners=" + owners + ", repos=" + repos + ", issues=" + minIssueNumber + "-" + maxIssueNumber;
+	}
+}
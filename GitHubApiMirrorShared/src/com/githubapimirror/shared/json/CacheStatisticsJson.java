@@ -0,0 +1,116 @@
+/*
+ * Copyright 2021 Jonathan West
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+*/
+
+package com.githubapimirror.shared.json;
+
+/** Statistics of the server-side database cache; weights are approximate sizes in bytes. */
+public class CacheStatisticsJson {
+
+	private long hitCount;
+	private long missCount;
+	private double hitRate;
+	private long loadSuccessCount;
+	private long loadFailureCount;
+	private long evictionCount;
+	private long evictionWeight;
+	private long entryCount;
+	private long weightedSize;
+	private long maximumWeight;
+
+	public CacheStatisticsJson() {
+	}
+
+	public long getHitCount() {
+		return hitCount;
+	}
+
+	public void setHitCount(long hitCount) {
+		this.hitCount = hitCount;
+	}
+
+	public long getMissCount() {
+		return missCount;
+	}
+
+	public void setMissCount(long missCount) {
+		this.missCount = missCount;
+	}
+
+	public double getHitRate() {
+		return hitRate;
+	}
+
+	public void setHitRate(double hitRate) {
+		this.hitRate = hitRate;
+	}
+
+	public long getLoadSuccessCount() {
+		return loadSuccessCount;
+	}
+
+	public void setLoadSuccessCount(long loadSuccessCount) {
+		this.loadSuccessCount = loadSuccessCount;
+	}
+
+	public long getLoadFailureCount() {
+		return loadFailureCount;
+	}
+
+	public void setLoadFailureCount(long loadFailureCount) {
+		this.loadFailureCount = loadFailureCount;
+	}
+
+	public long getEvictionCount() {
+		return evictionCount;
+	}
+
+	public void setEvictionCount(long evictionCount) {
+		this.evictionCount = evictionCount;
+	}
+
+	public long getEvictionWeight() {
+		return evictionWeight;
+	}
+
+	public void setEvictionWeight(long evictionWeight) {
+		this.evictionWeight = evictionWeight;
+	}
+
+	public long getEntryCount() {
+		return entryCount;
+	}
+
+	public void setEntryCount(long entryCount) {
+		this.entryCount = entryCount;
+	}
+
+	public long getWeightedSize() {
+		return weightedSize;
+	}
+
+	public void setWeightedSize(long weightedSize) {
+		this.weightedSize = weightedSize;
+	}
+
+	public long getMaximumWeight() {
+		return maximumWeight;
+	}
+
+	public void setMaximumWeight(long maximumWeight) {
+		this.maximumWeight = maximumWeight;
+	}
+
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2021 Jonathan West
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+*/
+
+package com.githubapimirror.shared.json;
+
+import java.util.Date;
+
+/**
+ * A work item that the server stopped retrying, either because its failure is
+ * permanent (for example, the resource no longer exists), or because it failed
+ * too many times.
+ */
+public class DeadLetterJson {
+
+	private String resource;
+	private String priority;
+	private int attempts;
+	private boolean permanent;
+	private String lastError;
+	private Date firstFailure;
+	private Date lastFailure;
+
+	public DeadLetterJson() {
+	}
+
+	public String getResource() {
+		return resource;
+	}
+
+	public void setResource(String resource) {
+		this.resource = resource;
+	}
+
+	public String getPriority() {
+		return priority;
+	}
+
+	public void setPriority(String priority) {
+		this.priority = priority;
+	}
+
+	public int getAttempts() {
+		return attempts;
+	}
+
+	public void setAttempts(int attempts) {
+		this.attempts = attempts;
+	}
+
+	public boolean isPermanent() {
+		return permanent;
+	}
+
+	public void setPermanent(boolean permanent) {
+		this.permanent = permanent;
+	}
+
+	public String getLastError() {
+		return lastError;
+	}
+
+	public void setLastError(String lastError) {
+		this.lastError = lastError;
+	}
+
+	public Date getFirstFailure() {
+		return firstFailure;
+	}
+
+	public void setFirstFailure(Date firstFailure) {
+		this.firstFailure = firstFailure;
+	}
+
+	public Date getLastFailure() {
+		return lastFailure;
+	}
+
+	public void setLastFailure(Date lastFailure) {
+		this.lastFailure = lastFailure;
+	}
+
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2021 Jonathan West
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.githubapimirror.shared.json;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+
+/**
+ * The fields of an issue that were changed by an update, as reported by an
+ * enriched resource change event. Fields that were not changed are omitted
+ * from the JSON.
+ */
+@JsonInclude(Include.NON_DEFAULT)
+public class IssueChangeJson {
+
+	/** True if the mirror had no previous version of the issue */
+	private boolean created;
+
+	/** True if the issue was closed, false if it was reopened, or null if neither */
+	private Boolean closed;
+
+	/** The new title, or null if the title was not changed */
+	private String title;
+
+	private boolean bodyChanged;
+
+	private List<String> labelsAdded = new ArrayList<>();
+
+	private List<String> labelsRemoved = new ArrayList<>();
+
+	private List<String> assigneesAdded = new ArrayList<>();
+
+	private List<String> assigneesRemoved = new ArrayList<>();
+
+	/** Comments that were added (or edited) since the previous version; empty if created */
+	private List<IssueCommentJson> newComments = new ArrayList<>();
+
+	public IssueChangeJson() {
+	}
+
+	public boolean isCreated() {
+		return created;
+	}
+
+	public void setCreated(boolean created) {
+		this.created = created;
+	}
+
+	public Boolean getClosed() {
+		return closed;
+	}
+
+	public void setClosed(Boolean closed) {
+		this.closed = closed;
+	}
+
+	public String getTitle() {
+		return title;
+	}
+
+	public void setTitle(String title) {
+		this.title = title;
+	}
+
+	public boolean isBodyChanged() {
+		return bodyChanged;
+	}
+
+	public void setBodyChanged(boolean bodyChanged) {
+		this.bodyChanged = bodyChanged;
+	}
+
+	public List<String> getLabelsAdded() {
+		return labelsAdded;
+	}
+
+	public void setLabelsAdded(List<String> labelsAdded) {
+		this.labelsAdded = labelsAdded;
+	}
+
+	public List<String> getLabelsRemoved() {
+		return labelsRemoved;
+	}
+
+	public void setLabelsRemoved(List<String> labelsRemoved) {
+		this.labelsRemoved = labelsRemoved;
+	}
+
+	public List<String> getAssigneesAdded() {
+		return assigneesAdded;
+	}
+
+	public void setAssigneesAdded(List<String> assigneesAdded) {
+		this.assigneesAdded = assigneesAdded;
+	}
+
+	public List<String> getAssigneesRemoved() {
+		return assigneesRemoved;
+	}
+
+	public void setAssigneesRemoved(List<String> assigneesRemoved) {
+		this.assigneesRemoved = assigneesRemoved;
+	}
+
+	public List<IssueCommentJson> getNewComments() {
+		return newComments;
+	}
+
+	public void setNewComments(List<IssueCommentJson> newComments) {
+		this.newComments = newComments;
+	}
+
+}
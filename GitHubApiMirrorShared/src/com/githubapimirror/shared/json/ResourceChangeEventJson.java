@@ -16,6 +16,10 @@
 
 package com.githubapimirror.shared.json;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+import com.fasterxml.jackson.annotation.JsonView;
+
 public class ResourceChangeEventJson {
 
 	private long time;
@@ -24,6 +28,30 @@ public class ResourceChangeEventJson {
 	private String uuid;
 	private int issueNumber;
 
+	/**
+	 * Assigned by the server when the event is persisted; increases monotonically,
+	 * so it may be used as a cursor (0 for events persisted before sequence numbers
+	 * were assigned).
+	 */
+	private long sequence;
+
+	/**
+	 * The fields of the issue that were changed (null for events persisted before
+	 * changes were recorded); only returned to clients that request enriched
+	 * events.
+	 */
+	@JsonView(Views.Enriched.class)
+	@JsonInclude(Include.NON_NULL)
+	private IssueChangeJson change;
+
+	/**
+	 * The current version of the issue; never persisted, only attached to the
+	 * response for clients that request it.
+	 */
+	@JsonView(Views.Enriched.class)
+	@JsonInclude(Include.NON_NULL)
+	private IssueJson issue;
+
 	public ResourceChangeEventJson() {
 	}
 
@@ -67,4 +95,80 @@ public void setIssueNumber(int issueNumber) {
 		this.issueNumber = issueNumber;
 	}
 
+	public long getSequence() {
+		return sequence;
+	}
+
+	public void setSequence(long sequence) {
+		this.sequence = sequence;
+	}
+
+	public IssueChangeJson getChange() {
+		return change;
+	}
+
+	public void setChange(IssueChangeJson change) {
+		this.change = change;
+	}
+
+	public IssueJson getIssue() {
+		return issue;
+	}
+
+	public void setIssue(IssueJson issue) {
+		this.issue = issue;
+	}
+
+	/** Returns a shallow copy of this event. */
+	public ResourceChangeEventJson copy() {
+		ResourceChangeEventJson result = new ResourceChangeEventJson();
+		result.time = time;
+		result.owner = owner;
+		result.repo = repo;
+		result.uuid = uuid;
+		result.issueNumber = issueNumber;
+		result.sequence = sequence;
+		result.change = change;
+		result.issue = issue;
+		return result;
+	}
+
+	/**
+	 * The enrichment of the events returned to a client ('enrich' query parameter):
+	 * DIFF includes the fields of the issue that were changed, and ISSUE also
+	 * includes the current version of the issue.
+	 */
+	public static enum Enrichment {
+		NONE, DIFF, ISSUE;
+
+		public String getQueryValue() {
+			return name().toLowerCase();
+		}
+
+		/** Parse a query parameter value; null or empty is NONE. */
+		public static Enrichment fromQueryValue(String value) {
+			if (value == null || value.trim().isEmpty()) {
+				return NONE;
+			}
+			try {
+				return Enrichment.valueOf(value.trim().toUpperCase());
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException("Unrecognized enrichment: " + value);
+			}
+		}
+	}
+
+	/**
+	 * JSON views of an event: serialize with the Basic view for the fields that
+	 * are returned to all clients, or with no view (or the Enriched view) for all
+	 * fields.
+	 */
+	public static class Views {
+		public interface Basic {
+		}
+
+		public interface Enriched extends Basic {
+		}
+	}
+
 }
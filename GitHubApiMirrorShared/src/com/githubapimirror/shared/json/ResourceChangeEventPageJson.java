@@ -0,0 +1,50 @@
+/*
+ * Copyright 2021 Jonathan West
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.githubapimirror.shared.json;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * JSON response to a resource change event long-poll request from the GitHub
+ * mirror server: the matching events, and the sequence number to pass as the
+ * cursor of the next request (which may be greater than that of the last
+ * event, if later events did not match the request's filter).
+ */
+public class ResourceChangeEventPageJson {
+
+	private List<ResourceChangeEventJson> events = new ArrayList<>();
+
+	private long lastSequence;
+
+	public List<ResourceChangeEventJson> getEvents() {
+		return events;
+	}
+
+	public void setEvents(List<ResourceChangeEventJson> events) {
+		this.events = events;
+	}
+
+	public long getLastSequence() {
+		return lastSequence;
+	}
+
+	public void setLastSequence(long lastSequence) {
+		this.lastSequence = lastSequence;
+	}
+
+}
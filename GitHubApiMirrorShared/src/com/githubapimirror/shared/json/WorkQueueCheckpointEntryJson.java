@@ -0,0 +1,83 @@
+/*
+ * Copyright 2021 Jonathan West
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+*/
+
+package com.githubapimirror.shared.json;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The pending work of an owner, or of a repository of an owner, in a work queue
+ * checkpoint: either the owner itself (repo is null), a repository, or some of
+ * the issues of a repository (issues is non-empty).
+ */
+public class WorkQueueCheckpointEntryJson {
+
+	private String owner;
+
+	/** 'ORG' or 'USER' (see Owner.Type) */
+	private String ownerType;
+
+	private String repo;
+
+	private List<Integer> issues = new ArrayList<>();
+
+	private String priority;
+
+	public WorkQueueCheckpointEntryJson() {
+	}
+
+	public String getOwner() {
+		return owner;
+	}
+
+	public void setOwner(String owner) {
+		this.owner = owner;
+	}
+
+	public String getOwnerType() {
+		return ownerType;
+	}
+
+	public void setOwnerType(String ownerType) {
+		this.ownerType = ownerType;
+	}
+
+	public String getRepo() {
+		return repo;
+	}
+
+	public void setRepo(String repo) {
+		this.repo = repo;
+	}
+
+	public List<Integer> getIssues() {
+		return issues;
+	}
+
+	public void setIssues(List<Integer> issues) {
+		this.issues = issues;
+	}
+
+	public String getPriority() {
+		return priority;
+	}
+
+	public void setPriority(String priority) {
+		this.priority = priority;
+	}
+
+}
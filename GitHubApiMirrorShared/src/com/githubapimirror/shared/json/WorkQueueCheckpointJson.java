@@ -0,0 +1,52 @@
+/*
+ * Copyright 2021 Jonathan West
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+*/
+
+package com.githubapimirror.shared.json;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The pending work of the server-side work queue, persisted so that work (in
+ * particular, a full scan) can be resumed after a restart.
+ */
+public class WorkQueueCheckpointJson {
+
+	/** The start time of the full scan in progress, or null if none. */
+	private Long fullScanStart;
+
+	private List<WorkQueueCheckpointEntryJson> entries = new ArrayList<>();
+
+	public WorkQueueCheckpointJson() {
+	}
+
+	public Long getFullScanStart() {
+		return fullScanStart;
+	}
+
+	public void setFullScanStart(Long fullScanStart) {
+		this.fullScanStart = fullScanStart;
+	}
+
+	public List<WorkQueueCheckpointEntryJson> getEntries() {
+		return entries;
+	}
+
+	public void setEntries(List<WorkQueueCheckpointEntryJson> entries) {
+		this.entries = entries;
+	}
+
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2021 Jonathan West
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+*/
+
+package com.githubapimirror.shared.json;
+
+/**
+ * Statistics of a single priority class of the server-side work queue; wait
+ * times are the time between when work was queued, and when it was polled.
+ */
+public class WorkQueuePriorityStatisticsJson {
+
+	private String priority;
+	private long queued;
+	private long polled;
+	private long averageWaitInMsecs;
+	private long maxWaitInMsecs;
+	private long oldestQueuedWaitInMsecs;
+
+	public WorkQueuePriorityStatisticsJson() {
+	}
+
+	public String getPriority() {
+		return priority;
+	}
+
+	public void setPriority(String priority) {
+		this.priority = priority;
+	}
+
+	public long getQueued() {
+		return queued;
+	}
+
+	public void setQueued(long queued) {
+		this.queued = queued;
+	}
+
+	public long getPolled() {
+		return polled;
+	}
+
+	public void setPolled(long polled) {
+		this.polled = polled;
+	}
+
+	public long getAverageWaitInMsecs() {
+		return averageWaitInMsecs;
+	}
+
+	public void setAverageWaitInMsecs(long averageWaitInMsecs) {
+		this.averageWaitInMsecs = averageWaitInMsecs;
+	}
+
+	public long getMaxWaitInMsecs() {
+		return maxWaitInMsecs;
+	}
+
+	public void setMaxWaitInMsecs(long maxWaitInMsecs) {
+		this.maxWaitInMsecs = maxWaitInMsecs;
+	}
+
+	public long getOldestQueuedWaitInMsecs() {
+		return oldestQueuedWaitInMsecs;
+	}
+
+	public void setOldestQueuedWaitInMsecs(long oldestQueuedWaitInMsecs) {
+		this.oldestQueuedWaitInMsecs = oldestQueuedWaitInMsecs;
+	}
+
+}
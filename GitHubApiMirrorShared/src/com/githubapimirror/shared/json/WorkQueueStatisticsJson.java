@@ -0,0 +1,65 @@
+/*
+ * Copyright 2021 Jonathan West
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+*/
+
+package com.githubapimirror.shared.json;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** Statistics of the server-side work queue, with the wait times of each priority class. */
+public class WorkQueueStatisticsJson {
+
+	private long activeResources;
+	private long pendingRetries;
+	private long deadLetters;
+	private List<WorkQueuePriorityStatisticsJson> priorities = new ArrayList<>();
+
+	public WorkQueueStatisticsJson() {
+	}
+
+	public long getActiveResources() {
+		return activeResources;
+	}
+
+	public void setActiveResources(long activeResources) {
+		this.activeResources = activeResources;
+	}
+
+	public long getPendingRetries() {
+		return pendingRetries;
+	}
+
+	public void setPendingRetries(long pendingRetries) {
+		this.pendingRetries = pendingRetries;
+	}
+
+	public long getDeadLetters() {
+		return deadLetters;
+	}
+
+	public void setDeadLetters(long deadLetters) {
+		this.deadLetters = deadLetters;
+	}
+
+	public List<WorkQueuePriorityStatisticsJson> getPriorities() {
+		return priorities;
+	}
+
+	public void setPriorities(List<WorkQueuePriorityStatisticsJson> priorities) {
+		this.priorities = priorities;
+	}
+
+}